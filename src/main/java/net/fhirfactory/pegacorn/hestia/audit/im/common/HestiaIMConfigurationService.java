@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common;
+
+import net.fhirfactory.pegacorn.core.interfaces.topology.ProcessingPlantInterface;
+import org.apache.commons.lang3.StringUtils;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Reads the IM's otherConfigurationParameters. A parameter that is not set (or, for the typed
+ * readers, does not parse) gives the caller's default.
+ */
+@ApplicationScoped
+public class HestiaIMConfigurationService {
+
+    @Inject
+    private ProcessingPlantInterface processingPlant;
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return the parameter's value, or null if it is not set
+     */
+    public String getParameter(String parameterName){
+        return(processingPlant.getMeAsASoftwareComponent().getOtherConfigurationParameter(parameterName));
+    }
+
+    public boolean getBooleanParameter(String parameterName, boolean defaultValue){
+        String parameterValue = getParameter(parameterName);
+        if(StringUtils.isBlank(parameterValue)){
+            return(defaultValue);
+        }
+        return(Boolean.parseBoolean(parameterValue.trim()));
+    }
+
+    public long getLongParameter(String parameterName, long defaultValue){
+        String parameterValue = getParameter(parameterName);
+        if(StringUtils.isNumeric(parameterValue)){
+            return(Long.parseLong(parameterValue));
+        }
+        return(defaultValue);
+    }
+
+    public int getIntegerParameter(String parameterName, int defaultValue){
+        String parameterValue = getParameter(parameterName);
+        if(StringUtils.isNumeric(parameterValue)){
+            return(Integer.parseInt(parameterValue));
+        }
+        return(defaultValue);
+    }
+}
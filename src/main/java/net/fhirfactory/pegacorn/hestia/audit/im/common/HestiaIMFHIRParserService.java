@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventEncodeEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventParseEvent;
+import net.fhirfactory.pegacorn.util.FHIRContextUtility;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Hands out HAPI JSON parsers to the IM components. HAPI parsers are not thread-safe, so a parser is
+ * borrowed for the duration of a call (or a loop) and then released. Released parsers are kept in a
+ * bounded pool, all configured the same way and all created from the platform's shared FhirContext
+ * (FHIRContextUtility), which is warmed up front. Nothing is tied to the calling thread, so pooled
+ * container threads hold no references to this deployment.
+ */
+@ApplicationScoped
+public class HestiaIMFHIRParserService {
+    private static final Logger LOG = LoggerFactory.getLogger(HestiaIMFHIRParserService.class);
+
+    private static final String WARM_UP_AUDIT_EVENT = "{\"resourceType\":\"AuditEvent\",\"type\":{\"system\":\"http://dicom.nema.org/resources/ontology/DCM\",\"code\":\"110100\"},\"recorded\":\"2021-01-01T00:00:00Z\",\"outcome\":\"0\",\"agent\":[{\"who\":{\"display\":\"warm-up\"},\"requestor\":true}],\"source\":{\"observer\":{\"display\":\"warm-up\"}},\"entity\":[{\"what\":{\"reference\":\"Patient/warm-up\"}}]}";
+
+    private final int maximumIdleParsers;
+    private final ArrayBlockingQueue<IParser> idleParsers;
+
+    @Inject
+    private FHIRContextUtility fhirContextUtility;
+
+    //
+    // Constructor(s)
+    //
+
+    public HestiaIMFHIRParserService(){
+        this.maximumIdleParsers = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        this.idleParsers = new ArrayBlockingQueue<>(maximumIdleParsers);
+    }
+
+    //
+    // Post Construct / Pre Destroy
+    //
+
+    @PostConstruct
+    public void initialise(){
+        getLogger().debug(".initialise(): Entry");
+        long startTime = System.currentTimeMillis();
+        // a parse/encode round trip forces HAPI to scan the AuditEvent model once, up front, for the
+        // (shared) context, so every parser created from it afterwards starts warm
+        IParser parser = borrowJsonParser();
+        try {
+            AuditEvent warmUpEvent = parser.parseResource(AuditEvent.class, WARM_UP_AUDIT_EVENT);
+            parser.encodeResourceToString(warmUpEvent);
+        } finally {
+            releaseJsonParser(parser);
+        }
+        int prewarmedParsers = Math.min(maximumIdleParsers, Runtime.getRuntime().availableProcessors());
+        for(int index = idleParsers.size(); index < prewarmedParsers; index++){
+            releaseJsonParser(newJsonParser());
+        }
+        getLogger().info(".initialise(): Exit, parsers warmed in {}ms, pooled->{}", System.currentTimeMillis() - startTime, idleParsers.size());
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        idleParsers.clear();
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return a JSON parser for the caller's use only, until it is given back with releaseJsonParser()
+     * (one that is never given back is simply left to the garbage collector)
+     */
+    public IParser borrowJsonParser(){
+        IParser parser = idleParsers.poll();
+        if(parser == null){
+            parser = newJsonParser();
+        }
+        return(parser);
+    }
+
+    public void releaseJsonParser(IParser parser){
+        if(parser != null){
+            // a full pool drops the parser, which bounds what is kept after a burst
+            idleParsers.offer(parser);
+        }
+    }
+
+    public AuditEvent parseAuditEvent(String auditEventJSONString){
+        AuditEventParseEvent parseEvent = new AuditEventParseEvent();
+        parseEvent.begin();
+        AuditEvent auditEvent = null;
+        IParser parser = borrowJsonParser();
+        try {
+            auditEvent = parser.parseResource(AuditEvent.class, auditEventJSONString);
+        } finally {
+            releaseJsonParser(parser);
+            if(parseEvent.shouldCommit()){
+                parseEvent.payloadLength = auditEventJSONString != null ? auditEventJSONString.length() : 0;
+                parseEvent.success = auditEvent != null;
+                parseEvent.commit();
+            }
+        }
+        return(auditEvent);
+    }
+
+    public String encodeAuditEvent(AuditEvent auditEvent){
+        AuditEventEncodeEvent encodeEvent = new AuditEventEncodeEvent();
+        encodeEvent.begin();
+        String auditEventJSONString;
+        IParser parser = borrowJsonParser();
+        try {
+            auditEventJSONString = parser.encodeResourceToString(auditEvent);
+        } finally {
+            releaseJsonParser(parser);
+        }
+        if(encodeEvent.shouldCommit()){
+            encodeEvent.encodedLength = auditEventJSONString.length();
+            encodeEvent.commit();
+        }
+        return(auditEventJSONString);
+    }
+
+    public <T extends IBaseResource> T parseResource(Class<T> resourceType, String resourceJSONString){
+        IParser parser = borrowJsonParser();
+        try {
+            return(parser.parseResource(resourceType, resourceJSONString));
+        } finally {
+            releaseJsonParser(parser);
+        }
+    }
+
+    public String encodeResourceToString(IBaseResource resource){
+        IParser parser = borrowJsonParser();
+        try {
+            return(parser.encodeResourceToString(resource));
+        } finally {
+            releaseJsonParser(parser);
+        }
+    }
+
+    public int getIdleParserCount(){
+        return(idleParsers.size());
+    }
+
+    public int getMaximumIdleParsers(){
+        return(maximumIdleParsers);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected IParser newJsonParser(){
+        IParser parser = getFhirContext().newJsonParser();
+        parser.setPrettyPrint(false);
+        parser.setSummaryMode(false);
+        parser.setOmitResourceId(false);
+        parser.setStripVersionsFromReferences(false);
+        return(parser);
+    }
+
+    protected FhirContext getFhirContext(){
+        return(fhirContextUtility.getFhirContext());
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
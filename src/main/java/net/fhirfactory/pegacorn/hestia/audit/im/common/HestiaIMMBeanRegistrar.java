@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the IM's management beans with the platform MBean server (and so Jolokia). A failure to
+ * register is logged and otherwise ignored: the component works without its MBean.
+ */
+public final class HestiaIMMBeanRegistrar {
+    private static final Logger LOG = LoggerFactory.getLogger(HestiaIMMBeanRegistrar.class);
+
+    private HestiaIMMBeanRegistrar(){
+    }
+
+    /**
+     * @return the name to pass to unregister(), or null if the MBean was not registered (including
+     * when another instance already holds the name)
+     */
+    public static ObjectName register(Object mbean, String mbeanName){
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(mbeanName);
+            if(!mbeanServer.isRegistered(objectName)){
+                mbeanServer.registerMBean(mbean, objectName);
+                return(objectName);
+            }
+            LOG.debug(".register(): MBean already registered, name->{}", mbeanName);
+        } catch (Exception ex) {
+            LOG.warn(".register(): Could not register MBean, name->{}, message->{}", mbeanName, ExceptionUtils.getMessage(ex));
+        }
+        return(null);
+    }
+
+    public static void unregister(ObjectName registeredName){
+        if(registeredName == null){
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (Exception ex) {
+            LOG.debug(".unregister(): Could not unregister MBean, name->{}, message->{}", registeredName, ExceptionUtils.getMessage(ex));
+        }
+    }
+}
@@ -29,4 +29,8 @@ public class HestiaIMNames {
     public String getInteractHestiaDMHTTPClientName(){
         return("hestia-dm-http");
     }
+
+    public String getAuditEventQueryCapabilityName(){
+        return("FHIR-AuditEvent-Query");
+    }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One DM write interaction, from send to acknowledgement (or failure). The transport is one of the
+ * TRANSPORT_* values.
+ */
+@Name(HestiaAuditIMEvent.NAME_PREFIX + "DMWrite")
+@Label("AuditEvent DM Write")
+@Description("A DM write interaction, from send to acknowledgement")
+public class AuditEventDMWriteEvent extends HestiaAuditIMEvent {
+    public static final String TRANSPORT_HTTP = "http";
+    public static final String TRANSPORT_HTTP_BATCH = "http-batch";
+    public static final String TRANSPORT_JGROUPS = "jgroups";
+
+    @Label("Transport")
+    public String transport;
+
+    @Label("Source")
+    public String source;
+
+    @Label("Batch Size")
+    public int batchSize;
+
+    @Label("Created Count")
+    public int createdCount;
+
+    @Label("Success")
+    public boolean success;
+}
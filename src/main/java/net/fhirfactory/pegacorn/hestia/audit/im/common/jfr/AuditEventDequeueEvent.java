@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Removal of a written AuditEvent from the asynchronous writer queue. The queue wait is the time from
+ * queueing to removal. For the periodic writer the event's duration covers the DM write of the entry;
+ * for the (batched) shutdown drain the batch write is timed by the DMWrite event instead.
+ */
+@Name(HestiaAuditIMEvent.NAME_PREFIX + "Dequeue")
+@Label("AuditEvent Dequeue")
+@Description("Removal of a written AuditEvent from the asynchronous writer queue")
+public class AuditEventDequeueEvent extends HestiaAuditIMEvent {
+    @Label("Source")
+    public String source;
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.MILLISECONDS)
+    public long queueWait;
+
+    @Label("Batch Size")
+    public int batchSize;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The hand-off of an AuditEvent to the asynchronous writer. The outcome is one of the OUTCOME_*
+ * values: the event was queued locally, forwarded to the owning replica, folded into a coalesced
+ * group, dropped by a filter rule or rejected.
+ */
+@Name(HestiaAuditIMEvent.NAME_PREFIX + "Enqueue")
+@Label("AuditEvent Enqueue")
+@Description("Hand-off of an AuditEvent to the asynchronous writer")
+public class AuditEventEnqueueEvent extends HestiaAuditIMEvent {
+    public static final String OUTCOME_QUEUED = "queued";
+    public static final String OUTCOME_FORWARDED = "forwarded";
+    public static final String OUTCOME_COALESCED = "coalesced";
+    public static final String OUTCOME_FILTERED = "filtered";
+    public static final String OUTCOME_REJECTED = "rejected";
+    public static final String OUTCOME_PIPELINED = "pipelined";
+    public static final String OUTCOME_INVALID = "invalid";
+    public static final String OUTCOME_SHED = "shed";
+
+    @Label("Source")
+    public String source;
+
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+}
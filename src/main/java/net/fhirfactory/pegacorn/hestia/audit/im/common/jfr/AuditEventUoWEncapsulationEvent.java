@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Extraction of an AuditEvent payload from a UoW, or encapsulation of a write outcome into one.
+ */
+@Name(HestiaAuditIMEvent.NAME_PREFIX + "UoWEncapsulation")
+@Label("AuditEvent UoW Encapsulation")
+@Description("Movement of an AuditEvent or its write outcome in or out of a UoW")
+public class AuditEventUoWEncapsulationEvent extends HestiaAuditIMEvent {
+    public static final String OPERATION_EXTRACT = "extract";
+    public static final String OPERATION_ENCAPSULATE = "encapsulate";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Payload Length")
+    @DataAmount
+    public long payloadLength;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration;
+
+/**
+ * Tunables for the asynchronous writer. Anything left unset falls back to the matching
+ * otherConfigurationParameter, or to the built-in default. Periods, linger and delays are in ms, and
+ * dmTechnology is "http" or "jgroups".
+ */
+public class AsynchronousWriterTunablesSegment {
+    private Long checkPeriod;
+    private Long readinessPeriod;
+    private Integer batchSize;
+    private Long batchLinger;
+    private Integer batchWriters;
+    private Integer maximumQueueDepth;
+    private Long retryInitialDelay;
+    private Long retryMaximumDelay;
+    private String dmTechnology;
+
+    //
+    // Constructor(s)
+    //
+
+    public AsynchronousWriterTunablesSegment(){
+    }
+
+    //
+    // Getters and Setters
+    //
+
+    public Long getCheckPeriod() {
+        return checkPeriod;
+    }
+
+    public void setCheckPeriod(Long checkPeriod) {
+        this.checkPeriod = checkPeriod;
+    }
+
+    public Long getReadinessPeriod() {
+        return readinessPeriod;
+    }
+
+    public void setReadinessPeriod(Long readinessPeriod) {
+        this.readinessPeriod = readinessPeriod;
+    }
+
+    public Integer getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(Integer batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public Long getBatchLinger() {
+        return batchLinger;
+    }
+
+    public void setBatchLinger(Long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    public Integer getBatchWriters() {
+        return batchWriters;
+    }
+
+    public void setBatchWriters(Integer batchWriters) {
+        this.batchWriters = batchWriters;
+    }
+
+    public Integer getMaximumQueueDepth() {
+        return maximumQueueDepth;
+    }
+
+    public void setMaximumQueueDepth(Integer maximumQueueDepth) {
+        this.maximumQueueDepth = maximumQueueDepth;
+    }
+
+    public Long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    public void setRetryInitialDelay(Long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    public Long getRetryMaximumDelay() {
+        return retryMaximumDelay;
+    }
+
+    public void setRetryMaximumDelay(Long retryMaximumDelay) {
+        this.retryMaximumDelay = retryMaximumDelay;
+    }
+
+    public String getDmTechnology() {
+        return dmTechnology;
+    }
+
+    public void setDmTechnology(String dmTechnology) {
+        this.dmTechnology = dmTechnology;
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AsynchronousWriterTunablesSegment{" +
+                "checkPeriod=" + checkPeriod +
+                ", readinessPeriod=" + readinessPeriod +
+                ", batchSize=" + batchSize +
+                ", batchLinger=" + batchLinger +
+                ", batchWriters=" + batchWriters +
+                ", maximumQueueDepth=" + maximumQueueDepth +
+                ", retryInitialDelay=" + retryInitialDelay +
+                ", retryMaximumDelay=" + retryMaximumDelay +
+                ", dmTechnology=" + dmTechnology +
+                '}';
+    }
+}
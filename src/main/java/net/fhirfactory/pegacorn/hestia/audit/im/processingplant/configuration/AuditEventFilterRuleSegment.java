@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A filtering/sampling rule for incoming AuditEvents. Every populated match list must match (any
+ * value within a list); an empty list matches everything. Codes are given as "system|code" or just
+ * "code" (any system). The action is one of DROP, SAMPLE (keep sampleRate of the matches) or ARCHIVE
+ * (write to the local archive instead of the DM).
+ */
+public class AuditEventFilterRuleSegment {
+    private String name;
+    private List<String> typeCodes;
+    private List<String> subtypeCodes;
+    private List<String> agents;
+    private List<String> sourceObservers;
+    private List<String> outcomes;
+    private String action;
+    private Double sampleRate;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventFilterRuleSegment(){
+        this.typeCodes = new ArrayList<>();
+        this.subtypeCodes = new ArrayList<>();
+        this.agents = new ArrayList<>();
+        this.sourceObservers = new ArrayList<>();
+        this.outcomes = new ArrayList<>();
+    }
+
+    //
+    // Getters and Setters
+    //
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<String> getTypeCodes() {
+        return typeCodes;
+    }
+
+    public void setTypeCodes(List<String> typeCodes) {
+        this.typeCodes = typeCodes;
+    }
+
+    public List<String> getSubtypeCodes() {
+        return subtypeCodes;
+    }
+
+    public void setSubtypeCodes(List<String> subtypeCodes) {
+        this.subtypeCodes = subtypeCodes;
+    }
+
+    public List<String> getAgents() {
+        return agents;
+    }
+
+    public void setAgents(List<String> agents) {
+        this.agents = agents;
+    }
+
+    public List<String> getSourceObservers() {
+        return sourceObservers;
+    }
+
+    public void setSourceObservers(List<String> sourceObservers) {
+        this.sourceObservers = sourceObservers;
+    }
+
+    public List<String> getOutcomes() {
+        return outcomes;
+    }
+
+    public void setOutcomes(List<String> outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public Double getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(Double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AuditEventFilterRuleSegment{" +
+                "name=" + name +
+                ", typeCodes=" + typeCodes +
+                ", subtypeCodes=" + subtypeCodes +
+                ", agents=" + agents +
+                ", sourceObservers=" + sourceObservers +
+                ", outcomes=" + outcomes +
+                ", action=" + action +
+                ", sampleRate=" + sampleRate +
+                '}';
+    }
+}
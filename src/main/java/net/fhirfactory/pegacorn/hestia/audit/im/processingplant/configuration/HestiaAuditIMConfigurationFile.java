@@ -25,9 +25,14 @@ import net.fhirfactory.pegacorn.deployment.properties.configurationfilebased.com
 import net.fhirfactory.pegacorn.deployment.properties.configurationfilebased.common.segments.ports.http.HTTPClientPortSegment;
 import net.fhirfactory.pegacorn.deployment.properties.configurationfilebased.common.segments.ports.interact.InteractClientPortSegment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class HestiaAuditIMConfigurationFile extends PetasosEnabledSubsystemPropertyFile {
 
     private HTTPClientPortSegment interactHestiaDMHTTPClient;
+    private List<AuditEventFilterRuleSegment> auditEventFilterRules;
+    private AsynchronousWriterTunablesSegment asynchronousWriterTunables;
 
     //
     // Constructor(s)
@@ -36,6 +41,8 @@ public class HestiaAuditIMConfigurationFile extends PetasosEnabledSubsystemPrope
     public HestiaAuditIMConfigurationFile(){
         super();
         interactHestiaDMHTTPClient = new HTTPClientPortSegment();
+        auditEventFilterRules = new ArrayList<>();
+        asynchronousWriterTunables = new AsynchronousWriterTunablesSegment();
     }
 
     //
@@ -50,6 +57,22 @@ public class HestiaAuditIMConfigurationFile extends PetasosEnabledSubsystemPrope
         this.interactHestiaDMHTTPClient = interactHestiaDMHTTPClient;
     }
 
+    public List<AuditEventFilterRuleSegment> getAuditEventFilterRules() {
+        return auditEventFilterRules;
+    }
+
+    public void setAuditEventFilterRules(List<AuditEventFilterRuleSegment> auditEventFilterRules) {
+        this.auditEventFilterRules = auditEventFilterRules;
+    }
+
+    public AsynchronousWriterTunablesSegment getAsynchronousWriterTunables() {
+        return asynchronousWriterTunables;
+    }
+
+    public void setAsynchronousWriterTunables(AsynchronousWriterTunablesSegment asynchronousWriterTunables) {
+        this.asynchronousWriterTunables = asynchronousWriterTunables;
+    }
+
     //
     // To String
     //
@@ -75,6 +98,8 @@ public class HestiaAuditIMConfigurationFile extends PetasosEnabledSubsystemPrope
                 ", hapiAPIKey=" + getHapiAPIKey() +
                 ", javaDeploymentParameters=" + getJavaDeploymentParameters() +
                 ", interactHestiaDMHTTPServer=" + interactHestiaDMHTTPClient +
+                ", auditEventFilterRules=" + auditEventFilterRules +
+                ", asynchronousWriterTunables=" + asynchronousWriterTunables +
                 '}';
     }
 }
@@ -69,6 +69,10 @@ public class HestiaAuditIMTopologyFactory extends FHIRIMSubsystemTopologyFactory
         getLogger().debug(".addHTTPClientPorts(): Exit");
     }
 
+    public HestiaAuditIMConfigurationFile getHestiaAuditIMConfigurationFile(){
+        return((HestiaAuditIMConfigurationFile) getPropertyFile());
+    }
+
     protected String specifyPropertyFileName() {
         getLogger().info(".specifyPropertyFileName(): Entry");
         String configurationFileName = pegacornEnvironmentProperties.getMandatoryProperty("DEPLOYMENT_CONFIG_FILE");
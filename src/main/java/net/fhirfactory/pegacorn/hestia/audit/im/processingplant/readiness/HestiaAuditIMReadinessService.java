@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.processingplant.readiness;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the IM's startup phases, recording when each was first reached (in ms since JVM start). The
+ * IM is ready once the asynchronous writer has started, i.e. once it can actually drain what it
+ * accepts. The time to FIRST_EVENT_DRAINED measures the whole startup path.
+ */
+@ApplicationScoped
+public class HestiaAuditIMReadinessService {
+    private static final Logger LOG = LoggerFactory.getLogger(HestiaAuditIMReadinessService.class);
+
+    private ConcurrentHashMap<HestiaAuditIMStartupPhaseEnum, Long> phaseTimes;
+    private ObjectMapper jsonMapper;
+
+    //
+    // Constructor(s)
+    //
+
+    public HestiaAuditIMReadinessService(){
+        this.phaseTimes = new ConcurrentHashMap<>();
+        this.jsonMapper = new ObjectMapper();
+    }
+
+    //
+    // Business Methods
+    //
+
+    public void recordPhase(HestiaAuditIMStartupPhaseEnum phase){
+        if(phaseTimes.containsKey(phase)){
+            return;
+        }
+        long elapsed = ManagementFactory.getRuntimeMXBean().getUptime();
+        if(phaseTimes.putIfAbsent(phase, elapsed) == null){
+            getLogger().info(".recordPhase(): phase->{}, elapsedSinceJVMStart->{}ms", phase, elapsed);
+        }
+    }
+
+    public boolean hasReachedPhase(HestiaAuditIMStartupPhaseEnum phase){
+        return(phaseTimes.containsKey(phase));
+    }
+
+    public boolean isReady(){
+        return(hasReachedPhase(HestiaAuditIMStartupPhaseEnum.WRITER_STARTED));
+    }
+
+    public Map<HestiaAuditIMStartupPhaseEnum, Long> getPhaseTimes(){
+        return(new EnumMap<>(phaseTimes));
+    }
+
+    public String getReadinessReport(){
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("ready", isReady());
+        report.put("phases", getPhaseTimes());
+        try {
+            return(jsonMapper.writeValueAsString(report));
+        } catch (Exception ex) {
+            return("{\"ready\":" + isReady() + "}");
+        }
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
@@ -4,11 +4,13 @@ import org.hl7.fhir.r4.model.AuditEvent;
 
 import javax.enterprise.context.ApplicationScoped;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @ApplicationScoped
 public class AsynchronousWriterAuditEventCache {
 
-    private ConcurrentLinkedQueue<AuditEvent> eventQueue;
+    private ConcurrentLinkedQueue<AuditEventQueueEntry> eventQueue;
+    private AtomicInteger queueDepth;
 
     //
     // Constructor
@@ -16,6 +18,7 @@ public class AsynchronousWriterAuditEventCache {
 
     public AsynchronousWriterAuditEventCache(){
         this.eventQueue = new ConcurrentLinkedQueue<>();
+        this.queueDepth = new AtomicInteger(0);
     }
 
     //
@@ -23,26 +26,68 @@ public class AsynchronousWriterAuditEventCache {
     //
 
 
-    public ConcurrentLinkedQueue<AuditEvent> getEventQueue() {
+    public ConcurrentLinkedQueue<AuditEventQueueEntry> getEventQueue() {
         return eventQueue;
     }
 
+    /**
+     * @return the number of queued entries, maintained alongside the queue (ConcurrentLinkedQueue.size()
+     * walks the whole queue)
+     */
+    public int getQueueDepth(){
+        return(queueDepth.get());
+    }
+
     //
     // Basic Methods
     //
 
-    public void addAuditEvent(AuditEvent auditEvent){
-        getEventQueue().offer(auditEvent);
+    public AuditEventQueueEntry addAuditEvent(AuditEvent auditEvent){
+        AuditEventQueueEntry entry = new AuditEventQueueEntry(auditEvent);
+        addQueueEntry(entry);
+        return(entry);
+    }
+
+    public void addQueueEntry(AuditEventQueueEntry entry){
+        getEventQueue().offer(entry);
+        queueDepth.incrementAndGet();
     }
 
     public AuditEvent peekAuditEvent(){
-        AuditEvent nextEvent = getEventQueue().peek();
-        return(nextEvent);
+        AuditEventQueueEntry nextEntry = peekQueueEntry();
+        if(nextEntry == null){
+            return(null);
+        }
+        return(nextEntry.getAuditEvent());
+    }
+
+    public AuditEventQueueEntry peekQueueEntry(){
+        AuditEventQueueEntry nextEntry = getEventQueue().peek();
+        return(nextEntry);
     }
 
     public AuditEvent pollAuditEvent(){
-        AuditEvent nextEvent = getEventQueue().poll();
-        return(nextEvent);
+        AuditEventQueueEntry nextEntry = pollQueueEntry();
+        if(nextEntry == null){
+            return(null);
+        }
+        return(nextEntry.getAuditEvent());
+    }
+
+    public AuditEventQueueEntry pollQueueEntry(){
+        AuditEventQueueEntry nextEntry = getEventQueue().poll();
+        if(nextEntry != null){
+            queueDepth.decrementAndGet();
+        }
+        return(nextEntry);
+    }
+
+    public boolean removeQueueEntry(AuditEventQueueEntry entry){
+        boolean removed = getEventQueue().remove(entry);
+        if(removed){
+            queueDepth.decrementAndGet();
+        }
+        return(removed);
     }
 
     public boolean hasEntries(){
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.AuditEventQueueReplicationService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional coalescing stage in front of the asynchronous writer queue.
+ *
+ * AuditEvents with the same coalescing key (built from the configured AuditEvent elements) are held
+ * while they keep repeating within the window. A group is released once no new occurrence has
+ * arrived for a whole window, or once it is older than the maximum age. The first event of the group
+ * is queued as the representative. If the group saw more than one occurrence, the representative
+ * carries the occurrence count and the first/last recorded times as extensions.
+ *
+ * Memory is bounded by the maximum number of open groups. When that is reached, AuditEvents with a
+ * new key bypass the stage and are queued as-is.
+ */
+@ApplicationScoped
+public class AuditEventCoalescingService {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventCoalescingService.class);
+
+    private static final String AUDIT_EVENT_COALESCING_ENABLED = "AUDIT_EVENT_COALESCING_ENABLED";
+    private static final String AUDIT_EVENT_COALESCING_WINDOW = "AUDIT_EVENT_COALESCING_WINDOW";
+    private static final String AUDIT_EVENT_COALESCING_MAXIMUM_AGE = "AUDIT_EVENT_COALESCING_MAXIMUM_AGE";
+    private static final String AUDIT_EVENT_COALESCING_MAXIMUM_GROUPS = "AUDIT_EVENT_COALESCING_MAXIMUM_GROUPS";
+    private static final String AUDIT_EVENT_COALESCING_KEY = "AUDIT_EVENT_COALESCING_KEY";
+
+    private static final long DEFAULT_WINDOW = 5000L;
+    private static final long DEFAULT_MAXIMUM_AGE = 60000L;
+    private static final int DEFAULT_MAXIMUM_GROUPS = 10000;
+    private static final String DEFAULT_KEY = "type,subtype,action,outcome,agent,entity,source";
+    private static final String KEY_SEPARATOR = "|";
+
+    public static final String OCCURRENCE_COUNT_EXTENSION_URL = "http://fhirfactory.net/pegacorn/StructureDefinition/audit-event-occurrence-count";
+    public static final String FIRST_OCCURRENCE_EXTENSION_URL = "http://fhirfactory.net/pegacorn/StructureDefinition/audit-event-first-occurrence";
+    public static final String LAST_OCCURRENCE_EXTENSION_URL = "http://fhirfactory.net/pegacorn/StructureDefinition/audit-event-last-occurrence";
+
+    private volatile boolean initialised;
+    private boolean enabled;
+    private long window;
+    private long maximumAge;
+    private int maximumGroups;
+    private Set<String> keyElements;
+    private ConcurrentHashMap<String, CoalescedGroup> openGroups;
+    private ScheduledExecutorService releaseScheduler;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private AuditEventQueueReplicationService replicationService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventCoalescingService(){
+        this.initialised = false;
+        this.enabled = false;
+        this.openGroups = new ConcurrentHashMap<>();
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        enabled = configurationService.getBooleanParameter(AUDIT_EVENT_COALESCING_ENABLED, false);
+        window = Math.max(1L, configurationService.getLongParameter(AUDIT_EVENT_COALESCING_WINDOW, DEFAULT_WINDOW));
+        maximumAge = Math.max(window, configurationService.getLongParameter(AUDIT_EVENT_COALESCING_MAXIMUM_AGE, DEFAULT_MAXIMUM_AGE));
+        maximumGroups = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_EVENT_COALESCING_MAXIMUM_GROUPS, DEFAULT_MAXIMUM_GROUPS));
+        String keyValue = configurationService.getParameter(AUDIT_EVENT_COALESCING_KEY);
+        if(StringUtils.isBlank(keyValue)){
+            keyValue = DEFAULT_KEY;
+        }
+        keyElements = new HashSet<>();
+        for(String currentElement: keyValue.split(",")){
+            if(StringUtils.isNotBlank(currentElement)){
+                keyElements.add(currentElement.trim().toLowerCase());
+            }
+        }
+        if(enabled){
+            releaseScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread releaseThread = new Thread(runnable, "AuditEventCoalescingRelease");
+                releaseThread.setDaemon(true);
+                return(releaseThread);
+            });
+            long releasePeriod = Math.max(100L, window / 4);
+            releaseScheduler.scheduleWithFixedDelay(this::releaseExpiredGroups, releasePeriod, releasePeriod, TimeUnit.MILLISECONDS);
+        }
+        initialised = true;
+        getLogger().info(".initialise(): enabled->{}, window->{}, maximumAge->{}, maximumGroups->{}, key->{}", enabled, window, maximumAge, maximumGroups, keyElements);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence (after it has released the open
+     * groups) as well as by the container, so a second call does nothing.
+     */
+    @PreDestroy
+    public void shutdown(){
+        if(releaseScheduler != null){
+            releaseScheduler.shutdownNow();
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Offers the AuditEvent to the coalescing stage.
+     *
+     * @return true if the stage has taken the AuditEvent (it will be queued, possibly as part of a
+     * coalesced representative, when its group is released); false if the caller must queue it
+     */
+    public boolean coalesce(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        if(!enabled || auditEvent == null){
+            return(false);
+        }
+        String key = buildCoalescingKey(auditEvent);
+        if(openGroups.size() >= maximumGroups && !openGroups.containsKey(key)){
+            getLogger().debug(".coalesce(): Group limit reached, bypassing, key->{}", key);
+            return(false);
+        }
+        long now = System.currentTimeMillis();
+        Date recorded = auditEvent.hasRecorded() ? auditEvent.getRecorded() : new Date(now);
+        openGroups.compute(key, (currentKey, group) -> {
+            if(group == null){
+                return(new CoalescedGroup(auditEvent, recorded, now));
+            }
+            group.addOccurrence(recorded, now);
+            return(group);
+        });
+        return(true);
+    }
+
+    /**
+     * Releases every open group into the writer queue, e.g. at shutdown.
+     */
+    public int releaseAllGroups(){
+        return(releaseGroups(Long.MAX_VALUE));
+    }
+
+    public int getOpenGroupCount(){
+        return(openGroups.size());
+    }
+
+    //
+    // Release
+    //
+
+    protected void releaseExpiredGroups(){
+        try {
+            releaseGroups(System.currentTimeMillis());
+        } catch (Exception ex) {
+            getLogger().error(".releaseExpiredGroups(): Release failed, message->{}", ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    protected int releaseGroups(long now){
+        List<CoalescedGroup> releasedGroups = new ArrayList<>();
+        for(String currentKey: openGroups.keySet()){
+            openGroups.computeIfPresent(currentKey, (key, group) -> {
+                if(now == Long.MAX_VALUE || now - group.getLastSeen() >= window || now - group.getOpened() >= maximumAge){
+                    releasedGroups.add(group);
+                    return(null);
+                }
+                return(group);
+            });
+        }
+        for(CoalescedGroup currentGroup: releasedGroups){
+            AuditEventQueueEntry entry = eventCache.addAuditEvent(currentGroup.toRepresentativeEvent());
+            if(replicationService.isReplicationEnabled()){
+                replicationService.replicateAndWait(entry);
+            }
+        }
+        if(!releasedGroups.isEmpty()){
+            getLogger().debug(".releaseGroups(): released->{}, stillOpen->{}", releasedGroups.size(), openGroups.size());
+        }
+        return(releasedGroups.size());
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected String buildCoalescingKey(AuditEvent auditEvent){
+        StringBuilder keyBuilder = new StringBuilder();
+        if(keyElements.contains("type")){
+            appendCoding(keyBuilder, auditEvent.hasType() ? auditEvent.getType() : null);
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("subtype")){
+            for(Coding currentSubtype: auditEvent.getSubtype()){
+                appendCoding(keyBuilder, currentSubtype);
+            }
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("action") && auditEvent.hasAction()){
+            keyBuilder.append(auditEvent.getAction().toCode());
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("outcome") && auditEvent.hasOutcome()){
+            keyBuilder.append(auditEvent.getOutcome().toCode());
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("agent")){
+            for(AuditEvent.AuditEventAgentComponent currentAgent: auditEvent.getAgent()){
+                appendReference(keyBuilder, currentAgent.getWho());
+            }
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("entity")){
+            for(AuditEvent.AuditEventEntityComponent currentEntity: auditEvent.getEntity()){
+                appendReference(keyBuilder, currentEntity.getWhat());
+            }
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(keyElements.contains("source") && auditEvent.hasSource()){
+            keyBuilder.append(auditEvent.getSource().getSite());
+            appendReference(keyBuilder, auditEvent.getSource().getObserver());
+        }
+        return(keyBuilder.toString());
+    }
+
+    protected void appendCoding(StringBuilder keyBuilder, Coding coding){
+        if(coding != null){
+            keyBuilder.append(coding.getSystem()).append('#').append(coding.getCode()).append(';');
+        }
+    }
+
+    protected void appendReference(StringBuilder keyBuilder, Reference reference){
+        if(reference == null){
+            return;
+        }
+        if(reference.hasReference()){
+            keyBuilder.append(reference.getReference());
+        } else if(reference.hasIdentifier()){
+            Identifier identifier = reference.getIdentifier();
+            keyBuilder.append(identifier.getSystem()).append('#').append(identifier.getValue());
+        } else {
+            keyBuilder.append(reference.getDisplay());
+        }
+        keyBuilder.append(';');
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    protected static class CoalescedGroup {
+        private final AuditEvent representative;
+        private final long opened;
+        private long lastSeen;
+        private int occurrenceCount;
+        private Date firstRecorded;
+        private Date lastRecorded;
+
+        public CoalescedGroup(AuditEvent representative, Date recorded, long now){
+            this.representative = representative;
+            this.opened = now;
+            this.lastSeen = now;
+            this.occurrenceCount = 1;
+            this.firstRecorded = recorded;
+            this.lastRecorded = recorded;
+        }
+
+        public void addOccurrence(Date recorded, long now){
+            occurrenceCount += 1;
+            lastSeen = now;
+            if(recorded.before(firstRecorded)){
+                firstRecorded = recorded;
+            }
+            if(recorded.after(lastRecorded)){
+                lastRecorded = recorded;
+            }
+        }
+
+        public AuditEvent toRepresentativeEvent(){
+            if(occurrenceCount > 1){
+                representative.addExtension(OCCURRENCE_COUNT_EXTENSION_URL, new IntegerType(occurrenceCount));
+                representative.addExtension(FIRST_OCCURRENCE_EXTENSION_URL, new DateTimeType(firstRecorded));
+                representative.addExtension(LAST_OCCURRENCE_EXTENSION_URL, new DateTimeType(lastRecorded));
+            }
+            return(representative);
+        }
+
+        public long getOpened() {
+            return opened;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AuditEventQueueEntry {
+    private final String entryID;
+    private final AuditEvent auditEvent;
+    private final Instant queuedInstant;
+    private final AtomicBoolean inFlight;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventQueueEntry(AuditEvent auditEvent){
+        this(UUID.randomUUID().toString(), auditEvent, Instant.now());
+    }
+
+    public AuditEventQueueEntry(String entryID, AuditEvent auditEvent, Instant queuedInstant){
+        this.entryID = entryID;
+        this.auditEvent = auditEvent;
+        this.queuedInstant = queuedInstant;
+        this.inFlight = new AtomicBoolean(false);
+    }
+
+    //
+    // In-Flight Marking
+    //
+
+    /**
+     * Claims the entry for a write to the DM or a transfer to another IM replica, so the asynchronous
+     * writer and the cluster rebalancing never act on the same queued entry at once.
+     *
+     * @return true if the entry was claimed, false if it is already in flight
+     */
+    public boolean markInFlight(){
+        return(inFlight.compareAndSet(false, true));
+    }
+
+    public void clearInFlight(){
+        inFlight.set(false);
+    }
+
+    public boolean isInFlight(){
+        return(inFlight.get());
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    public String getEntryID() {
+        return entryID;
+    }
+
+    public AuditEvent getAuditEvent() {
+        return auditEvent;
+    }
+
+    public Instant getQueuedInstant() {
+        return queuedInstant;
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AuditEventQueueEntry{" +
+                "entryID=" + entryID +
+                ", queuedInstant=" + queuedInstant +
+                '}';
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local (file based) storage for AuditEvents that cannot, or should not, be written to the DM right
+ * now. Events are stored as NDJSON files (one AuditEvent per line) grouped by category, e.g. the
+ * queue remainder spilled at shutdown. The directory (AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY) has to be
+ * configured, and should be on a persistent volume; without it nothing can be archived, and
+ * AuditEvents that would have been are written to the error log instead.
+ *
+ * Components that archive AuditEvents one at a time (the filter rules, the validator's dead letters,
+ * load shedding) do so through a BatchingArchiveSink, which collects them into files of up to
+ * SINK_BATCH_SIZE events; the sinks are flushed every SINK_FLUSH_PERIOD and at shutdown.
+ */
+@ApplicationScoped
+public class LocalAuditEventArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalAuditEventArchive.class);
+
+    private static final String AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY = "AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY";
+    private static final String ARCHIVE_FILE_SUFFIX = ".ndjson";
+    private static final String PARTIAL_FILE_SUFFIX = ".partial";
+    private static final int SINK_BATCH_SIZE = 500;
+    private static final long SINK_FLUSH_PERIOD = 10000L;
+
+    public static final String SHUTDOWN_SPILL_CATEGORY = "shutdown-spill";
+
+    private Path archiveDirectory;
+    private volatile boolean missingDirectoryReported;
+    private ConcurrentHashMap<String, BatchingArchiveSink> batchingSinks;
+    private ScheduledExecutorService sinkFlushScheduler;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    //
+    // Constructor(s)
+    //
+
+    public LocalAuditEventArchive(){
+        this.missingDirectoryReported = false;
+        this.batchingSinks = new ConcurrentHashMap<>();
+    }
+
+    //
+    // Shutdown
+    //
+
+    /**
+     * Called last by the PetasosAuditPersistenceService shutdown sequence as well as by the container.
+     * A second call only flushes whatever has been written to the batching sinks since the first.
+     */
+    @PreDestroy
+    public void shutdown(){
+        synchronized(this){
+            if(sinkFlushScheduler != null){
+                sinkFlushScheduler.shutdownNow();
+            }
+        }
+        flushBatchingSinks();
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Writes the AuditEvents into a new archive file for the category. The file is written under a
+     * temporary name and then renamed, so readers never see a partially written file.
+     *
+     * @return the archive file, or null if nothing could be written
+     */
+    public Path archiveAuditEvents(String category, List<AuditEvent> auditEventList){
+        getLogger().debug(".archiveAuditEvents(): Entry, category->{}, count->{}", category, auditEventList.size());
+        if(auditEventList.isEmpty()){
+            return(null);
+        }
+        Path directory = getArchiveDirectory();
+        if(directory == null){
+            getLogger().error(".archiveAuditEvents(): No {} configured, logging the AuditEvents instead, category->{}, count->{}", AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY, category, auditEventList.size());
+            for(AuditEvent currentEvent: auditEventList){
+                getLogger().error("AuditEvent->{}", parserService.encodeAuditEvent(currentEvent));
+            }
+            return(null);
+        }
+        String fileName = category + "-" + System.currentTimeMillis() + "-" + UUID.randomUUID().toString();
+        Path partialFile = directory.resolve(fileName + PARTIAL_FILE_SUFFIX);
+        Path archiveFile = directory.resolve(fileName + ARCHIVE_FILE_SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            try (BufferedWriter writer = Files.newBufferedWriter(partialFile, StandardCharsets.UTF_8)) {
+                for (AuditEvent currentEvent : auditEventList) {
+                    writer.write(parserService.encodeAuditEvent(currentEvent));
+                    writer.newLine();
+                }
+            }
+            Files.move(partialFile, archiveFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            getLogger().error(".archiveAuditEvents(): Could not archive AuditEvents, category->{}, count->{}, message->{}", category, auditEventList.size(), ExceptionUtils.getMessage(ex));
+            return(null);
+        }
+        getLogger().debug(".archiveAuditEvents(): Exit, archiveFile->{}", archiveFile);
+        return(archiveFile);
+    }
+
+    public List<Path> listArchiveFiles(String category){
+        List<Path> archiveFiles = new ArrayList<>();
+        if(getArchiveDirectory() == null || !Files.isDirectory(getArchiveDirectory())){
+            return(archiveFiles);
+        }
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(getArchiveDirectory(), category + "-*" + ARCHIVE_FILE_SUFFIX)) {
+            for (Path currentFile : directoryStream) {
+                archiveFiles.add(currentFile);
+            }
+        } catch (IOException ex) {
+            getLogger().error(".listArchiveFiles(): Could not list archive, category->{}, message->{}", category, ExceptionUtils.getMessage(ex));
+        }
+        archiveFiles.sort(null);
+        return(archiveFiles);
+    }
+
+    public List<AuditEvent> readArchiveFile(Path archiveFile){
+        getLogger().debug(".readArchiveFile(): Entry, archiveFile->{}", archiveFile);
+        List<AuditEvent> auditEventList = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(archiveFile, StandardCharsets.UTF_8)) {
+            String currentLine;
+            while ((currentLine = reader.readLine()) != null) {
+                if (StringUtils.isBlank(currentLine)) {
+                    continue;
+                }
+                try {
+                    auditEventList.add(parserService.parseAuditEvent(currentLine));
+                } catch (Exception ex) {
+                    getLogger().warn(".readArchiveFile(): Skipping unparseable line, archiveFile->{}, message->{}", archiveFile, ExceptionUtils.getMessage(ex));
+                }
+            }
+        } catch (IOException ex) {
+            getLogger().error(".readArchiveFile(): Could not read archiveFile->{}, message->{}", archiveFile, ExceptionUtils.getMessage(ex));
+        }
+        getLogger().debug(".readArchiveFile(): Exit, count->{}", auditEventList.size());
+        return(auditEventList);
+    }
+
+    public boolean deleteArchiveFile(Path archiveFile){
+        try {
+            return(Files.deleteIfExists(archiveFile));
+        } catch (IOException ex) {
+            getLogger().error(".deleteArchiveFile(): Could not delete archiveFile->{}, message->{}", archiveFile, ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+    }
+
+    //
+    // Batching Sinks
+    //
+
+    /**
+     * @return the (shared) batching sink for the category, created (and added to the periodic flush)
+     * on first use
+     */
+    public BatchingArchiveSink getBatchingSink(String category){
+        BatchingArchiveSink sink = batchingSinks.get(category);
+        if(sink == null){
+            sink = batchingSinks.computeIfAbsent(category, BatchingArchiveSink::new);
+            startSinkFlushScheduler();
+        }
+        return(sink);
+    }
+
+    public void flushBatchingSinks(){
+        for(BatchingArchiveSink currentSink: batchingSinks.values()){
+            try {
+                currentSink.flush();
+            } catch (Exception ex) {
+                getLogger().error(".flushBatchingSinks(): Flush failed, category->{}, message->{}", currentSink.getCategory(), ExceptionUtils.getMessage(ex));
+            }
+        }
+    }
+
+    protected synchronized void startSinkFlushScheduler(){
+        if(sinkFlushScheduler != null){
+            return;
+        }
+        sinkFlushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread flushThread = new Thread(runnable, "LocalAuditEventArchiveFlush");
+            flushThread.setDaemon(true);
+            return(flushThread);
+        });
+        sinkFlushScheduler.scheduleWithFixedDelay(this::flushBatchingSinks, SINK_FLUSH_PERIOD, SINK_FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collects the AuditEvents archived to one category, and writes them out once SINK_BATCH_SIZE
+     * have been offered (or when flushed).
+     */
+    public class BatchingArchiveSink {
+        private final String category;
+        private final ConcurrentLinkedQueue<AuditEvent> buffer;
+        private final AtomicInteger bufferSize;
+
+        protected BatchingArchiveSink(String category){
+            this.category = category;
+            this.buffer = new ConcurrentLinkedQueue<>();
+            this.bufferSize = new AtomicInteger(0);
+        }
+
+        public void offer(AuditEvent auditEvent){
+            buffer.offer(auditEvent);
+            if(bufferSize.incrementAndGet() >= SINK_BATCH_SIZE){
+                flush();
+            }
+        }
+
+        /**
+         * @return the number of AuditEvents handed to the archive
+         */
+        public int flush(){
+            List<AuditEvent> batch = new ArrayList<>();
+            AuditEvent currentEvent;
+            while((currentEvent = buffer.poll()) != null){
+                bufferSize.decrementAndGet();
+                batch.add(currentEvent);
+            }
+            if(!batch.isEmpty()){
+                archiveAuditEvents(category, batch);
+                getLogger().debug(".flush(): category->{}, archived->{}", category, batch.size());
+            }
+            return(batch.size());
+        }
+
+        public String getCategory(){
+            return(category);
+        }
+
+        public int getBufferSize(){
+            return(bufferSize.get());
+        }
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    /**
+     * @return the configured archive directory, or null if there is none. There is deliberately no
+     * default: a temporary directory does not survive the pod restart the archive is there to bridge.
+     */
+    public Path getArchiveDirectory(){
+        if(archiveDirectory == null){
+            String configuredDirectory = configurationService.getParameter(AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY);
+            if(StringUtils.isBlank(configuredDirectory)){
+                if(!missingDirectoryReported){
+                    missingDirectoryReported = true;
+                    getLogger().error(".getArchiveDirectory(): {} is not configured, the shutdown spill and the filtered/invalid/shed archives are disabled", AUDIT_EVENT_LOCAL_ARCHIVE_DIRECTORY);
+                }
+                return(null);
+            }
+            archiveDirectory = Paths.get(configuredDirectory);
+        }
+        return(archiveDirectory);
+    }
+
+    public boolean isConfigured(){
+        return(getArchiveDirectory() != null);
+    }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster;
+
+import ca.uhn.fhir.parser.IParser;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventQueueEntry;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.jgroups.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional replicated queue mode. Every locally queued AuditEvent is mirrored to the next K members
+ * of the IM cluster view. Replication is pipelined: a single sender thread batches whatever entries
+ * are waiting and sends the next batch without waiting for earlier acknowledgements. Once the DM has
+ * acknowledged an event, the replicas are pruned on every member that was sent one (which, after a view
+ * change, need not be the current replica set). When a member fails, the first surviving member of
+ * its replica set re-queues that member's replicas and drains them.
+ */
+@ApplicationScoped
+public class AuditEventQueueReplicationService {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventQueueReplicationService.class);
+
+    private static final String IM_QUEUE_REPLICATION_FACTOR = "IM_QUEUE_REPLICATION_FACTOR";
+    private static final String IM_QUEUE_REPLICATION_TIMEOUT = "IM_QUEUE_REPLICATION_TIMEOUT";
+    private static final String IM_QUEUE_REPLICATION_BATCH_SIZE = "IM_QUEUE_REPLICATION_BATCH_SIZE";
+
+    private static final int DEFAULT_REPLICATION_FACTOR = 0;
+    private static final long DEFAULT_REPLICATION_TIMEOUT = 250L;
+    private static final int DEFAULT_REPLICATION_BATCH_SIZE = 256;
+    private static final long SENDER_POLL_PERIOD = 1L;
+    private static final long SENDER_STOP_TIMEOUT = 1000L;
+
+    protected static final byte REPLICATE_QUEUE_ENTRIES = 2;
+    protected static final byte ACKNOWLEDGE_REPLICATION = 3;
+    protected static final byte PRUNE_REPLICAS = 4;
+
+    private volatile boolean initialised;
+    private volatile boolean running;
+    private int replicationFactor;
+    private long replicationTimeout;
+    private int replicationBatchSize;
+    private Thread replicationSender;
+
+    private LinkedBlockingQueue<PendingReplication> outboundReplications;
+    private LinkedBlockingQueue<String> outboundPrunes;
+    private ConcurrentHashMap<Long, ReplicationBatch> inFlightBatches;
+    private ConcurrentHashMap<Address, ConcurrentHashMap<String, ReplicaRecord>> heldReplicas;
+    private ConcurrentHashMap<String, Set<Address>> replicaHolders;
+    private AtomicLong batchSequence;
+    private volatile List<Address> replicaTargets;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventQueueReplicationService(){
+        this.initialised = false;
+        this.running = false;
+        this.replicationFactor = DEFAULT_REPLICATION_FACTOR;
+        this.replicationTimeout = DEFAULT_REPLICATION_TIMEOUT;
+        this.replicationBatchSize = DEFAULT_REPLICATION_BATCH_SIZE;
+        this.outboundReplications = new LinkedBlockingQueue<>();
+        this.outboundPrunes = new LinkedBlockingQueue<>();
+        this.inFlightBatches = new ConcurrentHashMap<>();
+        this.heldReplicas = new ConcurrentHashMap<>();
+        this.replicaHolders = new ConcurrentHashMap<>();
+        this.batchSequence = new AtomicLong(0);
+        this.replicaTargets = Collections.emptyList();
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    public synchronized void initialise(){
+        getLogger().debug(".initialise(): Entry");
+        if(initialised){
+            getLogger().debug(".initialise(): Exit, already initialised!");
+            return;
+        }
+        replicationFactor = configurationService.getIntegerParameter(IM_QUEUE_REPLICATION_FACTOR, DEFAULT_REPLICATION_FACTOR);
+        replicationTimeout = configurationService.getIntegerParameter(IM_QUEUE_REPLICATION_TIMEOUT, (int)DEFAULT_REPLICATION_TIMEOUT);
+        replicationBatchSize = Math.max(1, configurationService.getIntegerParameter(IM_QUEUE_REPLICATION_BATCH_SIZE, DEFAULT_REPLICATION_BATCH_SIZE));
+        if(replicationFactor > 0) {
+            running = true;
+            replicationSender = new Thread(this::replicationSenderTask, "AuditEventQueueReplicationSender");
+            replicationSender.setDaemon(true);
+            replicationSender.start();
+        }
+        initialised = true;
+        getLogger().info(".initialise(): Exit, replicationFactor->{}, replicationTimeout->{}, replicationBatchSize->{}", replicationFactor, replicationTimeout, replicationBatchSize);
+    }
+
+    /**
+     * Stops the sender (letting it finish its current batch) and then sends any prunes still waiting,
+     * so the replicas of AuditEvents already written to the DM are not re-queued by a successor. Called
+     * by the PetasosAuditPersistenceService shutdown sequence (after its drain, before the cluster
+     * channel closes) as well as by the container; a second call only sends prunes made since the first.
+     */
+    @PreDestroy
+    public void shutdown(){
+        getLogger().debug(".shutdown(): Entry");
+        running = false;
+        if(replicationSender != null){
+            try {
+                replicationSender.join(SENDER_STOP_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if(replicationSender.isAlive()){
+                replicationSender.interrupt();
+            }
+            replicationSender = null;
+        }
+        int flushed = flushPrunes();
+        getLogger().debug(".shutdown(): Exit, flushedPrunes->{}", flushed);
+    }
+
+    public boolean isReplicationEnabled(){
+        if(!initialised){
+            initialise();
+        }
+        return(replicationFactor > 0 && clusterService.isClusterEnabled());
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Mirrors the entry to the current replica set, completing once every replica has acknowledged it.
+     */
+    public CompletableFuture<Boolean> replicate(AuditEventQueueEntry entry){
+        if(!isReplicationEnabled() || replicaTargets.isEmpty()){
+            return(CompletableFuture.completedFuture(true));
+        }
+        PendingReplication pendingReplication = new PendingReplication(entry);
+        outboundReplications.offer(pendingReplication);
+        return(pendingReplication.getCompletion());
+    }
+
+    public boolean replicateAndWait(AuditEventQueueEntry entry){
+        CompletableFuture<Boolean> completion = replicate(entry);
+        try {
+            return(completion.get(replicationTimeout, TimeUnit.MILLISECONDS));
+        } catch (Exception ex) {
+            getLogger().warn(".replicateAndWait(): Replication not acknowledged, entryID->{}, message->{}", entry.getEntryID(), ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+    }
+
+    public void pruneReplicas(AuditEventQueueEntry entry){
+        if(isReplicationEnabled()){
+            outboundPrunes.offer(entry.getEntryID());
+            if(!running){
+                // the sender has stopped (shutdown), so nothing else will send it
+                flushPrunes();
+            }
+        }
+    }
+
+    protected int flushPrunes(){
+        List<String> pruneBatch = new ArrayList<>();
+        outboundPrunes.drainTo(pruneBatch);
+        if(!pruneBatch.isEmpty()){
+            try {
+                sendPruneBatch(pruneBatch);
+            } catch (IOException ex) {
+                getLogger().warn(".flushPrunes(): Could not send prunes, count->{}, message->{}", pruneBatch.size(), ExceptionUtils.getMessage(ex));
+            }
+        }
+        return(pruneBatch.size());
+    }
+
+    public int getHeldReplicaCount(){
+        int count = 0;
+        for(ConcurrentHashMap<String, ReplicaRecord> currentReplicas: heldReplicas.values()){
+            count += currentReplicas.size();
+        }
+        return(count);
+    }
+
+    //
+    // Membership Changes
+    //
+
+    public void onViewChange(List<Address> previousMembers, List<Address> currentMembers, Address localAddress){
+        getLogger().debug(".onViewChange(): Entry, previousMembers->{}, currentMembers->{}", previousMembers, currentMembers);
+        if(!isReplicationEnabled() || localAddress == null){
+            getLogger().debug(".onViewChange(): Exit, replication not enabled");
+            return;
+        }
+        List<Address> newReplicaTargets = resolveReplicaSet(localAddress, currentMembers);
+        boolean replicaSetChanged = !newReplicaTargets.equals(replicaTargets);
+        replicaTargets = newReplicaTargets;
+        for(Address currentMember: previousMembers){
+            if(!currentMembers.contains(currentMember)){
+                for(Set<Address> currentHolders: replicaHolders.values()){
+                    currentHolders.remove(currentMember);
+                }
+                takeOverReplicas(currentMember, previousMembers, currentMembers, localAddress);
+            }
+        }
+        if(replicaSetChanged){
+            getLogger().info(".onViewChange(): Replica set changed, re-replicating queue, replicaTargets->{}", newReplicaTargets);
+            for(AuditEventQueueEntry currentEntry: eventCache.getEventQueue()){
+                replicate(currentEntry);
+            }
+        }
+        getLogger().debug(".onViewChange(): Exit");
+    }
+
+    protected void takeOverReplicas(Address departedMember, List<Address> previousMembers, List<Address> currentMembers, Address localAddress){
+        ConcurrentHashMap<String, ReplicaRecord> departedReplicas = heldReplicas.remove(departedMember);
+        if(departedReplicas == null || departedReplicas.isEmpty()){
+            return;
+        }
+        Address successor = null;
+        for(Address currentCandidate: resolveReplicaSet(departedMember, previousMembers)){
+            if(currentMembers.contains(currentCandidate)){
+                successor = currentCandidate;
+                break;
+            }
+        }
+        if(!localAddress.equals(successor)){
+            getLogger().debug(".takeOverReplicas(): Discarding replicas of departedMember->{}, successor->{}", departedMember, successor);
+            return;
+        }
+        getLogger().info(".takeOverReplicas(): Taking over replicas of departedMember->{}, count->{}", departedMember, departedReplicas.size());
+        for(Map.Entry<String, ReplicaRecord> currentReplica: departedReplicas.entrySet()){
+            try {
+                AuditEvent auditEvent = parserService.parseAuditEvent(currentReplica.getValue().getAuditEventJSON());
+                AuditEventQueueEntry entry = new AuditEventQueueEntry(currentReplica.getKey(), auditEvent, currentReplica.getValue().getQueuedInstant());
+                eventCache.addQueueEntry(entry);
+                replicate(entry);
+            } catch (Exception ex) {
+                getLogger().warn(".takeOverReplicas(): Could not restore replica, entryID->{}, message->{}", currentReplica.getKey(), ExceptionUtils.getMessage(ex));
+            }
+        }
+    }
+
+    protected List<Address> resolveReplicaSet(Address member, List<Address> members){
+        List<Address> replicaSet = new ArrayList<>();
+        int memberIndex = members.indexOf(member);
+        if(memberIndex < 0){
+            return(replicaSet);
+        }
+        int replicaCount = Math.min(replicationFactor, members.size() - 1);
+        for(int offset = 1; offset <= replicaCount; offset++){
+            replicaSet.add(members.get((memberIndex + offset) % members.size()));
+        }
+        return(replicaSet);
+    }
+
+    //
+    // Message Handling
+    //
+
+    public void handleMessage(Address source, byte[] buffer){
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer));
+            byte messageType = input.readByte();
+            switch (messageType) {
+                case REPLICATE_QUEUE_ENTRIES:
+                    storeReplicas(source, input);
+                    break;
+                case ACKNOWLEDGE_REPLICATION:
+                    acknowledgeBatch(source, input.readLong());
+                    break;
+                case PRUNE_REPLICAS:
+                    removeReplicas(source, input);
+                    break;
+                default:
+                    getLogger().warn(".handleMessage(): Unknown message type->{}, source->{}", messageType, source);
+            }
+        } catch (IOException ex) {
+            getLogger().warn(".handleMessage(): Could not decode message from source->{}, message->{}", source, ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    protected void storeReplicas(Address source, DataInputStream input) throws IOException {
+        long batchID = input.readLong();
+        int count = input.readInt();
+        ConcurrentHashMap<String, ReplicaRecord> sourceReplicas = heldReplicas.computeIfAbsent(source, k -> new ConcurrentHashMap<>());
+        for(int index = 0; index < count; index++){
+            String entryID = input.readUTF();
+            Instant queuedInstant = Instant.ofEpochMilli(input.readLong());
+            byte[] auditEventBytes = new byte[input.readInt()];
+            input.readFully(auditEventBytes);
+            sourceReplicas.put(entryID, new ReplicaRecord(new String(auditEventBytes, StandardCharsets.UTF_8), queuedInstant));
+        }
+        ByteArrayOutputStream acknowledgement = new ByteArrayOutputStream(9);
+        DataOutputStream output = new DataOutputStream(acknowledgement);
+        output.writeByte(ACKNOWLEDGE_REPLICATION);
+        output.writeLong(batchID);
+        output.flush();
+        clusterService.sendMessage(source, acknowledgement.toByteArray());
+    }
+
+    protected void acknowledgeBatch(Address source, long batchID){
+        ReplicationBatch batch = inFlightBatches.get(batchID);
+        if(batch != null && batch.acknowledge()){
+            inFlightBatches.remove(batchID);
+            batch.complete(true);
+        }
+    }
+
+    protected void removeReplicas(Address source, DataInputStream input) throws IOException {
+        int count = input.readInt();
+        ConcurrentHashMap<String, ReplicaRecord> sourceReplicas = heldReplicas.get(source);
+        for(int index = 0; index < count; index++){
+            String entryID = input.readUTF();
+            if(sourceReplicas != null){
+                sourceReplicas.remove(entryID);
+            }
+        }
+    }
+
+    //
+    // Replication Sender
+    //
+
+    protected void replicationSenderTask(){
+        getLogger().debug(".replicationSenderTask(): Entry");
+        List<PendingReplication> replicationBatch = new ArrayList<>(replicationBatchSize);
+        List<String> pruneBatch = new ArrayList<>(replicationBatchSize);
+        while(running){
+            try {
+                PendingReplication first = outboundReplications.poll(SENDER_POLL_PERIOD, TimeUnit.MILLISECONDS);
+                if(first != null){
+                    replicationBatch.add(first);
+                    outboundReplications.drainTo(replicationBatch, replicationBatchSize - 1);
+                    sendReplicationBatch(replicationBatch);
+                    replicationBatch.clear();
+                }
+                outboundPrunes.drainTo(pruneBatch, replicationBatchSize);
+                if(!pruneBatch.isEmpty()){
+                    sendPruneBatch(pruneBatch);
+                    pruneBatch.clear();
+                }
+                expireInFlightBatches();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception ex) {
+                getLogger().warn(".replicationSenderTask(): Replication failure, message->{}", ExceptionUtils.getMessage(ex));
+            }
+        }
+        getLogger().debug(".replicationSenderTask(): Exit");
+    }
+
+    protected void sendReplicationBatch(List<PendingReplication> pendingReplications) throws IOException {
+        List<Address> targets = replicaTargets;
+        if(targets.isEmpty()){
+            for(PendingReplication currentReplication: pendingReplications){
+                currentReplication.getCompletion().complete(true);
+            }
+            return;
+        }
+        long batchID = batchSequence.incrementAndGet();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeByte(REPLICATE_QUEUE_ENTRIES);
+        output.writeLong(batchID);
+        output.writeInt(pendingReplications.size());
+        IParser parser = parserService.borrowJsonParser();
+        try {
+            for(PendingReplication currentReplication: pendingReplications){
+                AuditEventQueueEntry entry = currentReplication.getEntry();
+                byte[] auditEventBytes = parser.encodeResourceToString(entry.getAuditEvent()).getBytes(StandardCharsets.UTF_8);
+                output.writeUTF(entry.getEntryID());
+                output.writeLong(entry.getQueuedInstant().toEpochMilli());
+                output.writeInt(auditEventBytes.length);
+                output.write(auditEventBytes);
+            }
+        } finally {
+            parserService.releaseJsonParser(parser);
+        }
+        output.flush();
+        byte[] buffer = content.toByteArray();
+        // recorded before sending, a prune can follow as soon as the entry has been written
+        for(PendingReplication currentReplication: pendingReplications){
+            replicaHolders.computeIfAbsent(currentReplication.getEntry().getEntryID(), k -> ConcurrentHashMap.newKeySet()).addAll(targets);
+        }
+        ReplicationBatch batch = new ReplicationBatch(pendingReplications, targets.size());
+        inFlightBatches.put(batchID, batch);
+        for(Address currentTarget: targets){
+            if(!clusterService.sendMessage(currentTarget, buffer)){
+                inFlightBatches.remove(batchID);
+                batch.complete(false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends each member that was given a replica of the entries the prunes for its own replicas.
+     */
+    protected void sendPruneBatch(List<String> entryIDs) throws IOException {
+        Map<Address, List<String>> prunesByHolder = new HashMap<>();
+        for(String currentEntryID: entryIDs){
+            Set<Address> holders = replicaHolders.remove(currentEntryID);
+            if(holders != null){
+                for(Address currentHolder: holders){
+                    prunesByHolder.computeIfAbsent(currentHolder, k -> new ArrayList<>()).add(currentEntryID);
+                }
+            }
+        }
+        for(Map.Entry<Address, List<String>> currentPrunes: prunesByHolder.entrySet()){
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(content);
+            output.writeByte(PRUNE_REPLICAS);
+            output.writeInt(currentPrunes.getValue().size());
+            for(String currentEntryID: currentPrunes.getValue()){
+                output.writeUTF(currentEntryID);
+            }
+            output.flush();
+            clusterService.sendMessage(currentPrunes.getKey(), content.toByteArray());
+        }
+    }
+
+    protected void expireInFlightBatches(){
+        if(inFlightBatches.isEmpty()){
+            return;
+        }
+        long expiryThreshold = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(replicationTimeout * 2);
+        for(Map.Entry<Long, ReplicationBatch> currentBatch: inFlightBatches.entrySet()){
+            if(currentBatch.getValue().getCreatedNanos() < expiryThreshold){
+                inFlightBatches.remove(currentBatch.getKey());
+                currentBatch.getValue().complete(false);
+            }
+        }
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    public List<Address> getReplicaTargets() {
+        return replicaTargets;
+    }
+
+    //
+    // Internal Classes
+    //
+
+    protected static class PendingReplication {
+        private final AuditEventQueueEntry entry;
+        private final CompletableFuture<Boolean> completion;
+
+        public PendingReplication(AuditEventQueueEntry entry){
+            this.entry = entry;
+            this.completion = new CompletableFuture<>();
+        }
+
+        public AuditEventQueueEntry getEntry() {
+            return entry;
+        }
+
+        public CompletableFuture<Boolean> getCompletion() {
+            return completion;
+        }
+    }
+
+    protected static class ReplicationBatch {
+        private final List<CompletableFuture<Boolean>> completions;
+        private final AtomicInteger outstandingAcknowledgements;
+        private final long createdNanos;
+
+        public ReplicationBatch(List<PendingReplication> pendingReplications, int replicaCount){
+            this.completions = new ArrayList<>(pendingReplications.size());
+            for(PendingReplication currentReplication: pendingReplications){
+                completions.add(currentReplication.getCompletion());
+            }
+            this.outstandingAcknowledgements = new AtomicInteger(replicaCount);
+            this.createdNanos = System.nanoTime();
+        }
+
+        public boolean acknowledge(){
+            return(outstandingAcknowledgements.decrementAndGet() == 0);
+        }
+
+        public void complete(boolean success){
+            for(CompletableFuture<Boolean> currentCompletion: completions){
+                currentCompletion.complete(success);
+            }
+        }
+
+        public long getCreatedNanos() {
+            return createdNanos;
+        }
+    }
+
+    protected static class ReplicaRecord {
+        private final String auditEventJSON;
+        private final Instant queuedInstant;
+
+        public ReplicaRecord(String auditEventJSON, Instant queuedInstant){
+            this.auditEventJSON = auditEventJSON;
+            this.queuedInstant = queuedInstant;
+        }
+
+        public String getAuditEventJSON() {
+            return auditEventJSON;
+        }
+
+        public Instant getQueuedInstant() {
+            return queuedInstant;
+        }
+    }
+}
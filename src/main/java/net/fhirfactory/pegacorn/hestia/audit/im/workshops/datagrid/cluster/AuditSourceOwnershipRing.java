@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster;
+
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable consistent-hash ring mapping audit source participants onto the members of the
+ * Hestia Audit IM cluster. A new ring is built for every JGroups view, so only the sources whose
+ * ring segment moved change owner when a member joins or leaves.
+ */
+public class AuditSourceOwnershipRing {
+    private static final long FNV_64_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+
+    private final NavigableMap<Long, Address> ring;
+    private final List<Address> members;
+    private final int virtualNodesPerMember;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditSourceOwnershipRing(List<Address> members, int virtualNodesPerMember){
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.virtualNodesPerMember = virtualNodesPerMember;
+        TreeMap<Long, Address> positions = new TreeMap<>();
+        for(Address currentMember: members){
+            String memberName = currentMember.toString();
+            for(int virtualNode = 0; virtualNode < virtualNodesPerMember; virtualNode++){
+                positions.put(hash(memberName + "#" + virtualNode), currentMember);
+            }
+        }
+        this.ring = positions;
+    }
+
+    //
+    // Business Methods
+    //
+
+    public Address getOwner(String sourceParticipantName){
+        if(ring.isEmpty()){
+            return(null);
+        }
+        Map.Entry<Long, Address> ownerEntry = ring.ceilingEntry(hash(sourceParticipantName));
+        if(ownerEntry == null){
+            ownerEntry = ring.firstEntry();
+        }
+        return(ownerEntry.getValue());
+    }
+
+    /**
+     * Walks the ring clockwise from the source's position and returns up to <code>count</code>
+     * distinct members, the first of which is the owner.
+     */
+    public List<Address> getOwners(String sourceParticipantName, int count){
+        List<Address> owners = new ArrayList<>();
+        if(ring.isEmpty() || count < 1){
+            return(owners);
+        }
+        int wanted = Math.min(count, members.size());
+        long position = hash(sourceParticipantName);
+        for(Address currentMember: ring.tailMap(position, true).values()){
+            if(!owners.contains(currentMember)){
+                owners.add(currentMember);
+                if(owners.size() == wanted){
+                    return(owners);
+                }
+            }
+        }
+        for(Address currentMember: ring.headMap(position, false).values()){
+            if(!owners.contains(currentMember)){
+                owners.add(currentMember);
+                if(owners.size() == wanted){
+                    return(owners);
+                }
+            }
+        }
+        return(owners);
+    }
+
+    public AuditSourceOwnershipRing withoutMember(Address member){
+        List<Address> remainingMembers = new ArrayList<>(members);
+        remainingMembers.remove(member);
+        return(new AuditSourceOwnershipRing(remainingMembers, virtualNodesPerMember));
+    }
+
+    public boolean isEmpty(){
+        return(members.isEmpty());
+    }
+
+    public List<Address> getMembers() {
+        return members;
+    }
+
+    //
+    // Helper Functions
+    //
+
+    static long hash(CharSequence value){
+        long hash = FNV_64_OFFSET_BASIS;
+        for(int index = 0; index < value.length(); index++){
+            hash ^= value.charAt(index);
+            hash *= FNV_64_PRIME;
+        }
+        // murmur3 finaliser, spreads FNV's weak low-order bits around the ring
+        hash ^= (hash >>> 33);
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= (hash >>> 33);
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= (hash >>> 33);
+        return(hash);
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AuditSourceOwnershipRing{" +
+                "members=" + members +
+                ", virtualNodesPerMember=" + virtualNodesPerMember +
+                '}';
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster;
+
+import ca.uhn.fhir.parser.IParser;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventQueueEntry;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.jgroups.Address;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Forms the Hestia Audit IM replicas into a JGroups cluster and partitions the audit sources between
+ * them using an {@link AuditSourceOwnershipRing}. AuditEvents arriving at a non-owning replica are
+ * forwarded to the owner, queued work is rebalanced on every view change and a departing replica
+ * hands its queue off to the new owners before leaving. The owner acknowledges every forwarded
+ * AuditEvent once it has queued it; anything not acknowledged within the forward timeout stays (or is
+ * queued) on the sending replica. Delivery is therefore at-least-once: an acknowledgement that arrives
+ * after the timeout leaves the AuditEvent queued on both replicas. AuditEvents that fell back to the
+ * local queue are re-routed to their owner by a periodic rebalance, not only when the view changes.
+ */
+@ApplicationScoped
+public class HestiaAuditIMClusterService extends ReceiverAdapter {
+    private static final Logger LOG = LoggerFactory.getLogger(HestiaAuditIMClusterService.class);
+
+    private static final String IM_CLUSTER_ENABLED = "IM_CLUSTER_ENABLED";
+    private static final String IM_CLUSTER_NAME = "IM_CLUSTER_NAME";
+    private static final String IM_CLUSTER_JGROUPS_STACK = "IM_CLUSTER_JGROUPS_STACK";
+    private static final String IM_CLUSTER_VIRTUAL_NODES = "IM_CLUSTER_VIRTUAL_NODES";
+    private static final String IM_CLUSTER_FORWARD_TIMEOUT = "IM_CLUSTER_FORWARD_TIMEOUT";
+    private static final String IM_CLUSTER_REBALANCE_PERIOD = "IM_CLUSTER_REBALANCE_PERIOD";
+
+    private static final String DEFAULT_CLUSTER_NAME = "hestia-audit-im-cluster";
+    private static final int DEFAULT_VIRTUAL_NODES = 64;
+    private static final long DEFAULT_FORWARD_TIMEOUT = 2000L;
+    private static final long DEFAULT_REBALANCE_PERIOD = 30000L;
+    private static final int TRANSFER_BATCH_SIZE = 64;
+
+    protected static final byte FORWARDED_AUDIT_EVENTS = 1;
+    protected static final byte ACKNOWLEDGE_FORWARD = 5;
+    private static final int FORWARD_HEADER_LENGTH = 9;
+
+    private static final String UNKNOWN_SOURCE_PARTICIPANT = "unknown";
+
+    private volatile boolean initialised;
+    private volatile boolean clusterEnabled;
+    private int virtualNodesPerMember;
+    private long forwardTimeout;
+    private long rebalancePeriod;
+    private JChannel channel;
+    private ExecutorService forwardTaskExecutor;
+    private ScheduledExecutorService rebalanceExecutor;
+    private AtomicBoolean rebalancePending;
+    private AtomicLong forwardSequence;
+    private ConcurrentHashMap<Long, CompletableFuture<boolean[]>> pendingForwards;
+    private volatile Predicate<AuditEvent> ownedAuditEventHandler;
+    private volatile AuditSourceOwnershipRing ownershipRing;
+    private Object membershipLock;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private AuditEventQueueReplicationService replicationService;
+
+    //
+    // Constructor(s)
+    //
+
+    public HestiaAuditIMClusterService(){
+        super();
+        this.initialised = false;
+        this.clusterEnabled = false;
+        this.virtualNodesPerMember = DEFAULT_VIRTUAL_NODES;
+        this.forwardTimeout = DEFAULT_FORWARD_TIMEOUT;
+        this.rebalancePeriod = DEFAULT_REBALANCE_PERIOD;
+        this.rebalancePending = new AtomicBoolean(false);
+        this.forwardSequence = new AtomicLong(0);
+        this.pendingForwards = new ConcurrentHashMap<>();
+        this.membershipLock = new Object();
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    public void initialise(){
+        getLogger().debug(".initialise(): Entry");
+        synchronized (membershipLock) {
+            if (initialised) {
+                getLogger().debug(".initialise(): Exit, already initialised!");
+                return;
+            }
+            clusterEnabled = configurationService.getBooleanParameter(IM_CLUSTER_ENABLED, false);
+            String jgroupsStack = configurationService.getParameter(IM_CLUSTER_JGROUPS_STACK);
+            if (clusterEnabled && StringUtils.isBlank(jgroupsStack)) {
+                // there is no safe default, multicast discovery does not work in the Kubernetes deployments
+                getLogger().error(".initialise(): {} is enabled but no {} (e.g. the platform's Kubernetes stack) is configured, running standalone", IM_CLUSTER_ENABLED, IM_CLUSTER_JGROUPS_STACK);
+                clusterEnabled = false;
+            }
+            if (clusterEnabled) {
+                String clusterName = StringUtils.defaultIfBlank(configurationService.getParameter(IM_CLUSTER_NAME), DEFAULT_CLUSTER_NAME);
+                virtualNodesPerMember = Math.max(1, configurationService.getIntegerParameter(IM_CLUSTER_VIRTUAL_NODES, virtualNodesPerMember));
+                forwardTimeout = Math.max(1L, configurationService.getLongParameter(IM_CLUSTER_FORWARD_TIMEOUT, forwardTimeout));
+                rebalancePeriod = Math.max(1000L, configurationService.getLongParameter(IM_CLUSTER_REBALANCE_PERIOD, rebalancePeriod));
+                // neither may run on the JGroups threads, and forwarded events must not wait behind a rebalance
+                // that is blocked on acknowledgements
+                forwardTaskExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread forwardTaskThread = new Thread(runnable, "HestiaAuditIMClusterForwards");
+                    forwardTaskThread.setDaemon(true);
+                    return(forwardTaskThread);
+                });
+                rebalanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread rebalanceThread = new Thread(runnable, "HestiaAuditIMClusterRebalance");
+                    rebalanceThread.setDaemon(true);
+                    return(rebalanceThread);
+                });
+                // mark as initialised before connecting, the first view is delivered from within connect()
+                initialised = true;
+                try {
+                    getLogger().info(".initialise(): Joining cluster, clusterName->{}, jgroupsStack->{}", clusterName, jgroupsStack);
+                    channel = new JChannel(jgroupsStack);
+                    channel.setDiscardOwnMessages(true);
+                    channel.setReceiver(this);
+                    channel.connect(clusterName);
+                } catch (Exception ex) {
+                    getLogger().error(".initialise(): Could not join the IM cluster, running standalone, message->{}", ExceptionUtils.getMessage(ex));
+                    clusterEnabled = false;
+                    if (channel != null) {
+                        channel.close();
+                        channel = null;
+                    }
+                    forwardTaskExecutor.shutdownNow();
+                    rebalanceExecutor.shutdownNow();
+                }
+                if (clusterEnabled) {
+                    // picks up the AuditEvents that fell back to the local queue when a forward was not acknowledged
+                    rebalanceExecutor.scheduleWithFixedDelay(this::requestRebalance, rebalancePeriod, rebalancePeriod, TimeUnit.MILLISECONDS);
+                }
+            }
+            initialised = true;
+        }
+        getLogger().debug(".initialise(): Exit, clusterEnabled->{}, rebalancePeriod->{}", clusterEnabled, rebalancePeriod);
+    }
+
+    /**
+     * Leaves the cluster. The hand-off of the queue is done by the PetasosAuditPersistenceService
+     * shutdown sequence, before its drain and before it calls this; if the container gets here first the
+     * hand-off is skipped and the queue is drained or spilled instead. A second call does nothing.
+     */
+    @PreDestroy
+    public void shutdown(){
+        getLogger().debug(".shutdown(): Entry");
+        synchronized (membershipLock) {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            if (forwardTaskExecutor != null) {
+                forwardTaskExecutor.shutdownNow();
+            }
+            if (rebalanceExecutor != null) {
+                rebalanceExecutor.shutdownNow();
+            }
+            clusterEnabled = false;
+        }
+        getLogger().debug(".shutdown(): Exit");
+    }
+
+    //
+    // Ownership
+    //
+
+    public boolean isClusterEnabled(){
+        if(!initialised){
+            initialise();
+        }
+        return(clusterEnabled);
+    }
+
+    public boolean isLocallyOwned(AuditEvent auditEvent){
+        if(!isClusterEnabled()){
+            return(true);
+        }
+        Address owner = getOwner(auditEvent);
+        return(owner == null || owner.equals(getLocalAddress()));
+    }
+
+    public Address getOwner(AuditEvent auditEvent){
+        AuditSourceOwnershipRing currentRing = this.ownershipRing;
+        if(currentRing == null){
+            return(null);
+        }
+        return(currentRing.getOwner(resolveSourceParticipantName(auditEvent)));
+    }
+
+    public String resolveSourceParticipantName(AuditEvent auditEvent){
+        if(auditEvent == null || !auditEvent.hasSource()){
+            return(UNKNOWN_SOURCE_PARTICIPANT);
+        }
+        AuditEvent.AuditEventSourceComponent source = auditEvent.getSource();
+        if(source.hasObserver()){
+            if(source.getObserver().hasDisplay()){
+                return(source.getObserver().getDisplay());
+            }
+            if(source.getObserver().hasReference()){
+                return(source.getObserver().getReference());
+            }
+            if(source.getObserver().hasIdentifier() && source.getObserver().getIdentifier().hasValue()){
+                return(source.getObserver().getIdentifier().getValue());
+            }
+        }
+        if(source.hasSite()){
+            return(source.getSite());
+        }
+        return(UNKNOWN_SOURCE_PARTICIPANT);
+    }
+
+    //
+    // Forwarding, Rebalancing and Hand-Off
+    //
+
+    /**
+     * Sends the AuditEvent to the replica that owns its source and waits for the owner to acknowledge it.
+     *
+     * @return true if the owner queued the event, false if the caller should keep it locally
+     */
+    public boolean forwardAuditEvent(AuditEvent auditEvent){
+        getLogger().debug(".forwardAuditEvent(): Entry");
+        Address owner = getOwner(auditEvent);
+        if(owner == null || owner.equals(getLocalAddress())){
+            getLogger().debug(".forwardAuditEvent(): Exit, event is locally owned");
+            return(false);
+        }
+        List<AuditEvent> eventList = new ArrayList<>();
+        eventList.add(auditEvent);
+        boolean sent = sendAuditEvents(owner, eventList)[0];
+        getLogger().debug(".forwardAuditEvent(): Exit, sent->{}", sent);
+        return(sent);
+    }
+
+    /**
+     * Moves every queued AuditEvent whose source is no longer owned by this replica to its new owner.
+     */
+    public void rebalanceQueuedAuditEvents(){
+        getLogger().debug(".rebalanceQueuedAuditEvents(): Entry");
+        AuditSourceOwnershipRing currentRing = this.ownershipRing;
+        if(currentRing == null){
+            getLogger().debug(".rebalanceQueuedAuditEvents(): Exit, no ownership ring yet");
+            return;
+        }
+        int moved = transferQueuedAuditEvents(currentRing);
+        getLogger().debug(".rebalanceQueuedAuditEvents(): Exit, moved->{}", moved);
+    }
+
+    /**
+     * Hands every queued AuditEvent to the replica that will own its source once this replica has left.
+     */
+    public void handOffQueuedAuditEvents(){
+        getLogger().debug(".handOffQueuedAuditEvents(): Entry");
+        AuditSourceOwnershipRing currentRing = this.ownershipRing;
+        Address localAddress = getLocalAddress();
+        if(currentRing == null || localAddress == null){
+            getLogger().debug(".handOffQueuedAuditEvents(): Exit, not part of a cluster");
+            return;
+        }
+        AuditSourceOwnershipRing successorRing = currentRing.withoutMember(localAddress);
+        if(successorRing.isEmpty()){
+            getLogger().info(".handOffQueuedAuditEvents(): Exit, no surviving replica to hand off to");
+            return;
+        }
+        int moved = transferQueuedAuditEvents(successorRing);
+        getLogger().info(".handOffQueuedAuditEvents(): Exit, handed off->{}", moved);
+    }
+
+    /**
+     * Moves the queued entries whose owner in the target ring is another replica. Each entry is marked
+     * in flight while it is being transferred, so the asynchronous writer never writes an entry that is
+     * also on its way to another replica (and an entry the writer is busy with is left where it is).
+     */
+    protected int transferQueuedAuditEvents(AuditSourceOwnershipRing targetRing){
+        Address localAddress = getLocalAddress();
+        Map<Address, List<AuditEventQueueEntry>> transfers = new HashMap<>();
+        for(AuditEventQueueEntry currentEntry: eventCache.getEventQueue()){
+            Address owner = targetRing.getOwner(resolveSourceParticipantName(currentEntry.getAuditEvent()));
+            if(owner != null && !owner.equals(localAddress) && currentEntry.markInFlight()){
+                transfers.computeIfAbsent(owner, k -> new ArrayList<>()).add(currentEntry);
+            }
+        }
+        int moved = 0;
+        for(Map.Entry<Address, List<AuditEventQueueEntry>> currentTransfer: transfers.entrySet()){
+            List<AuditEventQueueEntry> entryList = currentTransfer.getValue();
+            for(int start = 0; start < entryList.size(); start += TRANSFER_BATCH_SIZE){
+                List<AuditEventQueueEntry> transferBatch = entryList.subList(start, Math.min(entryList.size(), start + TRANSFER_BATCH_SIZE));
+                moved += transferQueueEntries(currentTransfer.getKey(), transferBatch);
+            }
+        }
+        return(moved);
+    }
+
+    protected int transferQueueEntries(Address target, List<AuditEventQueueEntry> transferBatch){
+        List<AuditEvent> eventList = new ArrayList<>(transferBatch.size());
+        for(AuditEventQueueEntry currentEntry: transferBatch){
+            eventList.add(currentEntry.getAuditEvent());
+        }
+        boolean[] accepted = sendAuditEvents(target, eventList);
+        int moved = 0;
+        for(int index = 0; index < transferBatch.size(); index++){
+            AuditEventQueueEntry currentEntry = transferBatch.get(index);
+            if(accepted[index] && eventCache.removeQueueEntry(currentEntry)){
+                replicationService.pruneReplicas(currentEntry);
+                moved += 1;
+            }
+            currentEntry.clearInFlight();
+        }
+        return(moved);
+    }
+
+    //
+    // JGroups Callbacks
+    //
+
+    @Override
+    public void viewAccepted(View view) {
+        getLogger().info(".viewAccepted(): Entry, view->{}", view);
+        List<Address> previousMembers = Collections.emptyList();
+        if(this.ownershipRing != null){
+            previousMembers = this.ownershipRing.getMembers();
+        }
+        this.ownershipRing = new AuditSourceOwnershipRing(view.getMembers(), virtualNodesPerMember);
+        if(channel != null) {
+            replicationService.onViewChange(previousMembers, view.getMembers(), getLocalAddress());
+            requestRebalance();
+        }
+        getLogger().debug(".viewAccepted(): Exit");
+    }
+
+    @Override
+    public void receive(Message message) {
+        getLogger().debug(".receive(): Entry, source->{}", message.getSrc());
+        byte[] buffer = message.getBuffer();
+        if(buffer == null || buffer.length < 1){
+            getLogger().debug(".receive(): Exit, empty message");
+            return;
+        }
+        switch(buffer[0]){
+            case FORWARDED_AUDIT_EVENTS: {
+                Address source = message.getSrc();
+                submitForwardTask(() -> queueForwardedAuditEvents(source, buffer));
+                break;
+            }
+            case ACKNOWLEDGE_FORWARD:
+                acknowledgeForward(buffer);
+                break;
+            case AuditEventQueueReplicationService.REPLICATE_QUEUE_ENTRIES:
+            case AuditEventQueueReplicationService.ACKNOWLEDGE_REPLICATION:
+            case AuditEventQueueReplicationService.PRUNE_REPLICAS:
+                replicationService.handleMessage(message.getSrc(), buffer);
+                break;
+            default:
+                getLogger().warn(".receive(): Unknown message type->{}, source->{}", buffer[0], message.getSrc());
+        }
+        getLogger().debug(".receive(): Exit");
+    }
+
+    //
+    // Forwarded AuditEvents
+    //
+
+    protected void queueForwardedAuditEvents(Address source, byte[] buffer){
+        getLogger().debug(".queueForwardedAuditEvents(): Entry, source->{}", source);
+        if(buffer.length < FORWARD_HEADER_LENGTH){
+            getLogger().warn(".queueForwardedAuditEvents(): Exit, truncated message, source->{}", source);
+            return;
+        }
+        Predicate<AuditEvent> handler = this.ownedAuditEventHandler;
+        if(handler == null){
+            getLogger().debug(".queueForwardedAuditEvents(): No owned AuditEvent handler yet, forwarded events will not be acknowledged");
+        }
+        List<AuditEvent> eventList = decodeAuditEvents(buffer);
+        boolean[] accepted = new boolean[eventList.size()];
+        for(int index = 0; index < eventList.size(); index++){
+            AuditEvent currentEvent = eventList.get(index);
+            if(currentEvent != null && handler != null){
+                accepted[index] = handler.test(currentEvent);
+            }
+        }
+        try {
+            sendMessage(source, encodeAcknowledgement(decodeForwardID(buffer), accepted));
+        } catch (IOException ex) {
+            getLogger().warn(".queueForwardedAuditEvents(): Could not acknowledge source->{}, message->{}", source, ExceptionUtils.getMessage(ex));
+        }
+        getLogger().debug(".queueForwardedAuditEvents(): Exit, count->{}", eventList.size());
+    }
+
+    protected void acknowledgeForward(byte[] buffer){
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer, 1, buffer.length - 1));
+            long forwardID = input.readLong();
+            boolean[] accepted = new boolean[input.readInt()];
+            for(int index = 0; index < accepted.length; index++){
+                accepted[index] = input.readBoolean();
+            }
+            CompletableFuture<boolean[]> acknowledgement = pendingForwards.get(forwardID);
+            if(acknowledgement != null){
+                acknowledgement.complete(accepted);
+            }
+        } catch (IOException ex) {
+            getLogger().warn(".acknowledgeForward(): Could not decode acknowledgement, message->{}", ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    /**
+     * Sends the AuditEvents to the target replica and waits (for up to the forward timeout) for it to
+     * acknowledge them.
+     *
+     * @return one flag per AuditEvent, set if the target has queued it
+     */
+    protected boolean[] sendAuditEvents(Address target, List<AuditEvent> eventList){
+        long forwardID = forwardSequence.incrementAndGet();
+        CompletableFuture<boolean[]> acknowledgement = new CompletableFuture<>();
+        pendingForwards.put(forwardID, acknowledgement);
+        try {
+            if(sendMessage(target, encodeAuditEvents(forwardID, eventList))){
+                boolean[] accepted = acknowledgement.get(forwardTimeout, TimeUnit.MILLISECONDS);
+                if(accepted.length == eventList.size()){
+                    return(accepted);
+                }
+                getLogger().warn(".sendAuditEvents(): Acknowledgement does not match the forwarded events, target->{}", target);
+            }
+        } catch (TimeoutException ex) {
+            getLogger().warn(".sendAuditEvents(): Not acknowledged within forwardTimeout->{}, target->{}, count->{}", forwardTimeout, target, eventList.size());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            getLogger().warn(".sendAuditEvents(): Could not forward to target->{}, message->{}", target, ExceptionUtils.getMessage(ex));
+        } finally {
+            pendingForwards.remove(forwardID);
+        }
+        return(new boolean[eventList.size()]);
+    }
+
+    protected void submitForwardTask(Runnable forwardTask){
+        ExecutorService currentExecutor = this.forwardTaskExecutor;
+        if(currentExecutor == null){
+            return;
+        }
+        try {
+            currentExecutor.execute(forwardTask);
+        } catch (RejectedExecutionException ex) {
+            getLogger().debug(".submitForwardTask(): Cluster service is shutting down, task dropped");
+        }
+    }
+
+    /**
+     * Queues a rebalance on the rebalance executor. Requests made while one is already waiting to run are
+     * folded into it, as a single pass covers the whole queue.
+     */
+    protected void requestRebalance(){
+        ExecutorService currentExecutor = this.rebalanceExecutor;
+        if(currentExecutor == null || !rebalancePending.compareAndSet(false, true)){
+            return;
+        }
+        try {
+            currentExecutor.execute(() -> {
+                rebalancePending.set(false);
+                try {
+                    rebalanceQueuedAuditEvents();
+                } catch (Exception ex) {
+                    getLogger().warn(".requestRebalance(): Rebalance failed, message->{}", ExceptionUtils.getMessage(ex));
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rebalancePending.set(false);
+            getLogger().debug(".requestRebalance(): Cluster service is shutting down, rebalance dropped");
+        }
+    }
+
+    //
+    // Encoding / Decoding
+    //
+
+    public boolean sendMessage(Address target, byte[] buffer){
+        JChannel currentChannel = this.channel;
+        if(currentChannel == null){
+            return(false);
+        }
+        try {
+            currentChannel.send(new Message(target, buffer));
+            return(true);
+        } catch (Exception ex) {
+            getLogger().warn(".sendMessage(): Could not send to target->{}, message->{}", target, ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+    }
+
+    protected byte[] encodeAuditEvents(long forwardID, List<AuditEvent> eventList) throws IOException {
+        StringBuilder ndjsonBuilder = new StringBuilder();
+        IParser parser = parserService.borrowJsonParser();
+        try {
+            for(AuditEvent currentEvent: eventList){
+                ndjsonBuilder.append(parser.encodeResourceToString(currentEvent)).append('\n');
+            }
+        } finally {
+            parserService.releaseJsonParser(parser);
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeByte(FORWARDED_AUDIT_EVENTS);
+        output.writeLong(forwardID);
+        output.write(ndjsonBuilder.toString().getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        return(content.toByteArray());
+    }
+
+    protected long decodeForwardID(byte[] buffer){
+        long forwardID = 0L;
+        for(int index = 1; index < FORWARD_HEADER_LENGTH; index++){
+            forwardID = (forwardID << 8) | (buffer[index] & 0xFFL);
+        }
+        return(forwardID);
+    }
+
+    /**
+     * @return the forwarded AuditEvents, in order, with a -null- in place of any that could not be parsed
+     */
+    protected List<AuditEvent> decodeAuditEvents(byte[] buffer){
+        String content = new String(buffer, FORWARD_HEADER_LENGTH, buffer.length - FORWARD_HEADER_LENGTH, StandardCharsets.UTF_8);
+        List<AuditEvent> eventList = new ArrayList<>();
+        IParser parser = parserService.borrowJsonParser();
+        try {
+            for(String currentLine: StringUtils.split(content, '\n')){
+                try {
+                    eventList.add(parser.parseResource(AuditEvent.class, currentLine));
+                } catch (Exception ex) {
+                    getLogger().warn(".decodeAuditEvents(): Could not parse forwarded AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+                    eventList.add(null);
+                }
+            }
+        } finally {
+            parserService.releaseJsonParser(parser);
+        }
+        return(eventList);
+    }
+
+    protected byte[] encodeAcknowledgement(long forwardID, boolean[] accepted) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream(FORWARD_HEADER_LENGTH + 4 + accepted.length);
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeByte(ACKNOWLEDGE_FORWARD);
+        output.writeLong(forwardID);
+        output.writeInt(accepted.length);
+        for(boolean currentFlag: accepted){
+            output.writeBoolean(currentFlag);
+        }
+        output.flush();
+        return(content.toByteArray());
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    protected Address getLocalAddress(){
+        JChannel currentChannel = this.channel;
+        if(currentChannel == null){
+            return(null);
+        }
+        return(currentChannel.getAddress());
+    }
+
+    public AuditSourceOwnershipRing getOwnershipRing() {
+        return ownershipRing;
+    }
+
+    /**
+     * Sets the handler that queues AuditEvents forwarded to this replica, so they take the same
+     * load-shedding, coalescing and queue-depth path as those received locally.
+     */
+    public void setOwnedAuditEventHandler(Predicate<AuditEvent> ownedAuditEventHandler) {
+        this.ownedAuditEventHandler = ownedAuditEventHandler;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.index;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.search.AuditEventSearchQuery;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded ring buffer of the AuditEvents most recently written to the DM, with secondary indexes by
+ * entity reference, agent and type.
+ *
+ * Each slot holds the event as compact UTF-8 JSON rather than a HAPI object graph. Each index key
+ * maps to the ascending sequence numbers of the slots that carry it. When a slot is overwritten,
+ * its sequence number is the oldest in every list it appears in, so eviction just pops the heads
+ * of those lists. Nothing needs to be scanned.
+ *
+ * The index covers every event written since coverageStart. Queries whose window starts earlier
+ * than that are reported as not covered, and the caller falls back to the DM.
+ */
+@ApplicationScoped
+public class RecentAuditEventIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(RecentAuditEventIndex.class);
+
+    private static final String RECENT_AUDIT_EVENT_INDEX_CAPACITY = "RECENT_AUDIT_EVENT_INDEX_CAPACITY";
+    private static final int DEFAULT_CAPACITY = 50000;
+
+    private static final String ENTITY_KEY_PREFIX = "e:";
+    private static final String AGENT_KEY_PREFIX = "a:";
+    private static final String TYPE_KEY_PREFIX = "t:";
+    private static final String CODE_SEPARATOR = "|";
+
+    private volatile boolean initialised;
+    private int capacity;
+    private long nextSequence;
+    private long coverageStart;
+    private byte[][] slotContent;
+    private long[] slotRecorded;
+    private long[] slotWritten;
+    private String[][] slotKeys;
+    private Map<String, SequenceList> keyIndex;
+    private ReentrantReadWriteLock indexLock;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    //
+    // Constructor(s)
+    //
+
+    public RecentAuditEventIndex(){
+        this.initialised = false;
+        this.capacity = 0;
+        this.nextSequence = 0;
+        this.coverageStart = System.currentTimeMillis();
+        this.keyIndex = new HashMap<>();
+        this.indexLock = new ReentrantReadWriteLock();
+    }
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        capacity = configurationService.getIntegerParameter(RECENT_AUDIT_EVENT_INDEX_CAPACITY, DEFAULT_CAPACITY);
+        if(capacity > 0){
+            slotContent = new byte[capacity][];
+            slotRecorded = new long[capacity];
+            slotWritten = new long[capacity];
+            slotKeys = new String[capacity][];
+        }
+        coverageStart = System.currentTimeMillis();
+        initialised = true;
+        getLogger().info(".initialise(): capacity->{}", capacity);
+    }
+
+    //
+    // Business Methods
+    //
+
+    public boolean isEnabled(){
+        if(!initialised){
+            initialise();
+        }
+        return(capacity > 0);
+    }
+
+    /**
+     * Adds an AuditEvent that has just been written to the DM.
+     */
+    public void recordAuditEvent(AuditEvent auditEvent){
+        if(auditEvent == null || !isEnabled()){
+            return;
+        }
+        byte[] content;
+        try {
+            content = parserService.encodeAuditEvent(auditEvent).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception ex) {
+            getLogger().warn(".recordAuditEvent(): Could not encode AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+            return;
+        }
+        String[] keys = extractKeys(auditEvent);
+        long now = System.currentTimeMillis();
+        long recorded = auditEvent.hasRecorded() ? auditEvent.getRecorded().getTime() : now;
+        indexLock.writeLock().lock();
+        try {
+            long sequence = nextSequence++;
+            int slot = (int)(sequence % capacity);
+            if(sequence >= capacity){
+                evictSlot(slot, sequence - capacity);
+                // everything written after the evicted event is still held
+                coverageStart = slotWritten[slot] + 1;
+            }
+            slotContent[slot] = content;
+            slotRecorded[slot] = recorded;
+            slotWritten[slot] = now;
+            slotKeys[slot] = keys;
+            for(String currentKey: keys){
+                keyIndex.computeIfAbsent(currentKey, key -> new SequenceList()).add(sequence);
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    public void recordAuditEvents(List<AuditEvent> auditEventList){
+        for(AuditEvent currentEvent: auditEventList){
+            recordAuditEvent(currentEvent);
+        }
+    }
+
+    /**
+     * @return true if every event recorded at or after the query's since instant is held here
+     */
+    public boolean covers(AuditEventSearchQuery query){
+        if(!isEnabled() || query.getSince() == null){
+            return(false);
+        }
+        indexLock.readLock().lock();
+        try {
+            return(query.getSince().getTime() >= coverageStart);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the index, newest first. The caller should check covers() first; otherwise the result
+     * only reflects the events still held.
+     */
+    public List<AuditEvent> search(AuditEventSearchQuery query){
+        List<AuditEvent> results = new ArrayList<>();
+        if(!isEnabled()){
+            return(results);
+        }
+        List<String> queryKeys = new ArrayList<>();
+        if(StringUtils.isNotBlank(query.getEntity())){
+            queryKeys.add(ENTITY_KEY_PREFIX + query.getEntity());
+        }
+        if(StringUtils.isNotBlank(query.getAgent())){
+            queryKeys.add(AGENT_KEY_PREFIX + query.getAgent());
+        }
+        if(StringUtils.isNotBlank(query.getType())){
+            String type = query.getType();
+            queryKeys.add(TYPE_KEY_PREFIX + (type.contains(CODE_SEPARATOR) ? type : CODE_SEPARATOR + type));
+        }
+        long since = query.getSince() != null ? query.getSince().getTime() : Long.MIN_VALUE;
+        long until = query.getUntil() != null ? query.getUntil().getTime() : Long.MAX_VALUE;
+        int count = query.getEffectiveCount();
+        List<byte[]> matchedContent = new ArrayList<>();
+        indexLock.readLock().lock();
+        try {
+            long oldestSequence = Math.max(0L, nextSequence - capacity);
+            // drive the scan from the most selective index list (or the whole ring)
+            SequenceList driver = null;
+            for(String currentKey: queryKeys){
+                SequenceList currentList = keyIndex.get(currentKey);
+                if(currentList == null){
+                    return(results);
+                }
+                if(driver == null || currentList.size() < driver.size()){
+                    driver = currentList;
+                }
+            }
+            long candidateCount = driver != null ? driver.size() : nextSequence - oldestSequence;
+            for(long position = candidateCount - 1; position >= 0 && matchedContent.size() < count; position--){
+                long sequence = driver != null ? driver.get((int)position) : oldestSequence + position;
+                int slot = (int)(sequence % capacity);
+                if(slotRecorded[slot] < since || slotRecorded[slot] > until){
+                    continue;
+                }
+                if(!hasAllKeys(slotKeys[slot], queryKeys)){
+                    continue;
+                }
+                matchedContent.add(slotContent[slot]);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        for(byte[] currentContent: matchedContent){
+            results.add(parserService.parseAuditEvent(new String(currentContent, StandardCharsets.UTF_8)));
+        }
+        return(results);
+    }
+
+    public long getCoverageStart(){
+        indexLock.readLock().lock();
+        try {
+            return(coverageStart);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    public int getIndexedCount(){
+        indexLock.readLock().lock();
+        try {
+            return((int)Math.min(nextSequence, capacity));
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected void evictSlot(int slot, long evictedSequence){
+        String[] evictedKeys = slotKeys[slot];
+        if(evictedKeys == null){
+            return;
+        }
+        for(String currentKey: evictedKeys){
+            SequenceList currentList = keyIndex.get(currentKey);
+            if(currentList == null){
+                continue;
+            }
+            if(currentList.size() > 0 && currentList.get(0) == evictedSequence){
+                currentList.removeFirst();
+            }
+            if(currentList.size() == 0){
+                keyIndex.remove(currentKey);
+            }
+        }
+        slotContent[slot] = null;
+        slotKeys[slot] = null;
+    }
+
+    protected boolean hasAllKeys(String[] slotKeyArray, List<String> queryKeys){
+        for(String currentQueryKey: queryKeys){
+            boolean found = false;
+            for(String currentSlotKey: slotKeyArray){
+                if(currentSlotKey.equals(currentQueryKey)){
+                    found = true;
+                    break;
+                }
+            }
+            if(!found){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    protected String[] extractKeys(AuditEvent auditEvent){
+        List<String> keys = new ArrayList<>();
+        if(auditEvent.hasEntity()){
+            for(AuditEvent.AuditEventEntityComponent currentEntity: auditEvent.getEntity()){
+                if(currentEntity.hasWhat() && currentEntity.getWhat().hasReference()){
+                    addKey(keys, ENTITY_KEY_PREFIX + currentEntity.getWhat().getReference());
+                }
+            }
+        }
+        if(auditEvent.hasAgent()){
+            for(AuditEvent.AuditEventAgentComponent currentAgent: auditEvent.getAgent()){
+                if(currentAgent.hasWho()){
+                    addReferenceKeys(keys, currentAgent.getWho());
+                }
+                if(currentAgent.hasName()){
+                    addKey(keys, AGENT_KEY_PREFIX + currentAgent.getName());
+                }
+            }
+        }
+        if(auditEvent.hasType()){
+            addCodingKeys(keys, auditEvent.getType());
+        }
+        if(auditEvent.hasSubtype()){
+            for(Coding currentSubtype: auditEvent.getSubtype()){
+                addCodingKeys(keys, currentSubtype);
+            }
+        }
+        return(keys.toArray(new String[0]));
+    }
+
+    protected void addReferenceKeys(List<String> keys, Reference reference){
+        if(reference.hasReference()){
+            addKey(keys, AGENT_KEY_PREFIX + reference.getReference());
+        }
+        if(reference.hasIdentifier() && reference.getIdentifier().hasValue()){
+            addKey(keys, AGENT_KEY_PREFIX + reference.getIdentifier().getValue());
+        }
+        if(reference.hasDisplay()){
+            addKey(keys, AGENT_KEY_PREFIX + reference.getDisplay());
+        }
+    }
+
+    protected void addCodingKeys(List<String> keys, Coding coding){
+        if(!coding.hasCode()){
+            return;
+        }
+        // indexed under both system|code and |code, so queries may omit the system
+        addKey(keys, TYPE_KEY_PREFIX + CODE_SEPARATOR + coding.getCode());
+        if(coding.hasSystem()){
+            addKey(keys, TYPE_KEY_PREFIX + coding.getSystem() + CODE_SEPARATOR + coding.getCode());
+        }
+    }
+
+    protected void addKey(List<String> keys, String key){
+        if(!keys.contains(key)){
+            keys.add(key);
+        }
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    /**
+     * Growable array deque of ascending sequence numbers.
+     */
+    protected static class SequenceList {
+        private long[] sequences;
+        private int head;
+        private int size;
+
+        public SequenceList(){
+            this.sequences = new long[4];
+            this.head = 0;
+            this.size = 0;
+        }
+
+        public void add(long sequence){
+            if(size == sequences.length){
+                long[] grown = new long[sequences.length * 2];
+                for(int index = 0; index < size; index++){
+                    grown[index] = sequences[(head + index) % sequences.length];
+                }
+                sequences = grown;
+                head = 0;
+            }
+            sequences[(head + size) % sequences.length] = sequence;
+            size += 1;
+        }
+
+        public long get(int index){
+            return(sequences[(head + index) % sequences.length]);
+        }
+
+        public void removeFirst(){
+            head = (head + 1) % sequences.length;
+            size -= 1;
+        }
+
+        public int size(){
+            return(size);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.rules;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.AuditEventFilterRuleSegment;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.HestiaAuditIMConfigurationFile;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.HestiaAuditIMTopologyFactory;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.LocalAuditEventArchive;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Applies the auditEventFilterRules from the HestiaAuditIMConfigurationFile to incoming AuditEvents.
+ *
+ * Rules are compiled once and evaluated in configuration order; the first matching rule decides. A
+ * DROP match discards the AuditEvent, a SAMPLE match keeps it with the rule's sample rate, and an
+ * ARCHIVE match sends it to the local archive (in batches) instead of the DM.
+ */
+@ApplicationScoped
+public class AuditEventFilterRuleEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventFilterRuleEngine.class);
+
+    public static final String FILTERED_ARCHIVE_CATEGORY = "filtered";
+
+    private static final CompiledAuditEventRule[] NO_RULES = new CompiledAuditEventRule[0];
+
+    private volatile CompiledAuditEventRule[] compiledRules;
+    private LocalAuditEventArchive.BatchingArchiveSink archiveSink;
+
+    @Inject
+    private HestiaAuditIMTopologyFactory topologyFactory;
+
+    @Inject
+    private LocalAuditEventArchive localArchive;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventFilterRuleEngine(){
+        this.compiledRules = null;
+        this.archiveSink = null;
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    /**
+     * (Re)compiles the rules from the configuration file. A rule that cannot be compiled is logged
+     * and skipped, rather than failing the whole rule set.
+     */
+    public synchronized void compileRules(){
+        compileRules(topologyFactory.getHestiaAuditIMConfigurationFile());
+    }
+
+    /**
+     * (Re)compiles the rules from the given (e.g. freshly reloaded) configuration file. The new rule
+     * set replaces the old one in a single write, so evaluations in progress finish on the old set.
+     */
+    public synchronized void compileRules(HestiaAuditIMConfigurationFile configurationFile){
+        getLogger().debug(".compileRules(): Entry");
+        List<CompiledAuditEventRule> ruleList = new ArrayList<>();
+        if(configurationFile != null && configurationFile.getAuditEventFilterRules() != null){
+            for(AuditEventFilterRuleSegment currentSegment: configurationFile.getAuditEventFilterRules()){
+                try {
+                    ruleList.add(new CompiledAuditEventRule(currentSegment));
+                } catch (Exception ex) {
+                    getLogger().error(".compileRules(): Skipping invalid rule->{}, message->{}", currentSegment, ExceptionUtils.getMessage(ex));
+                }
+            }
+        }
+        // the sink has to be in place before the rules that use it are published
+        for(CompiledAuditEventRule currentRule: ruleList){
+            if(currentRule.getAction() == AuditEventRuleActionEnum.ARCHIVE && archiveSink == null){
+                archiveSink = localArchive.getBatchingSink(FILTERED_ARCHIVE_CATEGORY);
+            }
+        }
+        compiledRules = ruleList.isEmpty() ? NO_RULES : ruleList.toArray(new CompiledAuditEventRule[0]);
+        getLogger().info(".compileRules(): Exit, rules->{}", ruleList);
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        if(archiveSink != null){
+            archiveSink.flush();
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return true if the AuditEvent should carry on to the DM, false if a rule has dropped it,
+     * sampled it out or routed it to the local archive
+     */
+    public boolean admit(AuditEvent auditEvent){
+        CompiledAuditEventRule[] rules = compiledRules;
+        if(rules == null){
+            compileRules();
+            rules = compiledRules;
+        }
+        for(int index = 0; index < rules.length; index++){
+            CompiledAuditEventRule currentRule = rules[index];
+            if(!currentRule.matches(auditEvent)){
+                continue;
+            }
+            switch(currentRule.getAction()){
+                case DROP:
+                    return(false);
+                case SAMPLE:
+                    return(ThreadLocalRandom.current().nextDouble() < currentRule.getSampleRate());
+                case ARCHIVE:
+                    archiveSink.offer(auditEvent);
+                    return(false);
+                default:
+                    return(true);
+            }
+        }
+        return(true);
+    }
+
+    public List<CompiledAuditEventRule> getCompiledRules(){
+        List<CompiledAuditEventRule> ruleList = new ArrayList<>();
+        CompiledAuditEventRule[] rules = compiledRules;
+        if(rules != null){
+            for(CompiledAuditEventRule currentRule: rules){
+                ruleList.add(currentRule);
+            }
+        }
+        return(ruleList);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.rules;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.AuditEventFilterRuleSegment;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An AuditEventFilterRuleSegment compiled into hash-set lookups. matches() only reads existing
+ * AuditEvent elements (guarded by the hasXxx() checks so HAPI does not auto-create empty children)
+ * and walks lists by index, so evaluating a rule allocates nothing.
+ */
+public class CompiledAuditEventRule {
+    private static final String CODE_SEPARATOR = "|";
+
+    private final String name;
+    private final AuditEventRuleActionEnum action;
+    private final double sampleRate;
+    private final Map<String, Set<String>> typeCodes;
+    private final Map<String, Set<String>> subtypeCodes;
+    private final Set<String> agents;
+    private final Set<String> sourceObservers;
+    private final Set<String> outcomes;
+    private final AtomicLong matchCount;
+
+    //
+    // Constructor(s)
+    //
+
+    public CompiledAuditEventRule(AuditEventFilterRuleSegment ruleSegment){
+        this.name = ruleSegment.getName();
+        this.action = AuditEventRuleActionEnum.valueOf(ruleSegment.getAction().trim().toUpperCase());
+        this.sampleRate = ruleSegment.getSampleRate() != null ? Math.min(1.0, Math.max(0.0, ruleSegment.getSampleRate())) : 0.0;
+        this.typeCodes = compileCodes(ruleSegment.getTypeCodes());
+        this.subtypeCodes = compileCodes(ruleSegment.getSubtypeCodes());
+        this.agents = compileValues(ruleSegment.getAgents());
+        this.sourceObservers = compileValues(ruleSegment.getSourceObservers());
+        this.outcomes = compileValues(ruleSegment.getOutcomes());
+        this.matchCount = new AtomicLong(0);
+    }
+
+    //
+    // Matching
+    //
+
+    public boolean matches(AuditEvent auditEvent){
+        if(!typeCodes.isEmpty() && !(auditEvent.hasType() && matchesCoding(typeCodes, auditEvent.getType()))){
+            return(false);
+        }
+        if(!subtypeCodes.isEmpty() && !matchesAnySubtype(auditEvent)){
+            return(false);
+        }
+        if(!outcomes.isEmpty() && !(auditEvent.hasOutcome() && outcomes.contains(auditEvent.getOutcome().toCode()))){
+            return(false);
+        }
+        if(!agents.isEmpty() && !matchesAnyAgent(auditEvent)){
+            return(false);
+        }
+        if(!sourceObservers.isEmpty() && !matchesSourceObserver(auditEvent)){
+            return(false);
+        }
+        matchCount.incrementAndGet();
+        return(true);
+    }
+
+    protected boolean matchesAnySubtype(AuditEvent auditEvent){
+        if(!auditEvent.hasSubtype()){
+            return(false);
+        }
+        List<Coding> subtypeList = auditEvent.getSubtype();
+        for(int index = 0; index < subtypeList.size(); index++){
+            if(matchesCoding(subtypeCodes, subtypeList.get(index))){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    protected boolean matchesAnyAgent(AuditEvent auditEvent){
+        if(!auditEvent.hasAgent()){
+            return(false);
+        }
+        List<AuditEvent.AuditEventAgentComponent> agentList = auditEvent.getAgent();
+        for(int index = 0; index < agentList.size(); index++){
+            AuditEvent.AuditEventAgentComponent currentAgent = agentList.get(index);
+            if(currentAgent.hasName() && agents.contains(currentAgent.getName())){
+                return(true);
+            }
+            if(currentAgent.hasWho() && matchesReference(agents, currentAgent.getWho())){
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    protected boolean matchesSourceObserver(AuditEvent auditEvent){
+        if(!auditEvent.hasSource()){
+            return(false);
+        }
+        AuditEvent.AuditEventSourceComponent source = auditEvent.getSource();
+        if(source.hasSite() && sourceObservers.contains(source.getSite())){
+            return(true);
+        }
+        return(source.hasObserver() && matchesReference(sourceObservers, source.getObserver()));
+    }
+
+    protected boolean matchesReference(Set<String> values, Reference reference){
+        if(reference.hasReference() && values.contains(reference.getReference())){
+            return(true);
+        }
+        if(reference.hasIdentifier() && reference.getIdentifier().hasValue() && values.contains(reference.getIdentifier().getValue())){
+            return(true);
+        }
+        return(reference.hasDisplay() && values.contains(reference.getDisplay()));
+    }
+
+    protected boolean matchesCoding(Map<String, Set<String>> codes, Coding coding){
+        if(!coding.hasCode()){
+            return(false);
+        }
+        Set<String> systems = codes.get(coding.getCode());
+        if(systems == null){
+            return(false);
+        }
+        // an empty system set means the code was configured without a system
+        return(systems.isEmpty() || (coding.hasSystem() && systems.contains(coding.getSystem())));
+    }
+
+    //
+    // Compilation
+    //
+
+    protected static Map<String, Set<String>> compileCodes(List<String> configuredCodes){
+        if(configuredCodes == null || configuredCodes.isEmpty()){
+            return(Collections.emptyMap());
+        }
+        Map<String, Set<String>> codes = new HashMap<>();
+        Set<String> anySystemCodes = new HashSet<>();
+        for(String currentCode: configuredCodes){
+            if(StringUtils.isBlank(currentCode)){
+                continue;
+            }
+            String trimmedCode = currentCode.trim();
+            if(trimmedCode.contains(CODE_SEPARATOR)){
+                String system = StringUtils.substringBeforeLast(trimmedCode, CODE_SEPARATOR);
+                String code = StringUtils.substringAfterLast(trimmedCode, CODE_SEPARATOR);
+                codes.computeIfAbsent(code, key -> new HashSet<>()).add(system);
+            } else {
+                anySystemCodes.add(trimmedCode);
+            }
+        }
+        for(String currentCode: anySystemCodes){
+            codes.put(currentCode, Collections.emptySet());
+        }
+        return(codes);
+    }
+
+    protected static Set<String> compileValues(List<String> configuredValues){
+        if(configuredValues == null || configuredValues.isEmpty()){
+            return(Collections.emptySet());
+        }
+        Set<String> values = new HashSet<>();
+        for(String currentValue: configuredValues){
+            if(StringUtils.isNotBlank(currentValue)){
+                values.add(currentValue.trim());
+            }
+        }
+        return(values);
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    public String getName() {
+        return name;
+    }
+
+    public AuditEventRuleActionEnum getAction() {
+        return action;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getMatchCount() {
+        return matchCount.get();
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "CompiledAuditEventRule{" +
+                "name=" + name +
+                ", action=" + action +
+                ", sampleRate=" + sampleRate +
+                ", matchCount=" + matchCount +
+                '}';
+    }
+}
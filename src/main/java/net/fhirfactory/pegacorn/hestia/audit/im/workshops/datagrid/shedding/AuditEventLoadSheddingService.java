@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.shedding;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventCoalescingService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventQueueEntry;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.LocalAuditEventArchive;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.AuditEventQueueReplicationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline.AuditEventIngestionPipeline;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tiered load shedding, driven by the pressure on the asynchronous writer queue (its depth, counting
+ * the AuditEvents still in the ingestion pipeline, and the age of its oldest entry). Each tier keeps
+ * the measures of the tiers below it:
+ * STRIP_DETAIL removes entity.detail values longer than AUDIT_SHEDDING_DETAIL_LIMIT characters (or
+ * bytes) and tags the AuditEvent,
+ * SUMMARISE folds AuditEvents of the AUDIT_SHEDDING_SUMMARY_TYPES into one count-only summary per
+ * type, subtype, outcome and source, released every AUDIT_SHEDDING_SUMMARY_PERIOD ms (except in
+ * replicated queue mode, where an open summary would only exist in this replica's memory), and
+ * ARCHIVE sends low priority AuditEvents, those of the AUDIT_SHEDDING_ARCHIVE_TYPES, to the local
+ * archive instead of the DM. Nothing is archived until those types are explicitly configured.
+ *
+ * A tier is entered as soon as the queue depth or age reaches that tier's AUDIT_SHEDDING_TIERn_DEPTH
+ * or AUDIT_SHEDDING_TIERn_AGE. It is only left (one tier at a time) once it has been held for
+ * AUDIT_SHEDDING_MINIMUM_DWELL ms and both the depth and the age have fallen below
+ * AUDIT_SHEDDING_EXIT_PERCENT of its entry thresholds, so the IM does not flap between tiers around
+ * a threshold.
+ */
+@ApplicationScoped
+public class AuditEventLoadSheddingService implements AuditEventLoadSheddingServiceMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventLoadSheddingService.class);
+
+    public static final String SHED_ARCHIVE_CATEGORY = "shed";
+    public static final String LOAD_SHEDDING_TAG_SYSTEM = "http://fhirfactory.net/pegacorn/CodeSystem/audit-event-load-shedding";
+    public static final String LOAD_SHEDDING_DETAIL_STRIPPED = "detail-stripped";
+    public static final String LOAD_SHEDDING_SUMMARISED = "summarised";
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventLoadShedding";
+
+    private static final String AUDIT_SHEDDING_ENABLED = "AUDIT_SHEDDING_ENABLED";
+    private static final String AUDIT_SHEDDING_TIER_DEPTH_PREFIX = "AUDIT_SHEDDING_TIER";
+    private static final String AUDIT_SHEDDING_TIER_DEPTH_SUFFIX = "_DEPTH";
+    private static final String AUDIT_SHEDDING_TIER_AGE_SUFFIX = "_AGE";
+    private static final String AUDIT_SHEDDING_EXIT_PERCENT = "AUDIT_SHEDDING_EXIT_PERCENT";
+    private static final String AUDIT_SHEDDING_MINIMUM_DWELL = "AUDIT_SHEDDING_MINIMUM_DWELL";
+    private static final String AUDIT_SHEDDING_EVALUATION_PERIOD = "AUDIT_SHEDDING_EVALUATION_PERIOD";
+    private static final String AUDIT_SHEDDING_DETAIL_LIMIT = "AUDIT_SHEDDING_DETAIL_LIMIT";
+    private static final String AUDIT_SHEDDING_SUMMARY_TYPES = "AUDIT_SHEDDING_SUMMARY_TYPES";
+    private static final String AUDIT_SHEDDING_SUMMARY_PERIOD = "AUDIT_SHEDDING_SUMMARY_PERIOD";
+    private static final String AUDIT_SHEDDING_MAXIMUM_SUMMARIES = "AUDIT_SHEDDING_MAXIMUM_SUMMARIES";
+    private static final String AUDIT_SHEDDING_ARCHIVE_TYPES = "AUDIT_SHEDDING_ARCHIVE_TYPES";
+
+    // indexed by tier ordinal, NORMAL (0) has no thresholds
+    private static final long[] DEFAULT_TIER_DEPTHS = {0L, 10000L, 50000L, 100000L};
+    private static final long[] DEFAULT_TIER_AGES = {0L, 60000L, 300000L, 900000L};
+    private static final long DEFAULT_EXIT_PERCENT = 70L;
+    private static final long DEFAULT_MINIMUM_DWELL = 30000L;
+    private static final long DEFAULT_EVALUATION_PERIOD = 1000L;
+    private static final long DEFAULT_DETAIL_LIMIT = 1024L;
+    private static final long DEFAULT_SUMMARY_PERIOD = 60000L;
+    private static final long DEFAULT_MAXIMUM_SUMMARIES = 10000L;
+    private static final String KEY_SEPARATOR = "|";
+
+    private volatile boolean initialised;
+    private boolean enabled;
+    private long[] tierDepths;
+    private long[] tierAges;
+    private long exitPercent;
+    private long minimumDwell;
+    private long detailLimit;
+    private long summaryPeriod;
+    private int maximumSummaries;
+    private Set<String> summaryTypes;
+    private Set<String> archiveTypes;
+    private ScheduledExecutorService evaluationScheduler;
+    private ObjectName registeredName;
+
+    private volatile AuditEventLoadSheddingTierEnum currentTier;
+    private volatile long tierEntered;
+    private volatile int lastQueueDepth;
+    private volatile long lastQueueAge;
+    private long[] timeInTiers;
+    private AtomicLong[] tierEntryCounts;
+    private ConcurrentHashMap<String, ShedSummary> openSummaries;
+    private LocalAuditEventArchive.BatchingArchiveSink archiveSink;
+
+    private AtomicLong detailStrippedCount;
+    private AtomicLong summarisedCount;
+    private AtomicLong summariesReleased;
+    private AtomicLong archivedCount;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private AuditEventQueueReplicationService replicationService;
+
+    @Inject
+    private LocalAuditEventArchive localArchive;
+
+    @Inject
+    private AuditEventIngestionPipeline ingestionPipeline;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventLoadSheddingService(){
+        this.initialised = false;
+        this.enabled = false;
+        this.currentTier = AuditEventLoadSheddingTierEnum.NORMAL;
+        this.tierEntered = System.currentTimeMillis();
+        this.timeInTiers = new long[AuditEventLoadSheddingTierEnum.values().length];
+        this.tierEntryCounts = new AtomicLong[AuditEventLoadSheddingTierEnum.values().length];
+        for(int index = 0; index < tierEntryCounts.length; index++){
+            tierEntryCounts[index] = new AtomicLong(0);
+        }
+        this.openSummaries = new ConcurrentHashMap<>();
+        this.detailStrippedCount = new AtomicLong(0);
+        this.summarisedCount = new AtomicLong(0);
+        this.summariesReleased = new AtomicLong(0);
+        this.archivedCount = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        enabled = configurationService.getBooleanParameter(AUDIT_SHEDDING_ENABLED, false);
+        int tierCount = AuditEventLoadSheddingTierEnum.values().length;
+        tierDepths = new long[tierCount];
+        tierAges = new long[tierCount];
+        for(int tier = 1; tier < tierCount; tier++){
+            // each tier starts no earlier than the one below it
+            tierDepths[tier] = Math.max(Math.max(1L, tierDepths[tier - 1]), configurationService.getLongParameter(AUDIT_SHEDDING_TIER_DEPTH_PREFIX + tier + AUDIT_SHEDDING_TIER_DEPTH_SUFFIX, DEFAULT_TIER_DEPTHS[tier]));
+            tierAges[tier] = Math.max(Math.max(1L, tierAges[tier - 1]), configurationService.getLongParameter(AUDIT_SHEDDING_TIER_DEPTH_PREFIX + tier + AUDIT_SHEDDING_TIER_AGE_SUFFIX, DEFAULT_TIER_AGES[tier]));
+        }
+        exitPercent = Math.min(100L, Math.max(1L, configurationService.getLongParameter(AUDIT_SHEDDING_EXIT_PERCENT, DEFAULT_EXIT_PERCENT)));
+        minimumDwell = Math.max(0L, configurationService.getLongParameter(AUDIT_SHEDDING_MINIMUM_DWELL, DEFAULT_MINIMUM_DWELL));
+        detailLimit = Math.max(0L, configurationService.getLongParameter(AUDIT_SHEDDING_DETAIL_LIMIT, DEFAULT_DETAIL_LIMIT));
+        summaryPeriod = Math.max(1000L, configurationService.getLongParameter(AUDIT_SHEDDING_SUMMARY_PERIOD, DEFAULT_SUMMARY_PERIOD));
+        maximumSummaries = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_SHEDDING_MAXIMUM_SUMMARIES, DEFAULT_MAXIMUM_SUMMARIES));
+        summaryTypes = getCodeParameter(AUDIT_SHEDDING_SUMMARY_TYPES);
+        archiveTypes = getCodeParameter(AUDIT_SHEDDING_ARCHIVE_TYPES);
+        if(enabled){
+            archiveSink = localArchive.getBatchingSink(SHED_ARCHIVE_CATEGORY);
+            long evaluationPeriod = Math.max(100L, configurationService.getLongParameter(AUDIT_SHEDDING_EVALUATION_PERIOD, DEFAULT_EVALUATION_PERIOD));
+            evaluationScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread evaluationThread = new Thread(runnable, "AuditEventLoadShedding");
+                evaluationThread.setDaemon(true);
+                return(evaluationThread);
+            });
+            evaluationScheduler.scheduleWithFixedDelay(this::evaluatePressure, evaluationPeriod, evaluationPeriod, TimeUnit.MILLISECONDS);
+            registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        }
+        initialised = true;
+        if(enabled && archiveTypes.isEmpty()){
+            getLogger().warn(".initialise(): No {} configured, the {} tier will not archive any AuditEvents", AUDIT_SHEDDING_ARCHIVE_TYPES, AuditEventLoadSheddingTierEnum.ARCHIVE);
+        }
+        getLogger().info(".initialise(): enabled->{}, tierDepths->{}, tierAges->{}, exitPercent->{}, minimumDwell->{}, summaryTypes->{}, archiveTypes->{}",
+                enabled, Arrays.toString(tierDepths), Arrays.toString(tierAges), exitPercent, minimumDwell, summaryTypes, archiveTypes);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence as well as by the container. A
+     * second call only flushes whatever has been archived since the first.
+     */
+    @PreDestroy
+    public void shutdown(){
+        if(evaluationScheduler != null){
+            evaluationScheduler.shutdownNow();
+        }
+        flushArchiveBuffer();
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+        registeredName = null;
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Applies the measures of the current tier to the AuditEvent (which may be modified in place).
+     *
+     * @return true if the caller should carry on and queue the AuditEvent, false if it has been taken
+     * into a summary or sent to the local archive
+     */
+    public boolean admit(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        AuditEventLoadSheddingTierEnum tier = currentTier;
+        if(!enabled || tier == AuditEventLoadSheddingTierEnum.NORMAL || auditEvent == null){
+            return(true);
+        }
+        if(tier.ordinal() >= AuditEventLoadSheddingTierEnum.ARCHIVE.ordinal() && isLowPriority(auditEvent)){
+            archiveSink.offer(auditEvent);
+            archivedCount.incrementAndGet();
+            return(false);
+        }
+        if(tier.ordinal() >= AuditEventLoadSheddingTierEnum.SUMMARISE.ordinal() && matchesType(summaryTypes, auditEvent)
+                && !replicationService.isReplicationEnabled() && summarise(auditEvent)){
+            return(false);
+        }
+        stripLargeDetails(auditEvent);
+        return(true);
+    }
+
+    /**
+     * Releases every open summary into the writer queue, e.g. at shutdown.
+     */
+    public int releaseAllSummaries(){
+        return(releaseSummaries(Long.MAX_VALUE));
+    }
+
+    public AuditEventLoadSheddingTierEnum getTier(){
+        return(currentTier);
+    }
+
+    //
+    // Tier Evaluation
+    //
+
+    protected void evaluatePressure(){
+        try {
+            long now = System.currentTimeMillis();
+            int queueDepth = eventCache.getQueueDepth() + ingestionPipeline.getBacklog();
+            AuditEventQueueEntry headEntry = eventCache.peekQueueEntry();
+            long queueAge = 0L;
+            if(headEntry != null && headEntry.getQueuedInstant() != null){
+                queueAge = Math.max(0L, now - headEntry.getQueuedInstant().toEpochMilli());
+            }
+            lastQueueDepth = queueDepth;
+            lastQueueAge = queueAge;
+            AuditEventLoadSheddingTierEnum tier = currentTier;
+            AuditEventLoadSheddingTierEnum targetTier = AuditEventLoadSheddingTierEnum.NORMAL;
+            for(AuditEventLoadSheddingTierEnum currentCandidate: AuditEventLoadSheddingTierEnum.values()){
+                int index = currentCandidate.ordinal();
+                if(index > 0 && (queueDepth >= tierDepths[index] || queueAge >= tierAges[index])){
+                    targetTier = currentCandidate;
+                }
+            }
+            if(targetTier.ordinal() > tier.ordinal()){
+                changeTier(targetTier, now, queueDepth, queueAge);
+            } else if(targetTier.ordinal() < tier.ordinal() && now - tierEntered >= minimumDwell){
+                int index = tier.ordinal();
+                long exitDepth = tierDepths[index] * exitPercent / 100L;
+                long exitAge = tierAges[index] * exitPercent / 100L;
+                if(queueDepth < exitDepth && queueAge < exitAge){
+                    changeTier(AuditEventLoadSheddingTierEnum.values()[index - 1], now, queueDepth, queueAge);
+                }
+            }
+            if(currentTier.ordinal() < AuditEventLoadSheddingTierEnum.SUMMARISE.ordinal()){
+                releaseAllSummaries();
+            } else {
+                releaseSummaries(now);
+            }
+            if(currentTier.ordinal() < AuditEventLoadSheddingTierEnum.ARCHIVE.ordinal()){
+                flushArchiveBuffer();
+            }
+        } catch (Exception ex) {
+            getLogger().error(".evaluatePressure(): Evaluation failed, message->{}", ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    protected void changeTier(AuditEventLoadSheddingTierEnum newTier, long now, int queueDepth, long queueAge){
+        AuditEventLoadSheddingTierEnum oldTier = currentTier;
+        synchronized(timeInTiers){
+            timeInTiers[oldTier.ordinal()] += now - tierEntered;
+        }
+        tierEntered = now;
+        currentTier = newTier;
+        tierEntryCounts[newTier.ordinal()].incrementAndGet();
+        if(newTier.ordinal() > oldTier.ordinal()){
+            getLogger().warn(".changeTier(): Load shedding escalated, {} -> {}, queueDepth->{}, queueAge->{}", oldTier, newTier, queueDepth, queueAge);
+        } else {
+            getLogger().info(".changeTier(): Load shedding relaxed, {} -> {}, queueDepth->{}, queueAge->{}", oldTier, newTier, queueDepth, queueAge);
+        }
+    }
+
+    //
+    // Tier Measures
+    //
+
+    protected void stripLargeDetails(AuditEvent auditEvent){
+        if(detailLimit <= 0 || !auditEvent.hasEntity()){
+            return;
+        }
+        boolean stripped = false;
+        List<AuditEvent.AuditEventEntityComponent> entityList = auditEvent.getEntity();
+        for(int index = 0; index < entityList.size(); index++){
+            AuditEvent.AuditEventEntityComponent currentEntity = entityList.get(index);
+            if(currentEntity.hasDetail()){
+                stripped |= currentEntity.getDetail().removeIf(detail -> AuditEventStructuralValidator.getDetailLength(detail) > detailLimit);
+            }
+        }
+        if(stripped){
+            auditEvent.getMeta().addTag(LOAD_SHEDDING_TAG_SYSTEM, LOAD_SHEDDING_DETAIL_STRIPPED, null);
+            detailStrippedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the AuditEvent has been counted into a summary, false if the summary limit has
+     * been reached (the AuditEvent then carries on, stripped)
+     */
+    protected boolean summarise(AuditEvent auditEvent){
+        String key = buildSummaryKey(auditEvent);
+        if(openSummaries.size() >= maximumSummaries && !openSummaries.containsKey(key)){
+            return(false);
+        }
+        long now = System.currentTimeMillis();
+        Date recorded = auditEvent.hasRecorded() ? auditEvent.getRecorded() : new Date(now);
+        openSummaries.compute(key, (currentKey, summary) -> {
+            if(summary == null){
+                return(new ShedSummary(auditEvent, recorded, now));
+            }
+            summary.addOccurrence(recorded);
+            return(summary);
+        });
+        summarisedCount.incrementAndGet();
+        return(true);
+    }
+
+    protected int releaseSummaries(long now){
+        List<ShedSummary> releasedSummaries = new ArrayList<>();
+        for(String currentKey: openSummaries.keySet()){
+            openSummaries.computeIfPresent(currentKey, (key, summary) -> {
+                if(now == Long.MAX_VALUE || now - summary.getOpened() >= summaryPeriod){
+                    releasedSummaries.add(summary);
+                    return(null);
+                }
+                return(summary);
+            });
+        }
+        for(ShedSummary currentSummary: releasedSummaries){
+            AuditEventQueueEntry entry = eventCache.addAuditEvent(currentSummary.toSummaryEvent());
+            if(replicationService.isReplicationEnabled()){
+                replicationService.replicateAndWait(entry);
+            }
+        }
+        summariesReleased.addAndGet(releasedSummaries.size());
+        return(releasedSummaries.size());
+    }
+
+    protected void flushArchiveBuffer(){
+        if(archiveSink != null){
+            archiveSink.flush();
+        }
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected boolean isLowPriority(AuditEvent auditEvent){
+        return(matchesType(archiveTypes, auditEvent));
+    }
+
+    protected boolean matchesType(Set<String> types, AuditEvent auditEvent){
+        if(types.isEmpty() || !auditEvent.hasType() || !auditEvent.getType().hasCode()){
+            return(false);
+        }
+        Coding type = auditEvent.getType();
+        return(types.contains(type.getCode()) || (type.hasSystem() && types.contains(type.getSystem() + KEY_SEPARATOR + type.getCode())));
+    }
+
+    protected String buildSummaryKey(AuditEvent auditEvent){
+        StringBuilder keyBuilder = new StringBuilder();
+        Coding type = auditEvent.getType();
+        keyBuilder.append(type.getSystem()).append('#').append(type.getCode()).append(KEY_SEPARATOR);
+        if(auditEvent.hasSubtype()){
+            for(Coding currentSubtype: auditEvent.getSubtype()){
+                keyBuilder.append(currentSubtype.getSystem()).append('#').append(currentSubtype.getCode()).append(';');
+            }
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(auditEvent.hasOutcome()){
+            keyBuilder.append(auditEvent.getOutcome().toCode());
+        }
+        keyBuilder.append(KEY_SEPARATOR);
+        if(auditEvent.hasSource()){
+            keyBuilder.append(auditEvent.getSource().getSite());
+            Reference observer = auditEvent.getSource().getObserver();
+            if(observer.hasReference()){
+                keyBuilder.append(observer.getReference());
+            } else if(observer.hasIdentifier()){
+                keyBuilder.append(observer.getIdentifier().getValue());
+            } else {
+                keyBuilder.append(observer.getDisplay());
+            }
+        }
+        return(keyBuilder.toString());
+    }
+
+    protected Set<String> getCodeParameter(String parameterName){
+        String parameterValue = configurationService.getParameter(parameterName);
+        if(StringUtils.isBlank(parameterValue)){
+            return(Collections.emptySet());
+        }
+        Set<String> codes = new HashSet<>();
+        for(String currentCode: parameterValue.split(",")){
+            if(StringUtils.isNotBlank(currentCode)){
+                codes.add(currentCode.trim());
+            }
+        }
+        return(codes);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public boolean isEnabled() {
+        return(enabled);
+    }
+
+    @Override
+    public String getCurrentTier() {
+        return(currentTier.name());
+    }
+
+    @Override
+    public long getTierDuration() {
+        return(System.currentTimeMillis() - tierEntered);
+    }
+
+    @Override
+    public String getTierEntryCounts() {
+        StringBuilder countBuilder = new StringBuilder();
+        for(AuditEventLoadSheddingTierEnum tier: AuditEventLoadSheddingTierEnum.values()){
+            if(countBuilder.length() > 0){
+                countBuilder.append(", ");
+            }
+            countBuilder.append(tier.name()).append("=").append(tierEntryCounts[tier.ordinal()].get());
+        }
+        return(countBuilder.toString());
+    }
+
+    @Override
+    public String getTimeInTiers() {
+        long now = System.currentTimeMillis();
+        StringBuilder timeBuilder = new StringBuilder();
+        synchronized(timeInTiers){
+            for(AuditEventLoadSheddingTierEnum tier: AuditEventLoadSheddingTierEnum.values()){
+                long tierTime = timeInTiers[tier.ordinal()];
+                if(tier == currentTier){
+                    tierTime += now - tierEntered;
+                }
+                if(timeBuilder.length() > 0){
+                    timeBuilder.append(", ");
+                }
+                timeBuilder.append(tier.name()).append("=").append(tierTime);
+            }
+        }
+        return(timeBuilder.toString());
+    }
+
+    @Override
+    public int getLastQueueDepth() {
+        return(lastQueueDepth);
+    }
+
+    @Override
+    public long getLastQueueAge() {
+        return(lastQueueAge);
+    }
+
+    @Override
+    public long getDetailStrippedCount() {
+        return(detailStrippedCount.get());
+    }
+
+    @Override
+    public long getSummarisedCount() {
+        return(summarisedCount.get());
+    }
+
+    @Override
+    public long getSummariesReleased() {
+        return(summariesReleased.get());
+    }
+
+    @Override
+    public int getOpenSummaryCount() {
+        return(openSummaries.size());
+    }
+
+    @Override
+    public long getArchivedCount() {
+        return(archivedCount.get());
+    }
+
+    //
+    // Internal Classes
+    //
+
+    /**
+     * A count-only summary of the AuditEvents with the same type, subtype, outcome and source. The
+     * first AuditEvent is kept (without its entities) as the summary.
+     */
+    protected static class ShedSummary {
+        private final AuditEvent representative;
+        private final long opened;
+        private int occurrenceCount;
+        private Date firstRecorded;
+        private Date lastRecorded;
+
+        public ShedSummary(AuditEvent representative, Date recorded, long now){
+            this.representative = representative;
+            this.opened = now;
+            this.occurrenceCount = 1;
+            this.firstRecorded = recorded;
+            this.lastRecorded = recorded;
+        }
+
+        public void addOccurrence(Date recorded){
+            occurrenceCount += 1;
+            if(recorded.before(firstRecorded)){
+                firstRecorded = recorded;
+            }
+            if(recorded.after(lastRecorded)){
+                lastRecorded = recorded;
+            }
+        }
+
+        public AuditEvent toSummaryEvent(){
+            representative.getEntity().clear();
+            representative.getMeta().addTag(LOAD_SHEDDING_TAG_SYSTEM, LOAD_SHEDDING_SUMMARISED, null);
+            representative.addExtension(AuditEventCoalescingService.OCCURRENCE_COUNT_EXTENSION_URL, new IntegerType(occurrenceCount));
+            representative.addExtension(AuditEventCoalescingService.FIRST_OCCURRENCE_EXTENSION_URL, new DateTimeType(firstRecorded));
+            representative.addExtension(AuditEventCoalescingService.LAST_OCCURRENCE_EXTENSION_URL, new DateTimeType(lastRecorded));
+            return(representative);
+        }
+
+        public long getOpened() {
+            return opened;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.LocalAuditEventArchive;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Checks AuditEvents against the structural (FHIR R4 AuditEvent profile) constraints the DM enforces,
+ * so that malformed AuditEvents are turned away when they arrive rather than being found out by a
+ * failed DM write.
+ *
+ * The constraints are compiled once into an array of predicates that only read existing elements
+ * (guarded by the hasXxx() checks, so nothing is auto-created) and walk lists by index. Validation is
+ * stateless, so it runs on whichever thread is ingesting (RPC handler, bulk ingest or pipeline decode
+ * stage) without any locking. The first violated constraint decides.
+ *
+ * With AUDIT_VALIDATION_ENABLED set, admit() rejects invalid AuditEvents and dead-letters them into the
+ * INVALID_ARCHIVE_CATEGORY of the local archive (in batches). findViolation() can be used whether or
+ * not validation is enabled, e.g. by the writer to work out why the head of the queue keeps failing.
+ */
+@ApplicationScoped
+public class AuditEventStructuralValidator implements AuditEventStructuralValidatorMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventStructuralValidator.class);
+
+    public static final String INVALID_ARCHIVE_CATEGORY = "invalid";
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventStructuralValidator";
+
+    private static final String AUDIT_VALIDATION_ENABLED = "AUDIT_VALIDATION_ENABLED";
+    private static final String AUDIT_VALIDATION_MAXIMUM_DETAIL_LENGTH = "AUDIT_VALIDATION_MAXIMUM_DETAIL_LENGTH";
+    private static final long DEFAULT_MAXIMUM_DETAIL_LENGTH = 0L;
+
+    private volatile boolean initialised;
+    private boolean enabled;
+    private long maximumDetailLength;
+    private volatile CompiledAuditEventConstraint[] compiledConstraints;
+    private LocalAuditEventArchive.BatchingArchiveSink deadLetterSink;
+    private ObjectName registeredName;
+
+    private AtomicLong validatedCount;
+    private AtomicLong rejectedCount;
+    private AtomicLong deadLetteredCount;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private LocalAuditEventArchive localArchive;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventStructuralValidator(){
+        this.initialised = false;
+        this.enabled = false;
+        this.maximumDetailLength = DEFAULT_MAXIMUM_DETAIL_LENGTH;
+        this.validatedCount = new AtomicLong(0);
+        this.rejectedCount = new AtomicLong(0);
+        this.deadLetteredCount = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        enabled = configurationService.getBooleanParameter(AUDIT_VALIDATION_ENABLED, false);
+        maximumDetailLength = Math.max(0L, configurationService.getLongParameter(AUDIT_VALIDATION_MAXIMUM_DETAIL_LENGTH, DEFAULT_MAXIMUM_DETAIL_LENGTH));
+        compiledConstraints = compileConstraints();
+        deadLetterSink = localArchive.getBatchingSink(INVALID_ARCHIVE_CATEGORY);
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        initialised = true;
+        getLogger().info(".initialise(): enabled->{}, maximumDetailLength->{}, constraints->{}", enabled, maximumDetailLength, compiledConstraints.length);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence as well as by the container. A
+     * second call only flushes whatever has been dead-lettered since the first.
+     */
+    @PreDestroy
+    public void shutdown(){
+        if(deadLetterSink != null){
+            deadLetterSink.flush();
+        }
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+        registeredName = null;
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return true if the AuditEvent may carry on to the queue or the DM (validation is disabled, or the
+     * AuditEvent is structurally valid), false if it has been rejected and dead-lettered
+     */
+    public boolean admit(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        if(!enabled){
+            return(true);
+        }
+        String violation = findViolation(auditEvent);
+        if(violation == null){
+            return(true);
+        }
+        rejectedCount.incrementAndGet();
+        getLogger().warn(".admit(): AuditEvent rejected, violation->{}, id->{}", violation, auditEvent.getIdElement().getIdPart());
+        deadLetter(auditEvent);
+        return(false);
+    }
+
+    /**
+     * @return the name of the first constraint the AuditEvent violates, or null if it is structurally valid
+     */
+    public String findViolation(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        validatedCount.incrementAndGet();
+        if(auditEvent == null){
+            return("present");
+        }
+        CompiledAuditEventConstraint[] constraints = compiledConstraints;
+        for(int index = 0; index < constraints.length; index++){
+            CompiledAuditEventConstraint currentConstraint = constraints[index];
+            if(!currentConstraint.test(auditEvent)){
+                return(currentConstraint.getName());
+            }
+        }
+        return(null);
+    }
+
+    /**
+     * Moves the AuditEvent to the INVALID_ARCHIVE_CATEGORY of the local archive, where it is kept for
+     * inspection and replay instead of being retried against the DM.
+     */
+    public void deadLetter(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        deadLetterSink.offer(auditEvent);
+        deadLetteredCount.incrementAndGet();
+    }
+
+    //
+    // Constraint Compilation
+    //
+
+    protected CompiledAuditEventConstraint[] compileConstraints(){
+        List<CompiledAuditEventConstraint> constraintList = new ArrayList<>();
+        constraintList.add(new CompiledAuditEventConstraint("type", auditEvent -> auditEvent.hasType() && auditEvent.getType().hasCode()));
+        constraintList.add(new CompiledAuditEventConstraint("recorded", AuditEvent::hasRecorded));
+        constraintList.add(new CompiledAuditEventConstraint("agent", AuditEvent::hasAgent));
+        constraintList.add(new CompiledAuditEventConstraint("agent.requestor", this::hasAgentRequestors));
+        constraintList.add(new CompiledAuditEventConstraint("agent.who-or-name", this::hasAgentIdentities));
+        constraintList.add(new CompiledAuditEventConstraint("source.observer", auditEvent -> auditEvent.hasSource() && auditEvent.getSource().hasObserver()));
+        constraintList.add(new CompiledAuditEventConstraint("entity.name-or-query", this::hasNoEntityWithNameAndQuery));
+        constraintList.add(new CompiledAuditEventConstraint("entity.detail", this::hasCompleteEntityDetails));
+        if(maximumDetailLength > 0){
+            constraintList.add(new CompiledAuditEventConstraint("entity.detail.length", this::hasBoundedEntityDetails));
+        }
+        return(constraintList.toArray(new CompiledAuditEventConstraint[0]));
+    }
+
+    protected boolean hasAgentRequestors(AuditEvent auditEvent){
+        List<AuditEvent.AuditEventAgentComponent> agentList = auditEvent.getAgent();
+        for(int index = 0; index < agentList.size(); index++){
+            if(!agentList.get(index).hasRequestorElement()){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    protected boolean hasAgentIdentities(AuditEvent auditEvent){
+        List<AuditEvent.AuditEventAgentComponent> agentList = auditEvent.getAgent();
+        for(int index = 0; index < agentList.size(); index++){
+            AuditEvent.AuditEventAgentComponent currentAgent = agentList.get(index);
+            if(!currentAgent.hasWho() && !currentAgent.hasName()){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    // sev-1: an entity carries a name or a query, not both
+    protected boolean hasNoEntityWithNameAndQuery(AuditEvent auditEvent){
+        if(!auditEvent.hasEntity()){
+            return(true);
+        }
+        List<AuditEvent.AuditEventEntityComponent> entityList = auditEvent.getEntity();
+        for(int index = 0; index < entityList.size(); index++){
+            AuditEvent.AuditEventEntityComponent currentEntity = entityList.get(index);
+            if(currentEntity.hasName() && currentEntity.hasQuery()){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    protected boolean hasCompleteEntityDetails(AuditEvent auditEvent){
+        if(!auditEvent.hasEntity()){
+            return(true);
+        }
+        List<AuditEvent.AuditEventEntityComponent> entityList = auditEvent.getEntity();
+        for(int index = 0; index < entityList.size(); index++){
+            AuditEvent.AuditEventEntityComponent currentEntity = entityList.get(index);
+            if(!currentEntity.hasDetail()){
+                continue;
+            }
+            List<AuditEvent.AuditEventEntityDetailComponent> detailList = currentEntity.getDetail();
+            for(int detailIndex = 0; detailIndex < detailList.size(); detailIndex++){
+                AuditEvent.AuditEventEntityDetailComponent currentDetail = detailList.get(detailIndex);
+                if(!currentDetail.hasType() || !currentDetail.hasValue()){
+                    return(false);
+                }
+            }
+        }
+        return(true);
+    }
+
+    protected boolean hasBoundedEntityDetails(AuditEvent auditEvent){
+        if(!auditEvent.hasEntity()){
+            return(true);
+        }
+        List<AuditEvent.AuditEventEntityComponent> entityList = auditEvent.getEntity();
+        for(int index = 0; index < entityList.size(); index++){
+            AuditEvent.AuditEventEntityComponent currentEntity = entityList.get(index);
+            if(!currentEntity.hasDetail()){
+                continue;
+            }
+            List<AuditEvent.AuditEventEntityDetailComponent> detailList = currentEntity.getDetail();
+            for(int detailIndex = 0; detailIndex < detailList.size(); detailIndex++){
+                if(getDetailLength(detailList.get(detailIndex)) > maximumDetailLength){
+                    return(false);
+                }
+            }
+        }
+        return(true);
+    }
+
+    public static long getDetailLength(AuditEvent.AuditEventEntityDetailComponent detail){
+        if(!detail.hasValue()){
+            return(0L);
+        }
+        Type detailValue = detail.getValue();
+        if(detailValue instanceof StringType){
+            return(StringUtils.length(((StringType)detailValue).getValue()));
+        }
+        if(detailValue instanceof Base64BinaryType){
+            byte[] detailBytes = ((Base64BinaryType)detailValue).getValue();
+            return(detailBytes != null ? detailBytes.length : 0L);
+        }
+        return(0L);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public boolean isEnabled() {
+        return(enabled);
+    }
+
+    @Override
+    public long getValidatedCount() {
+        return(validatedCount.get());
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return(rejectedCount.get());
+    }
+
+    @Override
+    public long getDeadLetteredCount() {
+        return(deadLetteredCount.get());
+    }
+
+    @Override
+    public String getViolationCounts() {
+        StringBuilder countBuilder = new StringBuilder();
+        CompiledAuditEventConstraint[] constraints = compiledConstraints;
+        if(constraints != null){
+            for(CompiledAuditEventConstraint currentConstraint: constraints){
+                if(countBuilder.length() > 0){
+                    countBuilder.append(", ");
+                }
+                countBuilder.append(currentConstraint.getName()).append("=").append(currentConstraint.getViolationCount());
+            }
+        }
+        return(countBuilder.toString());
+    }
+
+    //
+    // Internal Classes
+    //
+
+    protected static class CompiledAuditEventConstraint {
+        private final String name;
+        private final Predicate<AuditEvent> predicate;
+        private final AtomicLong violationCount;
+
+        public CompiledAuditEventConstraint(String name, Predicate<AuditEvent> predicate){
+            this.name = name;
+            this.predicate = predicate;
+            this.violationCount = new AtomicLong(0);
+        }
+
+        public boolean test(AuditEvent auditEvent){
+            if(predicate.test(auditEvent)){
+                return(true);
+            }
+            violationCount.incrementAndGet();
+            return(false);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getViolationCount() {
+            return violationCount.get();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.edge.answer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.services.PetasosAuditPersistenceService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Streams bulk AuditEvent loads (NDJSON or a FHIR Bundle) into the asynchronous writer queue.
+ *
+ * Only one event is materialised at a time: NDJSON is read line by line (with a maximum line length)
+ * and a Bundle is walked with a streaming JSON parser, one entry at a time. While the queue is above
+ * its high-water mark, reading stops, so a fast client is throttled by TCP flow control rather than
+ * by heap growth. A result is written (and periodically flushed) for every line/entry, followed by a
+ * summary object.
+ */
+@ApplicationScoped
+public class AuditEventBulkIngestService {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventBulkIngestService.class);
+
+    private static final String BULK_INGEST_ENABLED = "BULK_INGEST_ENABLED";
+    private static final String BULK_INGEST_MAX_LINE_LENGTH = "BULK_INGEST_MAX_LINE_LENGTH";
+    private static final String BULK_INGEST_QUEUE_HIGH_WATER = "BULK_INGEST_QUEUE_HIGH_WATER";
+
+    private static final int DEFAULT_MAX_LINE_LENGTH = 1048576;
+    private static final int DEFAULT_QUEUE_HIGH_WATER = 10000;
+    private static final long QUEUE_BACKOFF_PERIOD = 50L;
+    private static final int RESULT_FLUSH_INTERVAL = 500;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    public static final String OUTCOME_QUEUED = "queued";
+    public static final String OUTCOME_INVALID = "invalid";
+    public static final String OUTCOME_REJECTED = "rejected";
+
+    private JsonFactory jsonFactory;
+    private ObjectMapper jsonMapper;
+    private volatile int queueHighWater;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private PetasosAuditPersistenceService auditPersistenceService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventBulkIngestService(){
+        this.jsonMapper = new ObjectMapper();
+        this.jsonFactory = jsonMapper.getFactory();
+        this.queueHighWater = DEFAULT_QUEUE_HIGH_WATER;
+    }
+
+    //
+    // Business Methods
+    //
+
+    public boolean isEnabled(){
+        return(configurationService.getBooleanParameter(BULK_INGEST_ENABLED, true));
+    }
+
+    /**
+     * Ingests one AuditEvent per line; blank lines are skipped, but still advance the line number.
+     */
+    public BulkIngestSummary ingestNDJSON(Reader reader, Writer resultWriter) throws IOException {
+        getLogger().debug(".ingestNDJSON(): Entry");
+        int maxLineLength = (int)configurationService.getLongParameter(BULK_INGEST_MAX_LINE_LENGTH, DEFAULT_MAX_LINE_LENGTH);
+        queueHighWater = (int)configurationService.getLongParameter(BULK_INGEST_QUEUE_HIGH_WATER, DEFAULT_QUEUE_HIGH_WATER);
+        BulkIngestSummary summary = new BulkIngestSummary();
+        BoundedLineReader lineReader = new BoundedLineReader(reader, maxLineLength);
+        try (JsonGenerator resultGenerator = newResultGenerator(resultWriter)) {
+            long lineNumber = 0;
+            String currentLine;
+            while ((currentLine = lineReader.readLine()) != null) {
+                lineNumber += 1;
+                if (lineReader.isLastLineTruncated()) {
+                    recordResult(resultGenerator, summary, "line", lineNumber, OUTCOME_INVALID, "line exceeds " + maxLineLength + " characters");
+                    continue;
+                }
+                if (StringUtils.isBlank(currentLine)) {
+                    continue;
+                }
+                ingestResource(resultGenerator, summary, "line", lineNumber, currentLine);
+            }
+            writeSummary(resultGenerator, summary);
+        }
+        getLogger().info(".ingestNDJSON(): Exit, summary->{}", summary);
+        return(summary);
+    }
+
+    /**
+     * Ingests the AuditEvent resources in Bundle.entry[].resource, one entry at a time. Entries that
+     * are not AuditEvents are reported as invalid.
+     */
+    public BulkIngestSummary ingestBundle(InputStream inputStream, Writer resultWriter) throws IOException {
+        getLogger().debug(".ingestBundle(): Entry");
+        queueHighWater = (int)configurationService.getLongParameter(BULK_INGEST_QUEUE_HIGH_WATER, DEFAULT_QUEUE_HIGH_WATER);
+        BulkIngestSummary summary = new BulkIngestSummary();
+        try (JsonGenerator resultGenerator = newResultGenerator(resultWriter);
+             JsonParser bundleParser = jsonFactory.createParser(inputStream)) {
+            if (bundleParser.nextToken() != JsonToken.START_OBJECT) {
+                recordResult(resultGenerator, summary, "entry", 0, OUTCOME_INVALID, "body is not a JSON object");
+                writeSummary(resultGenerator, summary);
+                return(summary);
+            }
+            while (bundleParser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = bundleParser.getCurrentName();
+                JsonToken valueToken = bundleParser.nextToken();
+                if ("resourceType".equals(fieldName) && !"Bundle".equals(bundleParser.getValueAsString())) {
+                    recordResult(resultGenerator, summary, "entry", 0, OUTCOME_INVALID, "resourceType is not Bundle");
+                    break;
+                }
+                if (!"entry".equals(fieldName) || valueToken != JsonToken.START_ARRAY) {
+                    bundleParser.skipChildren();
+                    continue;
+                }
+                long entryNumber = 0;
+                while (bundleParser.nextToken() == JsonToken.START_OBJECT) {
+                    entryNumber += 1;
+                    JsonNode resourceNode = null;
+                    while (bundleParser.nextToken() == JsonToken.FIELD_NAME) {
+                        String entryFieldName = bundleParser.getCurrentName();
+                        bundleParser.nextToken();
+                        if ("resource".equals(entryFieldName)) {
+                            resourceNode = jsonMapper.readTree(bundleParser);
+                        } else {
+                            bundleParser.skipChildren();
+                        }
+                    }
+                    if (resourceNode == null) {
+                        recordResult(resultGenerator, summary, "entry", entryNumber, OUTCOME_INVALID, "entry has no resource");
+                    } else {
+                        ingestResource(resultGenerator, summary, "entry", entryNumber, jsonMapper.writeValueAsString(resourceNode));
+                    }
+                }
+            }
+            writeSummary(resultGenerator, summary);
+        }
+        getLogger().info(".ingestBundle(): Exit, summary->{}", summary);
+        return(summary);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected void ingestResource(JsonGenerator resultGenerator, BulkIngestSummary summary, String positionName, long position, String resourceJSONString) throws IOException {
+        AuditEvent auditEvent;
+        try {
+            auditEvent = parserService.parseAuditEvent(resourceJSONString);
+        } catch (Exception ex) {
+            recordResult(resultGenerator, summary, positionName, position, OUTCOME_INVALID, ExceptionUtils.getMessage(ex));
+            return;
+        }
+        latencyService.recordReceipt(auditEvent, AuditEventLatencyService.INGRESS_HTTP_BULK);
+        waitForQueueCapacity();
+        Boolean queued = auditPersistenceService.queueAuditEvent(auditEvent);
+        if (Boolean.TRUE.equals(queued)) {
+            recordResult(resultGenerator, summary, positionName, position, OUTCOME_QUEUED, null);
+        } else {
+            recordResult(resultGenerator, summary, positionName, position, OUTCOME_REJECTED, "IM is not accepting AuditEvents");
+        }
+    }
+
+    protected void waitForQueueCapacity(){
+        while(eventCache.getQueueDepth() >= queueHighWater && auditPersistenceService.isAcceptingAuditEvents()){
+            try {
+                Thread.sleep(QUEUE_BACKOFF_PERIOD);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    protected void recordResult(JsonGenerator resultGenerator, BulkIngestSummary summary, String positionName, long position, String outcome, String message) throws IOException {
+        summary.count(outcome);
+        resultGenerator.writeStartObject();
+        resultGenerator.writeNumberField(positionName, position);
+        resultGenerator.writeStringField("outcome", outcome);
+        if (message != null) {
+            resultGenerator.writeStringField("message", message);
+        }
+        resultGenerator.writeEndObject();
+        if (summary.getProcessed() % RESULT_FLUSH_INTERVAL == 0) {
+            resultGenerator.flush();
+        }
+    }
+
+    protected void writeSummary(JsonGenerator resultGenerator, BulkIngestSummary summary) throws IOException {
+        resultGenerator.writeStartObject();
+        resultGenerator.writeObjectFieldStart("summary");
+        resultGenerator.writeNumberField("processed", summary.getProcessed());
+        resultGenerator.writeNumberField(OUTCOME_QUEUED, summary.getQueued());
+        resultGenerator.writeNumberField(OUTCOME_INVALID, summary.getInvalid());
+        resultGenerator.writeNumberField(OUTCOME_REJECTED, summary.getRejected());
+        resultGenerator.writeNumberField("elapsedMillis", summary.getElapsedMillis());
+        resultGenerator.writeEndObject();
+        resultGenerator.writeEndObject();
+        resultGenerator.flush();
+    }
+
+    protected JsonGenerator newResultGenerator(Writer resultWriter) throws IOException {
+        JsonGenerator resultGenerator = jsonFactory.createGenerator(resultWriter);
+        // one result object per line (NDJSON), rather than a single enclosing array
+        resultGenerator.setRootValueSeparator(new SerializedString("\n"));
+        resultGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        return(resultGenerator);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    /**
+     * Line reader that never holds more than maxLineLength characters of a line: the remainder of an
+     * over-long line is skipped and the line is flagged as truncated.
+     */
+    protected static class BoundedLineReader {
+        private final Reader reader;
+        private final int maxLineLength;
+        private final char[] buffer;
+        private int bufferPosition;
+        private int bufferLimit;
+        private boolean lastLineTruncated;
+
+        public BoundedLineReader(Reader reader, int maxLineLength){
+            this.reader = reader;
+            this.maxLineLength = maxLineLength;
+            this.buffer = new char[READ_BUFFER_SIZE];
+            this.bufferPosition = 0;
+            this.bufferLimit = 0;
+            this.lastLineTruncated = false;
+        }
+
+        public String readLine() throws IOException {
+            StringBuilder lineBuilder = new StringBuilder();
+            lastLineTruncated = false;
+            boolean readAnything = false;
+            while (true) {
+                if (bufferPosition >= bufferLimit) {
+                    bufferLimit = reader.read(buffer, 0, buffer.length);
+                    bufferPosition = 0;
+                    if (bufferLimit <= 0) {
+                        bufferLimit = 0;
+                        return(readAnything ? lineBuilder.toString() : null);
+                    }
+                }
+                readAnything = true;
+                char currentChar = buffer[bufferPosition++];
+                if (currentChar == '\n') {
+                    return(lineBuilder.toString());
+                }
+                if (currentChar == '\r') {
+                    continue;
+                }
+                if (lastLineTruncated) {
+                    continue;
+                }
+                if (lineBuilder.length() < maxLineLength) {
+                    lineBuilder.append(currentChar);
+                } else {
+                    lastLineTruncated = true;
+                    lineBuilder.setLength(0);
+                    lineBuilder.trimToSize();
+                }
+            }
+        }
+
+        public boolean isLastLineTruncated() {
+            return lastLineTruncated;
+        }
+    }
+}
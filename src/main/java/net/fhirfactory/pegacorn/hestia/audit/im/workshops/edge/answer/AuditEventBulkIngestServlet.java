@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.edge.answer;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bulk AuditEvent ingest on the IM's edge answer (HTTP) port.
+ *
+ * POST /bulk/AuditEvent with Content-Type application/fhir+json (or application/json) for a Bundle,
+ * anything else is read as NDJSON. The response is NDJSON: one result per line/entry, then a summary.
+ */
+@WebServlet(urlPatterns = "/bulk/AuditEvent", asyncSupported = false)
+public class AuditEventBulkIngestServlet extends HttpServlet {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventBulkIngestServlet.class);
+
+    private static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    @Inject
+    private AuditEventBulkIngestService bulkIngestService;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        getLogger().debug(".doPost(): Entry, contentType->{}, contentLength->{}", request.getContentType(), request.getContentLengthLong());
+        if(!bulkIngestService.isEnabled()){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(NDJSON_CONTENT_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        Writer resultWriter = response.getWriter();
+        try {
+            if (isBundleContent(request.getContentType())) {
+                bulkIngestService.ingestBundle(request.getInputStream(), resultWriter);
+            } else {
+                bulkIngestService.ingestNDJSON(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8), resultWriter);
+            }
+        } catch (IOException ex) {
+            // the per-line results already sent stand; the client sees a truncated response without a summary
+            getLogger().warn(".doPost(): Bulk ingest aborted, message->{}", ExceptionUtils.getMessage(ex));
+            throw(ex);
+        }
+        getLogger().debug(".doPost(): Exit");
+    }
+
+    protected boolean isBundleContent(String contentType){
+        if(StringUtils.isBlank(contentType)){
+            return(false);
+        }
+        String mediaType = StringUtils.substringBefore(contentType, ";").trim().toLowerCase();
+        return(mediaType.equals("application/fhir+json") || mediaType.equals("application/json"));
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
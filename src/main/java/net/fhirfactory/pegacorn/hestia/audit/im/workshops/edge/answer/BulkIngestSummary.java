@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.edge.answer;
+
+public class BulkIngestSummary {
+    private long startTime;
+    private long processed;
+    private long queued;
+    private long invalid;
+    private long rejected;
+
+    //
+    // Constructor(s)
+    //
+
+    public BulkIngestSummary(){
+        this.startTime = System.currentTimeMillis();
+        this.processed = 0;
+        this.queued = 0;
+        this.invalid = 0;
+        this.rejected = 0;
+    }
+
+    //
+    // Business Methods
+    //
+
+    public void count(String outcome){
+        processed += 1;
+        switch(outcome){
+            case AuditEventBulkIngestService.OUTCOME_QUEUED:
+                queued += 1;
+                break;
+            case AuditEventBulkIngestService.OUTCOME_INVALID:
+                invalid += 1;
+                break;
+            default:
+                rejected += 1;
+        }
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getQueued() {
+        return queued;
+    }
+
+    public long getInvalid() {
+        return invalid;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "BulkIngestSummary{" +
+                "processed=" + processed +
+                ", queued=" + queued +
+                ", invalid=" + invalid +
+                ", rejected=" + rejected +
+                ", elapsedMillis=" + getElapsedMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Base64BinaryType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Seals each batch of AuditEvents written to the DM for tamper evidence, without signing each event.
+ *
+ * The leaf hashes (SHA-256 over the JSON encoding of each AuditEvent) are computed on a dedicated
+ * worker pool and combined into an AuditEventMerkleTree. The batch root is chained to the previous
+ * batch's chained root, H(0x02 || previous || batchRoot), and only that chained root is signed. Each
+ * AuditEvent then carries an integrity-proof extension with the batch sequence number, its leaf index,
+ * the leaf count, its sibling hashes, the previous chained root, the signature and the signing key id.
+ * With these, any single AuditEvent can be verified on its own against the form in which it was
+ * sent to the DM. The extension is removed before the leaf hash is recomputed. Only copies of the
+ * AuditEvents are sealed.
+ *
+ * A batch takes its link in the chain when it is sealed. If the DM then writes none of it, the link is
+ * superseded: it is logged and carried (sequence, previous root, batch root, signature) inside the proof
+ * of the following batches until one of them is written, so the chain in the DM can still be walked.
+ *
+ * The signing key comes from the AUDIT_INTEGRITY_KEYSTORE (PKCS12) entry AUDIT_INTEGRITY_KEY_ALIAS. If
+ * no keystore is configured, an ephemeral EC key is generated and its public key is logged. The chain
+ * starts again from an all-zero root each time the IM starts, and the genesis is logged.
+ */
+@ApplicationScoped
+public class AuditEventBatchIntegrityService {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventBatchIntegrityService.class);
+
+    private static final String AUDIT_INTEGRITY_ENABLED = "AUDIT_INTEGRITY_ENABLED";
+    private static final String AUDIT_INTEGRITY_HASH_THREADS = "AUDIT_INTEGRITY_HASH_THREADS";
+    private static final String AUDIT_INTEGRITY_KEYSTORE = "AUDIT_INTEGRITY_KEYSTORE";
+    private static final String AUDIT_INTEGRITY_KEYSTORE_PASSWORD = "AUDIT_INTEGRITY_KEYSTORE_PASSWORD";
+    private static final String AUDIT_INTEGRITY_KEY_ALIAS = "AUDIT_INTEGRITY_KEY_ALIAS";
+
+    private static final int PARALLEL_HASH_THRESHOLD = 8;
+    private static final int KEY_ID_LENGTH = 8;
+    private static final int MAXIMUM_CARRIED_SEALS = 16;
+    private static final int MAXIMUM_SUPERSEDED_SEALS = 4096;
+
+    public static final String INTEGRITY_PROOF_EXTENSION_URL = "http://fhirfactory.net/pegacorn/StructureDefinition/audit-event-integrity-proof";
+    public static final String BATCH_SEQUENCE_EXTENSION = "batchSequence";
+    public static final String LEAF_INDEX_EXTENSION = "leafIndex";
+    public static final String LEAF_COUNT_EXTENSION = "leafCount";
+    public static final String INCLUSION_PROOF_EXTENSION = "inclusionProof";
+    public static final String PREVIOUS_ROOT_EXTENSION = "previousRoot";
+    public static final String SIGNATURE_EXTENSION = "signature";
+    public static final String SIGNING_KEY_EXTENSION = "signingKey";
+    public static final String SUPERSEDED_SEAL_EXTENSION = "supersededSeal";
+    public static final String BATCH_ROOT_EXTENSION = "batchRoot";
+
+    private volatile boolean initialised;
+    private boolean enabled;
+    private ForkJoinPool hashingPool;
+    private PrivateKey signingKey;
+    private String signatureAlgorithm;
+    private String signingKeyId;
+    private long batchSequence;
+    private byte[] previousRoot;
+    private final LinkedHashMap<Long, AuditEventBatchSeal> supersededSeals;
+    private AtomicLong batchesSealed;
+    private AtomicLong sealsSuperseded;
+    private AtomicLong eventsSealed;
+    private AtomicLong sealingNanos;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventBatchIntegrityService(){
+        this.initialised = false;
+        this.enabled = false;
+        this.batchSequence = 0;
+        this.previousRoot = new byte[AuditEventMerkleTree.HASH_LENGTH];
+        this.supersededSeals = new LinkedHashMap<>();
+        this.batchesSealed = new AtomicLong(0);
+        this.sealsSuperseded = new AtomicLong(0);
+        this.eventsSealed = new AtomicLong(0);
+        this.sealingNanos = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        enabled = configurationService.getBooleanParameter(AUDIT_INTEGRITY_ENABLED, false);
+        if(enabled){
+            try {
+                loadSigningKey();
+                int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+                int hashThreads = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_INTEGRITY_HASH_THREADS, defaultThreads));
+                hashingPool = new ForkJoinPool(hashThreads);
+                getLogger().info(".initialise(): Integrity chain genesis, signingKey->{}, algorithm->{}, hashThreads->{}", signingKeyId, signatureAlgorithm, hashThreads);
+            } catch (Exception ex) {
+                getLogger().error(".initialise(): Could not set up signing, AuditEvents will not be sealed, message->{}", ExceptionUtils.getMessage(ex));
+                enabled = false;
+            }
+        }
+        initialised = true;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        if(hashingPool != null){
+            hashingPool.shutdown();
+        }
+        synchronized(this){
+            getLogger().info(".shutdown(): batchesSealed->{}, eventsSealed->{}, lastSequence->{}, sealsSuperseded->{}", batchesSealed.get(), eventsSealed.get(), batchSequence, sealsSuperseded.get());
+            if(!supersededSeals.isEmpty()){
+                getLogger().warn(".shutdown(): Superseded links not yet carried to the DM (see the earlier log entries), sequences->{}", supersededSeals.keySet());
+            }
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Seals a copy of the batch: every copy gets an integrity-proof extension (replacing any proof from
+     * an earlier write attempt), and the AuditEvents passed in are left untouched, as they may still be
+     * held by the queue, the coalescing index or the recent index. If sealing fails, the failure is
+     * logged and the original AuditEvents are returned unsealed; the write itself is never blocked.
+     *
+     * The batch takes the next link in the chain straight away, so concurrent writers still produce a
+     * single chain. Once the DM has answered, the caller has to hand the seal to acknowledgeBatch().
+     */
+    public AuditEventBatchSeal sealBatch(List<AuditEvent> auditEventList){
+        if(!initialised){
+            initialise();
+        }
+        if(!enabled || auditEventList == null || auditEventList.isEmpty()){
+            return(new AuditEventBatchSeal(auditEventList));
+        }
+        long startTime = System.nanoTime();
+        long sequence = 0;
+        byte[] chainedFrom = null;
+        byte[] batchRoot = null;
+        try {
+            List<AuditEvent> sealedList = new ArrayList<>(auditEventList.size());
+            for(AuditEvent currentEvent: auditEventList){
+                AuditEvent sealedEvent = currentEvent.copy();
+                removeIntegrityProof(sealedEvent);
+                sealedList.add(sealedEvent);
+            }
+            byte[][] leafHashes = computeLeafHashes(sealedList);
+            AuditEventMerkleTree batchTree = new AuditEventMerkleTree(leafHashes);
+            batchRoot = batchTree.getRoot();
+            byte[] chainedRoot;
+            List<AuditEventBatchSeal> carriedSeals;
+            synchronized(this){
+                sequence = ++batchSequence;
+                chainedFrom = previousRoot;
+                chainedRoot = AuditEventMerkleTree.hashChain(AuditEventMerkleTree.newDigest(), chainedFrom, batchRoot);
+                previousRoot = chainedRoot;
+                carriedSeals = new ArrayList<>(Math.min(supersededSeals.size(), MAXIMUM_CARRIED_SEALS));
+                for(AuditEventBatchSeal supersededSeal: supersededSeals.values()){
+                    if(carriedSeals.size() >= MAXIMUM_CARRIED_SEALS){
+                        break;
+                    }
+                    carriedSeals.add(supersededSeal);
+                }
+            }
+            byte[] signature = sign(chainedRoot);
+            for(int leafIndex = 0; leafIndex < sealedList.size(); leafIndex++){
+                Extension proofExtension = sealedList.get(leafIndex).addExtension();
+                proofExtension.setUrl(INTEGRITY_PROOF_EXTENSION_URL);
+                proofExtension.addExtension(BATCH_SEQUENCE_EXTENSION, new StringType(Long.toString(sequence)));
+                proofExtension.addExtension(LEAF_INDEX_EXTENSION, new IntegerType(leafIndex));
+                proofExtension.addExtension(LEAF_COUNT_EXTENSION, new IntegerType(batchTree.getLeafCount()));
+                proofExtension.addExtension(INCLUSION_PROOF_EXTENSION, new Base64BinaryType(batchTree.getInclusionProof(leafIndex)));
+                proofExtension.addExtension(PREVIOUS_ROOT_EXTENSION, new Base64BinaryType(chainedFrom));
+                proofExtension.addExtension(SIGNATURE_EXTENSION, new Base64BinaryType(signature));
+                proofExtension.addExtension(SIGNING_KEY_EXTENSION, new StringType(signingKeyId));
+                for(AuditEventBatchSeal carriedSeal: carriedSeals){
+                    addSupersededSealExtension(proofExtension, carriedSeal);
+                }
+            }
+            batchesSealed.incrementAndGet();
+            eventsSealed.addAndGet(sealedList.size());
+            getLogger().debug(".sealBatch(): sequence->{}, size->{}, carriedSeals->{}", sequence, sealedList.size(), carriedSeals.size());
+            return(new AuditEventBatchSeal(sealedList, sequence, chainedFrom, batchRoot, signature, carriedSeals));
+        } catch (Exception ex) {
+            getLogger().error(".sealBatch(): Could not seal batch, message->{}", ExceptionUtils.getMessage(ex));
+            if(sequence > 0){
+                // the batch already holds a link in the chain, which will now never reach the DM
+                supersedeSeal(new AuditEventBatchSeal(Collections.<AuditEvent>emptyList(), sequence, chainedFrom, batchRoot, null, Collections.<AuditEventBatchSeal>emptyList()));
+            }
+            return(new AuditEventBatchSeal(auditEventList));
+        } finally {
+            sealingNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Records the DM's answer to a sealed batch. If at least one of its AuditEvents was created, its
+     * link is in the DM (every AuditEvent carries the previous root, and the batch root can be rebuilt
+     * from any leaf and its proof), and so are the superseded links it carried. If none was created,
+     * its link is superseded: it is logged, and carried in the integrity proof of the following batches
+     * until one of them is written, so a verifier can bridge the gap in the chain.
+     */
+    public void acknowledgeBatch(AuditEventBatchSeal batchSeal, int createdCount){
+        if(batchSeal == null || !batchSeal.isSealed()){
+            return;
+        }
+        if(createdCount > 0){
+            if(!batchSeal.getCarriedSeals().isEmpty()){
+                synchronized(this){
+                    for(AuditEventBatchSeal carriedSeal: batchSeal.getCarriedSeals()){
+                        supersededSeals.remove(carriedSeal.getSequence());
+                    }
+                }
+            }
+            return;
+        }
+        supersedeSeal(new AuditEventBatchSeal(Collections.<AuditEvent>emptyList(), batchSeal.getSequence(), batchSeal.getPreviousRoot(), batchSeal.getBatchRoot(), batchSeal.getSignature(), Collections.<AuditEventBatchSeal>emptyList()));
+    }
+
+    public boolean isEnabled(){
+        if(!initialised){
+            initialise();
+        }
+        return(enabled);
+    }
+
+    public long getBatchesSealed(){
+        return(batchesSealed.get());
+    }
+
+    public long getEventsSealed(){
+        return(eventsSealed.get());
+    }
+
+    public long getSealsSuperseded(){
+        return(sealsSuperseded.get());
+    }
+
+    /**
+     * @return the average time spent sealing each AuditEvent, in microseconds (the throughput cost)
+     */
+    public double getAverageSealingMicrosPerEvent(){
+        long events = eventsSealed.get();
+        if(events == 0){
+            return(0.0);
+        }
+        return((sealingNanos.get() / 1000.0) / events);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected byte[][] computeLeafHashes(List<AuditEvent> auditEventList) throws Exception {
+        byte[][] leafHashes = new byte[auditEventList.size()][];
+        if(auditEventList.size() < PARALLEL_HASH_THRESHOLD){
+            MessageDigest digest = AuditEventMerkleTree.newDigest();
+            for(int index = 0; index < auditEventList.size(); index++){
+                leafHashes[index] = hashAuditEvent(digest, auditEventList.get(index));
+            }
+        } else {
+            hashingPool.submit(() -> IntStream.range(0, auditEventList.size()).parallel().forEach(index -> {
+                leafHashes[index] = hashAuditEvent(AuditEventMerkleTree.newDigest(), auditEventList.get(index));
+            })).get();
+        }
+        return(leafHashes);
+    }
+
+    protected byte[] hashAuditEvent(MessageDigest digest, AuditEvent auditEvent){
+        String encodedEvent = parserService.encodeAuditEvent(auditEvent);
+        return(AuditEventMerkleTree.hashLeaf(digest, encodedEvent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    protected void supersedeSeal(AuditEventBatchSeal supersededSeal){
+        AuditEventBatchSeal droppedSeal = null;
+        synchronized(this){
+            supersededSeals.put(supersededSeal.getSequence(), supersededSeal);
+            if(supersededSeals.size() > MAXIMUM_SUPERSEDED_SEALS){
+                Iterator<AuditEventBatchSeal> supersededIterator = supersededSeals.values().iterator();
+                droppedSeal = supersededIterator.next();
+                supersededIterator.remove();
+            }
+        }
+        sealsSuperseded.incrementAndGet();
+        getLogger().warn(".supersedeSeal(): Batch not written, its link is superseded, sequence->{}, previousRoot->{}, batchRoot->{}, signature->{}",
+                supersededSeal.getSequence(), encodeBase64(supersededSeal.getPreviousRoot()), encodeBase64(supersededSeal.getBatchRoot()), encodeBase64(supersededSeal.getSignature()));
+        if(droppedSeal != null){
+            getLogger().error(".supersedeSeal(): Too many superseded links, sequence->{} is no longer carried to the DM (it is only in this log)", droppedSeal.getSequence());
+        }
+    }
+
+    protected void addSupersededSealExtension(Extension proofExtension, AuditEventBatchSeal supersededSeal){
+        Extension supersededExtension = proofExtension.addExtension();
+        supersededExtension.setUrl(SUPERSEDED_SEAL_EXTENSION);
+        supersededExtension.addExtension(BATCH_SEQUENCE_EXTENSION, new StringType(Long.toString(supersededSeal.getSequence())));
+        supersededExtension.addExtension(PREVIOUS_ROOT_EXTENSION, new Base64BinaryType(supersededSeal.getPreviousRoot()));
+        supersededExtension.addExtension(BATCH_ROOT_EXTENSION, new Base64BinaryType(supersededSeal.getBatchRoot()));
+        if(supersededSeal.getSignature() != null){
+            supersededExtension.addExtension(SIGNATURE_EXTENSION, new Base64BinaryType(supersededSeal.getSignature()));
+        }
+    }
+
+    protected String encodeBase64(byte[] value){
+        if(value == null){
+            return(null);
+        }
+        return(Base64.getEncoder().encodeToString(value));
+    }
+
+    protected void removeIntegrityProof(AuditEvent auditEvent){
+        auditEvent.getExtension().removeIf(extension -> INTEGRITY_PROOF_EXTENSION_URL.equals(extension.getUrl()));
+    }
+
+    protected byte[] sign(byte[] chainedRoot) throws Exception {
+        Signature signer = Signature.getInstance(signatureAlgorithm);
+        signer.initSign(signingKey);
+        signer.update(chainedRoot);
+        return(signer.sign());
+    }
+
+    protected void loadSigningKey() throws Exception {
+        String keystorePath = configurationService.getParameter(AUDIT_INTEGRITY_KEYSTORE);
+        byte[] publicKeyEncoding;
+        if(StringUtils.isNotBlank(keystorePath)){
+            String keystorePassword = configurationService.getParameter(AUDIT_INTEGRITY_KEYSTORE_PASSWORD);
+            String keyAlias = configurationService.getParameter(AUDIT_INTEGRITY_KEY_ALIAS);
+            char[] password = keystorePassword != null ? keystorePassword.toCharArray() : new char[0];
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try(InputStream keystoreStream = new FileInputStream(keystorePath)){
+                keyStore.load(keystoreStream, password);
+            }
+            if(StringUtils.isBlank(keyAlias)){
+                keyAlias = keyStore.aliases().nextElement();
+            }
+            signingKey = (PrivateKey)keyStore.getKey(keyAlias, password);
+            Certificate certificate = keyStore.getCertificate(keyAlias);
+            if(signingKey == null || certificate == null){
+                throw(new IllegalStateException("No private key/certificate for alias " + keyAlias));
+            }
+            publicKeyEncoding = certificate.getPublicKey().getEncoded();
+        } else {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+            keyPairGenerator.initialize(256);
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+            signingKey = keyPair.getPrivate();
+            publicKeyEncoding = keyPair.getPublic().getEncoded();
+            getLogger().warn(".loadSigningKey(): No {} configured, using ephemeral EC key, publicKey->{}", AUDIT_INTEGRITY_KEYSTORE, Base64.getEncoder().encodeToString(publicKeyEncoding));
+        }
+        signatureAlgorithm = "RSA".equals(signingKey.getAlgorithm()) ? "SHA256withRSA" : "SHA256withECDSA";
+        byte[] keyFingerprint = AuditEventMerkleTree.newDigest().digest(publicKeyEncoding);
+        StringBuilder keyIdBuilder = new StringBuilder();
+        for(int index = 0; index < KEY_ID_LENGTH; index++){
+            keyIdBuilder.append(String.format("%02x", keyFingerprint[index]));
+        }
+        signingKeyId = keyIdBuilder.toString();
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity;
+
+import org.hl7.fhir.r4.model.AuditEvent;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sealing a batch: the sealed copies of the AuditEvents (the originals are never
+ * changed), plus the link in the integrity chain the batch occupies. The link is needed again once the
+ * DM has answered, to record a batch of which nothing was written as superseded.
+ *
+ * A batch that was not sealed (integrity disabled, persistence off, or sealing failed) has sequence 0
+ * and carries the original AuditEvents.
+ */
+public class AuditEventBatchSeal {
+    private final List<AuditEvent> auditEventList;
+    private final long sequence;
+    private final byte[] previousRoot;
+    private final byte[] batchRoot;
+    private final byte[] signature;
+    private final List<AuditEventBatchSeal> carriedSeals;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventBatchSeal(List<AuditEvent> auditEventList){
+        this(auditEventList, 0, null, null, null, Collections.<AuditEventBatchSeal>emptyList());
+    }
+
+    public AuditEventBatchSeal(List<AuditEvent> auditEventList, long sequence, byte[] previousRoot, byte[] batchRoot, byte[] signature, List<AuditEventBatchSeal> carriedSeals){
+        this.auditEventList = auditEventList;
+        this.sequence = sequence;
+        this.previousRoot = previousRoot;
+        this.batchRoot = batchRoot;
+        this.signature = signature;
+        this.carriedSeals = carriedSeals;
+    }
+
+    //
+    // Getters
+    //
+
+    public boolean isSealed(){
+        return(sequence > 0);
+    }
+
+    /**
+     * @return the AuditEvents to send to the DM, in batch order
+     */
+    public List<AuditEvent> getAuditEventList() {
+        return auditEventList;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public byte[] getPreviousRoot() {
+        return previousRoot;
+    }
+
+    public byte[] getBatchRoot() {
+        return batchRoot;
+    }
+
+    /**
+     * @return the signature over the chained root, or null if sealing failed before signing
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return the superseded seals whose links this batch carries to the DM
+     */
+    public List<AuditEventBatchSeal> getCarriedSeals() {
+        return carriedSeals;
+    }
+}
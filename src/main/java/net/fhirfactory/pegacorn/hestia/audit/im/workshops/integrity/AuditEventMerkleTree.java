@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SHA-256 Merkle tree over the leaf hashes of one batch. Internal nodes are H(0x01 || left || right).
+ * When a level has an odd number of nodes, the last node is promoted unchanged to the next level.
+ * This means a verifier needs the leaf index and leaf count, as well as the sibling hashes, to rebuild
+ * the root.
+ */
+public class AuditEventMerkleTree {
+    public static final String HASH_ALGORITHM = "SHA-256";
+    public static final int HASH_LENGTH = 32;
+    public static final byte LEAF_PREFIX = 0x00;
+    public static final byte NODE_PREFIX = 0x01;
+    public static final byte CHAIN_PREFIX = 0x02;
+
+    private List<byte[][]> levels;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventMerkleTree(byte[][] leafHashes){
+        if(leafHashes == null || leafHashes.length == 0){
+            throw(new IllegalArgumentException("A Merkle tree needs at least one leaf"));
+        }
+        this.levels = new ArrayList<>();
+        byte[][] currentLevel = leafHashes;
+        levels.add(currentLevel);
+        MessageDigest digest = newDigest();
+        while(currentLevel.length > 1){
+            byte[][] nextLevel = new byte[(currentLevel.length + 1) / 2][];
+            for(int index = 0; index < nextLevel.length; index++){
+                int leftIndex = index * 2;
+                if(leftIndex + 1 < currentLevel.length){
+                    nextLevel[index] = hashNode(digest, currentLevel[leftIndex], currentLevel[leftIndex + 1]);
+                } else {
+                    nextLevel[index] = currentLevel[leftIndex];
+                }
+            }
+            levels.add(nextLevel);
+            currentLevel = nextLevel;
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    public byte[] getRoot(){
+        return(levels.get(levels.size() - 1)[0]);
+    }
+
+    public int getLeafCount(){
+        return(levels.get(0).length);
+    }
+
+    /**
+     * @return the sibling hashes from the leaf up to (but not including) the root, concatenated
+     */
+    public byte[] getInclusionProof(int leafIndex){
+        List<byte[]> siblings = new ArrayList<>();
+        int index = leafIndex;
+        for(int levelNumber = 0; levelNumber < levels.size() - 1; levelNumber++){
+            byte[][] currentLevel = levels.get(levelNumber);
+            int siblingIndex = (index % 2 == 0) ? index + 1 : index - 1;
+            if(siblingIndex < currentLevel.length){
+                siblings.add(currentLevel[siblingIndex]);
+            }
+            index = index / 2;
+        }
+        byte[] proof = new byte[siblings.size() * HASH_LENGTH];
+        for(int siblingNumber = 0; siblingNumber < siblings.size(); siblingNumber++){
+            System.arraycopy(siblings.get(siblingNumber), 0, proof, siblingNumber * HASH_LENGTH, HASH_LENGTH);
+        }
+        return(proof);
+    }
+
+    //
+    // Hash Functions
+    //
+
+    public static MessageDigest newDigest(){
+        try {
+            return(MessageDigest.getInstance(HASH_ALGORITHM));
+        } catch (NoSuchAlgorithmException ex) {
+            throw(new IllegalStateException(HASH_ALGORITHM + " is not available", ex));
+        }
+    }
+
+    public static byte[] hashLeaf(MessageDigest digest, byte[] leafContent){
+        digest.reset();
+        digest.update(LEAF_PREFIX);
+        digest.update(leafContent);
+        return(digest.digest());
+    }
+
+    public static byte[] hashNode(MessageDigest digest, byte[] left, byte[] right){
+        digest.reset();
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+        return(digest.digest());
+    }
+
+    public static byte[] hashChain(MessageDigest digest, byte[] previousRoot, byte[] batchRoot){
+        digest.reset();
+        digest.update(CHAIN_PREFIX);
+        digest.update(previousRoot);
+        digest.update(batchRoot);
+        return(digest.digest());
+    }
+}
@@ -29,12 +29,14 @@ import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelManifest;
 import net.fhirfactory.pegacorn.core.model.topology.endpoints.adapters.HTTPClientAdapter;
 import net.fhirfactory.pegacorn.core.model.topology.endpoints.http.HTTPClientTopologyEndpoint;
 import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMNames;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMBatchingWriter;
 import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMHTTPClient;
 import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.MethodOutcome2UoW;
 import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.UoW2AuditEventString;
 import net.fhirfactory.pegacorn.petasos.core.moa.wup.MessageBasedWUPEndpointContainer;
 import net.fhirfactory.pegacorn.workshops.EdgeWorkshop;
 import net.fhirfactory.pegacorn.wups.archetypes.petasosenabled.messageprocessingbased.InteractEgressMessagingGatewayWUP;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +51,7 @@ public class AuditEventAskServiceWUP extends InteractEgressMessagingGatewayWUP {
 
     private static String WUP_VERSION="1.0.0";
     private String CAMEL_COMPONENT_TYPE="netty-http";
+    private static final String ASK_SERVICE_CONCURRENT_CONSUMERS = "ASK_SERVICE_CONCURRENT_CONSUMERS";
     private ObjectMapper jsonMapper;
 
     public AuditEventAskServiceWUP(){
@@ -62,6 +65,9 @@ public class AuditEventAskServiceWUP extends InteractEgressMessagingGatewayWUP {
     @Inject
     private HestiaDMHTTPClient hestiaDMHTTPClient;
 
+    @Inject
+    private HestiaDMBatchingWriter hestiaDMBatchingWriter;
+
     @Inject
     private UoW2AuditEventString uowPayloadExtractor;
 
@@ -107,15 +113,44 @@ public class AuditEventAskServiceWUP extends InteractEgressMessagingGatewayWUP {
         getLogger().info("{}:: ingresFeed() --> {}", getClass().getSimpleName(), ingresFeed());
         getLogger().info("{}:: egressFeed() --> {}", getClass().getSimpleName(), egressFeed());
 
-        fromIncludingPetasosServices(ingresFeed())
-                .routeId(getNameSet().getRouteCoreWUP())
-                .bean(uowPayloadExtractor, "extractPayload")
-                .to(getHestiaAuditDMAccessorPathEntry())
-                .bean(methodOutcome2UoW, "encapsulateMethodOutcomeIntoUoW")
-                .to(egressFeed());
+        int concurrentConsumers = getConcurrentConsumers();
+        if(concurrentConsumers > 1) {
+            getLogger().info("{}:: using parallel batching route, concurrentConsumers->{}", getClass().getSimpleName(), concurrentConsumers);
+            //
+            // Each UoW is handed to a thread pool stage, and the AuditEvents from the concurrent UoWs are
+            // grouped into DM batch writes by the HestiaDMBatchingWriter (by size or timeout). The writer
+            // hands each UoW's own MethodOutcome back, so every exchange still reaches the egressFeed()
+            // carrying its own fulfillment task.
+            //
+            fromIncludingPetasosServices(ingresFeed())
+                    .routeId(getNameSet().getRouteCoreWUP())
+                    .bean(uowPayloadExtractor, "extractPayload")
+                    .threads(concurrentConsumers, concurrentConsumers, getClass().getSimpleName() + "-DMWriter")
+                    .to(getHestiaAuditDMAccessorPathEntry())
+                    .bean(methodOutcome2UoW, "encapsulateMethodOutcomeIntoUoW")
+                    .to(egressFeed());
+
+            from(getHestiaAuditDMAccessorPathEntry())
+                    .bean(hestiaDMBatchingWriter, "writeAuditEvent");
+        } else {
+            fromIncludingPetasosServices(ingresFeed())
+                    .routeId(getNameSet().getRouteCoreWUP())
+                    .bean(uowPayloadExtractor, "extractPayload")
+                    .to(getHestiaAuditDMAccessorPathEntry())
+                    .bean(methodOutcome2UoW, "encapsulateMethodOutcomeIntoUoW")
+                    .to(egressFeed());
+
+            from(getHestiaAuditDMAccessorPathEntry())
+                    .bean(hestiaDMHTTPClient, "writeAuditEvent");
+        }
+    }
 
-        from(getHestiaAuditDMAccessorPathEntry())
-                .bean(hestiaDMHTTPClient, "writeAuditEvent");
+    private int getConcurrentConsumers(){
+        String parameterValue = getProcessingPlant().getMeAsASoftwareComponent().getOtherConfigurationParameter(ASK_SERVICE_CONCURRENT_CONSUMERS);
+        if(StringUtils.isNumeric(parameterValue)){
+            return(Integer.parseInt(parameterValue));
+        }
+        return(1);
     }
 
     private String getHestiaAuditDMAccessorPathEntry(){
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
+
+import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelManifest;
+import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelTypeDescriptor;
+import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelDirectionEnum;
+import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelNormalisationStatusEnum;
+import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelValidationStatusEnum;
+import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.PolicyEnforcementPointApprovalStatusEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Builds the egress DataParcelManifests for the UoW response paths.
+ *
+ * Every UoW gets its own manifest instance: the Petasos framework mutates manifests as a UoW moves
+ * through the routes, and an egress manifest carries the ingress manifest's source/target system,
+ * participant and flow metadata, which differ from UoW to UoW. The copies are made with the
+ * DataParcelManifest and DataParcelTypeDescriptor copy constructors (rather than a Java serialization
+ * round-trip), and the MethodOutcome manifest is copied from a template that is built once and never
+ * handed out.
+ */
+@ApplicationScoped
+public class DataParcelManifestFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(DataParcelManifestFactory.class);
+
+    private final DataParcelManifest methodOutcomeTemplate;
+
+    //
+    // Constructor(s)
+    //
+
+    public DataParcelManifestFactory(){
+        this.methodOutcomeTemplate = createManifestForMethodOutcome();
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return the UoW's own copy of the MethodOutcome manifest
+     */
+    public DataParcelManifest getMethodOutcomeManifest(){
+        return(copyManifest(methodOutcomeTemplate));
+    }
+
+    /**
+     * Returns a copy of the UoW's own ingress manifest, re-discriminated to the given outcome type.
+     */
+    public DataParcelManifest getEgressManifest(DataParcelManifest ingresManifest, String discriminatorType, String discriminatorValue){
+        DataParcelManifest egressManifest = copyManifest(ingresManifest);
+        egressManifest.getContentDescriptor().setDataParcelDiscriminatorType(discriminatorType);
+        egressManifest.getContentDescriptor().setDataParcelDiscriminatorValue(discriminatorValue);
+        return(egressManifest);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    /**
+     * Copies the manifest, giving the copy its own content descriptor, so re-discriminating (or
+     * Petasos updating) the copy cannot reach the original.
+     */
+    protected DataParcelManifest copyManifest(DataParcelManifest sourceManifest){
+        DataParcelManifest manifestCopy = new DataParcelManifest(sourceManifest);
+        if(sourceManifest.getContentDescriptor() != null){
+            manifestCopy.setContentDescriptor(new DataParcelTypeDescriptor(sourceManifest.getContentDescriptor()));
+        }
+        return(manifestCopy);
+    }
+
+    protected DataParcelManifest createManifestForMethodOutcome(){
+        DataParcelTypeDescriptor descriptor = new DataParcelTypeDescriptor();
+        descriptor.setDataParcelDefiner("University Health Network");
+        descriptor.setDataParcelCategory("FHIR-REST");
+        descriptor.setDataParcelSubCategory("API");
+        descriptor.setDataParcelResource("MethodOutcome");
+        descriptor.setVersion("R4");
+
+        DataParcelManifest manifest = new DataParcelManifest();
+        manifest.setContentDescriptor(descriptor);
+        manifest.setDataParcelFlowDirection(DataParcelDirectionEnum.INFORMATION_FLOW_INBOUND_DATA_PARCEL);
+        manifest.setValidationStatus(DataParcelValidationStatusEnum.DATA_PARCEL_CONTENT_VALIDATED_TRUE);
+        manifest.setNormalisationStatus(DataParcelNormalisationStatusEnum.DATA_PARCEL_CONTENT_NORMALISATION_FALSE);
+        manifest.setEnforcementPointApprovalStatus(PolicyEnforcementPointApprovalStatusEnum.POLICY_ENFORCEMENT_POINT_APPROVAL_NEGATIVE);
+        manifest.setInterSubsystemDistributable(false);
+
+        return(manifest);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter.AdaptiveDMWriteLimiter;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunables;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunablesService;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Groups AuditEvents submitted concurrently (e.g. from the parallel stage of the AuditEventAskServiceWUP
+ * route) into DM batch writes. A batch closes when it reaches the batch size or when the batch timeout
+ * expires. The batch size is the smaller of the batchSize tunable and the AdaptiveDMWriteLimiter's
+ * current limit. Each submitter blocks until its own MethodOutcome has been split back out of the
+ * batch response. The batch size, linger and number of writers come from the
+ * AsynchronousWriterTunablesService and can change at runtime. A writer that is no longer needed
+ * finishes its current batch before it stops.
+ *
+ * ASK_SERVICE_WRITE_TIMEOUT only bounds how long an event may wait in the queue. An event still queued
+ * at the timeout is withdrawn and failed; one already in a DM write is never failed early, so the
+ * route only retries events that were not written.
+ */
+@ApplicationScoped
+public class HestiaDMBatchingWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(HestiaDMBatchingWriter.class);
+
+    private static final String ASK_SERVICE_WRITE_TIMEOUT = "ASK_SERVICE_WRITE_TIMEOUT";
+
+    private static final long DEFAULT_WRITE_TIMEOUT = 30000L;
+    private static final long IDLE_POLL_PERIOD = 100L;
+
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private volatile int activeWriters;
+    private long writeTimeout;
+    private Map<Integer, Thread> batchWriters;
+    private LinkedBlockingQueue<PendingWrite> pendingWrites;
+
+    @Inject
+    private HestiaDMHTTPClient hestiaDMHTTPClient;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private AdaptiveDMWriteLimiter writeLimiter;
+
+    @Inject
+    private AsynchronousWriterTunablesService tunablesService;
+
+    @Inject
+    private AuditEventStructuralValidator structuralValidator;
+
+    //
+    // Constructor(s)
+    //
+
+    public HestiaDMBatchingWriter(){
+        this.running = false;
+        this.stopped = false;
+        this.activeWriters = 0;
+        this.writeTimeout = DEFAULT_WRITE_TIMEOUT;
+        this.batchWriters = new HashMap<>();
+        this.pendingWrites = new LinkedBlockingQueue<>();
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    public synchronized void initialise(){
+        getLogger().debug(".initialise(): Entry");
+        if(running || stopped){
+            getLogger().debug(".initialise(): Exit, already running (or shut down)");
+            return;
+        }
+        writeTimeout = Math.max(1L, configurationService.getLongParameter(ASK_SERVICE_WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT));
+        AsynchronousWriterTunables tunables = tunablesService.getTunables();
+        running = true;
+        setWriterCount(tunables.getBatchWriters());
+        tunablesService.addTunablesListener(newTunables -> setWriterCount(newTunables.getBatchWriters()));
+        getLogger().info(".initialise(): Exit, batchSize->{}, batchLinger->{}, writers->{}", tunables.getBatchSize(), tunables.getBatchLinger(), tunables.getBatchWriters());
+    }
+
+    /**
+     * Starts more writers, or lets the surplus ones stop once their current batch is written.
+     */
+    protected synchronized void setWriterCount(int writerCount){
+        if(!running){
+            return;
+        }
+        int previousCount = activeWriters;
+        activeWriters = writerCount;
+        for(int writerNumber = 0; writerNumber < writerCount; writerNumber++){
+            Thread existingWriter = batchWriters.get(writerNumber);
+            if(existingWriter != null && existingWriter.isAlive()){
+                continue;
+            }
+            int currentWriterNumber = writerNumber;
+            Thread batchWriter = new Thread(() -> batchWriterTask(currentWriterNumber), "HestiaDMBatchingWriter-" + writerNumber);
+            batchWriter.setDaemon(true);
+            batchWriter.start();
+            batchWriters.put(writerNumber, batchWriter);
+        }
+        getLogger().debug(".setWriterCount(): previous->{}, current->{}", previousCount, writerCount);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence as well as by the container, so
+     * a second call does nothing. Once shut down the writer is not restarted by a late write.
+     */
+    @PreDestroy
+    public synchronized void shutdown(){
+        stopped = true;
+        running = false;
+        for(Thread currentWriter: batchWriters.values()){
+            currentWriter.interrupt();
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    public MethodOutcome writeAuditEvent(String auditEventJSONString){
+        getLogger().debug(".writeAuditEvent(): Entry");
+        AuditEvent auditEvent = null;
+        try {
+            auditEvent = parserService.parseAuditEvent(auditEventJSONString);
+        } catch (Exception ex) {
+            getLogger().warn(".writeAuditEvent(): Could not parse AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+            return(failedOutcome());
+        }
+        if(!structuralValidator.admit(auditEvent)){
+            getLogger().debug(".writeAuditEvent(): Exit, AuditEvent failed validation");
+            return(failedOutcome());
+        }
+        MethodOutcome outcome = writeAuditEvent(auditEvent);
+        getLogger().debug(".writeAuditEvent(): Exit, outcome->{}", outcome);
+        return(outcome);
+    }
+
+    public MethodOutcome writeAuditEvent(AuditEvent auditEvent){
+        if(stopped){
+            getLogger().debug(".writeAuditEvent(): Shut down, AuditEvent not written");
+            return(failedOutcome());
+        }
+        if(!running){
+            initialise();
+        }
+        PendingWrite pendingWrite = new PendingWrite(auditEvent);
+        pendingWrites.offer(pendingWrite);
+        try {
+            return(pendingWrite.getCompletion().get(writeTimeout, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException ex) {
+            return(withdrawOrAwait(pendingWrite));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return(withdrawOrAwait(pendingWrite));
+        } catch (Exception ex) {
+            getLogger().warn(".writeAuditEvent(): Batch write did not complete, message->{}", ExceptionUtils.getMessage(ex));
+            return(failedOutcome());
+        }
+    }
+
+    /**
+     * Called when the submitter stops waiting. If no writer has taken the event yet, it is withdrawn from
+     * the queue and will never be written, so reporting a failure (and letting the route retry) is safe.
+     * If a writer has already taken it, the DM write is in flight and cannot be called back: reporting a
+     * failure here would let the route retry an event that may still be created, so the submitter waits
+     * for the real outcome instead. That wait is bounded by the DM client's own connect/socket timeouts.
+     */
+    protected MethodOutcome withdrawOrAwait(PendingWrite pendingWrite){
+        if(pendingWrites.remove(pendingWrite)){
+            getLogger().warn(".withdrawOrAwait(): Batch write not started within {}ms, AuditEvent withdrawn", writeTimeout);
+            return(failedOutcome());
+        }
+        getLogger().warn(".withdrawOrAwait(): Batch write still in flight after {}ms, waiting for its outcome", writeTimeout);
+        boolean interrupted = false;
+        try {
+            while(true){
+                try {
+                    return(pendingWrite.getCompletion().get());
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (Exception ex) {
+                    getLogger().warn(".withdrawOrAwait(): Batch write did not complete, message->{}", ExceptionUtils.getMessage(ex));
+                    return(failedOutcome());
+                }
+            }
+        } finally {
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //
+    // Batch Writer
+    //
+
+    protected void batchWriterTask(int writerNumber){
+        List<PendingWrite> batch = new ArrayList<>();
+        while(running && writerNumber < activeWriters){
+            try {
+                PendingWrite first = pendingWrites.poll(IDLE_POLL_PERIOD, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+                batch.add(first);
+                AsynchronousWriterTunables tunables = tunablesService.getTunables();
+                int currentBatchSize = writeLimiter.getBatchSize(tunables.getBatchSize());
+                long batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tunables.getBatchLinger());
+                while(batch.size() < currentBatchSize){
+                    long remaining = batchDeadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? pendingWrites.poll(remaining, TimeUnit.NANOSECONDS) : pendingWrites.poll();
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for(PendingWrite currentWrite: batch){
+                    currentWrite.getCompletion().complete(failedOutcome());
+                }
+                break;
+            } catch (Exception ex) {
+                getLogger().error(".batchWriterTask(): Batch write failed, message->{}", ExceptionUtils.getMessage(ex));
+                for(PendingWrite currentWrite: batch){
+                    currentWrite.getCompletion().complete(failedOutcome());
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    protected void writeBatch(List<PendingWrite> batch){
+        getLogger().debug(".writeBatch(): Entry, size->{}", batch.size());
+        List<AuditEvent> auditEventList = new ArrayList<>(batch.size());
+        for(PendingWrite currentWrite: batch){
+            auditEventList.add(currentWrite.getAuditEvent());
+        }
+        List<MethodOutcome> outcomeList = hestiaDMHTTPClient.writeAuditEventBatch(auditEventList);
+        for(int index = 0; index < batch.size(); index++){
+            MethodOutcome outcome = index < outcomeList.size() ? outcomeList.get(index) : null;
+            if(outcome == null){
+                outcome = failedOutcome();
+            }
+            batch.get(index).getCompletion().complete(outcome);
+        }
+        getLogger().debug(".writeBatch(): Exit");
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected MethodOutcome failedOutcome(){
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setCreated(false);
+        return(outcome);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    protected static class PendingWrite {
+        private final AuditEvent auditEvent;
+        private final CompletableFuture<MethodOutcome> completion;
+
+        public PendingWrite(AuditEvent auditEvent){
+            this.auditEvent = auditEvent;
+            this.completion = new CompletableFuture<>();
+        }
+
+        public AuditEvent getAuditEvent() {
+            return auditEvent;
+        }
+
+        public CompletableFuture<MethodOutcome> getCompletion() {
+            return completion;
+        }
+    }
+}
@@ -22,6 +22,8 @@
 package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import net.fhirfactory.pegacorn.core.constants.systemwide.PegacornReferenceProperties;
 import net.fhirfactory.pegacorn.core.interfaces.topology.ProcessingPlantInterface;
 import net.fhirfactory.pegacorn.core.model.componentid.TopologyNodeFDN;
@@ -32,25 +34,52 @@ import net.fhirfactory.pegacorn.core.model.topology.endpoints.interact.ExternalS
 import net.fhirfactory.pegacorn.core.model.topology.endpoints.interact.StandardInteractClientTopologyEndpointPort;
 import net.fhirfactory.pegacorn.core.model.topology.nodes.external.ConnectedExternalSystemTopologyNode;
 import net.fhirfactory.pegacorn.deployment.topology.manager.TopologyIM;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
 import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMNames;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventDMWriteEvent;
 import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.HestiaAuditIMTopologyFactory;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.readiness.HestiaAuditIMReadinessService;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.readiness.HestiaAuditIMStartupPhaseEnum;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.index.RecentAuditEventIndex;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity.AuditEventBatchIntegrityService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity.AuditEventBatchSeal;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter.AdaptiveDMWriteLimiter;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.search.AuditEventSearchQuery;
 import net.fhirfactory.pegacorn.petasos.core.moa.wup.MessageBasedWUPEndpointContainer;
 import net.fhirfactory.pegacorn.platform.edge.ask.base.http.InternalFHIRClientProxy;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @ApplicationScoped
 public class HestiaDMHTTPClient extends InternalFHIRClientProxy {
     private static final Logger LOG = LoggerFactory.getLogger(HestiaDMHTTPClient.class);
 
+    private static final String DM_CONNECTION_WARMUP_COUNT = "DM_CONNECTION_WARMUP_COUNT";
+    private static final int DEFAULT_CONNECTION_WARMUP_COUNT = 2;
+
     private boolean resolvedAuditPersistenceValue;
     private boolean auditPersistence;
+    private volatile boolean batchWriteSupported;
 
     @Inject
     HestiaAuditIMTopologyFactory topologyFactory;
@@ -58,6 +87,33 @@ public class HestiaDMHTTPClient extends InternalFHIRClientProxy {
     @Inject
     private HestiaIMNames hestiaIMNames;
 
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private RecentAuditEventIndex recentAuditEventIndex;
+
+    @Inject
+    private AuditEventBatchIntegrityService integrityService;
+
+    @Inject
+    private HestiaAuditIMReadinessService readinessService;
+
+    @Inject
+    private AdaptiveDMWriteLimiter writeLimiter;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
+
+    @Inject
+    private AuditEventStructuralValidator structuralValidator;
+
     @Override
     protected Logger getLogger() {
         return (LOG);
@@ -76,6 +132,7 @@ public class HestiaDMHTTPClient extends InternalFHIRClientProxy {
         super();
         resolvedAuditPersistenceValue = false;
         auditPersistence = false;
+        batchWriteSupported = true;
         getLogger().info(".HestiaDMHTTPClient(): Starting");
     }
 
@@ -134,8 +191,14 @@ public class HestiaDMHTTPClient extends InternalFHIRClientProxy {
             if (persistAuditEvent()) {
                 getLogger().debug(".writeAuditEvent(): Writing to Hestia-Audit-DM");
                 // write the event to the Persistence service
-                AuditEvent auditEvent = getFHIRContextUtility().getJsonParser().parseResource(AuditEvent.class, auditEventJSONString);
-                outcome = writeAuditEvent(auditEvent);
+                AuditEvent auditEvent = parserService.parseAuditEvent(auditEventJSONString);
+                if(structuralValidator.admit(auditEvent)){
+                    outcome = writeAuditEvent(auditEvent);
+                } else {
+                    getLogger().debug(".writeAuditEvent(): AuditEvent failed validation");
+                    outcome = new MethodOutcome();
+                    outcome.setCreated(false);
+                }
             } else {
                 getLogger().info(auditEventJSONString);
                 outcome = new MethodOutcome();
@@ -151,39 +214,398 @@ public class HestiaDMHTTPClient extends InternalFHIRClientProxy {
     }
 
     public MethodOutcome writeAuditEvent(AuditEvent auditEvent){
-        getLogger().debug(".writeAuditEvent(): Entry, auditEvent->{}", auditEvent);
+        AuditEventBatchSeal batchSeal = sealAuditEventBatch(Collections.singletonList(auditEvent));
+        MethodOutcome outcome = createAuditEvent(auditEvent, batchSeal.getAuditEventList().get(0));
+        acknowledgeBatchSeal(batchSeal, Collections.singletonList(outcome));
+        return(outcome);
+    }
+
+    /**
+     * Writes a single AuditEvent to the DM: sealedEvent is the form that is sent, auditEvent the
+     * (unsealed) original that is recorded once the DM has created it.
+     */
+    protected MethodOutcome createAuditEvent(AuditEvent auditEvent, AuditEvent sealedEvent){
+        getLogger().debug(".createAuditEvent(): Entry, auditEvent->{}", auditEvent);
         MethodOutcome outcome = null;
         try {
             if (persistAuditEvent()) {
-                getLogger().debug(".writeAuditEvent(): AUDIT_EVENT_PERSISTENCE is true, writing to actual DM");
-                outcome = getClient().create()
-                        .resource(auditEvent)
-                        .prettyPrint()
-                        .encodedJson()
-                        .execute();
+                getLogger().debug(".createAuditEvent(): AUDIT_EVENT_PERSISTENCE is true, writing to actual DM");
+                long writeStart = writeLimiter.acquire();
+                if(writeStart == AdaptiveDMWriteLimiter.NOT_ACQUIRED){
+                    getLogger().warn(".createAuditEvent(): Exit, DM write limit not available");
+                    outcome = new MethodOutcome();
+                    outcome.setCreated(false);
+                    return(outcome);
+                }
+                boolean written = false;
+                AuditEventDMWriteEvent writeEvent = new AuditEventDMWriteEvent();
+                writeEvent.begin();
+                try {
+                    outcome = getClient().create()
+                            .resource(sealedEvent)
+                            .prettyPrint()
+                            .encodedJson()
+                            .execute();
+                    written = true;
+                } finally {
+                    writeLimiter.release(writeStart, written);
+                    if(writeEvent.shouldCommit()){
+                        boolean created = outcome != null && Boolean.TRUE.equals(outcome.getCreated());
+                        commitDMWriteEvent(writeEvent, AuditEventDMWriteEvent.TRANSPORT_HTTP, clusterService.resolveSourceParticipantName(auditEvent), 1, created ? 1 : 0, written);
+                    }
+                }
+                if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+                    recentAuditEventIndex.recordAuditEvent(auditEvent);
+                    latencyService.recordAcknowledgement(auditEvent, AuditEventDMWriteEvent.TRANSPORT_HTTP);
+                }
             } else {
-                getLogger().debug(".writeAuditEvent(): AUDIT_EVENT_PERSISTENCE is false, merely printing event to log file");
-                getLogger().warn("AuditEvent->{}", getFHIRContextUtility().getJsonParser().encodeResourceToString(auditEvent));
+                getLogger().debug(".createAuditEvent(): AUDIT_EVENT_PERSISTENCE is false, merely printing event to log file");
+                getLogger().warn("AuditEvent->{}", parserService.encodeAuditEvent(sealedEvent));
                 outcome = new MethodOutcome();
                 outcome.setCreated(true);
             }
         } catch (Exception ex){
-            getLogger().error(".writeAuditEvent(): ", ex);
+            getLogger().error(".createAuditEvent(): ", ex);
             outcome = new MethodOutcome();
             outcome.setCreated(false);
         }
-        getLogger().debug(".writeAuditEvent(): Exit, outcome->{}", outcome);
+        getLogger().debug(".createAuditEvent(): Exit, outcome->{}", outcome);
         return(outcome);
     }
 
-    private boolean persistAuditEvent(){
-        if(!this.resolvedAuditPersistenceValue){
-            String auditEventPersistenceValue = processingPlant.getMeAsASoftwareComponent().getOtherConfigurationParameter("AUDIT_EVENT_PERSISTENCE");
-            if (auditEventPersistenceValue.equalsIgnoreCase("true")) {
-                this.auditPersistence = true;
+    /**
+     * Writes the AuditEvents to the DM as a single FHIR batch Bundle. The returned list has one
+     * MethodOutcome per AuditEvent, in the same order. If the DM does not support batch interactions
+     * the events are written individually (and batching is not attempted again); any other failure
+     * fails the whole batch, for the caller to retry.
+     */
+    public List<MethodOutcome> writeAuditEventBatch(List<AuditEvent> auditEventList){
+        if(auditEventList.isEmpty()){
+            return(new ArrayList<>());
+        }
+        return(writeAuditEventBatch(auditEventList, sealAuditEventBatch(auditEventList)));
+    }
+
+    protected List<MethodOutcome> writeAuditEventBatch(List<AuditEvent> auditEventList, AuditEventBatchSeal batchSeal){
+        getLogger().debug(".writeAuditEventBatch(): Entry, count->{}", auditEventList.size());
+        List<MethodOutcome> outcomeList;
+        if(!persistAuditEvent() || !batchWriteSupported || auditEventList.size() == 1){
+            outcomeList = createAuditEvents(auditEventList, batchSeal.getAuditEventList());
+            acknowledgeBatchSeal(batchSeal, outcomeList);
+            getLogger().debug(".writeAuditEventBatch(): Exit, written individually");
+            return(outcomeList);
+        }
+        Bundle batchBundle = toBatchBundle(batchSeal.getAuditEventList());
+        Bundle responseBundle = null;
+        long writeStart = writeLimiter.acquire();
+        if(writeStart == AdaptiveDMWriteLimiter.NOT_ACQUIRED){
+            getLogger().warn(".writeAuditEventBatch(): Exit, DM write limit not available");
+            outcomeList = failedOutcomes(auditEventList.size());
+            acknowledgeBatchSeal(batchSeal, outcomeList);
+            return(outcomeList);
+        }
+        AuditEventDMWriteEvent writeEvent = new AuditEventDMWriteEvent();
+        writeEvent.begin();
+        try {
+            responseBundle = getClient().transaction().withBundle(batchBundle).encodedJson().execute();
+            writeLimiter.release(writeStart, true);
+        } catch (Exception ex) {
+            writeLimiter.release(writeStart, false);
+            commitDMWriteEvent(writeEvent, AuditEventDMWriteEvent.TRANSPORT_HTTP_BATCH, null, auditEventList.size(), 0, false);
+            outcomeList = handleBatchWriteFailure(auditEventList, batchSeal.getAuditEventList(), ex);
+            acknowledgeBatchSeal(batchSeal, outcomeList);
+            return(outcomeList);
+        }
+        outcomeList = toBatchOutcomes(auditEventList, responseBundle, writeEvent);
+        acknowledgeBatchSeal(batchSeal, outcomeList);
+        getLogger().debug(".writeAuditEventBatch(): Exit, count->{}", outcomeList.size());
+        return(outcomeList);
+    }
+
+    /**
+     * Seals a copy of the AuditEvents as one batch (when they are to be persisted). The returned seal
+     * has to be passed on to the write, so the DM's answer can be recorded against it.
+     */
+    public AuditEventBatchSeal sealAuditEventBatch(List<AuditEvent> auditEventList){
+        if(!persistAuditEvent()){
+            return(new AuditEventBatchSeal(auditEventList));
+        }
+        return(integrityService.sealBatch(auditEventList));
+    }
+
+    /**
+     * Encodes a sealed batch as a FHIR batch Bundle, ready for writeEncodedAuditEventBatch(). This lets
+     * a caller do the CPU-bound sealing and encoding on a different thread from the I/O-bound write.
+     *
+     * @return the encoded Bundle, or null if the AuditEvents have to be written individually (which
+     * writeEncodedAuditEventBatch() then does)
+     */
+    public String encodeAuditEventBatch(AuditEventBatchSeal batchSeal){
+        if(!persistAuditEvent() || !batchWriteSupported || batchSeal.getAuditEventList().size() <= 1){
+            return(null);
+        }
+        return(parserService.encodeResourceToString(toBatchBundle(batchSeal.getAuditEventList())));
+    }
+
+    /**
+     * Writes a batch sealed by sealAuditEventBatch() and encoded by encodeAuditEventBatch(), returning
+     * one MethodOutcome per AuditEvent (in the same order). A null encodedBundle means the batch could
+     * not be encoded, and it is written by writeAuditEventBatch() instead; a null batchSeal means it was
+     * not sealed either. Failures are handled as in writeAuditEventBatch().
+     */
+    public List<MethodOutcome> writeEncodedAuditEventBatch(List<AuditEvent> auditEventList, AuditEventBatchSeal batchSeal, String encodedBundle){
+        getLogger().debug(".writeEncodedAuditEventBatch(): Entry, count->{}", auditEventList.size());
+        if(batchSeal == null){
+            return(writeAuditEventBatch(auditEventList));
+        }
+        if(encodedBundle == null){
+            return(writeAuditEventBatch(auditEventList, batchSeal));
+        }
+        List<MethodOutcome> outcomeList;
+        long writeStart = writeLimiter.acquire();
+        if(writeStart == AdaptiveDMWriteLimiter.NOT_ACQUIRED){
+            getLogger().warn(".writeEncodedAuditEventBatch(): Exit, DM write limit not available");
+            outcomeList = failedOutcomes(auditEventList.size());
+            acknowledgeBatchSeal(batchSeal, outcomeList);
+            return(outcomeList);
+        }
+        Bundle responseBundle = null;
+        AuditEventDMWriteEvent writeEvent = new AuditEventDMWriteEvent();
+        writeEvent.begin();
+        try {
+            String encodedResponse = getClient().transaction().withBundle(encodedBundle).encodedJson().execute();
+            responseBundle = parserService.parseResource(Bundle.class, encodedResponse);
+            writeLimiter.release(writeStart, true);
+        } catch (Exception ex) {
+            writeLimiter.release(writeStart, false);
+            commitDMWriteEvent(writeEvent, AuditEventDMWriteEvent.TRANSPORT_HTTP_BATCH, null, auditEventList.size(), 0, false);
+            outcomeList = handleBatchWriteFailure(auditEventList, batchSeal.getAuditEventList(), ex);
+            acknowledgeBatchSeal(batchSeal, outcomeList);
+            return(outcomeList);
+        }
+        outcomeList = toBatchOutcomes(auditEventList, responseBundle, writeEvent);
+        acknowledgeBatchSeal(batchSeal, outcomeList);
+        getLogger().debug(".writeEncodedAuditEventBatch(): Exit, count->{}", outcomeList.size());
+        return(outcomeList);
+    }
+
+    protected List<MethodOutcome> createAuditEvents(List<AuditEvent> auditEventList, List<AuditEvent> sealedList){
+        List<MethodOutcome> outcomeList = new ArrayList<>(auditEventList.size());
+        for(int index = 0; index < auditEventList.size(); index++){
+            outcomeList.add(createAuditEvent(auditEventList.get(index), sealedList.get(index)));
+        }
+        return(outcomeList);
+    }
+
+    protected void acknowledgeBatchSeal(AuditEventBatchSeal batchSeal, List<MethodOutcome> outcomeList){
+        int createdCount = 0;
+        for(MethodOutcome currentOutcome: outcomeList){
+            if(currentOutcome != null && Boolean.TRUE.equals(currentOutcome.getCreated())){
+                createdCount += 1;
+            }
+        }
+        integrityService.acknowledgeBatch(batchSeal, createdCount);
+    }
+
+    protected Bundle toBatchBundle(List<AuditEvent> auditEventList){
+        Bundle batchBundle = new Bundle();
+        batchBundle.setType(Bundle.BundleType.BATCH);
+        for(AuditEvent currentEvent: auditEventList){
+            Bundle.BundleEntryComponent entry = batchBundle.addEntry();
+            entry.setResource(currentEvent);
+            entry.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("AuditEvent");
+        }
+        return(batchBundle);
+    }
+
+    /**
+     * Splits the batch response back into one MethodOutcome per AuditEvent, recording each created
+     * AuditEvent, and commits the (already begun) DM write event.
+     */
+    protected List<MethodOutcome> toBatchOutcomes(List<AuditEvent> auditEventList, Bundle responseBundle, AuditEventDMWriteEvent writeEvent){
+        writeEvent.end();
+        List<MethodOutcome> outcomeList = new ArrayList<>(auditEventList.size());
+        int createdCount = 0;
+        for(int index = 0; index < auditEventList.size(); index++){
+            MethodOutcome outcome = new MethodOutcome();
+            outcome.setCreated(false);
+            if(responseBundle != null && index < responseBundle.getEntry().size()){
+                Bundle.BundleEntryResponseComponent entryResponse = responseBundle.getEntry().get(index).getResponse();
+                String status = entryResponse.getStatus();
+                if(status != null && (status.startsWith("201") || status.startsWith("200"))){
+                    outcome.setCreated(true);
+                    if(entryResponse.hasLocation()){
+                        outcome.setId(new IdType(entryResponse.getLocation()));
+                    }
+                    recentAuditEventIndex.recordAuditEvent(auditEventList.get(index));
+                    latencyService.recordAcknowledgement(auditEventList.get(index), AuditEventDMWriteEvent.TRANSPORT_HTTP_BATCH);
+                    createdCount += 1;
+                }
+            }
+            outcomeList.add(outcome);
+        }
+        commitDMWriteEvent(writeEvent, AuditEventDMWriteEvent.TRANSPORT_HTTP_BATCH, null, auditEventList.size(), createdCount, true);
+        return(outcomeList);
+    }
+
+    /**
+     * Only an explicit "not supported" answer from the DM (HTTP 400, 405 or 501, or a not-supported
+     * OperationOutcome) switches batching off, and the batch is then written individually. Anything
+     * else (a timeout, a 5xx, a dropped connection) is a transient failure: the whole batch is failed
+     * back to the caller, to be retried under its backoff rather than as a burst of single writes.
+     */
+    protected List<MethodOutcome> handleBatchWriteFailure(List<AuditEvent> auditEventList, List<AuditEvent> sealedList, Exception failure){
+        if(!isBatchUnsupported(failure)){
+            getLogger().warn(".handleBatchWriteFailure(): Batch write failed, returning it for retry, count->{}, message->{}", auditEventList.size(), ExceptionUtils.getMessage(failure));
+            return(failedOutcomes(auditEventList.size()));
+        }
+        getLogger().warn(".handleBatchWriteFailure(): DM does not support batch interactions, writing individually from now on, message->{}", ExceptionUtils.getMessage(failure));
+        batchWriteSupported = false;
+        return(createAuditEvents(auditEventList, sealedList));
+    }
+
+    protected boolean isBatchUnsupported(Exception failure){
+        if(!(failure instanceof BaseServerResponseException)){
+            return(false);
+        }
+        BaseServerResponseException responseException = (BaseServerResponseException)failure;
+        int statusCode = responseException.getStatusCode();
+        if(statusCode == 400 || statusCode == 405 || statusCode == 501){
+            return(true);
+        }
+        if(responseException.getOperationOutcome() instanceof OperationOutcome){
+            for(OperationOutcome.OperationOutcomeIssueComponent currentIssue: ((OperationOutcome)responseException.getOperationOutcome()).getIssue()){
+                if(currentIssue.getCode() == OperationOutcome.IssueType.NOTSUPPORTED){
+                    return(true);
+                }
+            }
+        }
+        return(false);
+    }
+
+    protected List<MethodOutcome> failedOutcomes(int count){
+        List<MethodOutcome> outcomeList = new ArrayList<>(count);
+        for(int index = 0; index < count; index++){
+            MethodOutcome outcome = new MethodOutcome();
+            outcome.setCreated(false);
+            outcomeList.add(outcome);
+        }
+        return(outcomeList);
+    }
+
+    /**
+     * Searches the DM for AuditEvents (newest first), returning the first page of the searchset.
+     */
+    public Bundle searchAuditEvents(AuditEventSearchQuery query){
+        getLogger().debug(".searchAuditEvents(): Entry, query->{}", query);
+        IQuery<Bundle> search = getClient().search().forResource(AuditEvent.class).returnBundle(Bundle.class);
+        if(StringUtils.isNotBlank(query.getEntity())){
+            search = search.and(AuditEvent.ENTITY.hasId(query.getEntity()));
+        }
+        if(StringUtils.isNotBlank(query.getAgent())){
+            search = search.and(AuditEvent.AGENT.hasId(query.getAgent()));
+        }
+        if(StringUtils.isNotBlank(query.getType())){
+            if(query.getType().contains("|")){
+                search = search.and(AuditEvent.TYPE.exactly().systemAndCode(StringUtils.substringBeforeLast(query.getType(), "|"), StringUtils.substringAfterLast(query.getType(), "|")));
             } else {
-                this.auditPersistence = false;
+                search = search.and(AuditEvent.TYPE.exactly().code(query.getType()));
+            }
+        }
+        if(query.getSince() != null){
+            search = search.and(AuditEvent.DATE.afterOrEquals().millis(query.getSince()));
+        }
+        if(query.getUntil() != null){
+            search = search.and(AuditEvent.DATE.beforeOrEquals().millis(query.getUntil()));
+        }
+        Bundle searchResult = search.sort().descending(AuditEvent.DATE).count(query.getEffectiveCount()).execute();
+        getLogger().debug(".searchAuditEvents(): Exit, entries->{}", searchResult.getEntry().size());
+        return(searchResult);
+    }
+
+    /**
+     * Loads a further page of a DM searchset, given the page's URL (a "next" link of a previous page).
+     * Only URLs on the DM itself are followed.
+     */
+    public Bundle loadAuditEventSearchPage(String pageURL){
+        getLogger().debug(".loadAuditEventSearchPage(): Entry, pageURL->{}", pageURL);
+        // paging links are either "<base>?_getpages=..." or "<base>/AuditEvent?...", the separator stops "<base>.evil" matching
+        String serverBase = StringUtils.removeEnd(getClient().getServerBase(), "/");
+        if(pageURL == null || !(pageURL.startsWith(serverBase + "?") || pageURL.startsWith(serverBase + "/"))){
+            throw new IllegalArgumentException("Search page URL is not on the DM, pageURL->" + pageURL);
+        }
+        Bundle searchPage = getClient().loadPage().byUrl(pageURL).andReturnBundle(Bundle.class).execute();
+        getLogger().debug(".loadAuditEventSearchPage(): Exit, entries->{}", searchPage.getEntry().size());
+        return(searchPage);
+    }
+
+    /**
+     * Brings the DM connection up ahead of the first write: resolves the configuration and the DM
+     * endpoint, opens DM_CONNECTION_WARMUP_COUNT pooled connections with concurrent metadata requests,
+     * then checks the DM answers a health (metadata) request. Each step is recorded with the readiness
+     * service. When AUDIT_EVENT_PERSISTENCE is off there is no DM, and the client is ready immediately.
+     *
+     * @return true if the DM can be written to now
+     */
+    public boolean prepareForWrites(){
+        getLogger().debug(".prepareForWrites(): Entry");
+        boolean persisting = persistAuditEvent();
+        readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.CONFIGURATION_RESOLVED);
+        if(!persisting){
+            getLogger().debug(".prepareForWrites(): Exit, AUDIT_EVENT_PERSISTENCE is false");
+            return(true);
+        }
+        if(deriveTargetEndpointDetails() == null){
+            getLogger().debug(".prepareForWrites(): Exit, DM endpoint not resolved");
+            return(false);
+        }
+        readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.DM_ENDPOINT_RESOLVED);
+        if(!readinessService.hasReachedPhase(HestiaAuditIMStartupPhaseEnum.DM_CONNECTION_POOL_WARMED)){
+            int warmupCount = Math.max(1, configurationService.getIntegerParameter(DM_CONNECTION_WARMUP_COUNT, DEFAULT_CONNECTION_WARMUP_COUNT));
+            ExecutorService warmupExecutor = Executors.newFixedThreadPool(warmupCount);
+            try {
+                CompletableFuture<?>[] warmupRequests = new CompletableFuture<?>[warmupCount];
+                for(int index = 0; index < warmupCount; index++){
+                    warmupRequests[index] = CompletableFuture.runAsync(this::requestDMMetadata, warmupExecutor);
+                }
+                CompletableFuture.allOf(warmupRequests).join();
+            } catch (Exception ex) {
+                getLogger().debug(".prepareForWrites(): Exit, connection warm-up failed, message->{}", ExceptionUtils.getMessage(ex));
+                return(false);
+            } finally {
+                warmupExecutor.shutdown();
             }
+            readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.DM_CONNECTION_POOL_WARMED);
+        }
+        try {
+            requestDMMetadata();
+        } catch (Exception ex) {
+            getLogger().debug(".prepareForWrites(): Exit, DM health check failed, message->{}", ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+        readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.DM_HEALTH_CHECK_PASSED);
+        getLogger().debug(".prepareForWrites(): Exit, ready");
+        return(true);
+    }
+
+    protected void commitDMWriteEvent(AuditEventDMWriteEvent writeEvent, String transport, String source, int batchSize, int createdCount, boolean success){
+        if(writeEvent.shouldCommit()){
+            writeEvent.transport = transport;
+            writeEvent.source = source;
+            writeEvent.batchSize = batchSize;
+            writeEvent.createdCount = createdCount;
+            writeEvent.success = success;
+            writeEvent.commit();
+        }
+    }
+
+    protected void requestDMMetadata(){
+        getClient().capabilities().ofType(CapabilityStatement.class).execute();
+    }
+
+    public boolean persistAuditEvent(){
+        if(!this.resolvedAuditPersistenceValue){
+            this.auditPersistence = configurationService.getBooleanParameter("AUDIT_EVENT_PERSISTENCE", false);
             this.resolvedAuditPersistenceValue = true;
         }
         return(this.auditPersistence);
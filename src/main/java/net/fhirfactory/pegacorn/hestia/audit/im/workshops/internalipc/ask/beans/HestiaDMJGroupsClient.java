@@ -23,10 +23,7 @@
  */
 package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
 
-import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.MethodOutcome;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import net.fhirfactory.pegacorn.core.interfaces.topology.ProcessingPlantInterface;
 import net.fhirfactory.pegacorn.core.model.capabilities.base.CapabilityUtilisationRequest;
 import net.fhirfactory.pegacorn.core.model.capabilities.base.CapabilityUtilisationResponse;
@@ -34,22 +31,24 @@ import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelManifest;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoW;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoWPayload;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoWProcessingOutcomeEnum;
-import net.fhirfactory.pegacorn.core.model.transaction.model.PegacornTransactionOutcome;
-import net.fhirfactory.pegacorn.core.model.transaction.model.SimpleResourceID;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventDMWriteEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventUoWEncapsulationEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.index.RecentAuditEventIndex;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
 import net.fhirfactory.pegacorn.petasos.endpoints.services.tasking.CapabilityUtilisationBroker;
-import net.fhirfactory.pegacorn.util.FHIRContextUtility;
 import org.apache.camel.Exchange;
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.hl7.fhir.r4.model.AuditEvent;
-import org.hl7.fhir.r4.model.IdType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.UUID;
 
@@ -63,8 +62,6 @@ public class HestiaDMJGroupsClient {
     private static final Logger LOG = LoggerFactory.getLogger(HestiaDMJGroupsClient.class);
     
     private boolean initialised;
-    private ObjectMapper jsonMapper;
-    private IParser fhirParser;
     
     private static final String AUDIT_EVENT_PERSISTENCE_DATA_MANAGER = "aether-hestia-audit-im";
     
@@ -72,10 +69,25 @@ public class HestiaDMJGroupsClient {
     private ProcessingPlantInterface processingPlant;
     
     @Inject
-    private FHIRContextUtility fhirContextUtility;
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private RecentAuditEventIndex recentAuditEventIndex;
 
     @Inject
     private CapabilityUtilisationBroker capabilityUtilisationBroker;
+
+    @Inject
+    private DataParcelManifestFactory manifestFactory;
+
+    @Inject
+    private MethodOutcomeCodec methodOutcomeCodec;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
     
   
     //
@@ -96,7 +108,6 @@ public class HestiaDMJGroupsClient {
         if(isInitialised()){
             getLogger().debug(".initialise(): Exit, already initialised!");
         } else {
-            fhirParser = fhirContextUtility.getJsonParser();
             setInitialised(true);
         }
     }
@@ -116,7 +127,7 @@ public class HestiaDMJGroupsClient {
             return(uow);
         }
 
-        AuditEvent auditEvent = (AuditEvent) fhirParser.parseResource(auditEventString);
+        AuditEvent auditEvent = parserService.parseAuditEvent(auditEventString);
         
         if(auditEvent == null){
             uow.setProcessingOutcome(UoWProcessingOutcomeEnum.UOW_OUTCOME_FAILED);
@@ -126,23 +137,25 @@ public class HestiaDMJGroupsClient {
         
         MethodOutcome outcome = writeAuditEventIntoDM(auditEvent);
         
+        AuditEventUoWEncapsulationEvent encapsulationEvent = new AuditEventUoWEncapsulationEvent();
+        encapsulationEvent.begin();
         String outcomeAsString = null;
         try {
-            outcomeAsString = getJSONMapper().writeValueAsString(outcome);
-        } catch (JsonProcessingException ex) {
+            outcomeAsString = methodOutcomeCodec.encodeMethodOutcome(outcome);
+        } catch (IOException ex) {
             getLogger().warn(".persistAuditEvent(): Cannot convert outcome to String, exception->{}", ExceptionUtils.getStackTrace(ex));
             uow.setProcessingOutcome(UoWProcessingOutcomeEnum.UOW_OUTCOME_FAILED);
             uow.setFailureDescription(ExceptionUtils.getStackTrace(ex));
+            commitEncapsulationEvent(encapsulationEvent, null, false);
             return(uow);
         }
         UoWPayload egressPayload = new UoWPayload();
         DataParcelManifest ingresManifest = uow.getIngresContent().getPayloadManifest();
-        DataParcelManifest egressManifest = SerializationUtils.clone(ingresManifest);
-        egressManifest.getContentDescriptor().setDataParcelDiscriminatorType("RESTfulAPI");
-        egressManifest.getContentDescriptor().setDataParcelDiscriminatorValue("MethodOutcome");
+        DataParcelManifest egressManifest = manifestFactory.getEgressManifest(ingresManifest, "RESTfulAPI", "MethodOutcome");
         egressPayload.setPayload(outcomeAsString);
         egressPayload.setPayloadManifest(egressManifest);
         uow.getEgressContent().addPayloadElement(egressPayload);
+        commitEncapsulationEvent(encapsulationEvent, outcomeAsString, true);
         
         getLogger().debug(".persistAuditEvent(): Exit, uow->{}", uow);
         return(uow);
@@ -150,12 +163,22 @@ public class HestiaDMJGroupsClient {
     
     public  MethodOutcome writeAuditEventIntoDM(AuditEvent auditEvent){
         String auditEventString = convertToJSONString(auditEvent);
-        MethodOutcome outcome = writeAuditEventIntoDM(auditEventString);
+        MethodOutcome outcome = utiliseAuditEventPersistenceCapability(auditEventString, clusterService.resolveSourceParticipantName(auditEvent));
+        if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+            recentAuditEventIndex.recordAuditEvent(auditEvent);
+            latencyService.recordAcknowledgement(auditEvent, AuditEventDMWriteEvent.TRANSPORT_JGROUPS);
+        }
         return(outcome);
     }
         
     public  MethodOutcome writeAuditEventIntoDM(String auditEventAsString){
+        return(utiliseAuditEventPersistenceCapability(auditEventAsString, null));
+    }
+
+    protected MethodOutcome utiliseAuditEventPersistenceCapability(String auditEventAsString, String source){
         getLogger().debug(".utiliseAuditEventPersistenceCapability(): Entry, auditEventAsString --> {}", auditEventAsString);
+        AuditEventDMWriteEvent writeEvent = new AuditEventDMWriteEvent();
+        writeEvent.begin();
         //
         // Build Write
         //
@@ -167,66 +190,43 @@ public class HestiaDMJGroupsClient {
         //
         // Do Write
         //
-        CapabilityUtilisationResponse auditEventWriteOutcome = capabilityUtilisationBroker.executeTask(AUDIT_EVENT_PERSISTENCE_DATA_MANAGER, task);
-        //
-        // Extract the response
-        //
-        String resultString = auditEventWriteOutcome.getResponseStringContent();
-        MethodOutcome methodOutcome = convertToMethodOutcome(resultString);
+        CapabilityUtilisationResponse auditEventWriteOutcome = null;
+        MethodOutcome methodOutcome = null;
+        try {
+            auditEventWriteOutcome = capabilityUtilisationBroker.executeTask(AUDIT_EVENT_PERSISTENCE_DATA_MANAGER, task);
+            //
+            // Extract the response
+            //
+            String resultString = auditEventWriteOutcome.getResponseStringContent();
+            methodOutcome = methodOutcomeCodec.decodeMethodOutcome(resultString);
+        } finally {
+            if(writeEvent.shouldCommit()){
+                boolean created = methodOutcome != null && Boolean.TRUE.equals(methodOutcome.getCreated());
+                writeEvent.transport = AuditEventDMWriteEvent.TRANSPORT_JGROUPS;
+                writeEvent.source = source;
+                writeEvent.batchSize = 1;
+                writeEvent.createdCount = created ? 1 : 0;
+                writeEvent.success = auditEventWriteOutcome != null;
+                writeEvent.commit();
+            }
+        }
         getLogger().debug(".utiliseAuditEventPersistenceCapability(): Entry, methodOutcome --> {}", methodOutcome);
         return(methodOutcome);
     }
     
-    private String convertToJSONString(AuditEvent auditEvent){
-        String auditEventString = fhirParser.encodeResourceToString(auditEvent);
-        return(auditEventString);
-    }
-    
-    private MethodOutcome convertToMethodOutcome(String methodOutcomeString){
-        if(StringUtils.isEmpty(methodOutcomeString)){
-            MethodOutcome outcome = new MethodOutcome();
-            outcome.setCreated(false);
-            return(outcome);
-        }
-        PegacornTransactionOutcome transactionOutcome = null;
-        try {
-            transactionOutcome = getJSONMapper().readValue(methodOutcomeString, PegacornTransactionOutcome.class);
-        } catch (JsonProcessingException e) {
-            getLogger().error(".convertToMethodOutcome(): Cannot parse MethodOutcome object! ", e);
-        }
-        MethodOutcome methodOutcome = null;
-        if(transactionOutcome != null){
-            String resourceURL = null;
-            String resourceType = "AuditEvent";
-            if(transactionOutcome.isTransactionSuccessful()) {
-                String resourceValue = transactionOutcome.getResourceID().getValue();
-                String resourceVersion = SimpleResourceID.DEFAULT_VERSION;
-                if(transactionOutcome.getResourceID() != null) {
-                    if (transactionOutcome.getResourceID().getResourceType() != null) {
-                        resourceType = transactionOutcome.getResourceID().getResourceType();
-                    }
-                    if (transactionOutcome.getResourceID().getVersion() != null) {
-                        resourceVersion = transactionOutcome.getResourceID().getVersion();
-                    }
-                    if (transactionOutcome.getResourceID().getUrl() != null) {
-                        resourceURL = transactionOutcome.getResourceID().getUrl();
-                    }
-                    IdType id = new IdType();
-                    id.setParts(resourceURL, resourceType, resourceValue, resourceVersion);
-                    methodOutcome = new MethodOutcome();
-                    methodOutcome.setId(id);
-                    methodOutcome.setCreated(transactionOutcome.isTransactionSuccessful());
-                }
-            }
-        }
-        if(methodOutcome == null) {
-            methodOutcome = new MethodOutcome();
-            methodOutcome.setCreated(false);
+    private void commitEncapsulationEvent(AuditEventUoWEncapsulationEvent encapsulationEvent, String payload, boolean success){
+        if(encapsulationEvent.shouldCommit()){
+            encapsulationEvent.operation = AuditEventUoWEncapsulationEvent.OPERATION_ENCAPSULATE;
+            encapsulationEvent.payloadLength = payload != null ? payload.length() : 0;
+            encapsulationEvent.success = success;
+            encapsulationEvent.commit();
         }
-        return(methodOutcome);
     }
 
-
+    private String convertToJSONString(AuditEvent auditEvent){
+        String auditEventString = parserService.encodeAuditEvent(auditEvent);
+        return(auditEventString);
+    }
     
     //
     // Getters (and Setters)
@@ -248,8 +248,4 @@ public class HestiaDMJGroupsClient {
         return(processingPlant);
     }
     
-    protected ObjectMapper getJSONMapper(){
-        return(this.jsonMapper);
-    }
-    
 }
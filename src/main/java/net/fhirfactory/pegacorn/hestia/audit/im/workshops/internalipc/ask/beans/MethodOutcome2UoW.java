@@ -22,39 +22,34 @@
 package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import net.fhirfactory.pegacorn.core.constants.petasos.PetasosPropertyConstants;
-import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelManifest;
-import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelTypeDescriptor;
-import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelDirectionEnum;
-import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelNormalisationStatusEnum;
-import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelValidationStatusEnum;
-import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.PolicyEnforcementPointApprovalStatusEnum;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoW;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoWPayload;
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoWProcessingOutcomeEnum;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventUoWEncapsulationEvent;
 import net.fhirfactory.pegacorn.petasos.core.tasks.accessors.PetasosFulfillmentTaskSharedInstance;
 import org.apache.camel.Exchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
 
 @ApplicationScoped
 public class MethodOutcome2UoW {
     private static final Logger LOG = LoggerFactory.getLogger(MethodOutcome2UoW.class);
 
-    private ObjectMapper jsonMapper;
+    @Inject
+    private DataParcelManifestFactory manifestFactory;
 
-    @PostConstruct
-    public void initialise(){
-        jsonMapper = new ObjectMapper();
-    }
+    @Inject
+    private MethodOutcomeCodec methodOutcomeCodec;
 
     public UoW encapsulateMethodOutcomeIntoUoW(MethodOutcome outcome, Exchange camelExchange){
         LOG.debug(".encapsulateMethodOutcomeIntoUoW(): Entry");
+        AuditEventUoWEncapsulationEvent encapsulationEvent = new AuditEventUoWEncapsulationEvent();
+        encapsulationEvent.begin();
 
         PetasosFulfillmentTaskSharedInstance fulfillmentTask = camelExchange.getProperty(PetasosPropertyConstants.WUP_PETASOS_FULFILLMENT_TASK_EXCHANGE_PROPERTY, PetasosFulfillmentTaskSharedInstance.class);
         UoW uowFromExchange = fulfillmentTask.getTaskWorkItem();
@@ -62,8 +57,8 @@ public class MethodOutcome2UoW {
         String outcomeAsString = null;
         String failureString = null;
         try {
-            outcomeAsString = jsonMapper.writeValueAsString(outcome);
-        } catch (JsonProcessingException e) {
+            outcomeAsString = methodOutcomeCodec.encodeMethodOutcome(outcome);
+        } catch (IOException e) {
             LOG.warn(".encapsulateMethodOutcomeIntoUoW(): Could not convert outcome, error->",e);
             failureString = e.getMessage();
         }
@@ -71,32 +66,19 @@ public class MethodOutcome2UoW {
         if(outcomeAsString != null){
             UoWPayload payload = new UoWPayload();
             payload.setPayload(outcomeAsString);
-            payload.setPayloadManifest(createManifestForMethodOutcome());
+            payload.setPayloadManifest(manifestFactory.getMethodOutcomeManifest());
             uowFromExchange.getEgressContent().addPayloadElement(payload);
             uowFromExchange.setProcessingOutcome(UoWProcessingOutcomeEnum.UOW_OUTCOME_SUCCESS);
         } else {
             uowFromExchange.setFailureDescription(failureString);
             uowFromExchange.setProcessingOutcome(UoWProcessingOutcomeEnum.UOW_OUTCOME_FAILED);
         }
+        if(encapsulationEvent.shouldCommit()){
+            encapsulationEvent.operation = AuditEventUoWEncapsulationEvent.OPERATION_ENCAPSULATE;
+            encapsulationEvent.payloadLength = outcomeAsString != null ? outcomeAsString.length() : 0;
+            encapsulationEvent.success = outcomeAsString != null;
+            encapsulationEvent.commit();
+        }
         return(uowFromExchange);
     }
-
-    private DataParcelManifest createManifestForMethodOutcome(){
-        DataParcelTypeDescriptor descriptor = new DataParcelTypeDescriptor();
-        descriptor.setDataParcelDefiner("University Health Network");
-        descriptor.setDataParcelCategory("FHIR-REST");
-        descriptor.setDataParcelSubCategory("API");
-        descriptor.setDataParcelResource("MethodOutcome");
-        descriptor.setVersion("R4");
-
-        DataParcelManifest manifest = new DataParcelManifest();
-        manifest.setContentDescriptor(descriptor);
-        manifest.setDataParcelFlowDirection(DataParcelDirectionEnum.INFORMATION_FLOW_INBOUND_DATA_PARCEL);
-        manifest.setValidationStatus(DataParcelValidationStatusEnum.DATA_PARCEL_CONTENT_VALIDATED_TRUE);
-        manifest.setNormalisationStatus(DataParcelNormalisationStatusEnum.DATA_PARCEL_CONTENT_NORMALISATION_FALSE);
-        manifest.setEnforcementPointApprovalStatus(PolicyEnforcementPointApprovalStatusEnum.POLICY_ENFORCEMENT_POINT_APPROVAL_NEGATIVE);
-        manifest.setInterSubsystemDistributable(false);
-
-        return(manifest);
-    }
 }
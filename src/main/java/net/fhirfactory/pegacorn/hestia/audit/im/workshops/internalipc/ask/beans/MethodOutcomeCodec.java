@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.fhirfactory.pegacorn.core.model.transaction.model.SimpleResourceID;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Purpose-built JSON codec for the id/version/created part of a MethodOutcome.
+ *
+ * The encoder writes the same property names that the generic Jackson bean serialisation of a
+ * MethodOutcome uses ("created" and "id" with "value", "resourceType", "idPart", "versionIdPart" and
+ * "baseUrl"), but skips the resource, operation outcome and response header graphs. The decoder
+ * streams through either that form or the PegacornTransactionOutcome form returned by the DM
+ * ("transactionSuccessful" and "resourceID") and ignores every other field.
+ */
+@ApplicationScoped
+public class MethodOutcomeCodec {
+    private static final Logger LOG = LoggerFactory.getLogger(MethodOutcomeCodec.class);
+
+    private static final String DEFAULT_RESOURCE_TYPE = "AuditEvent";
+    private static final int INITIAL_BUFFER_SIZE = 160;
+
+    private final JsonFactory jsonFactory;
+
+    //
+    // Constructor(s)
+    //
+
+    public MethodOutcomeCodec(){
+        this.jsonFactory = new JsonFactory();
+    }
+
+    //
+    // Encoding
+    //
+
+    public String encodeMethodOutcome(MethodOutcome outcome) throws IOException {
+        StringWriter writer = new StringWriter(INITIAL_BUFFER_SIZE);
+        try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            generator.writeStartObject();
+            if (outcome.getId() != null) {
+                IIdType id = outcome.getId();
+                generator.writeObjectFieldStart("id");
+                writeOptionalString(generator, "value", id.getValue());
+                writeOptionalString(generator, "resourceType", id.getResourceType());
+                writeOptionalString(generator, "idPart", id.getIdPart());
+                writeOptionalString(generator, "versionIdPart", id.getVersionIdPart());
+                writeOptionalString(generator, "baseUrl", id.getBaseUrl());
+                generator.writeEndObject();
+            } else {
+                generator.writeNullField("id");
+            }
+            if (outcome.getCreated() != null) {
+                generator.writeBooleanField("created", outcome.getCreated());
+            } else {
+                generator.writeNullField("created");
+            }
+            generator.writeEndObject();
+        }
+        return(writer.toString());
+    }
+
+    protected void writeOptionalString(JsonGenerator generator, String fieldName, String value) throws IOException {
+        if(value == null){
+            generator.writeNullField(fieldName);
+        } else {
+            generator.writeStringField(fieldName, value);
+        }
+    }
+
+    //
+    // Decoding
+    //
+
+    /**
+     * Decodes a MethodOutcome from either its own JSON form or a PegacornTransactionOutcome. The id is
+     * only set when the input has one. Anything that is empty or cannot be decoded yields an outcome
+     * with created=false.
+     */
+    public MethodOutcome decodeMethodOutcome(String outcomeString){
+        MethodOutcome methodOutcome = new MethodOutcome();
+        methodOutcome.setCreated(false);
+        if(StringUtils.isEmpty(outcomeString)){
+            return(methodOutcome);
+        }
+        boolean created = false;
+        String value = null;
+        String resourceType = null;
+        String version = null;
+        String url = null;
+        try (JsonParser parser = jsonFactory.createParser(outcomeString)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return(methodOutcome);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+                switch (fieldName) {
+                    case "created":
+                    case "transactionSuccessful":
+                        created = valueToken == JsonToken.VALUE_TRUE;
+                        break;
+                    case "id":
+                    case "resourceID":
+                        if (valueToken != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            break;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String idFieldName = parser.getCurrentName();
+                            parser.nextToken();
+                            switch (idFieldName) {
+                                case "idPart":
+                                    value = parser.getValueAsString();
+                                    break;
+                                case "value":
+                                    if (value == null) {
+                                        value = parser.getValueAsString();
+                                    }
+                                    break;
+                                case "resourceType":
+                                    resourceType = parser.getValueAsString();
+                                    break;
+                                case "version":
+                                case "versionIdPart":
+                                    version = parser.getValueAsString();
+                                    break;
+                                case "url":
+                                case "baseUrl":
+                                    url = parser.getValueAsString();
+                                    break;
+                                default:
+                                    parser.skipChildren();
+                            }
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (IOException ex) {
+            getLogger().error(".decodeMethodOutcome(): Cannot parse MethodOutcome object! ", ex);
+            return(methodOutcome);
+        }
+        // created is what the DM reported, with or without an id: treating an id-less success as a
+        // failure would have the caller write the AuditEvent again
+        methodOutcome.setCreated(created);
+        if(value != null){
+            IdType id = new IdType();
+            id.setParts(url, resourceType != null ? resourceType : DEFAULT_RESOURCE_TYPE, value, version != null ? version : SimpleResourceID.DEFAULT_VERSION);
+            methodOutcome.setId(id);
+        }
+        return(methodOutcome);
+    }
+
+    //
+    // Getters (and Setters)
+    //
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
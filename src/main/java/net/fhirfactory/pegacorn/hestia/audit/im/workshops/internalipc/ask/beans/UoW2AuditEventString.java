@@ -22,13 +22,22 @@
 package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
 
 import net.fhirfactory.pegacorn.core.model.petasos.uow.UoW;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventUoWEncapsulationEvent;
 
 import javax.enterprise.context.ApplicationScoped;
 
 @ApplicationScoped
 public class UoW2AuditEventString {
     public String extractPayload(UoW uow){
+        AuditEventUoWEncapsulationEvent extractEvent = new AuditEventUoWEncapsulationEvent();
+        extractEvent.begin();
         String payload = uow.getIngresContent().getPayload();
+        if(extractEvent.shouldCommit()){
+            extractEvent.operation = AuditEventUoWEncapsulationEvent.OPERATION_EXTRACT;
+            extractEvent.payloadLength = payload != null ? payload.length() : 0;
+            extractEvent.success = payload != null;
+            extractEvent.commit();
+        }
         return(payload);
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD limiter for writes to the DM. It sets both how many DM requests may be in flight and how
+ * large a batch should be.
+ *
+ * Each completed request reports its round-trip time and whether it succeeded. The baseline RTT is
+ * the minimum RTT over the last two BASELINE_WINDOW periods. While requests succeed, and the RTT stays
+ * within DM_WRITE_LIMITER_RTT_TOLERANCE_PERCENT of the baseline, the limits grow additively: the
+ * concurrency limit by about one per RTT and the batch size limit by one per request. Both limits are
+ * only grown when the current limit is actually being used. When a request fails, or the RTT goes over
+ * the tolerance (the DM is queueing, e.g. during GC or compaction), both limits are cut by
+ * DECREASE_FACTOR. There is at most one cut per smoothed RTT, so a burst of slow responses does not
+ * collapse the limits.
+ *
+ * The limits and decisions are exported through JMX (and so Jolokia) as
+ * net.fhirfactory.pegacorn.hestia.audit.im:type=AdaptiveDMWriteLimiter.
+ */
+@ApplicationScoped
+public class AdaptiveDMWriteLimiter implements AdaptiveDMWriteLimiterMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveDMWriteLimiter.class);
+
+    private static final String DM_WRITE_LIMITER_ENABLED = "DM_WRITE_LIMITER_ENABLED";
+    private static final String DM_WRITE_LIMITER_INITIAL_LIMIT = "DM_WRITE_LIMITER_INITIAL_LIMIT";
+    private static final String DM_WRITE_LIMITER_MINIMUM_LIMIT = "DM_WRITE_LIMITER_MINIMUM_LIMIT";
+    private static final String DM_WRITE_LIMITER_MAXIMUM_LIMIT = "DM_WRITE_LIMITER_MAXIMUM_LIMIT";
+    private static final String DM_WRITE_LIMITER_MAXIMUM_BATCH_SIZE = "DM_WRITE_LIMITER_MAXIMUM_BATCH_SIZE";
+    private static final String DM_WRITE_LIMITER_RTT_TOLERANCE_PERCENT = "DM_WRITE_LIMITER_RTT_TOLERANCE_PERCENT";
+    private static final String DM_WRITE_LIMITER_ACQUIRE_TIMEOUT = "DM_WRITE_LIMITER_ACQUIRE_TIMEOUT";
+
+    private static final int DEFAULT_INITIAL_LIMIT = 8;
+    private static final int DEFAULT_MINIMUM_LIMIT = 1;
+    private static final int DEFAULT_MAXIMUM_LIMIT = 64;
+    private static final int DEFAULT_MAXIMUM_BATCH_SIZE = 200;
+    private static final int MINIMUM_BATCH_SIZE = 1;
+    private static final long DEFAULT_RTT_TOLERANCE_PERCENT = 200L;
+    private static final long DEFAULT_ACQUIRE_TIMEOUT = 30000L;
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final double RTT_SMOOTHING = 0.2;
+    private static final long BASELINE_WINDOW = TimeUnit.SECONDS.toNanos(30);
+
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AdaptiveDMWriteLimiter";
+    public static final long NOT_ACQUIRED = -1L;
+
+    private volatile boolean initialised;
+    private boolean enabled;
+    private int minimumLimit;
+    private int maximumLimit;
+    private int maximumBatchSize;
+    private double rttTolerance;
+    private long acquireTimeout;
+    private ObjectName registeredName;
+
+    private final ReentrantLock limiterLock;
+    private final Condition permitAvailable;
+    private volatile double concurrencyLimit;
+    private volatile double batchSizeLimit;
+    private volatile int inFlight;
+    private volatile double smoothedRTTNanos;
+    private long currentWindowMinimumRTT;
+    private long previousWindowMinimumRTT;
+    private long windowStartNanos;
+    private long lastDecreaseNanos;
+    private volatile String lastDecision;
+    private AtomicLong increaseCount;
+    private AtomicLong decreaseCount;
+    private AtomicLong errorCount;
+    private AtomicLong acquireTimeoutCount;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AdaptiveDMWriteLimiter(){
+        this.initialised = false;
+        this.enabled = false;
+        this.limiterLock = new ReentrantLock();
+        this.permitAvailable = limiterLock.newCondition();
+        this.inFlight = 0;
+        this.smoothedRTTNanos = 0;
+        this.currentWindowMinimumRTT = Long.MAX_VALUE;
+        this.previousWindowMinimumRTT = Long.MAX_VALUE;
+        this.lastDecision = "NONE";
+        this.increaseCount = new AtomicLong(0);
+        this.decreaseCount = new AtomicLong(0);
+        this.errorCount = new AtomicLong(0);
+        this.acquireTimeoutCount = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        enabled = configurationService.getBooleanParameter(DM_WRITE_LIMITER_ENABLED, true);
+        minimumLimit = (int)Math.max(1L, configurationService.getLongParameter(DM_WRITE_LIMITER_MINIMUM_LIMIT, DEFAULT_MINIMUM_LIMIT));
+        maximumLimit = (int)Math.max(minimumLimit, configurationService.getLongParameter(DM_WRITE_LIMITER_MAXIMUM_LIMIT, DEFAULT_MAXIMUM_LIMIT));
+        maximumBatchSize = (int)Math.max(MINIMUM_BATCH_SIZE, configurationService.getLongParameter(DM_WRITE_LIMITER_MAXIMUM_BATCH_SIZE, DEFAULT_MAXIMUM_BATCH_SIZE));
+        rttTolerance = Math.max(100L, configurationService.getLongParameter(DM_WRITE_LIMITER_RTT_TOLERANCE_PERCENT, DEFAULT_RTT_TOLERANCE_PERCENT)) / 100.0;
+        acquireTimeout = Math.max(1L, configurationService.getLongParameter(DM_WRITE_LIMITER_ACQUIRE_TIMEOUT, DEFAULT_ACQUIRE_TIMEOUT));
+        long initialLimit = configurationService.getLongParameter(DM_WRITE_LIMITER_INITIAL_LIMIT, DEFAULT_INITIAL_LIMIT);
+        concurrencyLimit = Math.min(maximumLimit, Math.max(minimumLimit, initialLimit));
+        batchSizeLimit = maximumBatchSize;
+        windowStartNanos = System.nanoTime();
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        initialised = true;
+        getLogger().info(".initialise(): enabled->{}, limit->{}, range->[{},{}], maximumBatchSize->{}, rttTolerance->{}", enabled, concurrencyLimit, minimumLimit, maximumLimit, maximumBatchSize, rttTolerance);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence as well as by the container, so
+     * a second call does nothing.
+     */
+    @PreDestroy
+    public void shutdown(){
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+        registeredName = null;
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Waits (up to DM_WRITE_LIMITER_ACQUIRE_TIMEOUT) for a slot under the current concurrency limit.
+     *
+     * @return the start time to pass to release(), or NOT_ACQUIRED if the wait timed out
+     */
+    public long acquire(){
+        if(!initialised){
+            initialise();
+        }
+        if(!enabled){
+            return(System.nanoTime());
+        }
+        limiterLock.lock();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeout);
+            while(inFlight >= (int)concurrencyLimit){
+                if(remainingNanos <= 0){
+                    acquireTimeoutCount.incrementAndGet();
+                    return(NOT_ACQUIRED);
+                }
+                remainingNanos = permitAvailable.awaitNanos(remainingNanos);
+            }
+            inFlight += 1;
+            return(System.nanoTime());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return(NOT_ACQUIRED);
+        } finally {
+            limiterLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the slot taken by acquire(), and adjusts the limits from the request's outcome.
+     */
+    public void release(long startNanos, boolean success){
+        if(!enabled || startNanos == NOT_ACQUIRED){
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        long rttNanos = Math.max(1L, nowNanos - startNanos);
+        limiterLock.lock();
+        try {
+            boolean limitInUse = inFlight >= (int)concurrencyLimit / 2;
+            inFlight -= 1;
+            if(!success){
+                errorCount.incrementAndGet();
+                decrease(nowNanos, "ERROR");
+            } else {
+                updateRTT(nowNanos, rttNanos);
+                double baselineRTT = getBaselineRTTNanos();
+                if(rttNanos > baselineRTT * rttTolerance){
+                    decrease(nowNanos, "LATENCY");
+                } else if(limitInUse){
+                    concurrencyLimit = Math.min(maximumLimit, concurrencyLimit + (1.0 / concurrencyLimit));
+                    batchSizeLimit = Math.min(maximumBatchSize, batchSizeLimit + 1.0);
+                    increaseCount.incrementAndGet();
+                    lastDecision = "INCREASE";
+                }
+            }
+            permitAvailable.signalAll();
+        } finally {
+            limiterLock.unlock();
+        }
+    }
+
+    /**
+     * @return the batch size the DM can currently take, capped by the caller's own maximum
+     */
+    public int getBatchSize(int configuredBatchSize){
+        if(!initialised){
+            initialise();
+        }
+        if(!enabled){
+            return(configuredBatchSize);
+        }
+        return(Math.max(MINIMUM_BATCH_SIZE, Math.min(configuredBatchSize, (int)batchSizeLimit)));
+    }
+
+    //
+    // Helper Functions
+    //
+
+    private void decrease(long nowNanos, String reason){
+        if(nowNanos - lastDecreaseNanos < (long)smoothedRTTNanos){
+            return;
+        }
+        lastDecreaseNanos = nowNanos;
+        concurrencyLimit = Math.max(minimumLimit, concurrencyLimit * DECREASE_FACTOR);
+        batchSizeLimit = Math.max(MINIMUM_BATCH_SIZE, batchSizeLimit * DECREASE_FACTOR);
+        decreaseCount.incrementAndGet();
+        lastDecision = "DECREASE_" + reason;
+        getLogger().debug(".decrease(): reason->{}, limit->{}, batchSize->{}", reason, concurrencyLimit, batchSizeLimit);
+    }
+
+    private void updateRTT(long nowNanos, long rttNanos){
+        smoothedRTTNanos = smoothedRTTNanos == 0 ? rttNanos : (RTT_SMOOTHING * rttNanos) + ((1 - RTT_SMOOTHING) * smoothedRTTNanos);
+        if(nowNanos - windowStartNanos > BASELINE_WINDOW){
+            previousWindowMinimumRTT = currentWindowMinimumRTT;
+            currentWindowMinimumRTT = Long.MAX_VALUE;
+            windowStartNanos = nowNanos;
+        }
+        currentWindowMinimumRTT = Math.min(currentWindowMinimumRTT, rttNanos);
+    }
+
+    private double getBaselineRTTNanos(){
+        long baseline = Math.min(currentWindowMinimumRTT, previousWindowMinimumRTT);
+        return(baseline == Long.MAX_VALUE ? smoothedRTTNanos : baseline);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public int getConcurrencyLimit() {
+        return((int)concurrencyLimit);
+    }
+
+    @Override
+    public int getInFlight() {
+        return(inFlight);
+    }
+
+    @Override
+    public int getBatchSizeLimit() {
+        return((int)batchSizeLimit);
+    }
+
+    @Override
+    public double getSmoothedRTTMillis() {
+        return(smoothedRTTNanos / 1000000.0);
+    }
+
+    @Override
+    public double getBaselineRTTMillis() {
+        return(getBaselineRTTNanos() / 1000000.0);
+    }
+
+    @Override
+    public long getIncreaseCount() {
+        return(increaseCount.get());
+    }
+
+    @Override
+    public long getDecreaseCount() {
+        return(decreaseCount.get());
+    }
+
+    @Override
+    public long getErrorCount() {
+        return(errorCount.get());
+    }
+
+    @Override
+    public long getAcquireTimeoutCount() {
+        return(acquireTimeoutCount.get());
+    }
+
+    @Override
+    public String getLastDecision() {
+        return(lastDecision);
+    }
+}
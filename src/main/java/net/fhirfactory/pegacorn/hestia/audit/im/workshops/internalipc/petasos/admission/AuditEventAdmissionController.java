@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.admission;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for AuditEvents arriving over the JGroups audit RPCs. It uses a global token bucket
+ * (AUDIT_ADMISSION_GLOBAL_RATE/BURST) and one bucket per source (AUDIT_ADMISSION_SOURCE_RATE/BURST).
+ * Rates are in AuditEvents per second, and a rate of 0 (the default) disables that bucket.
+ *
+ * Per-source buckets are created on first use, up to AUDIT_ADMISSION_MAXIMUM_SOURCES. Any sources past
+ * that limit share a single overflow bucket.
+ */
+@ApplicationScoped
+public class AuditEventAdmissionController {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventAdmissionController.class);
+
+    private static final String AUDIT_ADMISSION_GLOBAL_RATE = "AUDIT_ADMISSION_GLOBAL_RATE";
+    private static final String AUDIT_ADMISSION_GLOBAL_BURST = "AUDIT_ADMISSION_GLOBAL_BURST";
+    private static final String AUDIT_ADMISSION_SOURCE_RATE = "AUDIT_ADMISSION_SOURCE_RATE";
+    private static final String AUDIT_ADMISSION_SOURCE_BURST = "AUDIT_ADMISSION_SOURCE_BURST";
+    private static final String AUDIT_ADMISSION_MAXIMUM_SOURCES = "AUDIT_ADMISSION_MAXIMUM_SOURCES";
+
+    private static final long DEFAULT_RATE = 0L;
+    private static final int DEFAULT_MAXIMUM_SOURCES = 10000;
+    private static final String UNKNOWN_SOURCE = "unknown";
+
+    private volatile boolean initialised;
+    private long sourceRate;
+    private long sourceBurst;
+    private int maximumSources;
+    private AuditEventTokenBucket globalBucket;
+    private AuditEventTokenBucket overflowBucket;
+    private ConcurrentHashMap<String, AuditEventTokenBucket> sourceBuckets;
+    private AtomicLong rejectedCount;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventAdmissionController(){
+        this.initialised = false;
+        this.sourceBuckets = new ConcurrentHashMap<>();
+        this.rejectedCount = new AtomicLong(0);
+    }
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        long globalRate = Math.max(0L, configurationService.getLongParameter(AUDIT_ADMISSION_GLOBAL_RATE, DEFAULT_RATE));
+        long globalBurst = Math.max(1L, configurationService.getLongParameter(AUDIT_ADMISSION_GLOBAL_BURST, globalRate));
+        sourceRate = Math.max(0L, configurationService.getLongParameter(AUDIT_ADMISSION_SOURCE_RATE, DEFAULT_RATE));
+        sourceBurst = Math.max(1L, configurationService.getLongParameter(AUDIT_ADMISSION_SOURCE_BURST, sourceRate));
+        maximumSources = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_ADMISSION_MAXIMUM_SOURCES, DEFAULT_MAXIMUM_SOURCES));
+        if(globalRate > 0){
+            globalBucket = new AuditEventTokenBucket(globalRate, globalBurst);
+        }
+        if(sourceRate > 0){
+            overflowBucket = new AuditEventTokenBucket(sourceRate, sourceBurst);
+        }
+        initialised = true;
+        getLogger().info(".initialise(): globalRate->{}, globalBurst->{}, sourceRate->{}, sourceBurst->{}", globalRate, globalBurst, sourceRate, sourceBurst);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return 0 if the AuditEvents are admitted, otherwise the suggested retry-after in milliseconds
+     */
+    public long admit(String sourceName, int eventCount){
+        if(!initialised){
+            initialise();
+        }
+        AuditEventTokenBucket sourceBucket = getSourceBucket(sourceName);
+        if(sourceBucket != null){
+            long sourceWait = sourceBucket.tryAcquire(eventCount);
+            if(sourceWait > 0){
+                return(reject(sourceName, sourceWait));
+            }
+        }
+        if(globalBucket != null){
+            long globalWait = globalBucket.tryAcquire(eventCount);
+            if(globalWait > 0){
+                if(sourceBucket != null){
+                    sourceBucket.refund(eventCount);
+                }
+                return(reject(sourceName, globalWait));
+            }
+        }
+        return(0L);
+    }
+
+    public long getRejectedCount(){
+        return(rejectedCount.get());
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected AuditEventTokenBucket getSourceBucket(String sourceName){
+        if(sourceRate <= 0){
+            return(null);
+        }
+        String sourceKey = StringUtils.isBlank(sourceName) ? UNKNOWN_SOURCE : sourceName;
+        AuditEventTokenBucket sourceBucket = sourceBuckets.get(sourceKey);
+        if(sourceBucket == null){
+            if(sourceBuckets.size() >= maximumSources){
+                return(overflowBucket);
+            }
+            sourceBucket = sourceBuckets.computeIfAbsent(sourceKey, key -> new AuditEventTokenBucket(sourceRate, sourceBurst));
+        }
+        return(sourceBucket);
+    }
+
+    protected long reject(String sourceName, long waitNanos){
+        long retryAfter = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        long rejections = rejectedCount.incrementAndGet();
+        getLogger().debug(".reject(): source->{}, retryAfter->{}ms, rejections->{}", sourceName, retryAfter, rejections);
+        return(retryAfter);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
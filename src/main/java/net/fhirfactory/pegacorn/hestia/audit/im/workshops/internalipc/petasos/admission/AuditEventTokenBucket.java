@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.admission;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented as a generic cell rate algorithm. All state is one theoretical
+ * arrival time (TAT), updated by CAS. Each permit moves the TAT forward by 1/rate. A request is
+ * admitted while the TAT stays within burst/rate of now. A request for more permits than the burst is
+ * admitted only when the bucket is full, and it leaves the bucket in debt.
+ */
+public class AuditEventTokenBucket {
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final AtomicLong theoreticalArrivalTime;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventTokenBucket(long ratePerSecond, long burst){
+        this.emissionIntervalNanos = Math.max(1L, TimeUnit.SECONDS.toNanos(1) / Math.max(1L, ratePerSecond));
+        this.burstToleranceNanos = emissionIntervalNanos * Math.max(1L, burst);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return 0 if the permits were taken, otherwise the nanoseconds until they would be available
+     */
+    public long tryAcquire(int permits){
+        long increment = emissionIntervalNanos * Math.max(1, permits);
+        long tolerance = Math.max(burstToleranceNanos, increment);
+        while(true){
+            long now = System.nanoTime();
+            long currentTAT = theoreticalArrivalTime.get();
+            long newTAT = Math.max(currentTAT, now) + increment;
+            long wait = newTAT - now - tolerance;
+            if(wait > 0){
+                return(wait);
+            }
+            if(theoreticalArrivalTime.compareAndSet(currentTAT, newTAT)){
+                return(0L);
+            }
+        }
+    }
+
+    /**
+     * Gives back permits taken by a request that was then rejected elsewhere.
+     */
+    public void refund(int permits){
+        theoreticalArrivalTime.addAndGet(-(emissionIntervalNanos * Math.max(1, permits)));
+    }
+}
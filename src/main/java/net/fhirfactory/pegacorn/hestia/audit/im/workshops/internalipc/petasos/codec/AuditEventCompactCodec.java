@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.codec;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact wire encodings for AuditEvent RPC payloads, used in place of Java serialisation of the HAPI
+ * AuditEvent object graph.
+ *
+ * A payload is the AuditEvents as FHIR JSON, one per line (NDJSON), in UTF-8. ENCODING_NDJSON_DEFLATE
+ * additionally compresses the whole payload with zlib (Deflater, default wrapping). AuditEvents in a
+ * list share most of their structure, so multi-event payloads compress well. Decoding streams the
+ * payload line by line straight to a consumer (e.g. the writer queue), so the decoded payload is never
+ * held in memory as a whole.
+ */
+@ApplicationScoped
+public class AuditEventCompactCodec {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventCompactCodec.class);
+
+    public static final String ENCODING_NDJSON_DEFLATE = "fhir-ndjson-deflate";
+    public static final String ENCODING_NDJSON = "fhir-ndjson";
+
+    private static final List<String> SUPPORTED_ENCODINGS = Collections.unmodifiableList(Arrays.asList(ENCODING_NDJSON_DEFLATE, ENCODING_NDJSON));
+    private static final int MAXIMUM_LINE_LENGTH = 4 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private AtomicLong payloadsDecoded;
+    private AtomicLong eventsDecoded;
+    private AtomicLong encodedBytesDecoded;
+    private AtomicLong jsonBytesDecoded;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventCompactCodec(){
+        this.payloadsDecoded = new AtomicLong(0);
+        this.eventsDecoded = new AtomicLong(0);
+        this.encodedBytesDecoded = new AtomicLong(0);
+        this.jsonBytesDecoded = new AtomicLong(0);
+    }
+
+    //
+    // Negotiation
+    //
+
+    /**
+     * @return the supported encodings, most preferred first
+     */
+    public List<String> getSupportedEncodings(){
+        return(SUPPORTED_ENCODINGS);
+    }
+
+    /**
+     * @return the most preferred (by the IM) of the offered encodings, or null if none is supported, in
+     * which case the caller keeps to the object-graph RPC methods
+     */
+    public String negotiateEncoding(List<String> offeredEncodings){
+        if(offeredEncodings == null){
+            return(null);
+        }
+        for(String currentEncoding: SUPPORTED_ENCODINGS){
+            if(offeredEncodings.contains(currentEncoding)){
+                return(currentEncoding);
+            }
+        }
+        return(null);
+    }
+
+    public boolean isSupportedEncoding(String encoding){
+        return(SUPPORTED_ENCODINGS.contains(encoding));
+    }
+
+    //
+    // Encoding
+    //
+
+    public byte[] encode(List<AuditEvent> auditEventList, String encoding) throws IOException {
+        if(!isSupportedEncoding(encoding)){
+            throw(new IOException("Unsupported AuditEvent encoding->" + encoding));
+        }
+        ByteArrayOutputStream payloadStream = new ByteArrayOutputStream();
+        Deflater deflater = null;
+        OutputStream outputStream = payloadStream;
+        if(ENCODING_NDJSON_DEFLATE.equals(encoding)){
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            outputStream = new DeflaterOutputStream(payloadStream, deflater);
+        }
+        try {
+            for(AuditEvent currentEvent: auditEventList){
+                outputStream.write(parserService.encodeAuditEvent(currentEvent).getBytes(StandardCharsets.UTF_8));
+                outputStream.write('\n');
+            }
+            outputStream.close();
+        } finally {
+            if(deflater != null){
+                deflater.end();
+            }
+        }
+        return(payloadStream.toByteArray());
+    }
+
+    //
+    // Decoding
+    //
+
+    /**
+     * Decodes the payload, handing each AuditEvent to the sink as soon as its line is parsed. Lines
+     * that cannot be parsed are logged and skipped. Decoding stops after maximumEvents AuditEvents.
+     *
+     * @return the number of AuditEvents handed to the sink
+     */
+    public int decode(byte[] payload, String encoding, int maximumEvents, Consumer<AuditEvent> sink) throws IOException {
+        return(decodeLines(payload, encoding, maximumEvents, currentLine -> decodeLine(currentLine, sink)));
+    }
+
+    public List<AuditEvent> decode(byte[] payload, String encoding, int maximumEvents) throws IOException {
+        List<AuditEvent> auditEventList = new ArrayList<>();
+        decode(payload, encoding, maximumEvents, auditEventList::add);
+        return(auditEventList);
+    }
+
+    /**
+     * Decodes the payload into its (non-blank) AuditEvent JSON lines without parsing them, handing each
+     * to the lineSink, which returns false if it did not take the line (e.g. it could not be parsed).
+     * Decoding stops after maximumEvents lines have been taken.
+     *
+     * @return the number of lines taken by the lineSink
+     */
+    public int decodeLines(byte[] payload, String encoding, int maximumEvents, Predicate<String> lineSink) throws IOException {
+        getLogger().debug(".decodeLines(): Entry, encoding->{}, bytes->{}", encoding, payload != null ? payload.length : 0);
+        if(!isSupportedEncoding(encoding)){
+            throw(new IOException("Unsupported AuditEvent encoding->" + encoding));
+        }
+        if(payload == null || payload.length == 0){
+            return(0);
+        }
+        int decoded = 0;
+        long jsonBytes = 0;
+        InputStream inputStream = new ByteArrayInputStream(payload);
+        if(ENCODING_NDJSON_DEFLATE.equals(encoding)){
+            inputStream = new InflaterInputStream(inputStream);
+        }
+        try (Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8)) {
+            StringBuilder lineBuilder = new StringBuilder();
+            char[] readBuffer = new char[READ_BUFFER_SIZE];
+            int readCount;
+            boolean limitReached = false;
+            while(!limitReached && (readCount = reader.read(readBuffer)) != -1){
+                for(int index = 0; index < readCount; index++){
+                    char currentChar = readBuffer[index];
+                    if(currentChar != '\n'){
+                        if(lineBuilder.length() >= MAXIMUM_LINE_LENGTH){
+                            throw(new IOException("AuditEvent line exceeds " + MAXIMUM_LINE_LENGTH + " characters"));
+                        }
+                        lineBuilder.append(currentChar);
+                        continue;
+                    }
+                    jsonBytes += lineBuilder.length() + 1;
+                    if(takeLine(lineBuilder, lineSink)){
+                        decoded += 1;
+                    }
+                    lineBuilder.setLength(0);
+                    if(decoded >= maximumEvents){
+                        limitReached = true;
+                        break;
+                    }
+                }
+            }
+            if(!limitReached && lineBuilder.length() > 0){
+                jsonBytes += lineBuilder.length();
+                if(takeLine(lineBuilder, lineSink)){
+                    decoded += 1;
+                }
+            }
+            if(limitReached){
+                getLogger().warn(".decodeLines(): Payload holds more than the declared {} AuditEvents, remainder ignored", maximumEvents);
+            }
+        }
+        payloadsDecoded.incrementAndGet();
+        eventsDecoded.addAndGet(decoded);
+        encodedBytesDecoded.addAndGet(payload.length);
+        jsonBytesDecoded.addAndGet(jsonBytes);
+        getLogger().debug(".decodeLines(): Exit, decoded->{}", decoded);
+        return(decoded);
+    }
+
+    protected boolean takeLine(StringBuilder lineBuilder, Predicate<String> lineSink){
+        String currentLine = lineBuilder.toString();
+        if(StringUtils.isBlank(currentLine)){
+            return(false);
+        }
+        return(lineSink.test(currentLine));
+    }
+
+    protected boolean decodeLine(String currentLine, Consumer<AuditEvent> sink){
+        AuditEvent auditEvent;
+        try {
+            auditEvent = parserService.parseAuditEvent(currentLine);
+        } catch (Exception ex) {
+            getLogger().warn(".decodeLine(): Skipping unparseable AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+        sink.accept(auditEvent);
+        return(true);
+    }
+
+    //
+    // Metrics
+    //
+
+    public long getPayloadsDecoded(){
+        return(payloadsDecoded.get());
+    }
+
+    public long getEventsDecoded(){
+        return(eventsDecoded.get());
+    }
+
+    public long getEncodedBytesDecoded(){
+        return(encodedBytesDecoded.get());
+    }
+
+    /**
+     * @return the ratio of decoded JSON length (in characters) to wire size (in bytes), over all
+     * payloads decoded so far
+     */
+    public double getCompressionRatio(){
+        long encodedBytes = encodedBytesDecoded.get();
+        return(encodedBytes == 0 ? 0.0 : (double)jsonBytesDecoded.get() / encodedBytes);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
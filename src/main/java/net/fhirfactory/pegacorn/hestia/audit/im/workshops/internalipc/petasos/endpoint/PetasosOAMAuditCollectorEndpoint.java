@@ -23,6 +23,8 @@ package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.e
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import net.fhirfactory.pegacorn.core.interfaces.auditing.PetasosAuditEventServiceClientWriterInterface;
 import net.fhirfactory.pegacorn.core.interfaces.auditing.PetasosAuditEventServiceHandlerInterface;
 import net.fhirfactory.pegacorn.core.interfaces.capabilities.CapabilityFulfillmentInterface;
@@ -40,7 +42,15 @@ import net.fhirfactory.pegacorn.core.model.transaction.model.PegacornTransaction
 import net.fhirfactory.pegacorn.core.model.transaction.model.SimpleResourceID;
 import net.fhirfactory.pegacorn.core.model.transaction.valuesets.PegacornTransactionStatusEnum;
 import net.fhirfactory.pegacorn.core.model.transaction.valuesets.PegacornTransactionTypeEnum;
-import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventRPCReceiveEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.admission.AuditEventAdmissionController;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.codec.AuditEventCompactCodec;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.services.PetasosAuditPersistenceService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.replay.AuditEventReplayService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.search.AuditEventQueryCapability;
 import net.fhirfactory.pegacorn.petasos.endpoints.services.audit.PetasosAuditServicesEndpoint;
 import net.fhirfactory.pegacorn.util.FHIRContextUtility;
 import org.hl7.fhir.r4.model.AuditEvent;
@@ -50,15 +60,21 @@ import org.slf4j.LoggerFactory;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoint
         implements  PetasosAuditEventServiceHandlerInterface {
     private static final Logger LOG = LoggerFactory.getLogger(PetasosOAMAuditCollectorEndpoint.class);
 
+    private ObjectMapper jsonMapper;
+
     @Inject
     private PetasosAuditEventServiceClientWriterInterface auditEventWriter;
 
@@ -66,7 +82,28 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
     private PegacornTransactionMethodOutcomeFactory outcomeFactory;
 
     @Inject
-    private AsynchronousWriterAuditEventCache auditEventCache;
+    private PetasosAuditPersistenceService auditPersistenceService;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private AuditEventQueryCapability auditEventQueryCapability;
+
+    @Inject
+    private AuditEventReplayService replayService;
+
+    @Inject
+    private AuditEventAdmissionController admissionController;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
+
+    @Inject
+    private AuditEventCompactCodec compactCodec;
 
     @Inject
     private MethodOutcomeFactory methodOutcomeFactory;
@@ -80,6 +117,7 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
 
     public PetasosOAMAuditCollectorEndpoint(){
         super();
+        this.jsonMapper = new ObjectMapper();
     }
 
     //
@@ -89,6 +127,9 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
     @Override
     protected void executePostConstructInstanceActivities(){
         registerCapability();
+        auditEventQueryCapability.registerCapability();
+        clusterService.initialise();
+        replayService.initialise();
     }
 
     //
@@ -107,16 +148,24 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
     @Override
     public Boolean logAuditEventHandler(AuditEvent event, JGroupsIntegrationPointSummary sourceJGroupsIP){
         getLogger().debug(".logAuditEventHandler(): Entry, event->{}, sourceJGroupsIP->{}", event, sourceJGroupsIP);
-        MethodOutcome outcome = null;
-        if((event != null)) {
-            getLogger().debug(".logAuditEventHandler(): Event is not -null-, writing it to the DM");
-            outcome = auditEventWriter.writeAuditEventSynchronously(event);
-        }
+        AuditEventRPCReceiveEvent receiveEvent = new AuditEventRPCReceiveEvent();
+        receiveEvent.begin();
         Boolean success = false;
-        if(outcome != null){
-            if(outcome.getCreated()){
-                success = true;
+        try {
+            checkAdmission(sourceJGroupsIP, 1);
+            MethodOutcome outcome = null;
+            if ((event != null)) {
+                getLogger().debug(".logAuditEventHandler(): Event is not -null-, writing it to the DM");
+                latencyService.recordReceipt(event, AuditEventLatencyService.INGRESS_PETASOS_RPC);
+                outcome = auditEventWriter.writeAuditEventSynchronously(event);
             }
+            if (outcome != null) {
+                if (outcome.getCreated()) {
+                    success = true;
+                }
+            }
+        } finally {
+            commitRPCReceiveEvent(receiveEvent, "logAuditEventHandler", sourceJGroupsIP, 1, success);
         }
         getMetricsAgent().incrementRemoteProcedureCallHandledCount();
         getLogger().debug(".logAuditEventHandler(): Exit, success->{}", success);
@@ -126,11 +175,18 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
     @Override
     public Boolean logAuditEventAsynchronouslyHandler(AuditEvent event, JGroupsIntegrationPointSummary jgroupsIP) {
         getLogger().debug(".logAuditEventAsynchronouslyHandler(): Entry, event->{}, sourceJGroupsIP->{}", event, jgroupsIP);
+        AuditEventRPCReceiveEvent receiveEvent = new AuditEventRPCReceiveEvent();
+        receiveEvent.begin();
         Boolean success = false;
-        if(event != null) {
-            getLogger().debug(".logAuditEventAsynchronouslyHandler(): Event is not -null-, adding it to queue");
-            auditEventCache.addAuditEvent(event);
-            success = true;
+        try {
+            checkAdmission(jgroupsIP, 1);
+            if (event != null) {
+                getLogger().debug(".logAuditEventAsynchronouslyHandler(): Event is not -null-, adding it to queue");
+                latencyService.recordReceipt(event, AuditEventLatencyService.INGRESS_PETASOS_RPC);
+                success = auditPersistenceService.queueAuditEvent(event);
+            }
+        } finally {
+            commitRPCReceiveEvent(receiveEvent, "logAuditEventAsynchronouslyHandler", jgroupsIP, 1, success);
         }
         getMetricsAgent().incrementRemoteProcedureCallHandledCount();
         getLogger().debug(".logAuditEventAsynchronouslyHandler(): Exit, success->{}", success);
@@ -140,19 +196,95 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
     @Override
     public Boolean logMultipleAuditEventHandler(List<AuditEvent> eventList, JGroupsIntegrationPointSummary jgroupsIP){
         getLogger().debug(".logMultipleAuditEventHandler(): Entry, eventList->{}, jgroupsIP->{}", eventList, jgroupsIP);
+        AuditEventRPCReceiveEvent receiveEvent = new AuditEventRPCReceiveEvent();
+        receiveEvent.begin();
+        int eventCount = eventList != null ? eventList.size() : 1;
         Boolean success = false;
-        if(eventList != null) {
-            getLogger().debug(".logMultipleAuditEventHandler(): EventList is not -null-, adding entries to queue");
-            for (AuditEvent currentAuditEvent : eventList) {
-                auditEventCache.addAuditEvent(currentAuditEvent);
+        try {
+            checkAdmission(jgroupsIP, eventCount);
+            if (eventList != null) {
+                getLogger().debug(".logMultipleAuditEventHandler(): EventList is not -null-, adding entries to queue");
+                for (AuditEvent currentAuditEvent : eventList) {
+                    latencyService.recordReceipt(currentAuditEvent, AuditEventLatencyService.INGRESS_PETASOS_RPC);
+                    auditPersistenceService.queueAuditEvent(currentAuditEvent);
+                }
             }
+            success = true;
+        } finally {
+            commitRPCReceiveEvent(receiveEvent, "logMultipleAuditEventHandler", jgroupsIP, eventCount, success);
         }
-        success = true;
         getMetricsAgent().incrementRemoteProcedureCallHandledCount();
         getLogger().debug(".logMultipleAuditEventHandler(): Exit, success->{}", success);
         return(success);
     }
 
+    //
+    // Compact Encoding RPC Support
+    //
+
+    /**
+     * Lets an agent find out whether it can send compact payloads (see AuditEventCompactCodec) to
+     * logCompactAuditEventsHandler. Agents that do not ask, or get null back, keep using the
+     * object-graph methods above.
+     *
+     * @return the encoding to use, or null if none of the offered encodings is supported
+     */
+    public String negotiateAuditEventEncodingHandler(List<String> offeredEncodings, JGroupsIntegrationPointSummary jgroupsIP){
+        String encoding = compactCodec.negotiateEncoding(offeredEncodings);
+        getMetricsAgent().incrementRemoteProcedureCallHandledCount();
+        getLogger().debug(".negotiateAuditEventEncodingHandler(): offered->{}, selected->{}", offeredEncodings, encoding);
+        return(encoding);
+    }
+
+    /**
+     * Queues the eventCount AuditEvents in a compact payload. Each AuditEvent is queued as soon as its
+     * line is decoded; when the ingestion pipeline is active the line is handed over unparsed and
+     * parsed on the pipeline's decode stage.
+     */
+    public Boolean logCompactAuditEventsHandler(byte[] payload, String encoding, int eventCount, JGroupsIntegrationPointSummary jgroupsIP){
+        getLogger().debug(".logCompactAuditEventsHandler(): Entry, encoding->{}, eventCount->{}, bytes->{}", encoding, eventCount, payload != null ? payload.length : 0);
+        AuditEventRPCReceiveEvent receiveEvent = new AuditEventRPCReceiveEvent();
+        receiveEvent.begin();
+        Boolean success = false;
+        try {
+            checkAdmission(jgroupsIP, Math.max(1, eventCount));
+            int decoded = compactCodec.decodeLines(payload, encoding, Math.max(1, eventCount), auditPersistenceService::queueAuditEventJSON);
+            success = decoded == eventCount;
+        } catch (IOException ex) {
+            getLogger().warn(".logCompactAuditEventsHandler(): Could not decode payload, encoding->{}, message->{}", encoding, ex.getMessage());
+        } finally {
+            commitRPCReceiveEvent(receiveEvent, "logCompactAuditEventsHandler", jgroupsIP, eventCount, success);
+        }
+        getMetricsAgent().incrementRemoteProcedureCallHandledCount();
+        getLogger().debug(".logCompactAuditEventsHandler(): Exit, success->{}", success);
+        return(success);
+    }
+
+    /**
+     * Rejects the call if the source (or the IM as a whole) is over its admission rate. The RPC
+     * handlers can only return a Boolean, so the rejection is thrown back to the caller. It is thrown
+     * as a JDK exception type, which every agent can deserialise, and its message carries the
+     * retry-after hint.
+     */
+    protected void checkAdmission(JGroupsIntegrationPointSummary sourceJGroupsIP, int eventCount){
+        String sourceName = sourceJGroupsIP != null ? sourceJGroupsIP.getSubsystemParticipantName() : null;
+        long retryAfter = admissionController.admit(sourceName, eventCount);
+        if(retryAfter > 0){
+            getMetricsAgent().incrementRemoteProcedureCallHandledCount();
+            throw(new RejectedExecutionException("AuditEvent admission rejected, source=" + sourceName + ", retry-after-ms=" + retryAfter));
+        }
+    }
+
+    protected void commitRPCReceiveEvent(AuditEventRPCReceiveEvent receiveEvent, String handler, JGroupsIntegrationPointSummary sourceJGroupsIP, int eventCount, boolean success){
+        if(receiveEvent.shouldCommit()){
+            receiveEvent.handler = handler;
+            receiveEvent.source = sourceJGroupsIP != null ? sourceJGroupsIP.getSubsystemParticipantName() : null;
+            receiveEvent.eventCount = eventCount;
+            receiveEvent.success = success;
+            receiveEvent.commit();
+        }
+    }
+
     //
     // Capability Execution Service
     //
@@ -161,20 +293,131 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
         getProcessingPlant().registerCapabilityFulfillmentService(WorkUnitProcessorCapabilityEnum.CAPABILITY_INFORMATION_MANAGEMENT_AUDIT_EVENTS.getDisplayName(), this);
     }
 
+    /**
+     * Writes the AuditEvent(s) carried in the request: a single AuditEvent, a JSON array of AuditEvents,
+     * or a Bundle of AuditEvents. Multiple AuditEvents are parsed in parallel and written to the DM as
+     * one batch. The response content is the PegacornTransactionOutcome for a single AuditEvent, or a
+     * JSON array of them (in request order) for multiple AuditEvents.
+     */
     public CapabilityUtilisationResponse executeTask(CapabilityUtilisationRequest request) {
-        String auditEventAsString = request.getRequestStringContent();
-        MethodOutcome methodOutcome = null;
+        getLogger().debug(".executeTask(): Entry, requestID->{}", request.getRequestID());
+        AuditEventRPCReceiveEvent receiveEvent = new AuditEventRPCReceiveEvent();
+        receiveEvent.begin();
+        String requestContent = request.getRequestStringContent();
+        List<String> auditEventStringList = null;
+        boolean multipleAuditEvents = false;
+        try {
+            JsonNode requestNode = jsonMapper.readTree(requestContent);
+            if (requestNode != null && requestNode.isArray()) {
+                multipleAuditEvents = true;
+                auditEventStringList = new ArrayList<>(requestNode.size());
+                for (JsonNode currentNode : requestNode) {
+                    auditEventStringList.add(currentNode.toString());
+                }
+            } else if (requestNode != null && "Bundle".equals(requestNode.path("resourceType").asText())) {
+                multipleAuditEvents = true;
+                auditEventStringList = new ArrayList<>();
+                for (JsonNode currentEntry : requestNode.path("entry")) {
+                    auditEventStringList.add(currentEntry.path("resource").toString());
+                }
+            }
+        } catch (Exception ex) {
+            getLogger().debug(".executeTask(): Request content is not JSON, message->{}", ex.getMessage());
+        }
+        if (auditEventStringList == null) {
+            auditEventStringList = new ArrayList<>();
+            auditEventStringList.add(requestContent);
+        }
+
+        List<MethodOutcome> methodOutcomeList = writeAuditEventStrings(auditEventStringList, multipleAuditEvents);
+        List<PegacornTransactionOutcome> transactionOutcomeList = new ArrayList<>(methodOutcomeList.size());
+        boolean allCreated = true;
+        for (MethodOutcome currentOutcome : methodOutcomeList) {
+            allCreated = allCreated && Boolean.TRUE.equals(currentOutcome.getCreated());
+            transactionOutcomeList.add(toTransactionOutcome(currentOutcome));
+        }
+        commitRPCReceiveEvent(receiveEvent, "executeTask", null, auditEventStringList.size(), allCreated);
+
+        String responseContent = null;
+        try {
+            if (multipleAuditEvents) {
+                responseContent = jsonMapper.writeValueAsString(transactionOutcomeList);
+            } else {
+                responseContent = jsonMapper.writeValueAsString(transactionOutcomeList.get(0));
+            }
+        } catch (JsonProcessingException ex) {
+            getLogger().error(".executeTask(): Could not encode outcome, message->{}", ex.getMessage());
+        }
+        CapabilityUtilisationResponse response = new CapabilityUtilisationResponse();
+        response.setResponseStringContent(responseContent);
+        response.setInstantCompleted(Instant.now());
+        response.setAssociatedRequestID(request.getRequestID());
+        getLogger().debug(".executeTask(): Exit, count->{}", transactionOutcomeList.size());
+        return(response);
+    }
+
+    protected List<MethodOutcome> writeAuditEventStrings(List<String> auditEventStringList, boolean multipleAuditEvents){
+        if (!multipleAuditEvents) {
+            MethodOutcome methodOutcome = null;
+            AuditEvent auditEvent = parseAuditEvent(auditEventStringList.get(0));
+            if (auditEvent != null) {
+                methodOutcome = auditEventWriter.writeAuditEventSynchronously(auditEvent);
+            }
+            List<MethodOutcome> methodOutcomeList = new ArrayList<>();
+            methodOutcomeList.add(methodOutcome != null ? methodOutcome : failedOutcome());
+            return(methodOutcomeList);
+        }
+        // HAPI parsers are handed out per thread, so the parallel parse needs no locking
+        List<AuditEvent> parsedAuditEventList = auditEventStringList.parallelStream()
+                .map(this::parseAuditEvent)
+                .collect(Collectors.toList());
+        List<AuditEvent> validAuditEventList = new ArrayList<>(parsedAuditEventList.size());
+        for (AuditEvent currentAuditEvent : parsedAuditEventList) {
+            if (currentAuditEvent != null) {
+                validAuditEventList.add(currentAuditEvent);
+            }
+        }
+        List<MethodOutcome> writeOutcomeList = new ArrayList<>();
+        if (!validAuditEventList.isEmpty()) {
+            writeOutcomeList = auditPersistenceService.writeAuditEventBatch(validAuditEventList);
+        }
+        List<MethodOutcome> methodOutcomeList = new ArrayList<>(parsedAuditEventList.size());
+        int writeIndex = 0;
+        for (AuditEvent currentAuditEvent : parsedAuditEventList) {
+            MethodOutcome currentOutcome = null;
+            if (currentAuditEvent != null) {
+                if (writeIndex < writeOutcomeList.size()) {
+                    currentOutcome = writeOutcomeList.get(writeIndex);
+                }
+                writeIndex += 1;
+            }
+            methodOutcomeList.add(currentOutcome != null ? currentOutcome : failedOutcome());
+        }
+        return(methodOutcomeList);
+    }
+
+    protected AuditEvent parseAuditEvent(String auditEventAsString){
         try {
-            AuditEvent auditEvent = getFHIRJSONParser().parseResource(AuditEvent.class, auditEventAsString);
-            methodOutcome = auditEventWriter.writeAuditEventSynchronously(auditEvent);
-        } catch (Exception ex){
-            methodOutcome = new MethodOutcome();
-            methodOutcome.setCreated(false);
+            AuditEvent auditEvent = parserService.parseAuditEvent(auditEventAsString);
+            latencyService.recordReceipt(auditEvent, AuditEventLatencyService.INGRESS_CAPABILITY);
+            return(auditEvent);
+        } catch (Exception ex) {
+            getLogger().debug(".parseAuditEvent(): Could not parse AuditEvent, message->{}", ex.getMessage());
+            return(null);
         }
-        String simpleOutcomeAsString = null;
+    }
+
+    protected MethodOutcome failedOutcome(){
+        MethodOutcome methodOutcome = new MethodOutcome();
+        methodOutcome.setCreated(false);
+        return(methodOutcome);
+    }
+
+    protected PegacornTransactionOutcome toTransactionOutcome(MethodOutcome methodOutcome){
+        boolean created = Boolean.TRUE.equals(methodOutcome.getCreated());
         PegacornTransactionOutcome simpleOutcome = new PegacornTransactionOutcome();
         SimpleResourceID resourceID = new SimpleResourceID();
-        if(methodOutcome.getCreated()) {
+        if(created) {
             if(methodOutcome.getId() != null) {
                 if (methodOutcome.getId().hasResourceType()) {
                     resourceID.setResourceType(methodOutcome.getId().getResourceType());
@@ -194,10 +437,7 @@ public class PetasosOAMAuditCollectorEndpoint extends PetasosAuditServicesEndpoi
             simpleOutcome.setTransactionStatus(PegacornTransactionStatusEnum.CREATION_FAILURE);
         }
         simpleOutcome.setTransactionType(PegacornTransactionTypeEnum.CREATE);
-        simpleOutcome.setTransactionSuccessful(methodOutcome.getCreated());
-        CapabilityUtilisationResponse response = new CapabilityUtilisationResponse();
-        response.setInstantCompleted(Instant.now());
-        response.setAssociatedRequestID(request.getRequestID());
-        return(response);
+        simpleOutcome.setTransactionSuccessful(created);
+        return(simpleOutcome);
     }
 }
@@ -0,0 +1,666 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventCoalescingService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.rules.AuditEventFilterRuleEngine;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.shedding.AuditEventLoadSheddingService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity.AuditEventBatchSeal;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMHTTPClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMJGroupsClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter.AdaptiveDMWriteLimiter;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunables;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunablesService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A staged ingestion pipeline for queued AuditEvents, used instead of the AsynchronousWriterAuditEventCache
+ * queue and its periodic writer when AUDIT_PIPELINE_ENABLED is true and the IM is not clustered.
+ *
+ * Each stage has its own thread(s) and its own AuditEventRingBuffer:
+ * (1) decode (AUDIT_PIPELINE_DECODE_THREADS rings, one per thread): parses and validates AuditEvents
+ * that arrive as JSON; a caller always publishes to the same decode ring, so its AuditEvents stay in order,
+ * (2) filter: applies the filter rules, load shedding and coalescing,
+ * (3) batch: groups AuditEvents up to the limiter's batch size or the batchLinger tunable,
+ * (4) encode: seals the batch and encodes it as a FHIR batch Bundle, and
+ * (5) DM write (AUDIT_PIPELINE_WRITE_THREADS rings, one per thread, fed round-robin).
+ * So parsing, encoding and the blocking DM writes all overlap. AuditEvents are batched before they
+ * are encoded because the integrity seal covers a whole batch.
+ *
+ * When a decode ring stays full for AUDIT_PIPELINE_PUBLISH_TIMEOUT ms, or the pipeline is not active,
+ * publish() returns false and the caller falls back to the queue. AuditEvents the DM does not accept
+ * are put on the queue too, so they get the periodic writer's retry and backoff. On shutdown the
+ * pipeline is drained until the deadline, then the stages are stopped in pipeline order and each
+ * stage thread moves what is left in its own ring (and the batch stage its pending batch) to the
+ * queue, from where it is spilled with the rest. Nothing is requeued while a stage might still be
+ * handling it, so an AuditEvent is never both written and requeued. A DM write still blocked at the
+ * deadline keeps its write stage alive; its leftovers reach the queue once the write returns.
+ */
+@ApplicationScoped
+public class AuditEventIngestionPipeline implements AuditEventIngestionPipelineMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventIngestionPipeline.class);
+
+    private static final String AUDIT_PIPELINE_ENABLED = "AUDIT_PIPELINE_ENABLED";
+    private static final String AUDIT_PIPELINE_RING_SIZE = "AUDIT_PIPELINE_RING_SIZE";
+    private static final String AUDIT_PIPELINE_DECODE_THREADS = "AUDIT_PIPELINE_DECODE_THREADS";
+    private static final String AUDIT_PIPELINE_WRITE_THREADS = "AUDIT_PIPELINE_WRITE_THREADS";
+    private static final String AUDIT_PIPELINE_PUBLISH_TIMEOUT = "AUDIT_PIPELINE_PUBLISH_TIMEOUT";
+
+    private static final long DEFAULT_RING_SIZE = 4096L;
+    private static final long DEFAULT_DECODE_THREADS = 2L;
+    private static final long DEFAULT_WRITE_THREADS = 4L;
+    private static final long DEFAULT_PUBLISH_TIMEOUT = 100L;
+    private static final int STAGE_DRAIN_BATCH = 256;
+    private static final long STAGE_CLAIM_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long STAGE_STOP_TIMEOUT = 1000L;
+    private static final long SHUTDOWN_POLL_PERIOD = 10L;
+
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventIngestionPipeline";
+
+    private volatile boolean initialised;
+    private volatile boolean running;
+    private volatile boolean accepting;
+    private volatile boolean flushRequested;
+    private long publishTimeoutNanos;
+    private ObjectName registeredName;
+
+    private AuditEventRingBuffer<AuditEventPipelineSlot>[] decodeRings;
+    private AuditEventRingBuffer<AuditEventPipelineSlot> filterRing;
+    private AuditEventRingBuffer<AuditEventPipelineSlot> batchRing;
+    private AuditEventRingBuffer<AuditEventPipelineSlot> encodeRing;
+    private AuditEventRingBuffer<AuditEventPipelineSlot>[] writeRings;
+    // in pipeline order
+    private List<AuditEventPipelineStage> stages;
+    private List<AuditEventPipelineStage> writeStages;
+
+    // owned by the batch stage thread
+    private List<AuditEvent> pendingBatch;
+    private long pendingBatchDeadline;
+    private volatile int pendingBatchSize;
+    // owned by the encode stage thread
+    private int nextWriteRing;
+
+    private AtomicLong publishedCount;
+    private AtomicLong fallbackCount;
+    private AtomicLong decodeFailureCount;
+    private AtomicLong filteredCount;
+    private AtomicLong coalescedCount;
+    private AtomicLong batchesWritten;
+    private AtomicLong eventsWritten;
+    private AtomicLong eventsRequeued;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private AuditEventFilterRuleEngine filterRuleEngine;
+
+    @Inject
+    private AuditEventCoalescingService coalescingService;
+
+    @Inject
+    private AuditEventStructuralValidator structuralValidator;
+
+    @Inject
+    private AuditEventLoadSheddingService loadSheddingService;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private HestiaDMHTTPClient hestiaDMHTTPClient;
+
+    @Inject
+    private HestiaDMJGroupsClient hestiaDMJGroupsClient;
+
+    @Inject
+    private AdaptiveDMWriteLimiter writeLimiter;
+
+    @Inject
+    private AsynchronousWriterTunablesService tunablesService;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventIngestionPipeline(){
+        this.initialised = false;
+        this.running = false;
+        this.accepting = false;
+        this.flushRequested = false;
+        this.stages = new ArrayList<>();
+        this.writeStages = new ArrayList<>();
+        this.pendingBatch = new ArrayList<>();
+        this.pendingBatchSize = 0;
+        this.nextWriteRing = 0;
+        this.publishedCount = new AtomicLong(0);
+        this.fallbackCount = new AtomicLong(0);
+        this.decodeFailureCount = new AtomicLong(0);
+        this.filteredCount = new AtomicLong(0);
+        this.coalescedCount = new AtomicLong(0);
+        this.batchesWritten = new AtomicLong(0);
+        this.eventsWritten = new AtomicLong(0);
+        this.eventsRequeued = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    @SuppressWarnings("unchecked")
+    public synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        initialised = true;
+        if(!configurationService.getBooleanParameter(AUDIT_PIPELINE_ENABLED, false)){
+            getLogger().info(".initialise(): Pipeline not enabled");
+            return;
+        }
+        int ringSize = (int)Math.max(16L, configurationService.getLongParameter(AUDIT_PIPELINE_RING_SIZE, DEFAULT_RING_SIZE));
+        int decodeThreads = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_PIPELINE_DECODE_THREADS, DEFAULT_DECODE_THREADS));
+        int writeThreads = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_PIPELINE_WRITE_THREADS, DEFAULT_WRITE_THREADS));
+        publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, configurationService.getLongParameter(AUDIT_PIPELINE_PUBLISH_TIMEOUT, DEFAULT_PUBLISH_TIMEOUT)));
+
+        decodeRings = new AuditEventRingBuffer[decodeThreads];
+        for(int index = 0; index < decodeThreads; index++){
+            decodeRings[index] = new AuditEventRingBuffer<>(ringSize, AuditEventPipelineSlot::new);
+            stages.add(new AuditEventPipelineStage("AuditEventPipeline-Decode-" + index, decodeRings[index], requeueOnStop(this::decodeStage), STAGE_DRAIN_BATCH));
+        }
+        filterRing = new AuditEventRingBuffer<>(ringSize, AuditEventPipelineSlot::new);
+        stages.add(new AuditEventPipelineStage("AuditEventPipeline-Filter", filterRing, requeueOnStop(this::filterStage), STAGE_DRAIN_BATCH));
+        batchRing = new AuditEventRingBuffer<>(ringSize, AuditEventPipelineSlot::new);
+        stages.add(new AuditEventPipelineStage("AuditEventPipeline-Batch", batchRing, new AuditEventPipelineStage.StageHandler() {
+            @Override
+            public void onEntry(AuditEventPipelineSlot slot, boolean endOfBatch) {
+                batchStage(slot);
+            }
+
+            @Override
+            public void afterDrain() {
+                flushBatchIfDue();
+            }
+
+            @Override
+            public void onStop(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer) {
+                requeueUnconsumed(ringBuffer);
+                requeue(pendingBatch);
+                pendingBatch.clear();
+                pendingBatchSize = 0;
+            }
+        }, STAGE_DRAIN_BATCH));
+        // per-batch rings only need to hold enough batches to keep the writers busy
+        int batchRingSize = Math.max(16, writeThreads * 4);
+        encodeRing = new AuditEventRingBuffer<>(batchRingSize, AuditEventPipelineSlot::new);
+        stages.add(new AuditEventPipelineStage("AuditEventPipeline-Encode", encodeRing, requeueOnStop(this::encodeStage), 1));
+        writeRings = new AuditEventRingBuffer[writeThreads];
+        for(int index = 0; index < writeThreads; index++){
+            writeRings[index] = new AuditEventRingBuffer<>(batchRingSize, AuditEventPipelineSlot::new);
+            AuditEventPipelineStage writeStage = new AuditEventPipelineStage("AuditEventPipeline-Write-" + index, writeRings[index], requeueOnStop(this::writeStage), 1);
+            stages.add(writeStage);
+            writeStages.add(writeStage);
+        }
+        running = true;
+        for(AuditEventPipelineStage currentStage: stages){
+            currentStage.start();
+        }
+        accepting = true;
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        getLogger().info(".initialise(): Pipeline started, ringSize->{}, decodeThreads->{}, writeThreads->{}", ringSize, decodeThreads, writeThreads);
+    }
+
+    /**
+     * Stops taking new AuditEvents, lets the stages drain until the deadline, then stops them and
+     * has each move whatever is left in it onto the queue.
+     */
+    public synchronized void shutdown(long deadline){
+        if(!running){
+            return;
+        }
+        getLogger().info(".shutdown(): Entry, occupancy->{}", getStageOccupancy());
+        accepting = false;
+        flushRequested = true;
+        while(!isDrained() && System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(SHUTDOWN_POLL_PERIOD);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        long requeuedBefore = eventsRequeued.get();
+        running = false;
+        // a stage is only stopped once every stage that publishes to its ring has terminated, so
+        // nothing can be published to a ring after its owner has requeued what was left in it
+        for(AuditEventPipelineStage currentStage: stages){
+            if(writeStages.contains(currentStage)){
+                continue;
+            }
+            while(!currentStage.stop(STAGE_STOP_TIMEOUT)){
+                getLogger().warn(".shutdown(): Waiting for stage to stop, stage->{}", currentStage.getStageName());
+            }
+        }
+        for(AuditEventPipelineStage currentStage: writeStages){
+            currentStage.requestStop();
+        }
+        for(AuditEventPipelineStage currentStage: writeStages){
+            long stopTimeout = Math.max(STAGE_STOP_TIMEOUT, deadline - System.currentTimeMillis());
+            if(!currentStage.awaitTermination(stopTimeout)){
+                getLogger().warn(".shutdown(): DM write still in progress, its leftovers are requeued when it returns, stage->{}", currentStage.getStageName());
+            }
+        }
+        getLogger().info(".shutdown(): Exit, requeued->{}", eventsRequeued.get() - requeuedBefore);
+    }
+
+    /**
+     * Called by the PetasosAuditPersistenceService shutdown sequence as well as by the container, so
+     * a second call does nothing.
+     */
+    @PreDestroy
+    public void unregister(){
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+        registeredName = null;
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return false if the caller has to queue the AuditEvent itself (the pipeline is not active, or
+     * stayed full for AUDIT_PIPELINE_PUBLISH_TIMEOUT ms)
+     */
+    public boolean publish(AuditEvent auditEvent){
+        return(publish(auditEvent, null));
+    }
+
+    /**
+     * As publish(AuditEvent), for an AuditEvent still in its JSON form; it is parsed by the decode stage.
+     */
+    public boolean publishJSON(String auditEventJSON){
+        return(publish(null, auditEventJSON));
+    }
+
+    @Override
+    public boolean isActive(){
+        return(accepting && !clusterService.isClusterEnabled());
+    }
+
+    //
+    // Stages
+    //
+
+    protected boolean publish(AuditEvent auditEvent, String auditEventJSON){
+        if(!initialised){
+            initialise();
+        }
+        if(!isActive()){
+            return(false);
+        }
+        // a caller always uses the same decode ring, which keeps its AuditEvents in order
+        AuditEventRingBuffer<AuditEventPipelineSlot> decodeRing = decodeRings[(int)(Thread.currentThread().getId() % decodeRings.length)];
+        long sequence = decodeRing.claim(publishTimeoutNanos);
+        if(sequence < 0){
+            fallbackCount.incrementAndGet();
+            return(false);
+        }
+        AuditEventPipelineSlot slot = decodeRing.get(sequence);
+        slot.clear();
+        slot.setAuditEvent(auditEvent);
+        slot.setAuditEventJSON(auditEventJSON);
+        decodeRing.publish(sequence);
+        publishedCount.incrementAndGet();
+        return(true);
+    }
+
+    protected void decodeStage(AuditEventPipelineSlot slot, boolean endOfBatch){
+        AuditEvent auditEvent = slot.getAuditEvent();
+        if(auditEvent == null){
+            try {
+                auditEvent = parserService.parseAuditEvent(slot.getAuditEventJSON());
+            } catch (Exception ex) {
+                decodeFailureCount.incrementAndGet();
+                getLogger().warn(".decodeStage(): Skipping unparseable AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+                return;
+            }
+            latencyService.recordReceipt(auditEvent, AuditEventLatencyService.INGRESS_PETASOS_RPC);
+            // AuditEvent objects were validated by queueAuditEvent() before being published
+            if(!structuralValidator.admit(auditEvent)){
+                return;
+            }
+        }
+        forwardEvent(filterRing, auditEvent);
+    }
+
+    protected void filterStage(AuditEventPipelineSlot slot, boolean endOfBatch){
+        AuditEvent auditEvent = slot.getAuditEvent();
+        try {
+            if(!filterRuleEngine.admit(auditEvent)){
+                filteredCount.incrementAndGet();
+                return;
+            }
+            if(!loadSheddingService.admit(auditEvent)){
+                filteredCount.incrementAndGet();
+                return;
+            }
+            if(coalescingService.coalesce(auditEvent)){
+                coalescedCount.incrementAndGet();
+                return;
+            }
+        } catch (Exception ex) {
+            getLogger().warn(".filterStage(): Filter failed, passing AuditEvent through, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        forwardEvent(batchRing, auditEvent);
+    }
+
+    protected void batchStage(AuditEventPipelineSlot slot){
+        AsynchronousWriterTunables tunables = tunablesService.getTunables();
+        if(pendingBatch.isEmpty()){
+            pendingBatchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tunables.getBatchLinger());
+        }
+        pendingBatch.add(slot.getAuditEvent());
+        pendingBatchSize = pendingBatch.size();
+        if(pendingBatch.size() >= writeLimiter.getBatchSize(tunables.getBatchSize())){
+            flushBatch();
+        }
+    }
+
+    protected void flushBatchIfDue(){
+        if(!pendingBatch.isEmpty() && (flushRequested || System.nanoTime() - pendingBatchDeadline >= 0)){
+            flushBatch();
+        }
+    }
+
+    protected void flushBatch(){
+        long sequence;
+        while((sequence = encodeRing.claim(STAGE_CLAIM_TIMEOUT)) < 0){
+            if(!running){
+                return;
+            }
+        }
+        AuditEventPipelineSlot encodeSlot = encodeRing.get(sequence);
+        encodeSlot.clear();
+        encodeSlot.getAuditEventList().addAll(pendingBatch);
+        encodeRing.publish(sequence);
+        pendingBatch.clear();
+        pendingBatchSize = 0;
+    }
+
+    protected void encodeStage(AuditEventPipelineSlot slot, boolean endOfBatch){
+        AuditEventBatchSeal batchSeal = null;
+        String encodedBundle = null;
+        if(!tunablesService.getTunables().isJGroupsTechnology()){
+            try {
+                batchSeal = hestiaDMHTTPClient.sealAuditEventBatch(slot.getAuditEventList());
+                encodedBundle = hestiaDMHTTPClient.encodeAuditEventBatch(batchSeal);
+            } catch (Exception ex) {
+                getLogger().warn(".encodeStage(): Could not encode batch, it will be encoded on write, message->{}", ExceptionUtils.getMessage(ex));
+            }
+        }
+        AuditEventRingBuffer<AuditEventPipelineSlot> writeRing = writeRings[nextWriteRing];
+        nextWriteRing = (nextWriteRing + 1) % writeRings.length;
+        long sequence;
+        while((sequence = writeRing.claim(STAGE_CLAIM_TIMEOUT)) < 0){
+            if(!running){
+                requeue(slot.getAuditEventList());
+                return;
+            }
+        }
+        AuditEventPipelineSlot writeSlot = writeRing.get(sequence);
+        writeSlot.clear();
+        writeSlot.getAuditEventList().addAll(slot.getAuditEventList());
+        writeSlot.setBatchSeal(batchSeal);
+        writeSlot.setEncodedBundle(encodedBundle);
+        writeRing.publish(sequence);
+    }
+
+    protected void writeStage(AuditEventPipelineSlot slot, boolean endOfBatch){
+        List<AuditEvent> batch = slot.getAuditEventList();
+        List<MethodOutcome> outcomeList;
+        try {
+            if(tunablesService.getTunables().isJGroupsTechnology()){
+                outcomeList = new ArrayList<>(batch.size());
+                for(AuditEvent currentEvent: batch){
+                    outcomeList.add(hestiaDMJGroupsClient.writeAuditEventIntoDM(currentEvent));
+                }
+            } else {
+                outcomeList = hestiaDMHTTPClient.writeEncodedAuditEventBatch(batch, slot.getBatchSeal(), slot.getEncodedBundle());
+            }
+        } catch (Exception ex) {
+            getLogger().warn(".writeStage(): Batch write failed, requeueing, message->{}", ExceptionUtils.getMessage(ex));
+            requeue(batch);
+            return;
+        }
+        int written = 0;
+        for(int index = 0; index < batch.size(); index++){
+            MethodOutcome outcome = index < outcomeList.size() ? outcomeList.get(index) : null;
+            if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+                written += 1;
+            } else {
+                eventCache.addAuditEvent(batch.get(index));
+                eventsRequeued.incrementAndGet();
+            }
+        }
+        batchesWritten.incrementAndGet();
+        eventsWritten.addAndGet(written);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    /**
+     * Hands an AuditEvent on to the next stage's ring, waiting while that ring is full. If the
+     * pipeline stops while waiting, the AuditEvent goes onto the queue instead.
+     */
+    protected void forwardEvent(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer, AuditEvent auditEvent){
+        long sequence;
+        while((sequence = ringBuffer.claim(STAGE_CLAIM_TIMEOUT)) < 0){
+            if(!running){
+                eventCache.addAuditEvent(auditEvent);
+                eventsRequeued.incrementAndGet();
+                return;
+            }
+        }
+        AuditEventPipelineSlot slot = ringBuffer.get(sequence);
+        slot.clear();
+        slot.setAuditEvent(auditEvent);
+        ringBuffer.publish(sequence);
+    }
+
+    /**
+     * Wraps a stage handler so the stage thread moves the unconsumed entries of its ring onto the
+     * queue once it has stopped.
+     */
+    protected AuditEventPipelineStage.StageHandler requeueOnStop(AuditEventPipelineStage.StageHandler handler){
+        return(new AuditEventPipelineStage.StageHandler() {
+            @Override
+            public void onEntry(AuditEventPipelineSlot slot, boolean endOfBatch) throws Exception {
+                handler.onEntry(slot, endOfBatch);
+            }
+
+            @Override
+            public void onStop(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer) {
+                requeueUnconsumed(ringBuffer);
+            }
+        });
+    }
+
+    protected int requeue(List<AuditEvent> auditEventList){
+        for(AuditEvent currentEvent: auditEventList){
+            eventCache.addAuditEvent(currentEvent);
+        }
+        eventsRequeued.addAndGet(auditEventList.size());
+        return(auditEventList.size());
+    }
+
+    /**
+     * Moves the published but unconsumed entries of a stage's ring onto the queue. Only called on the
+     * stage's own thread, once it has stopped.
+     */
+    protected int requeueUnconsumed(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer){
+        int requeued = 0;
+        for(long sequence = ringBuffer.getConsumerCursor() + 1; sequence <= ringBuffer.getClaimCursor(); sequence++){
+            if(!ringBuffer.isPublished(sequence)){
+                continue;
+            }
+            AuditEventPipelineSlot slot = ringBuffer.get(sequence);
+            AuditEvent auditEvent = slot.getAuditEvent();
+            if(auditEvent == null && slot.getAuditEventJSON() != null){
+                try {
+                    auditEvent = parserService.parseAuditEvent(slot.getAuditEventJSON());
+                } catch (Exception ex) {
+                    decodeFailureCount.incrementAndGet();
+                }
+            }
+            if(auditEvent != null){
+                eventCache.addAuditEvent(auditEvent);
+                eventsRequeued.incrementAndGet();
+                requeued += 1;
+            }
+            requeued += requeue(slot.getAuditEventList());
+        }
+        return(requeued);
+    }
+
+    /**
+     * @return an estimate of the AuditEvents held in the pipeline: the per-event rings and the pending
+     * batch are counted exactly, the per-batch rings at the current batch size
+     */
+    public int getBacklog(){
+        if(!running){
+            return(0);
+        }
+        long backlog = pendingBatchSize + filterRing.getOccupancy() + batchRing.getOccupancy();
+        for(AuditEventRingBuffer<AuditEventPipelineSlot> currentRing: decodeRings){
+            backlog += currentRing.getOccupancy();
+        }
+        long batches = encodeRing.getOccupancy();
+        for(AuditEventRingBuffer<AuditEventPipelineSlot> currentRing: writeRings){
+            batches += currentRing.getOccupancy();
+        }
+        backlog += batches * writeLimiter.getBatchSize(tunablesService.getTunables().getBatchSize());
+        return((int)Math.min(Integer.MAX_VALUE, backlog));
+    }
+
+    protected boolean isDrained(){
+        if(pendingBatchSize > 0){
+            return(false);
+        }
+        for(AuditEventPipelineStage currentStage: stages){
+            if(currentStage.getRingBuffer().getOccupancy() > 0){
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public long getPublishedCount() {
+        return(publishedCount.get());
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return(fallbackCount.get());
+    }
+
+    @Override
+    public long getDecodeFailureCount() {
+        return(decodeFailureCount.get());
+    }
+
+    @Override
+    public long getFilteredCount() {
+        return(filteredCount.get());
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return(coalescedCount.get());
+    }
+
+    @Override
+    public long getBatchesWritten() {
+        return(batchesWritten.get());
+    }
+
+    @Override
+    public long getEventsWritten() {
+        return(eventsWritten.get());
+    }
+
+    @Override
+    public long getEventsRequeued() {
+        return(eventsRequeued.get());
+    }
+
+    @Override
+    public String getStageOccupancy() {
+        StringBuilder occupancyBuilder = new StringBuilder();
+        for(AuditEventPipelineStage currentStage: stages){
+            if(occupancyBuilder.length() > 0){
+                occupancyBuilder.append(", ");
+            }
+            occupancyBuilder.append(currentStage.getStageName()).append("=").append(currentStage.getRingBuffer().getOccupancy());
+        }
+        occupancyBuilder.append(", pendingBatch=").append(pendingBatchSize);
+        return(occupancyBuilder.toString());
+    }
+}
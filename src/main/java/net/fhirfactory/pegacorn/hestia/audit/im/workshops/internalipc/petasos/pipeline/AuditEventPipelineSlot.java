@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity.AuditEventBatchSeal;
+import org.hl7.fhir.r4.model.AuditEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reusable AuditEventRingBuffer entry. Per-event stages use the single AuditEvent (or its JSON form,
+ * before decoding); per-batch stages use the AuditEvent list and, once encoded, its seal and the
+ * encoded Bundle.
+ */
+public class AuditEventPipelineSlot {
+    private String auditEventJSON;
+    private AuditEvent auditEvent;
+    private final List<AuditEvent> auditEventList;
+    private AuditEventBatchSeal batchSeal;
+    private String encodedBundle;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventPipelineSlot(){
+        this.auditEventList = new ArrayList<>();
+    }
+
+    public void clear(){
+        this.auditEventJSON = null;
+        this.auditEvent = null;
+        this.auditEventList.clear();
+        this.batchSeal = null;
+        this.encodedBundle = null;
+    }
+
+    //
+    // Getters and Setters
+    //
+
+    public String getAuditEventJSON() {
+        return auditEventJSON;
+    }
+
+    public void setAuditEventJSON(String auditEventJSON) {
+        this.auditEventJSON = auditEventJSON;
+    }
+
+    public AuditEvent getAuditEvent() {
+        return auditEvent;
+    }
+
+    public void setAuditEvent(AuditEvent auditEvent) {
+        this.auditEvent = auditEvent;
+    }
+
+    public List<AuditEvent> getAuditEventList() {
+        return auditEventList;
+    }
+
+    public AuditEventBatchSeal getBatchSeal() {
+        return batchSeal;
+    }
+
+    public void setBatchSeal(AuditEventBatchSeal batchSeal) {
+        this.batchSeal = batchSeal;
+    }
+
+    public String getEncodedBundle() {
+        return encodedBundle;
+    }
+
+    public void setEncodedBundle(String encodedBundle) {
+        this.encodedBundle = encodedBundle;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The thread behind one pipeline stage. It drains its ring in batches and hands each entry to the
+ * stage's handler. When the ring is empty it spins briefly, then yields, then parks for increasing
+ * periods (up to MAXIMUM_PARK_NANOS). The handler's afterDrain() is called after every drain attempt,
+ * so time-based work (e.g. closing a batch at the end of its linger) still happens while no entries
+ * arrive. Handlers deal with their own per-entry failures; an exception escaping onEntry() loses the
+ * rest of that drained batch. Once stopped, the stage thread finishes the entry in hand and then calls
+ * the handler's onStop() with its ring, so whatever is left in the ring is only ever touched by the
+ * thread that owns it.
+ */
+public class AuditEventPipelineStage implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventPipelineStage.class);
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long MINIMUM_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAXIMUM_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String stageName;
+    private final AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer;
+    private final StageHandler handler;
+    private final int maximumBatch;
+    private volatile boolean running;
+    private Thread stageThread;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventPipelineStage(String stageName, AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer, StageHandler handler, int maximumBatch){
+        this.stageName = stageName;
+        this.ringBuffer = ringBuffer;
+        this.handler = handler;
+        this.maximumBatch = maximumBatch;
+        this.running = false;
+    }
+
+    //
+    // Lifecycle
+    //
+
+    public synchronized void start(){
+        if(running){
+            return;
+        }
+        running = true;
+        stageThread = new Thread(this, stageName);
+        stageThread.setDaemon(true);
+        stageThread.start();
+    }
+
+    /**
+     * Stops the stage thread, waiting up to timeoutMillis for it to finish the entry in hand and run
+     * the handler's onStop().
+     *
+     * @return true if the stage thread has terminated
+     */
+    public boolean stop(long timeoutMillis){
+        requestStop();
+        return(awaitTermination(timeoutMillis));
+    }
+
+    /**
+     * Tells the stage thread to stop after the entry in hand, without waiting for it.
+     */
+    public void requestStop(){
+        running = false;
+        Thread currentThread = stageThread;
+        if(currentThread != null){
+            LockSupport.unpark(currentThread);
+        }
+    }
+
+    /**
+     * @return true if the stage thread terminated within timeoutMillis (or was never started)
+     */
+    public boolean awaitTermination(long timeoutMillis){
+        Thread currentThread = stageThread;
+        if(currentThread == null){
+            return(true);
+        }
+        try {
+            currentThread.join(Math.max(1L, timeoutMillis));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return(!currentThread.isAlive());
+    }
+
+    @Override
+    public void run(){
+        int idleCount = 0;
+        long parkNanos = MINIMUM_PARK_NANOS;
+        while(running){
+            int handled = 0;
+            try {
+                handled = ringBuffer.drain(handler::onEntry, maximumBatch);
+                handler.afterDrain();
+            } catch (Exception ex) {
+                getLogger().error(".run(): Stage handler failed, stage->{}, message->{}", stageName, ExceptionUtils.getMessage(ex));
+            }
+            if(handled > 0){
+                idleCount = 0;
+                parkNanos = MINIMUM_PARK_NANOS;
+                continue;
+            }
+            idleCount += 1;
+            if(idleCount < SPIN_TRIES){
+                continue;
+            }
+            if(idleCount < SPIN_TRIES + YIELD_TRIES){
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(MAXIMUM_PARK_NANOS, parkNanos << 1);
+            }
+        }
+        try {
+            handler.onStop(ringBuffer);
+        } catch (Exception ex) {
+            getLogger().error(".run(): Stage stop handler failed, stage->{}, message->{}", stageName, ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    //
+    // Getters
+    //
+
+    public String getStageName(){
+        return(stageName);
+    }
+
+    public AuditEventRingBuffer<AuditEventPipelineSlot> getRingBuffer(){
+        return(ringBuffer);
+    }
+
+    public boolean isRunning(){
+        return(running);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    public interface StageHandler {
+        public void onEntry(AuditEventPipelineSlot slot, boolean endOfBatch) throws Exception;
+
+        public default void afterDrain() throws Exception {
+        }
+
+        /**
+         * Called on the stage thread once it has stopped, with the entries it did not consume still
+         * in the ring.
+         */
+        public default void onStop(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer) throws Exception {
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A bounded ring of preallocated entries in the style of the LMAX Disruptor, with any number of
+ * producers and exactly one consumer.
+ *
+ * A producer claims the next sequence (a CAS on the claim cursor), fills in the entry at that
+ * sequence and publishes it. The consumer reads published entries in sequence order, in batches, and
+ * then advances its cursor, which hands the slots back to the producers. Entries are reused, so
+ * hand-off allocates nothing; the consumer must copy out anything it keeps beyond onEntry().
+ */
+public class AuditEventRingBuffer<E> {
+    private static final long CLAIM_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Object[] entries;
+    private final int bufferSize;
+    private final int indexMask;
+    private final AtomicLong claimCursor;
+    private final AtomicLongArray publishedSequences;
+    private volatile long consumerCursor;
+
+    //
+    // Constructor(s)
+    //
+
+    /**
+     * @param requestedSize rounded up to a power of two
+     */
+    public AuditEventRingBuffer(int requestedSize, Supplier<E> entryFactory){
+        int size = Integer.highestOneBit(Math.max(2, requestedSize - 1)) << 1;
+        this.bufferSize = size;
+        this.indexMask = size - 1;
+        this.entries = new Object[size];
+        this.publishedSequences = new AtomicLongArray(size);
+        for(int index = 0; index < size; index++){
+            entries[index] = entryFactory.get();
+            publishedSequences.set(index, -1L);
+        }
+        this.claimCursor = new AtomicLong(-1L);
+        this.consumerCursor = -1L;
+    }
+
+    //
+    // Producer Side
+    //
+
+    /**
+     * Claims the next slot, waiting up to timeoutNanos for the consumer to free one.
+     *
+     * @return the claimed sequence, or -1 if the ring stayed full for the whole timeout
+     */
+    public long claim(long timeoutNanos){
+        long deadline = System.nanoTime() + timeoutNanos;
+        while(true){
+            long currentClaim = claimCursor.get();
+            long nextClaim = currentClaim + 1;
+            if(nextClaim - bufferSize > consumerCursor){
+                if(System.nanoTime() - deadline >= 0){
+                    return(-1L);
+                }
+                LockSupport.parkNanos(CLAIM_PARK_NANOS);
+                continue;
+            }
+            if(claimCursor.compareAndSet(currentClaim, nextClaim)){
+                return(nextClaim);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence){
+        return((E)entries[(int)(sequence & indexMask)]);
+    }
+
+    public void publish(long sequence){
+        publishedSequences.lazySet((int)(sequence & indexMask), sequence);
+    }
+
+    //
+    // Consumer Side
+    //
+
+    /**
+     * Hands up to maximumBatch published entries, in sequence order, to the handler, then releases
+     * their slots. The handler is told which entry ends the batch of currently available entries.
+     *
+     * @return the number of entries handled
+     */
+    public int drain(EntryHandler<E> handler, int maximumBatch) throws Exception {
+        long firstSequence = consumerCursor + 1;
+        long lastSequence = firstSequence - 1;
+        while(lastSequence - firstSequence + 1 < maximumBatch && isPublished(lastSequence + 1)){
+            lastSequence += 1;
+        }
+        if(lastSequence < firstSequence){
+            return(0);
+        }
+        try {
+            for(long sequence = firstSequence; sequence <= lastSequence; sequence++){
+                handler.onEntry(get(sequence), sequence == lastSequence);
+            }
+        } finally {
+            consumerCursor = lastSequence;
+        }
+        return((int)(lastSequence - firstSequence + 1));
+    }
+
+    public boolean isPublished(long sequence){
+        return(publishedSequences.get((int)(sequence & indexMask)) == sequence);
+    }
+
+    //
+    // Occupancy
+    //
+
+    public long getConsumerCursor(){
+        return(consumerCursor);
+    }
+
+    public long getClaimCursor(){
+        return(claimCursor.get());
+    }
+
+    /**
+     * @return the number of claimed slots not yet released by the consumer
+     */
+    public int getOccupancy(){
+        return((int)(claimCursor.get() - consumerCursor));
+    }
+
+    public int getBufferSize(){
+        return(bufferSize);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    public interface EntryHandler<E> {
+        public void onEntry(E entry, boolean endOfBatch) throws Exception;
+    }
+}
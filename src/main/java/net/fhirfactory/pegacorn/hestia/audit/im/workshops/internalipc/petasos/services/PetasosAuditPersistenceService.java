@@ -27,17 +27,55 @@ import net.fhirfactory.pegacorn.core.interfaces.auditing.PetasosAuditEventServic
 import net.fhirfactory.pegacorn.core.interfaces.auditing.PetasosAuditEventServiceBrokerInterface;
 import net.fhirfactory.pegacorn.core.interfaces.auditing.PetasosAuditEventServiceClientWriterInterface;
 import net.fhirfactory.pegacorn.core.interfaces.topology.ProcessingPlantInterface;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventDequeueEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventEnqueueEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.jfr.AuditEventWriterLockWaitEvent;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.readiness.HestiaAuditIMReadinessService;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.readiness.HestiaAuditIMStartupPhaseEnum;
 import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventCoalescingService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventQueueEntry;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.LocalAuditEventArchive;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.AuditEventQueueReplicationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.rules.AuditEventFilterRuleEngine;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.shedding.AuditEventLoadSheddingService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMBatchingWriter;
 import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMHTTPClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMJGroupsClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter.AdaptiveDMWriteLimiter;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline.AuditEventIngestionPipeline;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunables;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunablesService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency.AuditEventLatencyService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.hl7.fhir.r4.model.AuditEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @ApplicationScoped
 public class PetasosAuditPersistenceService implements PetasosAuditEventServiceClientWriterInterface,
@@ -46,21 +84,86 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
 
     private ObjectMapper jsonMapper;
 
-    private boolean stillRunning;
+    private volatile boolean stillRunning;
+    private volatile boolean acceptingAuditEvents;
+    private volatile boolean shuttingDown;
+    private boolean spillRecovered;
     private Object writerLock;
+    private ScheduledExecutorService writerScheduler;
+    private ScheduledFuture<?> writerFuture;
+    private Runnable writerDaemon;
+    private ExecutorService writerExecutor;
+    private long writerPeriod;
+    private int consecutiveWriteFailures;
+    private long nextWriteAttempt;
 
-    private Long ASYNC_AUDIT_WRITER_STARTUP_DELAY = 60000L;
-    private Long ASYNC_AUDIT_WRITER_CHECK_PERIOD = 10000L;
+    private static final String ASYNC_AUDIT_WRITER_SHUTDOWN_DEADLINE = "ASYNC_AUDIT_WRITER_SHUTDOWN_DEADLINE";
+    private static final String ASYNC_AUDIT_WRITER_SHUTDOWN_PARALLELISM = "ASYNC_AUDIT_WRITER_SHUTDOWN_PARALLELISM";
+    private static final String ASYNC_AUDIT_WRITER_SHUTDOWN_BATCH_SIZE = "ASYNC_AUDIT_WRITER_SHUTDOWN_BATCH_SIZE";
+    private static final String ASYNC_AUDIT_WRITER_SHUTDOWN_FAILED_ROUNDS = "ASYNC_AUDIT_WRITER_SHUTDOWN_FAILED_ROUNDS";
+    private static final long DEFAULT_SHUTDOWN_DEADLINE = 20000L;
+    private static final int DEFAULT_SHUTDOWN_PARALLELISM = 8;
+    private static final int DEFAULT_SHUTDOWN_BATCH_SIZE = 100;
+    private static final int DEFAULT_SHUTDOWN_FAILED_ROUNDS = 3;
+    private static final long LINGER_POLL_PERIOD = 5L;
 
     @Inject
     private ProcessingPlantInterface processingPlant;
 
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
     @Inject
     private HestiaDMHTTPClient hestiaDMHTTPClient;
 
     @Inject
     private AsynchronousWriterAuditEventCache eventCache;
 
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private AuditEventQueueReplicationService replicationService;
+
+    @Inject
+    private LocalAuditEventArchive localArchive;
+
+    @Inject
+    private AuditEventCoalescingService coalescingService;
+
+    @Inject
+    private AuditEventFilterRuleEngine filterRuleEngine;
+
+    @Inject
+    private HestiaAuditIMReadinessService readinessService;
+
+    @Inject
+    private AdaptiveDMWriteLimiter writeLimiter;
+
+    @Inject
+    private AsynchronousWriterTunablesService tunablesService;
+
+    @Inject
+    private HestiaDMJGroupsClient hestiaDMJGroupsClient;
+
+    @Inject
+    private HestiaDMBatchingWriter hestiaDMBatchingWriter;
+
+    @Inject
+    private AuditEventIngestionPipeline ingestionPipeline;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private AuditEventLatencyService latencyService;
+
+    @Inject
+    private AuditEventStructuralValidator structuralValidator;
+
+    @Inject
+    private AuditEventLoadSheddingService loadSheddingService;
+
     //
     // Constructor(s)
     //
@@ -68,8 +171,96 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
     public PetasosAuditPersistenceService() {
         jsonMapper = new ObjectMapper();
         stillRunning = false;
+        acceptingAuditEvents = true;
+        shuttingDown = false;
+        spillRecovered = false;
         writerLock = new Object();
+        consecutiveWriteFailures = 0;
+        nextWriteAttempt = 0;
+    }
+
+    //
+    // Post Construct / Pre Destroy
+    //
+
+    @PostConstruct
+    public void initialise(){
+        getLogger().debug(".initialise(): Entry");
+        getClusterService().setOwnedAuditEventHandler(this::queueOwnedAuditEvent);
         scheduleAsynchronousAuditEventWriterDaemon();
+        getLogger().debug(".initialise(): Exit");
+    }
+
+    /**
+     * Ordered shutdown of the asynchronous writer:
+     * (1) stop accepting new AuditEvents, stop the periodic writer, drain the ingestion pipeline (what it
+     * cannot write in time goes onto the queue) and release any coalesced groups and load-shedding summaries,
+     * (2) drain the queue to the DM, in parallel batches, until the drain deadline passes,
+     * (3) spill whatever is left into the local archive, to be written on the next start, and
+     * (4) shut down the beans the sequence relies on, in dependency order: replication (sending the prunes
+     * for what was drained while the channel is still open), the cluster, the batching writer and the
+     * remaining workers, and last the local archive, which flushes what they dead-lettered or archived.
+     * This is the only place the shutdown work is sequenced: the @PreDestroy hooks of those beans are
+     * idempotent, so whichever order the container destroys them in, the calls made here come first or
+     * find nothing left to do.
+     */
+    @PreDestroy
+    public void shutdown(){
+        getLogger().info(".shutdown(): Entry, queued->{}", getAuditEventCache().getQueueDepth());
+        long deadline = System.currentTimeMillis() + configurationService.getLongParameter(ASYNC_AUDIT_WRITER_SHUTDOWN_DEADLINE, DEFAULT_SHUTDOWN_DEADLINE);
+        acceptingAuditEvents = false;
+        shuttingDown = true;
+        if(writerScheduler != null){
+            writerScheduler.shutdown();
+            try {
+                writerScheduler.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(writerExecutor != null){
+            writerExecutor.shutdown();
+        }
+        ingestionPipeline.shutdown(deadline);
+        int releasedGroups = getCoalescingService().releaseAllGroups();
+        if(releasedGroups > 0){
+            getLogger().info(".shutdown(): Released coalesced groups->{}", releasedGroups);
+        }
+        int releasedSummaries = loadSheddingService.releaseAllSummaries();
+        if(releasedSummaries > 0){
+            getLogger().info(".shutdown(): Released load-shedding summaries->{}", releasedSummaries);
+        }
+        try {
+            if(getClusterService().isClusterEnabled()) {
+                getClusterService().handOffQueuedAuditEvents();
+            }
+        } catch (Exception ex) {
+            getLogger().warn(".shutdown(): Could not hand off queued AuditEvents, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        int drained = drainQueueUntil(deadline);
+        List<AuditEvent> remainder = new ArrayList<>();
+        AuditEventQueueEntry currentEntry;
+        while((currentEntry = getAuditEventCache().pollQueueEntry()) != null){
+            remainder.add(currentEntry.getAuditEvent());
+        }
+        if(!remainder.isEmpty()){
+            Path spillFile = localArchive.archiveAuditEvents(LocalAuditEventArchive.SHUTDOWN_SPILL_CATEGORY, remainder);
+            getLogger().warn(".shutdown(): Drain deadline reached, spilled->{}, spillFile->{}", remainder.size(), spillFile);
+        }
+        getReplicationService().shutdown();
+        getClusterService().shutdown();
+        hestiaDMBatchingWriter.shutdown();
+        ingestionPipeline.unregister();
+        getCoalescingService().shutdown();
+        loadSheddingService.shutdown();
+        structuralValidator.shutdown();
+        writeLimiter.shutdown();
+        getLocalArchive().shutdown();
+        getLogger().info(".shutdown(): Exit, drained->{}, spilled->{}", drained, remainder.size());
+    }
+
+    public boolean isAcceptingAuditEvents(){
+        return(acceptingAuditEvents);
     }
 
     //
@@ -100,6 +291,26 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
         return(writerLock);
     }
 
+    protected LocalAuditEventArchive getLocalArchive(){
+        return(localArchive);
+    }
+
+    protected HestiaAuditIMClusterService getClusterService(){
+        return(clusterService);
+    }
+
+    protected AuditEventFilterRuleEngine getFilterRuleEngine(){
+        return(filterRuleEngine);
+    }
+
+    protected AuditEventCoalescingService getCoalescingService(){
+        return(coalescingService);
+    }
+
+    protected AuditEventQueueReplicationService getReplicationService(){
+        return(replicationService);
+    }
+
     //
     // Global Audit Event Services
     //
@@ -109,9 +320,17 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
     public MethodOutcome writeAuditEventJSONStringSynchronously(String auditEventJSONString) {
         getLogger().debug(".writeAuditEventJSONStringSynchronously(): Entry, auditEvent->{}", auditEventJSONString);
         MethodOutcome methodOutcome;
-
-        synchronized (getWriterLock()) {
-            methodOutcome = getHestiaDMHTTPClient().writeAuditEvent(auditEventJSONString);
+        AuditEvent auditEvent = null;
+        try {
+            auditEvent = parserService.parseAuditEvent(auditEventJSONString);
+        } catch (Exception ex) {
+            getLogger().warn(".writeAuditEventJSONStringSynchronously(): Could not parse AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        if(auditEvent != null){
+            methodOutcome = writeAuditEvent(auditEvent);
+        } else {
+            methodOutcome = new MethodOutcome();
+            methodOutcome.setCreated(false);
         }
         getLogger().debug(".writeAuditEventJSONStringSynchronously(): Exit, methodOutcome->{}", methodOutcome);
         return(methodOutcome);
@@ -140,9 +359,19 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
     public MethodOutcome writeAuditEvent(AuditEvent auditEvent) {
         getLogger().debug(".writeAuditEvent(): Entry, auditEvent->{}", auditEvent);
         MethodOutcome outcome = null;
+        if(auditEvent != null){
+            outcome = screenAuditEvent(auditEvent);
+            if(outcome != null){
+                getLogger().debug(".writeAuditEvent(): Exit, AuditEvent not admitted, outcome->{}", outcome);
+                return(outcome);
+            }
+        }
         if(auditEvent != null) {
             getLogger().debug(".writeAuditEvent(): AuditEvent is not -null-, writing!");
+            AuditEventWriterLockWaitEvent lockWaitEvent = new AuditEventWriterLockWaitEvent();
+            lockWaitEvent.begin();
             synchronized (getWriterLock()) {
+                commitWriterLockWaitEvent(lockWaitEvent, "writeAuditEvent");
                 getLogger().debug(".writeAuditEvent(): Got Writing Semaphore, writing!");
                 outcome = getHestiaDMHTTPClient().writeAuditEvent(auditEvent);
             }
@@ -151,6 +380,58 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
         return (outcome);
     }
 
+    /**
+     * Writes the AuditEvents to the DM in a single batch interaction, returning one MethodOutcome per
+     * AuditEvent (in the same order). AuditEvents not admitted by screenAuditEvent() are left out of the
+     * batch and get its outcome instead.
+     */
+    public List<MethodOutcome> writeAuditEventBatch(List<AuditEvent> auditEventList) {
+        getLogger().debug(".writeAuditEventBatch(): Entry, count->{}", auditEventList.size());
+        List<MethodOutcome> outcomeList = new ArrayList<>(auditEventList.size());
+        List<AuditEvent> admittedList = new ArrayList<>(auditEventList.size());
+        for(AuditEvent currentEvent: auditEventList){
+            MethodOutcome screenedOutcome = screenAuditEvent(currentEvent);
+            outcomeList.add(screenedOutcome);
+            if(screenedOutcome == null){
+                admittedList.add(currentEvent);
+            }
+        }
+        if(!admittedList.isEmpty()){
+            List<MethodOutcome> writeOutcomeList = getHestiaDMHTTPClient().writeAuditEventBatch(admittedList);
+            int writeIndex = 0;
+            for(int index = 0; index < outcomeList.size(); index++){
+                if(outcomeList.get(index) == null){
+                    outcomeList.set(index, writeOutcomeList.get(writeIndex));
+                    writeIndex += 1;
+                }
+            }
+        }
+        getLogger().debug(".writeAuditEventBatch(): Exit, count->{}, admitted->{}", outcomeList.size(), admittedList.size());
+        return(outcomeList);
+    }
+
+    /**
+     * The one chokepoint for the direct write paths (single, JSON and batch), which bypass the queue and
+     * so the checks in queueAuditEvent(). A structurally invalid AuditEvent is dead-lettered and reported
+     * as not created; one dropped, sampled out or archived by the filter rules is reported as created,
+     * as it would be had it been queued.
+     *
+     * @return null if the AuditEvent is to be written to the DM, otherwise the outcome to report for it
+     */
+    protected MethodOutcome screenAuditEvent(AuditEvent auditEvent){
+        if(!structuralValidator.admit(auditEvent)){
+            MethodOutcome outcome = new MethodOutcome();
+            outcome.setCreated(false);
+            return(outcome);
+        }
+        if(!getFilterRuleEngine().admit(auditEvent)){
+            MethodOutcome outcome = new MethodOutcome();
+            outcome.setCreated(true);
+            return(outcome);
+        }
+        return(null);
+    }
+
     //
     // Local Audit Event Broker Services
     //
@@ -174,7 +455,7 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
         if(eventList != null){
             if(!eventList.isEmpty()){
                 for(AuditEvent currentEvent: eventList){
-                    getAuditEventCache().addAuditEvent(currentEvent);
+                    queueAuditEvent(currentEvent);
                 }
             }
         }
@@ -183,20 +464,165 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
         return(success);
     }
 
+    //
+    // Asynchronous Queue Entry
+    //
+
+    /**
+     * Queues the AuditEvent for the asynchronous writer on whichever IM replica owns its source. When
+     * the IM is not clustered (or the owner cannot be reached) the event is queued locally and, in
+     * replicated queue mode, mirrored to the replica set before this method returns. With coalescing
+     * enabled, repeats of a recent AuditEvent are folded into that event's group instead. When the
+     * ingestion pipeline is active the AuditEvent goes to it instead of the queue. With validation
+     * enabled, a structurally invalid AuditEvent is dead-lettered and rejected here, before it is queued.
+     * Under queue pressure the load-shedding tier may trim, summarise or archive the AuditEvent instead.
+     */
+    public Boolean queueAuditEvent(AuditEvent auditEvent){
+        getLogger().debug(".queueAuditEvent(): Entry, auditEvent->{}", auditEvent);
+        if(auditEvent == null){
+            getLogger().debug(".queueAuditEvent(): Exit, auditEvent is -null-");
+            return(false);
+        }
+        AuditEventEnqueueEvent enqueueEvent = new AuditEventEnqueueEvent();
+        enqueueEvent.begin();
+        if(!isAcceptingAuditEvents()){
+            getLogger().warn(".queueAuditEvent(): Exit, shutting down, AuditEvent rejected");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_REJECTED);
+            return(false);
+        }
+        if(!structuralValidator.admit(auditEvent)){
+            getLogger().debug(".queueAuditEvent(): Exit, AuditEvent failed validation");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_INVALID);
+            return(false);
+        }
+        if(ingestionPipeline.publish(auditEvent)){
+            getLogger().debug(".queueAuditEvent(): Exit, AuditEvent published to ingestion pipeline");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_PIPELINED);
+            return(true);
+        }
+        if(!getFilterRuleEngine().admit(auditEvent)){
+            getLogger().debug(".queueAuditEvent(): Exit, AuditEvent filtered by rule");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_FILTERED);
+            return(true);
+        }
+        if(!getClusterService().isLocallyOwned(auditEvent) && getClusterService().forwardAuditEvent(auditEvent)){
+            getLogger().debug(".queueAuditEvent(): Exit, AuditEvent forwarded to its owner");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_FORWARDED);
+            return(true);
+        }
+        Boolean queued = queueOwnedAuditEvent(auditEvent, enqueueEvent);
+        getLogger().debug(".queueAuditEvent(): Exit, queued->{}", queued);
+        return(queued);
+    }
+
+    /**
+     * Queues an AuditEvent this replica is responsible for, whether it arrived here or was forwarded by
+     * the replica that received it. This is where load-shedding, coalescing and the maximumQueueDepth
+     * bound are applied. In replicated queue mode the AuditEvent is only accepted once every replica
+     * holds it, and it is never coalesced (an open group exists only in this replica's memory).
+     *
+     * @return false if the AuditEvent was rejected and the caller still has to take care of it
+     */
+    public Boolean queueOwnedAuditEvent(AuditEvent auditEvent){
+        AuditEventEnqueueEvent enqueueEvent = new AuditEventEnqueueEvent();
+        enqueueEvent.begin();
+        if(!isAcceptingAuditEvents()){
+            getLogger().debug(".queueOwnedAuditEvent(): Shutting down, AuditEvent rejected");
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_REJECTED);
+            return(false);
+        }
+        return(queueOwnedAuditEvent(auditEvent, enqueueEvent));
+    }
+
+    protected Boolean queueOwnedAuditEvent(AuditEvent auditEvent, AuditEventEnqueueEvent enqueueEvent){
+        if(!loadSheddingService.admit(auditEvent)){
+            getLogger().debug(".queueOwnedAuditEvent(): AuditEvent shed, tier->{}", loadSheddingService.getTier());
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_SHED);
+            return(true);
+        }
+        boolean replicated = getReplicationService().isReplicationEnabled();
+        if(!replicated && getCoalescingService().coalesce(auditEvent)){
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_COALESCED);
+            return(true);
+        }
+        int maximumQueueDepth = tunablesService.getTunables().getMaximumQueueDepth();
+        if(maximumQueueDepth > 0 && getAuditEventCache().getQueueDepth() >= maximumQueueDepth){
+            getLogger().warn(".queueOwnedAuditEvent(): Queue is full, AuditEvent rejected, maximumQueueDepth->{}", maximumQueueDepth);
+            commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_REJECTED);
+            return(false);
+        }
+        AuditEventQueueEntry entry = getAuditEventCache().addAuditEvent(auditEvent);
+        if(replicated && !getReplicationService().replicateAndWait(entry)){
+            // only withdraw it if the writer (or a cluster transfer) has not already taken it
+            if(entry.markInFlight()){
+                boolean withdrawn = getAuditEventCache().removeQueueEntry(entry);
+                entry.clearInFlight();
+                if(withdrawn){
+                    getLogger().warn(".queueOwnedAuditEvent(): Replication failed, AuditEvent rejected, entryID->{}", entry.getEntryID());
+                    getReplicationService().pruneReplicas(entry);
+                    commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_REJECTED);
+                    return(false);
+                }
+            }
+            getLogger().debug(".queueOwnedAuditEvent(): Replication failed but the entry is already being written, entryID->{}", entry.getEntryID());
+        }
+        commitEnqueueEvent(enqueueEvent, auditEvent, AuditEventEnqueueEvent.OUTCOME_QUEUED);
+        return(true);
+    }
+
+    /**
+     * As queueAuditEvent(), for an AuditEvent still in its JSON form. When the ingestion pipeline is
+     * active the JSON is parsed on its decode stage rather than on the calling thread.
+     */
+    public Boolean queueAuditEventJSON(String auditEventJSON){
+        if(StringUtils.isEmpty(auditEventJSON)){
+            return(false);
+        }
+        if(isAcceptingAuditEvents() && ingestionPipeline.publishJSON(auditEventJSON)){
+            return(true);
+        }
+        AuditEvent auditEvent;
+        try {
+            auditEvent = parserService.parseAuditEvent(auditEventJSON);
+        } catch (Exception ex) {
+            getLogger().warn(".queueAuditEventJSON(): Could not parse AuditEvent, message->{}", ExceptionUtils.getMessage(ex));
+            return(false);
+        }
+        latencyService.recordReceipt(auditEvent, AuditEventLatencyService.INGRESS_PETASOS_RPC);
+        return(queueAuditEvent(auditEvent));
+    }
+
     //
     // Helper Functions
     //
 
-    private boolean useHadoopDMService() {
-        String parameterValue = getProcessingPlant().getMeAsASoftwareComponent().getOtherConfigurationParameter("IM_TO_DM_TECHNOLOGY");
-        if (parameterValue != null) {
-            if (parameterValue.equalsIgnoreCase("jgroups")) {
-                return (true);
+    protected void commitEnqueueEvent(AuditEventEnqueueEvent enqueueEvent, AuditEvent auditEvent, String outcome){
+        if(enqueueEvent.shouldCommit()){
+            enqueueEvent.source = getClusterService().resolveSourceParticipantName(auditEvent);
+            enqueueEvent.outcome = outcome;
+            enqueueEvent.queueDepth = getAuditEventCache().getQueueDepth();
+            enqueueEvent.commit();
+        }
+    }
+
+    protected void commitDequeueEvent(AuditEventDequeueEvent dequeueEvent, AuditEventQueueEntry entry, int batchSize){
+        if(dequeueEvent.shouldCommit()){
+            dequeueEvent.source = getClusterService().resolveSourceParticipantName(entry.getAuditEvent());
+            if(entry.getQueuedInstant() != null){
+                dequeueEvent.queueWait = Duration.between(entry.getQueuedInstant(), Instant.now()).toMillis();
             }
-        } else {
-            return (false);
+            dequeueEvent.batchSize = batchSize;
+            dequeueEvent.queueDepth = getAuditEventCache().getQueueDepth();
+            dequeueEvent.commit();
+        }
+    }
+
+    protected void commitWriterLockWaitEvent(AuditEventWriterLockWaitEvent lockWaitEvent, String operation){
+        lockWaitEvent.end();
+        if(lockWaitEvent.shouldCommit()){
+            lockWaitEvent.operation = operation;
+            lockWaitEvent.commit();
         }
-        return (false);
     }
 
     //
@@ -208,46 +634,451 @@ public class PetasosAuditPersistenceService implements PetasosAuditEventServiceC
 
     private void scheduleAsynchronousAuditEventWriterDaemon() {
         getLogger().debug(".scheduleAsynchronousAuditEventWriterDaemon(): Entry");
-        TimerTask asynchronousAuditEventWriterDaemon = new TimerTask() {
-            public void run() {
-                getLogger().debug(".asynchronousAuditEventWriterDaemon(): Entry");
-                asynchronousAuditEventWriterTask();
-                getLogger().debug(".asynchronousAuditEventWriterDaemon(): Exit");
+        writerDaemon = () -> {
+            getLogger().debug(".asynchronousAuditEventWriterDaemon(): Entry");
+            if(System.currentTimeMillis() < nextWriteAttempt){
+                getLogger().debug(".asynchronousAuditEventWriterDaemon(): Exit, backing off after failure");
+                return;
             }
+            boolean success = false;
+            try {
+                if(!spillRecovered){
+                    spillRecovered = recoverSpilledAuditEvents();
+                }
+                success = asynchronousAuditEventWriterTask();
+            } catch (Exception ex) {
+                getLogger().error(".asynchronousAuditEventWriterDaemon(): Writer task failed, message->{}", ExceptionUtils.getMessage(ex));
+            }
+            updateRetryBackoff(success);
+            getLogger().debug(".asynchronousAuditEventWriterDaemon(): Exit");
         };
-        Timer timer = new Timer("AsynchronousAuditEventTimer");
-        timer.schedule(asynchronousAuditEventWriterDaemon, ASYNC_AUDIT_WRITER_STARTUP_DELAY, ASYNC_AUDIT_WRITER_CHECK_PERIOD);
+        writerScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread writerThread = new Thread(runnable, "AsynchronousAuditEventTimer");
+            writerThread.setDaemon(true);
+            return(writerThread);
+        });
+        writerExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread batchThread = new Thread(runnable, "AsynchronousAuditEventWriter");
+            batchThread.setDaemon(true);
+            return(batchThread);
+        });
+        writerScheduler.execute(this::awaitWriterReadiness);
         getLogger().debug(".scheduleAsynchronousAuditEventWriterDaemon(): Exit");
     }
 
+    /**
+     * Starts the writer daemon as soon as the DM client reports it can take writes, re-checking every
+     * readinessPeriod (tunable) until then.
+     */
+    private void awaitWriterReadiness(){
+        if(shuttingDown){
+            return;
+        }
+        boolean ready = false;
+        try {
+            ready = getHestiaDMHTTPClient().prepareForWrites();
+        } catch (Exception ex) {
+            getLogger().warn(".awaitWriterReadiness(): DM not ready, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        try {
+            if (ready) {
+                rescheduleWriterDaemon(tunablesService.getTunables());
+                tunablesService.addTunablesListener(this::rescheduleWriterDaemon);
+                readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.WRITER_STARTED);
+            } else {
+                writerScheduler.schedule(this::awaitWriterReadiness, tunablesService.getTunables().getReadinessPeriod(), TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException ex) {
+            getLogger().debug(".awaitWriterReadiness(): Writer scheduler already shut down");
+        }
+    }
+
+    /**
+     * (Re)schedules the writer daemon when its period changes. A run already in progress is allowed to
+     * finish (the scheduler is single-threaded, so the old and new schedules never overlap) and the
+     * queue is untouched.
+     */
+    private synchronized void rescheduleWriterDaemon(AsynchronousWriterTunables tunables){
+        if(shuttingDown || (writerFuture != null && writerPeriod == tunables.getCheckPeriod())){
+            return;
+        }
+        if(writerFuture != null){
+            writerFuture.cancel(false);
+        }
+        writerPeriod = tunables.getCheckPeriod();
+        writerFuture = writerScheduler.scheduleWithFixedDelay(writerDaemon, 0L, writerPeriod, TimeUnit.MILLISECONDS);
+        getLogger().info(".rescheduleWriterDaemon(): checkPeriod->{}", writerPeriod);
+    }
+
+    /**
+     * After a failed run the next run is held back by retryInitialDelay, doubling with each further
+     * failure up to retryMaximumDelay. A successful run clears the backoff.
+     */
+    private void updateRetryBackoff(boolean success){
+        if(success){
+            consecutiveWriteFailures = 0;
+            nextWriteAttempt = 0;
+            return;
+        }
+        AsynchronousWriterTunables tunables = tunablesService.getTunables();
+        consecutiveWriteFailures = Math.min(consecutiveWriteFailures + 1, 30);
+        long backoff = Math.min(tunables.getRetryMaximumDelay(), tunables.getRetryInitialDelay() << (consecutiveWriteFailures - 1));
+        if(backoff < 0){
+            backoff = tunables.getRetryMaximumDelay();
+        }
+        nextWriteAttempt = System.currentTimeMillis() + backoff;
+        getLogger().debug(".updateRetryBackoff(): failures->{}, backoff->{}", consecutiveWriteFailures, backoff);
+    }
+
+    /**
+     * Writes queued AuditEvents over the transport chosen by the dmTechnology tunable, returning one
+     * MethodOutcome per AuditEvent (in the same order). The JGroups transport has no batch interaction,
+     * so there the AuditEvents are written one at a time.
+     */
+    protected List<MethodOutcome> writeQueuedAuditEvents(List<AuditEvent> auditEventList){
+        if(tunablesService.getTunables().isJGroupsTechnology()){
+            List<MethodOutcome> outcomeList = new ArrayList<>(auditEventList.size());
+            for(AuditEvent currentEvent: auditEventList){
+                outcomeList.add(hestiaDMJGroupsClient.writeAuditEventIntoDM(currentEvent));
+            }
+            return(outcomeList);
+        }
+        return(getHestiaDMHTTPClient().writeAuditEventBatch(auditEventList));
+    }
+
     //
     // Task
 
-    private void asynchronousAuditEventWriterTask(){
-        getLogger().debug(".notificationForwarder(): Entry");
+    /**
+     * Drains the queue in rounds of concurrent batch writes. Each round claims (marks in flight) up to
+     * one batch per writer from the head of the queue, writes the batches in parallel and waits for all
+     * of them. The batchSize and batchWriters tunables (read afresh each round) cap the batch size and
+     * the number of batches per round, and the AdaptiveDMWriteLimiter shrinks both below those caps as
+     * the DM slows. If a run starts with less than a batch queued it first waits batchLinger for more. Entries stay on the queue until the DM has created them
+     * (a cluster transfer or replica withdrawal skips anything in flight); any entry that fails is left
+     * where it is and the run ends, to be retried after the backoff. As batches in a round complete
+     * independently, a failure can let AuditEvents behind it be written first.
+     *
+     * @return false if a write failed (the rest of the queue is left for the next run)
+     */
+    private boolean asynchronousAuditEventWriterTask(){
+        getLogger().debug(".asynchronousAuditEventWriterTask(): Entry");
         stillRunning = true;
-
-        while(getAuditEventCache().hasEntries()) {
-            getLogger().trace(".notificationForwarder(): Entry");
-            AuditEvent currentAuditEvent = getAuditEventCache().peekAuditEvent();
-            MethodOutcome outcome = null;
-            synchronized (getWriterLock()) {
-                outcome = hestiaDMHTTPClient.writeAuditEvent(currentAuditEvent);
+        boolean allWritten = true;
+        boolean firstRound = true;
+        while(getAuditEventCache().hasEntries() && !shuttingDown) {
+            AsynchronousWriterTunables tunables = tunablesService.getTunables();
+            int roundParallelism = Math.max(1, Math.min(tunables.getBatchWriters(), writeLimiter.getConcurrencyLimit()));
+            int batchSize = writeLimiter.getBatchSize(tunables.getBatchSize());
+            if(firstRound){
+                lingerForBatch(tunables.getBatchLinger(), batchSize);
+                firstRound = false;
             }
-            boolean success = false;
-            if(outcome != null) {
-                if (outcome.getCreated()) {
-                    getAuditEventCache().pollAuditEvent();
-                    success = true;
+            List<List<AuditEventQueueEntry>> roundBatches = claimQueueBatches(roundParallelism, batchSize);
+            if(roundBatches.isEmpty()){
+                getLogger().debug(".asynchronousAuditEventWriterTask(): Head of queue is being transferred to another replica, leaving it for the next run");
+                break;
+            }
+            List<Future<Boolean>> inFlightBatches = new ArrayList<>(roundBatches.size());
+            for(List<AuditEventQueueEntry> currentBatch: roundBatches){
+                inFlightBatches.add(submitQueuedBatch(currentBatch));
+            }
+            for(Future<Boolean> currentBatch: inFlightBatches){
+                try {
+                    allWritten = currentBatch.get() && allWritten;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    allWritten = false;
+                } catch (Exception ex) {
+                    getLogger().error(".asynchronousAuditEventWriterTask(): Batch write failed, message->{}", ExceptionUtils.getMessage(ex));
+                    allWritten = false;
                 }
             }
-            if(!success){
+            if(!allWritten){
                 getLogger().warn(".asynchronousAuditEventWriterTask(): Failed to write AuditEvent!");
                 break;
             }
         }
         stillRunning = false;
-        getLogger().debug(".notificationForwarder(): Exit");
+        getLogger().debug(".asynchronousAuditEventWriterTask(): Exit");
+        return(allWritten);
+    }
+
+    /**
+     * Gives a short queue up to lingerMillis to fill a batch before the first round of a run is claimed.
+     */
+    protected void lingerForBatch(long lingerMillis, int batchSize){
+        long lingerDeadline = System.currentTimeMillis() + lingerMillis;
+        try {
+            while(getAuditEventCache().getQueueDepth() < batchSize && !shuttingDown){
+                long remaining = lingerDeadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    break;
+                }
+                Thread.sleep(Math.min(remaining, LINGER_POLL_PERIOD));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims up to batchCount batches of batchSize entries from the head of the queue, stopping at the
+     * first entry that is already in flight (being transferred to, or withdrawn for, another replica).
+     */
+    protected List<List<AuditEventQueueEntry>> claimQueueBatches(int batchCount, int batchSize){
+        List<List<AuditEventQueueEntry>> batchList = new ArrayList<>(batchCount);
+        List<AuditEventQueueEntry> currentBatch = new ArrayList<>(batchSize);
+        for(AuditEventQueueEntry currentEntry: getAuditEventCache().getEventQueue()){
+            if(!currentEntry.markInFlight()){
+                break;
+            }
+            currentBatch.add(currentEntry);
+            if(currentBatch.size() >= batchSize){
+                batchList.add(currentBatch);
+                if(batchList.size() >= batchCount){
+                    return(batchList);
+                }
+                currentBatch = new ArrayList<>(batchSize);
+            }
+        }
+        if(!currentBatch.isEmpty()){
+            batchList.add(currentBatch);
+        }
+        return(batchList);
+    }
+
+    protected Future<Boolean> submitQueuedBatch(List<AuditEventQueueEntry> batch){
+        try {
+            return(writerExecutor.submit(() -> writeQueuedBatch(batch)));
+        } catch (RejectedExecutionException ex) {
+            // the writer pool is already shut down, write it on this thread instead
+            return(CompletableFuture.completedFuture(writeQueuedBatch(batch)));
+        }
+    }
+
+    /**
+     * @return false if an entry of the batch was neither created nor dead-lettered
+     */
+    protected boolean writeQueuedBatch(List<AuditEventQueueEntry> batch){
+        return(writeClaimedBatch(batch) == batch.size());
+    }
+
+    /**
+     * Writes one claimed batch over the dmTechnology transport. Created entries are removed from the
+     * queue; entries that failed stay on it unless they are structurally invalid, in which case they are
+     * dead-lettered. Every entry of the batch is released (no longer in flight) on the way out, including
+     * when the write throws.
+     *
+     * @return the number of entries created or dead-lettered
+     */
+    protected int writeClaimedBatch(List<AuditEventQueueEntry> batch){
+        int written = 0;
+        try {
+            List<AuditEvent> auditEventList = new ArrayList<>(batch.size());
+            for(AuditEventQueueEntry currentEntry: batch){
+                auditEventList.add(currentEntry.getAuditEvent());
+            }
+            List<MethodOutcome> outcomeList = writeQueuedAuditEvents(auditEventList);
+            for(int index = 0; index < batch.size(); index++){
+                AuditEventQueueEntry currentEntry = batch.get(index);
+                MethodOutcome outcome = index < outcomeList.size() ? outcomeList.get(index) : null;
+                if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+                    // the batch write itself is timed by the DMWrite event, so this only records the queue wait
+                    AuditEventDequeueEvent dequeueEvent = new AuditEventDequeueEvent();
+                    dequeueEvent.begin();
+                    getAuditEventCache().removeQueueEntry(currentEntry);
+                    commitDequeueEvent(dequeueEvent, currentEntry, batch.size());
+                    getReplicationService().pruneReplicas(currentEntry);
+                    readinessService.recordPhase(HestiaAuditIMStartupPhaseEnum.FIRST_EVENT_DRAINED);
+                    written += 1;
+                } else if(deadLetterInvalidEntry(currentEntry)){
+                    written += 1;
+                }
+            }
+        } finally {
+            for(AuditEventQueueEntry currentEntry: batch){
+                currentEntry.clearInFlight();
+            }
+        }
+        return(written);
+    }
+
+    /**
+     * A queued entry that fails to write and is structurally invalid will never be accepted by the DM,
+     * so rather than holding up the rest of the queue it is moved to the dead-letter archive.
+     *
+     * @return true if the entry was dead-lettered
+     */
+    protected boolean deadLetterInvalidEntry(AuditEventQueueEntry entry){
+        String violation = structuralValidator.findViolation(entry.getAuditEvent());
+        if(violation == null){
+            return(false);
+        }
+        getLogger().warn(".deadLetterInvalidEntry(): Dead-lettering invalid queued AuditEvent, violation->{}", violation);
+        if(getAuditEventCache().removeQueueEntry(entry)){
+            structuralValidator.deadLetter(entry.getAuditEvent());
+            getReplicationService().pruneReplicas(entry);
+        }
+        return(true);
+    }
+
+    //
+    // Shutdown Drain and Recovery
+
+    /**
+     * Drains the queue to the DM using parallel batch writes until either the queue is empty or the
+     * deadline passes. Batches are claimed (marked in flight) the same way as by the asynchronous writer
+     * and written through writeClaimedBatch(), so an entry only leaves the queue once the DM has created
+     * it: an entry in a batch that fails, throws or is still in flight at the deadline is left on the
+     * queue to be spilled. Failed rounds are held back (retryInitialDelay, doubling up to
+     * retryMaximumDelay). After ASYNC_AUDIT_WRITER_SHUTDOWN_FAILED_ROUNDS consecutive rounds without a
+     * single successful write the DM is taken to be down and the drain stops, leaving the rest of the
+     * shutdown time to spill the queue.
+     */
+    protected int drainQueueUntil(long deadline){
+        getLogger().debug(".drainQueueUntil(): Entry");
+        int parallelism = (int)Math.max(1L, configurationService.getLongParameter(ASYNC_AUDIT_WRITER_SHUTDOWN_PARALLELISM, DEFAULT_SHUTDOWN_PARALLELISM));
+        int batchSize = (int)Math.max(1L, configurationService.getLongParameter(ASYNC_AUDIT_WRITER_SHUTDOWN_BATCH_SIZE, DEFAULT_SHUTDOWN_BATCH_SIZE));
+        int maximumFailedRounds = (int)Math.max(1L, configurationService.getLongParameter(ASYNC_AUDIT_WRITER_SHUTDOWN_FAILED_ROUNDS, DEFAULT_SHUTDOWN_FAILED_ROUNDS));
+        AsynchronousWriterTunables tunables = tunablesService.getTunables();
+        long retryDelay = Math.max(1L, tunables.getRetryInitialDelay());
+        int failedRounds = 0;
+        ExecutorService drainExecutor = Executors.newFixedThreadPool(parallelism);
+        int drained = 0;
+        try {
+            while (getAuditEventCache().hasEntries() && System.currentTimeMillis() < deadline) {
+                List<List<AuditEventQueueEntry>> roundBatches = claimQueueBatches(parallelism, writeLimiter.getBatchSize(batchSize));
+                if (roundBatches.isEmpty()) {
+                    getLogger().warn(".drainQueueUntil(): Head of queue is still in flight, leaving the rest to be spilled");
+                    break;
+                }
+                List<Future<Integer>> inFlightBatches = new ArrayList<>(roundBatches.size());
+                int roundSize = 0;
+                for (List<AuditEventQueueEntry> currentBatch : roundBatches) {
+                    roundSize += currentBatch.size();
+                    inFlightBatches.add(drainExecutor.submit(() -> writeClaimedBatch(currentBatch)));
+                }
+                int roundWritten = 0;
+                boolean roundTimedOut = false;
+                for (Future<Integer> currentBatch : inFlightBatches) {
+                    try {
+                        roundWritten += currentBatch.get(Math.max(1L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException ex) {
+                        // its entries are still claimed and on the queue, so they are spilled with the rest
+                        getLogger().warn(".drainQueueUntil(): Batch did not complete before the deadline");
+                        roundTimedOut = true;
+                    } catch (ExecutionException ex) {
+                        // writeClaimedBatch() released the entries, which are still on the queue
+                        getLogger().warn(".drainQueueUntil(): Batch write failed, message->{}", ExceptionUtils.getMessage(ex.getCause()));
+                    }
+                }
+                drained += roundWritten;
+                if (roundTimedOut) {
+                    break;
+                }
+                if (roundWritten == roundSize) {
+                    failedRounds = 0;
+                    retryDelay = Math.max(1L, tunables.getRetryInitialDelay());
+                    continue;
+                }
+                failedRounds = roundWritten == 0 ? failedRounds + 1 : 0;
+                if (failedRounds >= maximumFailedRounds) {
+                    getLogger().warn(".drainQueueUntil(): DM is failing every write, abandoning the drain, failedRounds->{}", failedRounds);
+                    break;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                Thread.sleep(Math.min(retryDelay, remaining));
+                retryDelay = Math.min(tunables.getRetryMaximumDelay(), retryDelay * 2);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            drainExecutor.shutdownNow();
+        }
+        getLogger().debug(".drainQueueUntil(): Exit, drained->{}", drained);
+        return(drained);
+    }
+
+    /**
+     * Writes the AuditEvents spilled to the local archive by a previous shutdown straight to the DM, one
+     * spill file at a time and in batches of the batchSize tunable. A spill file is only deleted once
+     * every AuditEvent in it has been created (or dead-lettered); if a batch fails, what has not been
+     * written is spilled again into a new file before the old one is deleted, and the recovery is tried
+     * again on the next run.
+     *
+     * @return true if no spilled AuditEvents are left
+     */
+    protected boolean recoverSpilledAuditEvents(){
+        getLogger().debug(".recoverSpilledAuditEvents(): Entry");
+        int recovered = 0;
+        boolean allRecovered = true;
+        for(Path currentSpillFile: getLocalArchive().listArchiveFiles(LocalAuditEventArchive.SHUTDOWN_SPILL_CATEGORY)){
+            List<AuditEvent> spilledEvents = getLocalArchive().readArchiveFile(currentSpillFile);
+            int batchSize = Math.max(1, tunablesService.getTunables().getBatchSize());
+            List<AuditEvent> unwrittenEvents = new ArrayList<>();
+            for(int start = 0; start < spilledEvents.size(); start += batchSize){
+                List<AuditEvent> spillBatch = spilledEvents.subList(start, Math.min(spilledEvents.size(), start + batchSize));
+                if(!unwrittenEvents.isEmpty()){
+                    unwrittenEvents.addAll(spillBatch);
+                    continue;
+                }
+                List<AuditEvent> failedEvents = writeSpilledAuditEvents(spillBatch);
+                recovered += spillBatch.size() - failedEvents.size();
+                unwrittenEvents.addAll(failedEvents);
+            }
+            if(unwrittenEvents.isEmpty()){
+                getLocalArchive().deleteArchiveFile(currentSpillFile);
+                continue;
+            }
+            allRecovered = false;
+            if(unwrittenEvents.size() < spilledEvents.size()){
+                Path remainderFile = getLocalArchive().archiveAuditEvents(LocalAuditEventArchive.SHUTDOWN_SPILL_CATEGORY, unwrittenEvents);
+                if(remainderFile != null){
+                    getLocalArchive().deleteArchiveFile(currentSpillFile);
+                }
+            }
+            getLogger().warn(".recoverSpilledAuditEvents(): Could not write every spilled AuditEvent, will retry, spillFile->{}, remaining->{}", currentSpillFile, unwrittenEvents.size());
+            break;
+        }
+        if(recovered > 0){
+            getLogger().info(".recoverSpilledAuditEvents(): Wrote spilled AuditEvents, count->{}", recovered);
+        }
+        getLogger().debug(".recoverSpilledAuditEvents(): Exit, allRecovered->{}", allRecovered);
+        return(allRecovered);
+    }
+
+    /**
+     * @return the AuditEvents that were neither created nor dead-lettered
+     */
+    protected List<AuditEvent> writeSpilledAuditEvents(List<AuditEvent> spillBatch){
+        List<AuditEvent> failedEvents = new ArrayList<>();
+        List<MethodOutcome> outcomeList;
+        try {
+            outcomeList = writeQueuedAuditEvents(spillBatch);
+        } catch (Exception ex) {
+            getLogger().warn(".writeSpilledAuditEvents(): Batch write failed, message->{}", ExceptionUtils.getMessage(ex));
+            failedEvents.addAll(spillBatch);
+            return(failedEvents);
+        }
+        for(int index = 0; index < spillBatch.size(); index++){
+            AuditEvent currentEvent = spillBatch.get(index);
+            MethodOutcome outcome = index < outcomeList.size() ? outcomeList.get(index) : null;
+            if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+                continue;
+            }
+            String violation = structuralValidator.findViolation(currentEvent);
+            if(violation != null){
+                getLogger().warn(".writeSpilledAuditEvents(): Dead-lettering invalid spilled AuditEvent, violation->{}", violation);
+                structuralValidator.deadLetter(currentEvent);
+            } else {
+                failedEvents.add(currentEvent);
+            }
+        }
+        return(failedEvents);
     }
 
     //
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables;
+
+/**
+ * A snapshot of the asynchronous writer tunables. A snapshot is never modified after it has been
+ * published by the AsynchronousWriterTunablesService. Any change is made on a copy, validated, and
+ * then swapped in as a whole.
+ */
+public class AsynchronousWriterTunables {
+    public static final String HTTP_TECHNOLOGY = "http";
+    public static final String JGROUPS_TECHNOLOGY = "jgroups";
+
+    public static final long DEFAULT_CHECK_PERIOD = 10000L;
+    public static final long DEFAULT_READINESS_PERIOD = 1000L;
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_BATCH_LINGER = 20L;
+    public static final int DEFAULT_BATCH_WRITERS = 2;
+    public static final int DEFAULT_MAXIMUM_QUEUE_DEPTH = 0;
+    public static final long DEFAULT_RETRY_INITIAL_DELAY = 1000L;
+    public static final long DEFAULT_RETRY_MAXIMUM_DELAY = 60000L;
+    public static final String DEFAULT_DM_TECHNOLOGY = HTTP_TECHNOLOGY;
+
+    private long checkPeriod;
+    private long readinessPeriod;
+    private int batchSize;
+    private long batchLinger;
+    private int batchWriters;
+    private int maximumQueueDepth;
+    private long retryInitialDelay;
+    private long retryMaximumDelay;
+    private String dmTechnology;
+
+    //
+    // Constructor(s)
+    //
+
+    public AsynchronousWriterTunables(){
+        this.checkPeriod = DEFAULT_CHECK_PERIOD;
+        this.readinessPeriod = DEFAULT_READINESS_PERIOD;
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.batchLinger = DEFAULT_BATCH_LINGER;
+        this.batchWriters = DEFAULT_BATCH_WRITERS;
+        this.maximumQueueDepth = DEFAULT_MAXIMUM_QUEUE_DEPTH;
+        this.retryInitialDelay = DEFAULT_RETRY_INITIAL_DELAY;
+        this.retryMaximumDelay = DEFAULT_RETRY_MAXIMUM_DELAY;
+        this.dmTechnology = DEFAULT_DM_TECHNOLOGY;
+    }
+
+    public AsynchronousWriterTunables(AsynchronousWriterTunables original){
+        this.checkPeriod = original.checkPeriod;
+        this.readinessPeriod = original.readinessPeriod;
+        this.batchSize = original.batchSize;
+        this.batchLinger = original.batchLinger;
+        this.batchWriters = original.batchWriters;
+        this.maximumQueueDepth = original.maximumQueueDepth;
+        this.retryInitialDelay = original.retryInitialDelay;
+        this.retryMaximumDelay = original.retryMaximumDelay;
+        this.dmTechnology = original.dmTechnology;
+    }
+
+    //
+    // Validation
+    //
+
+    /**
+     * @throws IllegalArgumentException naming the first tunable that is out of range
+     */
+    public void validate(){
+        checkRange("checkPeriod", checkPeriod, 100L, 3600000L);
+        checkRange("readinessPeriod", readinessPeriod, 100L, 600000L);
+        checkRange("batchSize", batchSize, 1L, 1000L);
+        checkRange("batchLinger", batchLinger, 0L, 10000L);
+        checkRange("batchWriters", batchWriters, 1L, 64L);
+        checkRange("maximumQueueDepth", maximumQueueDepth, 0L, Integer.MAX_VALUE);
+        checkRange("retryInitialDelay", retryInitialDelay, 0L, 3600000L);
+        checkRange("retryMaximumDelay", retryMaximumDelay, retryInitialDelay, 3600000L);
+        if(!HTTP_TECHNOLOGY.equals(dmTechnology) && !JGROUPS_TECHNOLOGY.equals(dmTechnology)){
+            throw(new IllegalArgumentException("dmTechnology must be " + HTTP_TECHNOLOGY + " or " + JGROUPS_TECHNOLOGY + ", not " + dmTechnology));
+        }
+    }
+
+    private void checkRange(String name, long value, long minimum, long maximum){
+        if(value < minimum || value > maximum){
+            throw(new IllegalArgumentException(name + " must be in [" + minimum + "," + maximum + "], not " + value));
+        }
+    }
+
+    //
+    // Getters and Setters
+    //
+
+    public long getCheckPeriod() {
+        return checkPeriod;
+    }
+
+    public void setCheckPeriod(long checkPeriod) {
+        this.checkPeriod = checkPeriod;
+    }
+
+    public long getReadinessPeriod() {
+        return readinessPeriod;
+    }
+
+    public void setReadinessPeriod(long readinessPeriod) {
+        this.readinessPeriod = readinessPeriod;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchLinger() {
+        return batchLinger;
+    }
+
+    public void setBatchLinger(long batchLinger) {
+        this.batchLinger = batchLinger;
+    }
+
+    public int getBatchWriters() {
+        return batchWriters;
+    }
+
+    public void setBatchWriters(int batchWriters) {
+        this.batchWriters = batchWriters;
+    }
+
+    public int getMaximumQueueDepth() {
+        return maximumQueueDepth;
+    }
+
+    public void setMaximumQueueDepth(int maximumQueueDepth) {
+        this.maximumQueueDepth = maximumQueueDepth;
+    }
+
+    public long getRetryInitialDelay() {
+        return retryInitialDelay;
+    }
+
+    public void setRetryInitialDelay(long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    public long getRetryMaximumDelay() {
+        return retryMaximumDelay;
+    }
+
+    public void setRetryMaximumDelay(long retryMaximumDelay) {
+        this.retryMaximumDelay = retryMaximumDelay;
+    }
+
+    public String getDmTechnology() {
+        return dmTechnology;
+    }
+
+    public void setDmTechnology(String dmTechnology) {
+        this.dmTechnology = dmTechnology;
+    }
+
+    public boolean isJGroupsTechnology(){
+        return(JGROUPS_TECHNOLOGY.equals(dmTechnology));
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AsynchronousWriterTunables{" +
+                "checkPeriod=" + checkPeriod +
+                ", readinessPeriod=" + readinessPeriod +
+                ", batchSize=" + batchSize +
+                ", batchLinger=" + batchLinger +
+                ", batchWriters=" + batchWriters +
+                ", maximumQueueDepth=" + maximumQueueDepth +
+                ", retryInitialDelay=" + retryInitialDelay +
+                ", retryMaximumDelay=" + retryMaximumDelay +
+                ", dmTechnology=" + dmTechnology +
+                '}';
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.AsynchronousWriterTunablesSegment;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.HestiaAuditIMConfigurationFile;
+import net.fhirfactory.pegacorn.hestia.audit.im.processingplant.configuration.HestiaAuditIMTopologyFactory;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.rules.AuditEventFilterRuleEngine;
+import net.fhirfactory.pegacorn.util.PegacornEnvironmentProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Holds the asynchronous writer tunables, and lets them be changed while the IM runs.
+ *
+ * The starting values come from the built-in defaults, overridden by the existing
+ * otherConfigurationParameters, overridden in turn by the asynchronousWriterTunables segment of the
+ * HestiaAuditIMConfigurationFile. Afterwards they can be changed through the
+ * net.fhirfactory.pegacorn.hestia.audit.im:type=AsynchronousWriterTunables MBean (on the Jolokia port).
+ * They can also be reloaded from the configuration file, which recompiles the filter rules at the same
+ * time.
+ *
+ * Every change is made on a copy of the current snapshot and validated, and only then published. The
+ * writers read the snapshot per batch or per cycle, so no event in flight sees a half-applied change.
+ * Changes that need action (the writer period, the batch writer count) are pushed to the registered
+ * listeners. The batch size, linger and writer count apply to both the queue's asynchronous writer and
+ * the ask service's HestiaDMBatchingWriter.
+ */
+@ApplicationScoped
+public class AsynchronousWriterTunablesService implements AsynchronousWriterTunablesServiceMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AsynchronousWriterTunablesService.class);
+
+    private static final String ASYNC_AUDIT_WRITER_CHECK_PERIOD = "ASYNC_AUDIT_WRITER_CHECK_PERIOD";
+    private static final String ASYNC_AUDIT_WRITER_READINESS_PERIOD = "ASYNC_AUDIT_WRITER_READINESS_PERIOD";
+    private static final String ASK_SERVICE_BATCH_SIZE = "ASK_SERVICE_BATCH_SIZE";
+    private static final String ASK_SERVICE_BATCH_TIMEOUT = "ASK_SERVICE_BATCH_TIMEOUT";
+    private static final String ASK_SERVICE_BATCH_WRITERS = "ASK_SERVICE_BATCH_WRITERS";
+    private static final String ASYNC_AUDIT_WRITER_MAXIMUM_QUEUE_DEPTH = "ASYNC_AUDIT_WRITER_MAXIMUM_QUEUE_DEPTH";
+    private static final String ASYNC_AUDIT_WRITER_RETRY_INITIAL_DELAY = "ASYNC_AUDIT_WRITER_RETRY_INITIAL_DELAY";
+    private static final String ASYNC_AUDIT_WRITER_RETRY_MAXIMUM_DELAY = "ASYNC_AUDIT_WRITER_RETRY_MAXIMUM_DELAY";
+    private static final String IM_TO_DM_TECHNOLOGY = "IM_TO_DM_TECHNOLOGY";
+    private static final String DEPLOYMENT_CONFIG_FILE = "DEPLOYMENT_CONFIG_FILE";
+
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AsynchronousWriterTunables";
+
+    private volatile boolean initialised;
+    private volatile AsynchronousWriterTunables tunables;
+    private List<Consumer<AsynchronousWriterTunables>> listeners;
+    private ObjectName registeredName;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaAuditIMTopologyFactory topologyFactory;
+
+    @Inject
+    private PegacornEnvironmentProperties environmentProperties;
+
+    @Inject
+    private AuditEventFilterRuleEngine filterRuleEngine;
+
+    //
+    // Constructor(s)
+    //
+
+    public AsynchronousWriterTunablesService(){
+        this.initialised = false;
+        this.tunables = new AsynchronousWriterTunables();
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        AsynchronousWriterTunables initialTunables = new AsynchronousWriterTunables();
+        initialTunables.setCheckPeriod(configurationService.getLongParameter(ASYNC_AUDIT_WRITER_CHECK_PERIOD, initialTunables.getCheckPeriod()));
+        initialTunables.setReadinessPeriod(configurationService.getLongParameter(ASYNC_AUDIT_WRITER_READINESS_PERIOD, initialTunables.getReadinessPeriod()));
+        initialTunables.setBatchSize((int)configurationService.getLongParameter(ASK_SERVICE_BATCH_SIZE, initialTunables.getBatchSize()));
+        initialTunables.setBatchLinger(configurationService.getLongParameter(ASK_SERVICE_BATCH_TIMEOUT, initialTunables.getBatchLinger()));
+        initialTunables.setBatchWriters((int)configurationService.getLongParameter(ASK_SERVICE_BATCH_WRITERS, initialTunables.getBatchWriters()));
+        initialTunables.setMaximumQueueDepth((int)configurationService.getLongParameter(ASYNC_AUDIT_WRITER_MAXIMUM_QUEUE_DEPTH, initialTunables.getMaximumQueueDepth()));
+        initialTunables.setRetryInitialDelay(configurationService.getLongParameter(ASYNC_AUDIT_WRITER_RETRY_INITIAL_DELAY, initialTunables.getRetryInitialDelay()));
+        initialTunables.setRetryMaximumDelay(configurationService.getLongParameter(ASYNC_AUDIT_WRITER_RETRY_MAXIMUM_DELAY, initialTunables.getRetryMaximumDelay()));
+        String technologyValue = configurationService.getParameter(IM_TO_DM_TECHNOLOGY);
+        if(StringUtils.isNotBlank(technologyValue)){
+            initialTunables.setDmTechnology(technologyValue.trim().toLowerCase());
+        }
+        HestiaAuditIMConfigurationFile configurationFile = topologyFactory.getHestiaAuditIMConfigurationFile();
+        if(configurationFile != null){
+            applySegment(initialTunables, configurationFile.getAsynchronousWriterTunables());
+        }
+        try {
+            initialTunables.validate();
+            tunables = initialTunables;
+        } catch (IllegalArgumentException ex) {
+            getLogger().error(".initialise(): Invalid tunables, using defaults, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        initialised = true;
+        getLogger().info(".initialise(): tunables->{}", tunables);
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return the current snapshot; if the configuration cannot be read yet, the defaults
+     */
+    public AsynchronousWriterTunables getTunables(){
+        if(!initialised){
+            try {
+                initialise();
+            } catch (Exception ex) {
+                getLogger().debug(".getTunables(): Configuration not available yet, message->{}", ExceptionUtils.getMessage(ex));
+            }
+        }
+        return(tunables);
+    }
+
+    public void addTunablesListener(Consumer<AsynchronousWriterTunables> listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * Validates and publishes the new snapshot, then tells the listeners.
+     *
+     * @throws IllegalArgumentException if the snapshot is invalid (the current one is kept)
+     */
+    public synchronized void applyTunables(AsynchronousWriterTunables newTunables){
+        newTunables.validate();
+        AsynchronousWriterTunables previousTunables = tunables;
+        tunables = newTunables;
+        getLogger().info(".applyTunables(): previous->{}, current->{}", previousTunables, newTunables);
+        for(Consumer<AsynchronousWriterTunables> currentListener: listeners){
+            try {
+                currentListener.accept(newTunables);
+            } catch (Exception ex) {
+                getLogger().error(".applyTunables(): Listener failed, message->{}", ExceptionUtils.getMessage(ex));
+            }
+        }
+    }
+
+    /**
+     * Re-reads the DEPLOYMENT_CONFIG_FILE, applies its asynchronousWriterTunables segment and
+     * recompiles its auditEventFilterRules.
+     */
+    @Override
+    public synchronized String reloadConfiguration(){
+        getLogger().info(".reloadConfiguration(): Entry");
+        try {
+            String configurationFileName = environmentProperties.getMandatoryProperty(DEPLOYMENT_CONFIG_FILE);
+            ObjectMapper yamlMapper = new ObjectMapper(new YAMLFactory());
+            yamlMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            HestiaAuditIMConfigurationFile configurationFile = yamlMapper.readValue(new File(configurationFileName), HestiaAuditIMConfigurationFile.class);
+            AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+            applySegment(newTunables, configurationFile.getAsynchronousWriterTunables());
+            applyTunables(newTunables);
+            filterRuleEngine.compileRules(configurationFile);
+            getLogger().info(".reloadConfiguration(): Exit, reloaded from->{}", configurationFileName);
+            return(tunables.toString());
+        } catch (Exception ex) {
+            getLogger().error(".reloadConfiguration(): Reload failed, current tunables kept, message->{}", ExceptionUtils.getMessage(ex));
+            throw(new IllegalStateException("Reload failed: " + ExceptionUtils.getMessage(ex)));
+        }
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public long getCheckPeriod() {
+        return(getTunables().getCheckPeriod());
+    }
+
+    @Override
+    public synchronized void setCheckPeriod(long checkPeriod) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setCheckPeriod(checkPeriod);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public long getReadinessPeriod() {
+        return(getTunables().getReadinessPeriod());
+    }
+
+    @Override
+    public synchronized void setReadinessPeriod(long readinessPeriod) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setReadinessPeriod(readinessPeriod);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public int getBatchSize() {
+        return(getTunables().getBatchSize());
+    }
+
+    @Override
+    public synchronized void setBatchSize(int batchSize) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setBatchSize(batchSize);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public long getBatchLinger() {
+        return(getTunables().getBatchLinger());
+    }
+
+    @Override
+    public synchronized void setBatchLinger(long batchLinger) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setBatchLinger(batchLinger);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public int getBatchWriters() {
+        return(getTunables().getBatchWriters());
+    }
+
+    @Override
+    public synchronized void setBatchWriters(int batchWriters) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setBatchWriters(batchWriters);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public int getMaximumQueueDepth() {
+        return(getTunables().getMaximumQueueDepth());
+    }
+
+    @Override
+    public synchronized void setMaximumQueueDepth(int maximumQueueDepth) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setMaximumQueueDepth(maximumQueueDepth);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public long getRetryInitialDelay() {
+        return(getTunables().getRetryInitialDelay());
+    }
+
+    @Override
+    public synchronized void setRetryInitialDelay(long retryInitialDelay) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setRetryInitialDelay(retryInitialDelay);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public long getRetryMaximumDelay() {
+        return(getTunables().getRetryMaximumDelay());
+    }
+
+    @Override
+    public synchronized void setRetryMaximumDelay(long retryMaximumDelay) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setRetryMaximumDelay(retryMaximumDelay);
+        applyTunables(newTunables);
+    }
+
+    @Override
+    public String getDmTechnology() {
+        return(getTunables().getDmTechnology());
+    }
+
+    @Override
+    public synchronized void setDmTechnology(String dmTechnology) {
+        AsynchronousWriterTunables newTunables = new AsynchronousWriterTunables(getTunables());
+        newTunables.setDmTechnology(StringUtils.trimToEmpty(dmTechnology).toLowerCase());
+        applyTunables(newTunables);
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected void applySegment(AsynchronousWriterTunables target, AsynchronousWriterTunablesSegment segment){
+        if(segment == null){
+            return;
+        }
+        if(segment.getCheckPeriod() != null){
+            target.setCheckPeriod(segment.getCheckPeriod());
+        }
+        if(segment.getReadinessPeriod() != null){
+            target.setReadinessPeriod(segment.getReadinessPeriod());
+        }
+        if(segment.getBatchSize() != null){
+            target.setBatchSize(segment.getBatchSize());
+        }
+        if(segment.getBatchLinger() != null){
+            target.setBatchLinger(segment.getBatchLinger());
+        }
+        if(segment.getBatchWriters() != null){
+            target.setBatchWriters(segment.getBatchWriters());
+        }
+        if(segment.getMaximumQueueDepth() != null){
+            target.setMaximumQueueDepth(segment.getMaximumQueueDepth());
+        }
+        if(segment.getRetryInitialDelay() != null){
+            target.setRetryInitialDelay(segment.getRetryInitialDelay());
+        }
+        if(segment.getRetryMaximumDelay() != null){
+            target.setRetryMaximumDelay(segment.getRetryMaximumDelay());
+        }
+        if(StringUtils.isNotBlank(segment.getDmTechnology())){
+            target.setDmTechnology(segment.getDmTechnology().trim().toLowerCase());
+        }
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
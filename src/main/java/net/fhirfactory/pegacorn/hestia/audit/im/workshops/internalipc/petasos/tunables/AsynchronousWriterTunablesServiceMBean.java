@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables;
+
+public interface AsynchronousWriterTunablesServiceMBean {
+    public long getCheckPeriod();
+    public void setCheckPeriod(long checkPeriod);
+    public long getReadinessPeriod();
+    public void setReadinessPeriod(long readinessPeriod);
+    public int getBatchSize();
+    public void setBatchSize(int batchSize);
+    public long getBatchLinger();
+    public void setBatchLinger(long batchLinger);
+    public int getBatchWriters();
+    public void setBatchWriters(int batchWriters);
+    public int getMaximumQueueDepth();
+    public void setMaximumQueueDepth(int maximumQueueDepth);
+    public long getRetryInitialDelay();
+    public void setRetryInitialDelay(long retryInitialDelay);
+    public long getRetryMaximumDelay();
+    public void setRetryMaximumDelay(long retryMaximumDelay);
+    public String getDmTechnology();
+    public void setDmTechnology(String dmTechnology);
+    public String reloadConfiguration();
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AsynchronousWriterAuditEventCache;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.AuditEventQueueEntry;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end latency of AuditEvents, measured from AuditEvent.recorded to (a) receipt by the IM and
+ * (b) acknowledgement by the DM. Both delays are recorded into AuditLatencyHistograms per source and
+ * per transport (the ingress transport for receipt, the DM transport for acknowledgement).
+ *
+ * Acknowledgement delays are also scored against the SLO: AUDIT_LATENCY_SLO_TARGET ms, met by
+ * AUDIT_LATENCY_SLO_OBJECTIVE_PERMILLE of events. The burn rate for a window is the fraction of events
+ * that missed the target divided by the error budget (1 - objective); a burn rate above 1 uses the
+ * budget faster than the SLO allows. The lag gauges report the age of the entry at the head of the
+ * AsynchronousWriterAuditEventCache, which is the oldest event still waiting for the DM.
+ *
+ * Everything is exported through JMX (and so Jolokia) as
+ * net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventLatency.
+ */
+@ApplicationScoped
+public class AuditEventLatencyService implements AuditEventLatencyServiceMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventLatencyService.class);
+
+    private static final String AUDIT_LATENCY_SLO_TARGET = "AUDIT_LATENCY_SLO_TARGET";
+    private static final String AUDIT_LATENCY_SLO_OBJECTIVE_PERMILLE = "AUDIT_LATENCY_SLO_OBJECTIVE_PERMILLE";
+    private static final String AUDIT_LATENCY_MAXIMUM_SOURCES = "AUDIT_LATENCY_MAXIMUM_SOURCES";
+
+    private static final long DEFAULT_SLO_TARGET = 60000L;
+    private static final long DEFAULT_SLO_OBJECTIVE_PERMILLE = 990L;
+    private static final long DEFAULT_MAXIMUM_SOURCES = 1000L;
+    private static final String OTHER_SOURCES = "other";
+
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventLatency";
+
+    public static final String INGRESS_PETASOS_RPC = "petasos-rpc";
+    public static final String INGRESS_CAPABILITY = "capability";
+    public static final String INGRESS_HTTP_BULK = "http-bulk";
+
+    private volatile boolean initialised;
+    private long sloTarget;
+    private double sloObjective;
+    private int maximumSources;
+    private ObjectName registeredName;
+    private ObjectMapper jsonMapper;
+
+    private ConcurrentHashMap<String, AuditLatencyHistogram> receiptBySource;
+    private ConcurrentHashMap<String, AuditLatencyHistogram> receiptByTransport;
+    private ConcurrentHashMap<String, AuditLatencyHistogram> acknowledgementBySource;
+    private ConcurrentHashMap<String, AuditLatencyHistogram> acknowledgementByTransport;
+    private AuditLatencySLOWindow sloWindow;
+    private AtomicLong clockSkewCount;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private AsynchronousWriterAuditEventCache eventCache;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventLatencyService(){
+        this.initialised = false;
+        this.sloTarget = DEFAULT_SLO_TARGET;
+        this.sloObjective = DEFAULT_SLO_OBJECTIVE_PERMILLE / 1000.0;
+        this.maximumSources = (int)DEFAULT_MAXIMUM_SOURCES;
+        this.jsonMapper = new ObjectMapper();
+        this.receiptBySource = new ConcurrentHashMap<>();
+        this.receiptByTransport = new ConcurrentHashMap<>();
+        this.acknowledgementBySource = new ConcurrentHashMap<>();
+        this.acknowledgementByTransport = new ConcurrentHashMap<>();
+        this.sloWindow = new AuditLatencySLOWindow();
+        this.clockSkewCount = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        sloTarget = Math.max(1L, configurationService.getLongParameter(AUDIT_LATENCY_SLO_TARGET, DEFAULT_SLO_TARGET));
+        long objectivePermille = Math.min(999L, Math.max(1L, configurationService.getLongParameter(AUDIT_LATENCY_SLO_OBJECTIVE_PERMILLE, DEFAULT_SLO_OBJECTIVE_PERMILLE)));
+        sloObjective = objectivePermille / 1000.0;
+        maximumSources = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_LATENCY_MAXIMUM_SOURCES, DEFAULT_MAXIMUM_SOURCES));
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        initialised = true;
+        getLogger().info(".initialise(): sloTarget->{}, sloObjective->{}, maximumSources->{}", sloTarget, sloObjective, maximumSources);
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Records the delay from AuditEvent.recorded to its receipt by the IM, over the given ingress
+     * transport.
+     */
+    public void recordReceipt(AuditEvent auditEvent, String transport){
+        long delay = getDelaySinceRecorded(auditEvent);
+        if(delay < 0){
+            return;
+        }
+        String source = clusterService.resolveSourceParticipantName(auditEvent);
+        getHistogram(receiptBySource, source, true).recordValue(delay);
+        getHistogram(receiptByTransport, transport, false).recordValue(delay);
+    }
+
+    /**
+     * Records the delay from AuditEvent.recorded to its acknowledgement by the DM, over the given DM
+     * transport, and scores it against the SLO.
+     */
+    public void recordAcknowledgement(AuditEvent auditEvent, String transport){
+        long delay = getDelaySinceRecorded(auditEvent);
+        if(delay < 0){
+            return;
+        }
+        String source = clusterService.resolveSourceParticipantName(auditEvent);
+        getHistogram(acknowledgementBySource, source, true).recordValue(delay);
+        getHistogram(acknowledgementByTransport, transport, false).recordValue(delay);
+        sloWindow.record(delay <= sloTarget);
+    }
+
+    /**
+     * @return a new histogram holding all the acknowledgement delays recorded so far
+     */
+    public AuditLatencyHistogram getMergedAcknowledgementHistogram(){
+        return(merge(acknowledgementBySource));
+    }
+
+    public AuditLatencyHistogram getMergedReceiptHistogram(){
+        return(merge(receiptBySource));
+    }
+
+    //
+    // Helper Functions
+    //
+
+    /**
+     * @return ms since AuditEvent.recorded (0 if recorded is in the future, i.e. the clocks are
+     * skewed), or -1 if the AuditEvent has no recorded time
+     */
+    protected long getDelaySinceRecorded(AuditEvent auditEvent){
+        if(!initialised){
+            initialise();
+        }
+        if(auditEvent == null || !auditEvent.hasRecorded()){
+            return(-1);
+        }
+        long delay = System.currentTimeMillis() - auditEvent.getRecorded().getTime();
+        if(delay < 0){
+            clockSkewCount.incrementAndGet();
+            return(0);
+        }
+        return(delay);
+    }
+
+    protected AuditLatencyHistogram getHistogram(ConcurrentHashMap<String, AuditLatencyHistogram> histograms, String key, boolean bounded){
+        String histogramKey = StringUtils.isNotBlank(key) ? key : OTHER_SOURCES;
+        AuditLatencyHistogram histogram = histograms.get(histogramKey);
+        if(histogram != null){
+            return(histogram);
+        }
+        if(bounded && histograms.size() >= maximumSources){
+            histogramKey = OTHER_SOURCES;
+        }
+        return(histograms.computeIfAbsent(histogramKey, newKey -> new AuditLatencyHistogram()));
+    }
+
+    protected AuditLatencyHistogram merge(Map<String, AuditLatencyHistogram> histograms){
+        AuditLatencyHistogram mergedHistogram = new AuditLatencyHistogram();
+        for(AuditLatencyHistogram currentHistogram: histograms.values()){
+            mergedHistogram.add(currentHistogram);
+        }
+        return(mergedHistogram);
+    }
+
+    protected double getBurnRate(int windowMinutes){
+        return(sloWindow.getErrorRate(windowMinutes) / (1.0 - sloObjective));
+    }
+
+    protected ObjectNode toReportNode(Map<String, AuditLatencyHistogram> histograms){
+        ObjectNode reportNode = jsonMapper.createObjectNode();
+        for(Map.Entry<String, AuditLatencyHistogram> currentEntry: histograms.entrySet()){
+            AuditLatencyHistogram histogram = currentEntry.getValue();
+            ObjectNode histogramNode = reportNode.putObject(currentEntry.getKey());
+            histogramNode.put("count", histogram.getTotalCount());
+            histogramNode.put("p50", histogram.getValueAtPercentile(50.0));
+            histogramNode.put("p90", histogram.getValueAtPercentile(90.0));
+            histogramNode.put("p99", histogram.getValueAtPercentile(99.0));
+            histogramNode.put("max", histogram.getMaximumValue());
+        }
+        return(reportNode);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes and Operations
+    //
+
+    @Override
+    public long getSLOTargetMillis() {
+        return(sloTarget);
+    }
+
+    @Override
+    public double getSLOObjectivePercent() {
+        return(sloObjective * 100.0);
+    }
+
+    @Override
+    public long getReceiptLatencyP50Millis() {
+        return(getMergedReceiptHistogram().getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getReceiptLatencyP99Millis() {
+        return(getMergedReceiptHistogram().getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getAcknowledgementLatencyP50Millis() {
+        return(getMergedAcknowledgementHistogram().getValueAtPercentile(50.0));
+    }
+
+    @Override
+    public long getAcknowledgementLatencyP99Millis() {
+        return(getMergedAcknowledgementHistogram().getValueAtPercentile(99.0));
+    }
+
+    @Override
+    public long getAcknowledgementLatencyMaximumMillis() {
+        return(getMergedAcknowledgementHistogram().getMaximumValue());
+    }
+
+    @Override
+    public long getAcknowledgedCount() {
+        return(getMergedAcknowledgementHistogram().getTotalCount());
+    }
+
+    @Override
+    public double getBurnRateFiveMinutes() {
+        return(getBurnRate(5));
+    }
+
+    @Override
+    public double getBurnRateOneHour() {
+        return(getBurnRate(60));
+    }
+
+    @Override
+    public double getBurnRateSixHours() {
+        return(getBurnRate(360));
+    }
+
+    @Override
+    public long getOldestUnacknowledgedQueuedAgeMillis() {
+        AuditEventQueueEntry oldestEntry = eventCache.peekQueueEntry();
+        if(oldestEntry == null || oldestEntry.getQueuedInstant() == null){
+            return(0);
+        }
+        return(Math.max(0L, System.currentTimeMillis() - oldestEntry.getQueuedInstant().toEpochMilli()));
+    }
+
+    @Override
+    public long getOldestUnacknowledgedRecordedLagMillis() {
+        AuditEventQueueEntry oldestEntry = eventCache.peekQueueEntry();
+        if(oldestEntry == null || oldestEntry.getAuditEvent() == null || !oldestEntry.getAuditEvent().hasRecorded()){
+            return(0);
+        }
+        return(Math.max(0L, System.currentTimeMillis() - oldestEntry.getAuditEvent().getRecorded().getTime()));
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return(eventCache.getQueueDepth());
+    }
+
+    @Override
+    public long getClockSkewCount() {
+        return(clockSkewCount.get());
+    }
+
+    @Override
+    public String getLatencyReport() {
+        ObjectNode reportNode = jsonMapper.createObjectNode();
+        reportNode.put("sloTargetMillis", sloTarget);
+        reportNode.put("sloObjectivePercent", getSLOObjectivePercent());
+        reportNode.put("burnRateFiveMinutes", getBurnRateFiveMinutes());
+        reportNode.put("burnRateOneHour", getBurnRateOneHour());
+        reportNode.put("oldestUnacknowledgedQueuedAgeMillis", getOldestUnacknowledgedQueuedAgeMillis());
+        reportNode.put("oldestUnacknowledgedRecordedLagMillis", getOldestUnacknowledgedRecordedLagMillis());
+        ObjectNode receiptNode = reportNode.putObject("receipt");
+        receiptNode.set("bySource", toReportNode(receiptBySource));
+        receiptNode.set("byTransport", toReportNode(receiptByTransport));
+        ObjectNode acknowledgementNode = reportNode.putObject("acknowledgement");
+        acknowledgementNode.set("bySource", toReportNode(acknowledgementBySource));
+        acknowledgementNode.set("byTransport", toReportNode(acknowledgementByTransport));
+        return(reportNode.toString());
+    }
+
+    @Override
+    public void resetHistograms() {
+        receiptBySource.clear();
+        receiptByTransport.clear();
+        acknowledgementBySource.clear();
+        acknowledgementByTransport.clear();
+        sloWindow.reset();
+        clockSkewCount.set(0);
+        getLogger().info(".resetHistograms(): Latency histograms reset");
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency;
+
+public interface AuditEventLatencyServiceMBean {
+    public long getSLOTargetMillis();
+    public double getSLOObjectivePercent();
+    public long getReceiptLatencyP50Millis();
+    public long getReceiptLatencyP99Millis();
+    public long getAcknowledgementLatencyP50Millis();
+    public long getAcknowledgementLatencyP99Millis();
+    public long getAcknowledgementLatencyMaximumMillis();
+    public long getAcknowledgedCount();
+    public double getBurnRateFiveMinutes();
+    public double getBurnRateOneHour();
+    public double getBurnRateSixHours();
+    public long getOldestUnacknowledgedQueuedAgeMillis();
+    public long getOldestUnacknowledgedRecordedLagMillis();
+    public int getQueueDepth();
+    public long getClockSkewCount();
+    public String getLatencyReport();
+    public void resetHistograms();
+}
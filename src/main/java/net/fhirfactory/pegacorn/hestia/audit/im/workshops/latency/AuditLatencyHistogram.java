@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram (in milliseconds) with HDR-style log-linear buckets. Values below
+ * LINEAR_LIMIT each get their own bucket. Above that, every power-of-two range is split into
+ * SUB_BUCKET_COUNT equal buckets, so a recorded value is never more than about 1.6% from its bucket's
+ * lower bound. Values above MAXIMUM_TRACKABLE_VALUE are clamped to it.
+ *
+ * All histograms share the same bucket layout, so any two can be merged with add(), e.g. per-source
+ * histograms into an overall one.
+ */
+public class AuditLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+    private static final int MAXIMUM_VALUE_BITS = 40;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + ((MAXIMUM_VALUE_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT);
+
+    public static final long MAXIMUM_TRACKABLE_VALUE = (1L << MAXIMUM_VALUE_BITS) - 1;
+
+    private final AtomicLongArray bucketCounts;
+    private final AtomicLong totalCount;
+    private final AtomicLong totalValue;
+    private final AtomicLong maximumValue;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditLatencyHistogram(){
+        this.bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+        this.totalCount = new AtomicLong(0);
+        this.totalValue = new AtomicLong(0);
+        this.maximumValue = new AtomicLong(0);
+    }
+
+    //
+    // Business Methods
+    //
+
+    public void recordValue(long value){
+        long boundedValue = Math.min(MAXIMUM_TRACKABLE_VALUE, Math.max(0L, value));
+        bucketCounts.incrementAndGet(getBucketIndex(boundedValue));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(boundedValue);
+        long currentMaximum = maximumValue.get();
+        while(boundedValue > currentMaximum && !maximumValue.compareAndSet(currentMaximum, boundedValue)){
+            currentMaximum = maximumValue.get();
+        }
+    }
+
+    /**
+     * Adds the other histogram's counts into this one.
+     */
+    public void add(AuditLatencyHistogram other){
+        for(int index = 0; index < BUCKET_COUNT; index++){
+            long otherCount = other.bucketCounts.get(index);
+            if(otherCount != 0){
+                bucketCounts.addAndGet(index, otherCount);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalValue.addAndGet(other.totalValue.get());
+        long otherMaximum = other.maximumValue.get();
+        long currentMaximum = maximumValue.get();
+        while(otherMaximum > currentMaximum && !maximumValue.compareAndSet(currentMaximum, otherMaximum)){
+            currentMaximum = maximumValue.get();
+        }
+    }
+
+    /**
+     * @return the (bucket upper bound) value at or below which the given percentage of the recorded
+     * values fall, or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile){
+        long count = totalCount.get();
+        if(count == 0){
+            return(0);
+        }
+        double boundedPercentile = Math.min(100.0, Math.max(0.0, percentile));
+        long targetCount = Math.max(1L, (long)Math.ceil((boundedPercentile / 100.0) * count));
+        long cumulativeCount = 0;
+        for(int index = 0; index < BUCKET_COUNT; index++){
+            cumulativeCount += bucketCounts.get(index);
+            if(cumulativeCount >= targetCount){
+                return(Math.min(getBucketUpperBound(index), maximumValue.get()));
+            }
+        }
+        return(maximumValue.get());
+    }
+
+    public long getTotalCount(){
+        return(totalCount.get());
+    }
+
+    public long getMaximumValue(){
+        return(maximumValue.get());
+    }
+
+    public double getMean(){
+        long count = totalCount.get();
+        return(count == 0 ? 0.0 : (double)totalValue.get() / count);
+    }
+
+    public void reset(){
+        for(int index = 0; index < BUCKET_COUNT; index++){
+            bucketCounts.set(index, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maximumValue.set(0);
+    }
+
+    //
+    // Bucket Layout
+    //
+
+    protected static int getBucketIndex(long value){
+        if(value < LINEAR_LIMIT){
+            return((int)value);
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        return(LINEAR_LIMIT + ((shift - 1) * SUB_BUCKET_COUNT) + subBucket);
+    }
+
+    protected static long getBucketUpperBound(int index){
+        if(index < LINEAR_LIMIT){
+            return(index);
+        }
+        int shift = ((index - LINEAR_LIMIT) / SUB_BUCKET_COUNT) + 1;
+        long subBucket = ((index - LINEAR_LIMIT) % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+        return(((subBucket + 1) << shift) - 1);
+    }
+}
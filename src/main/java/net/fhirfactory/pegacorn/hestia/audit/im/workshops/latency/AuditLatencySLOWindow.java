@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.latency;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling good/bad counts for the latency SLO, kept in one-minute slots over the last SLOT_COUNT
+ * minutes. A slot is claimed for its minute on first use; a count landing in a slot during the
+ * instant it is being reclaimed may be lost, which is acceptable for a burn-rate signal.
+ */
+public class AuditLatencySLOWindow {
+    private static final int SLOT_COUNT = 360;
+    private static final long SLOT_PERIOD = 60000L;
+
+    private final AtomicLongArray slotMinutes;
+    private final AtomicLongArray goodCounts;
+    private final AtomicLongArray badCounts;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditLatencySLOWindow(){
+        this.slotMinutes = new AtomicLongArray(SLOT_COUNT);
+        this.goodCounts = new AtomicLongArray(SLOT_COUNT);
+        this.badCounts = new AtomicLongArray(SLOT_COUNT);
+        for(int slot = 0; slot < SLOT_COUNT; slot++){
+            slotMinutes.set(slot, -1L);
+        }
+    }
+
+    //
+    // Business Methods
+    //
+
+    public void record(boolean withinTarget){
+        long currentMinute = System.currentTimeMillis() / SLOT_PERIOD;
+        int slot = (int)(currentMinute % SLOT_COUNT);
+        long slotMinute = slotMinutes.get(slot);
+        if(slotMinute != currentMinute && slotMinutes.compareAndSet(slot, slotMinute, currentMinute)){
+            goodCounts.set(slot, 0);
+            badCounts.set(slot, 0);
+        }
+        if(withinTarget){
+            goodCounts.incrementAndGet(slot);
+        } else {
+            badCounts.incrementAndGet(slot);
+        }
+    }
+
+    /**
+     * @return the fraction of events that missed the target over the last windowMinutes (at most
+     * SLOT_COUNT), or 0 if there were none
+     */
+    public double getErrorRate(int windowMinutes){
+        long currentMinute = System.currentTimeMillis() / SLOT_PERIOD;
+        long oldestMinute = currentMinute - Math.min(windowMinutes, SLOT_COUNT) + 1;
+        long good = 0;
+        long bad = 0;
+        for(int slot = 0; slot < SLOT_COUNT; slot++){
+            long slotMinute = slotMinutes.get(slot);
+            if(slotMinute >= oldestMinute && slotMinute <= currentMinute){
+                good += goodCounts.get(slot);
+                bad += badCounts.get(slot);
+            }
+        }
+        long total = good + bad;
+        return(total == 0 ? 0.0 : (double)bad / total);
+    }
+
+    public void reset(){
+        for(int slot = 0; slot < SLOT_COUNT; slot++){
+            slotMinutes.set(slot, -1L);
+            goodCounts.set(slot, 0);
+            badCounts.set(slot, 0);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.replay;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMMBeanRegistrar;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.LocalAuditEventArchive;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.validation.AuditEventStructuralValidator;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMHTTPClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMJGroupsClient;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.limiter.AdaptiveDMWriteLimiter;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.tunables.AsynchronousWriterTunablesService;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays AuditEvents held in a local archive category (e.g. the "invalid" dead letters, or what
+ * load shedding or the filter rules archived) into the DM, directly rather than through the writer
+ * queue and its periodic timer.
+ *
+ * Each archive file is replayed in rounds of up to AUDIT_REPLAY_PARALLELISM batches written
+ * concurrently. The batch size and the number of concurrent batches follow the AdaptiveDMWriteLimiter,
+ * so the replay slows down as DM latency rises. AuditEvents the DM does not accept are retried (with
+ * backoff) within the round; those that still fail go to the REPLAY_FAILED_CATEGORY. If a round ends
+ * with more than AUDIT_REPLAY_MAXIMUM_ERROR_PERCENT of its AuditEvents failed, the replay pauses.
+ * AuditEvents that are (still) structurally invalid are not sent; they are dead-lettered again.
+ *
+ * After every round the file and the number of AuditEvents done are checkpointed next to the archive,
+ * so a stopped, paused or interrupted replay picks up at the next round when restarted. A file is
+ * deleted once it has been fully replayed.
+ */
+@ApplicationScoped
+public class AuditEventReplayService implements AuditEventReplayServiceMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventReplayService.class);
+
+    public static final String REPLAY_FAILED_CATEGORY = "replay-failed";
+    public static final String MBEAN_NAME = "net.fhirfactory.pegacorn.hestia.audit.im:type=AuditEventReplay";
+
+    private static final String AUDIT_REPLAY_PARALLELISM = "AUDIT_REPLAY_PARALLELISM";
+    private static final String AUDIT_REPLAY_BATCH_SIZE = "AUDIT_REPLAY_BATCH_SIZE";
+    private static final String AUDIT_REPLAY_MAXIMUM_ERROR_PERCENT = "AUDIT_REPLAY_MAXIMUM_ERROR_PERCENT";
+    private static final String AUDIT_REPLAY_RETRY_DELAY = "AUDIT_REPLAY_RETRY_DELAY";
+    private static final long DEFAULT_PARALLELISM = 8L;
+    private static final long DEFAULT_BATCH_SIZE = 500L;
+    private static final long DEFAULT_MAXIMUM_ERROR_PERCENT = 50L;
+    private static final long DEFAULT_RETRY_DELAY = 1000L;
+    private static final long MAXIMUM_RETRY_DELAY = 30000L;
+    private static final int RETRY_ATTEMPTS = 3;
+
+    private static final String CHECKPOINT_FILE_SUFFIX = ".replay-checkpoint";
+    private static final String CHECKPOINT_PARTIAL_SUFFIX = ".partial";
+    private static final String CHECKPOINT_FILE = "file";
+    private static final String CHECKPOINT_OFFSET = "offset";
+
+    private volatile boolean initialised;
+    private volatile AuditEventReplayStateEnum replayState;
+    private volatile boolean stopRequested;
+    private volatile String replayCategory;
+    private volatile String currentFile;
+    private volatile long replayStarted;
+    private Thread replayThread;
+    private ExecutorService workerPool;
+    private ObjectName registeredName;
+
+    private AtomicLong eventsTotal;
+    private AtomicLong eventsCompleted;
+    private AtomicLong eventsWritten;
+    private AtomicLong eventsFailed;
+    private AtomicLong eventsInvalid;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private LocalAuditEventArchive localArchive;
+
+    @Inject
+    private AuditEventStructuralValidator structuralValidator;
+
+    @Inject
+    private HestiaDMHTTPClient hestiaDMHTTPClient;
+
+    @Inject
+    private HestiaDMJGroupsClient hestiaDMJGroupsClient;
+
+    @Inject
+    private AdaptiveDMWriteLimiter writeLimiter;
+
+    @Inject
+    private AsynchronousWriterTunablesService tunablesService;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventReplayService(){
+        this.initialised = false;
+        this.replayState = AuditEventReplayStateEnum.IDLE;
+        this.stopRequested = false;
+        this.eventsTotal = new AtomicLong(0);
+        this.eventsCompleted = new AtomicLong(0);
+        this.eventsWritten = new AtomicLong(0);
+        this.eventsFailed = new AtomicLong(0);
+        this.eventsInvalid = new AtomicLong(0);
+    }
+
+    //
+    // Initialisation / Shutdown
+    //
+
+    public synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        registeredName = HestiaIMMBeanRegistrar.register(this, MBEAN_NAME);
+        initialised = true;
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        stopReplay();
+        Thread currentReplayThread = replayThread;
+        if(currentReplayThread != null){
+            try {
+                currentReplayThread.join(5000L);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        HestiaIMMBeanRegistrar.unregister(registeredName);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * Starts replaying the archive category in the background, resuming from its checkpoint if there
+     * is one.
+     *
+     * @return a description of what was done
+     */
+    @Override
+    public synchronized String startReplay(String category){
+        if(!initialised){
+            initialise();
+        }
+        if(StringUtils.isBlank(category)){
+            return("No archive category given");
+        }
+        if(replayState == AuditEventReplayStateEnum.RUNNING || replayState == AuditEventReplayStateEnum.STOPPING){
+            return("Replay of category " + replayCategory + " is already " + replayState);
+        }
+        if(!hestiaDMHTTPClient.persistAuditEvent()){
+            return("AuditEvent persistence is disabled, nothing to replay into");
+        }
+        if(!localArchive.isConfigured()){
+            return("No local archive directory is configured, nothing to replay");
+        }
+        replayCategory = category.trim();
+        stopRequested = false;
+        eventsTotal.set(0);
+        eventsCompleted.set(0);
+        eventsWritten.set(0);
+        eventsFailed.set(0);
+        eventsInvalid.set(0);
+        replayState = AuditEventReplayStateEnum.RUNNING;
+        replayThread = new Thread(() -> runReplay(replayCategory), "AuditEventReplay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+        getLogger().info(".startReplay(): Replay started, category->{}", replayCategory);
+        return("Replay of category " + replayCategory + " started");
+    }
+
+    /**
+     * Stops the replay at the end of its current round; it can be resumed with startReplay().
+     */
+    @Override
+    public String stopReplay(){
+        if(replayState != AuditEventReplayStateEnum.RUNNING){
+            return("No replay is running");
+        }
+        stopRequested = true;
+        replayState = AuditEventReplayStateEnum.STOPPING;
+        return("Replay of category " + replayCategory + " is stopping");
+    }
+
+    //
+    // Replay
+    //
+
+    protected void runReplay(String category){
+        List<Path> archiveFiles = localArchive.listArchiveFiles(category);
+        Properties checkpoint = readCheckpoint(category);
+        long totalEvents = 0;
+        for(Path currentFile: archiveFiles){
+            totalEvents += countEvents(currentFile);
+        }
+        eventsTotal.set(totalEvents);
+        getLogger().info(".runReplay(): Entry, category->{}, files->{}, events->{}", category, archiveFiles.size(), totalEvents);
+        int parallelism = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_REPLAY_PARALLELISM, DEFAULT_PARALLELISM));
+        AtomicInteger workerCount = new AtomicInteger(0);
+        workerPool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread workerThread = new Thread(runnable, "AuditEventReplay-Worker-" + workerCount.incrementAndGet());
+            workerThread.setDaemon(true);
+            return(workerThread);
+        });
+        replayStarted = System.currentTimeMillis();
+        AuditEventReplayStateEnum finalState = AuditEventReplayStateEnum.COMPLETED;
+        try {
+            for(Path currentArchiveFile: archiveFiles){
+                if(stopRequested){
+                    finalState = AuditEventReplayStateEnum.STOPPED;
+                    break;
+                }
+                int startOffset = 0;
+                String fileName = currentArchiveFile.getFileName().toString();
+                if(checkpoint != null && fileName.equals(checkpoint.getProperty(CHECKPOINT_FILE))){
+                    startOffset = Integer.parseInt(checkpoint.getProperty(CHECKPOINT_OFFSET, "0"));
+                    getLogger().info(".runReplay(): Resuming from checkpoint, file->{}, offset->{}", fileName, startOffset);
+                }
+                finalState = replayFile(category, currentArchiveFile, startOffset, parallelism);
+                if(finalState != AuditEventReplayStateEnum.COMPLETED){
+                    break;
+                }
+            }
+        } catch (Exception ex) {
+            getLogger().error(".runReplay(): Replay failed, category->{}, message->{}", category, ExceptionUtils.getMessage(ex));
+            finalState = AuditEventReplayStateEnum.PAUSED;
+        } finally {
+            workerPool.shutdownNow();
+            currentFile = null;
+        }
+        replayState = finalState;
+        getLogger().info(".runReplay(): Exit, category->{}, state->{}, written->{}, failed->{}, invalid->{}, throughput->{}",
+                category, finalState, eventsWritten.get(), eventsFailed.get(), eventsInvalid.get(), getThroughput());
+    }
+
+    /**
+     * @return COMPLETED if the whole file was replayed (and deleted), otherwise the state to stop in
+     */
+    protected AuditEventReplayStateEnum replayFile(String category, Path archiveFile, int startOffset, int parallelism) throws Exception {
+        currentFile = archiveFile.getFileName().toString();
+        List<AuditEvent> auditEventList = localArchive.readArchiveFile(archiveFile);
+        int offset = Math.min(Math.max(0, startOffset), auditEventList.size());
+        eventsCompleted.addAndGet(offset);
+        int configuredBatchSize = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_REPLAY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        long maximumErrorPercent = configurationService.getLongParameter(AUDIT_REPLAY_MAXIMUM_ERROR_PERCENT, DEFAULT_MAXIMUM_ERROR_PERCENT);
+        long retryDelay = Math.max(1L, configurationService.getLongParameter(AUDIT_REPLAY_RETRY_DELAY, DEFAULT_RETRY_DELAY));
+        while(offset < auditEventList.size()){
+            if(stopRequested){
+                return(AuditEventReplayStateEnum.STOPPED);
+            }
+            // the limiter shrinks both the batches and the number of concurrent batches as the DM slows
+            int roundParallelism = Math.max(1, Math.min(parallelism, writeLimiter.getConcurrencyLimit()));
+            int batchSize = writeLimiter.getBatchSize(configuredBatchSize);
+            List<Future<List<AuditEvent>>> inFlightBatches = new ArrayList<>(roundParallelism);
+            int roundEnd = offset;
+            for(int worker = 0; worker < roundParallelism && roundEnd < auditEventList.size(); worker++){
+                int batchEnd = Math.min(auditEventList.size(), roundEnd + batchSize);
+                List<AuditEvent> batch = new ArrayList<>(auditEventList.subList(roundEnd, batchEnd));
+                inFlightBatches.add(workerPool.submit(() -> writeReplayBatch(batch)));
+                roundEnd = batchEnd;
+            }
+            List<AuditEvent> failedEvents = new ArrayList<>();
+            for(Future<List<AuditEvent>> currentBatch: inFlightBatches){
+                failedEvents.addAll(currentBatch.get());
+            }
+            for(int attempt = 1; attempt <= RETRY_ATTEMPTS && !failedEvents.isEmpty() && !stopRequested; attempt++){
+                Thread.sleep(Math.min(MAXIMUM_RETRY_DELAY, retryDelay << (attempt - 1)));
+                failedEvents = writeReplayBatch(failedEvents);
+            }
+            int roundSize = roundEnd - offset;
+            if(!failedEvents.isEmpty()){
+                localArchive.archiveAuditEvents(REPLAY_FAILED_CATEGORY, failedEvents);
+                eventsFailed.addAndGet(failedEvents.size());
+            }
+            offset = roundEnd;
+            eventsCompleted.addAndGet(roundSize);
+            writeCheckpoint(category, currentFile, offset);
+            if(!failedEvents.isEmpty() && failedEvents.size() * 100L > roundSize * maximumErrorPercent){
+                getLogger().warn(".replayFile(): Pausing replay, DM error rate too high, failed->{}, round->{}", failedEvents.size(), roundSize);
+                return(AuditEventReplayStateEnum.PAUSED);
+            }
+        }
+        localArchive.deleteArchiveFile(archiveFile);
+        clearCheckpoint(category);
+        return(AuditEventReplayStateEnum.COMPLETED);
+    }
+
+    /**
+     * @return the AuditEvents of the batch the DM did not accept
+     */
+    protected List<AuditEvent> writeReplayBatch(List<AuditEvent> batch){
+        List<AuditEvent> validEvents = new ArrayList<>(batch.size());
+        for(AuditEvent currentEvent: batch){
+            if(structuralValidator.findViolation(currentEvent) != null){
+                structuralValidator.deadLetter(currentEvent);
+                eventsInvalid.incrementAndGet();
+            } else {
+                validEvents.add(currentEvent);
+            }
+        }
+        List<AuditEvent> failedEvents = new ArrayList<>();
+        if(validEvents.isEmpty()){
+            return(failedEvents);
+        }
+        List<MethodOutcome> outcomeList;
+        try {
+            if(tunablesService.getTunables().isJGroupsTechnology()){
+                outcomeList = new ArrayList<>(validEvents.size());
+                for(AuditEvent currentEvent: validEvents){
+                    outcomeList.add(hestiaDMJGroupsClient.writeAuditEventIntoDM(currentEvent));
+                }
+            } else {
+                outcomeList = hestiaDMHTTPClient.writeAuditEventBatch(validEvents);
+            }
+        } catch (Exception ex) {
+            getLogger().warn(".writeReplayBatch(): Batch write failed, message->{}", ExceptionUtils.getMessage(ex));
+            return(validEvents);
+        }
+        int written = 0;
+        for(int index = 0; index < validEvents.size(); index++){
+            MethodOutcome outcome = outcomeList != null && index < outcomeList.size() ? outcomeList.get(index) : null;
+            if(outcome != null && Boolean.TRUE.equals(outcome.getCreated())){
+                written += 1;
+            } else {
+                failedEvents.add(validEvents.get(index));
+            }
+        }
+        eventsWritten.addAndGet(written);
+        return(failedEvents);
+    }
+
+    //
+    // Checkpoints
+    //
+
+    protected Path getCheckpointFile(String category){
+        return(localArchive.getArchiveDirectory().resolve(category + CHECKPOINT_FILE_SUFFIX));
+    }
+
+    protected Properties readCheckpoint(String category){
+        Path checkpointFile = getCheckpointFile(category);
+        if(!Files.exists(checkpointFile)){
+            return(null);
+        }
+        Properties checkpoint = new Properties();
+        try (BufferedReader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+            checkpoint.load(reader);
+        } catch (IOException ex) {
+            getLogger().warn(".readCheckpoint(): Could not read checkpoint, starting from the beginning, message->{}", ExceptionUtils.getMessage(ex));
+            return(null);
+        }
+        if(!StringUtils.isNumeric(checkpoint.getProperty(CHECKPOINT_OFFSET))){
+            return(null);
+        }
+        return(checkpoint);
+    }
+
+    /**
+     * Written under a temporary name and then renamed, so a crash never leaves a partial checkpoint.
+     */
+    protected void writeCheckpoint(String category, String fileName, int offset){
+        Path checkpointFile = getCheckpointFile(category);
+        Path partialFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + CHECKPOINT_PARTIAL_SUFFIX);
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty(CHECKPOINT_FILE, fileName);
+        checkpoint.setProperty(CHECKPOINT_OFFSET, Integer.toString(offset));
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(partialFile, StandardCharsets.UTF_8)) {
+                checkpoint.store(writer, null);
+            }
+            Files.move(partialFile, checkpointFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            getLogger().warn(".writeCheckpoint(): Could not write checkpoint, file->{}, offset->{}, message->{}", fileName, offset, ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    protected void clearCheckpoint(String category){
+        try {
+            Files.deleteIfExists(getCheckpointFile(category));
+        } catch (IOException ex) {
+            getLogger().warn(".clearCheckpoint(): Could not delete checkpoint, message->{}", ExceptionUtils.getMessage(ex));
+        }
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected long countEvents(Path archiveFile){
+        long eventCount = 0;
+        try (BufferedReader reader = Files.newBufferedReader(archiveFile, StandardCharsets.UTF_8)) {
+            String currentLine;
+            while((currentLine = reader.readLine()) != null){
+                if(StringUtils.isNotBlank(currentLine)){
+                    eventCount += 1;
+                }
+            }
+        } catch (IOException ex) {
+            getLogger().warn(".countEvents(): Could not read archiveFile->{}, message->{}", archiveFile, ExceptionUtils.getMessage(ex));
+        }
+        return(eventCount);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // MBean Attributes
+    //
+
+    @Override
+    public String getReplayState() {
+        return(replayState.name());
+    }
+
+    @Override
+    public String getReplayCategory() {
+        return(replayCategory);
+    }
+
+    @Override
+    public String getCurrentFile() {
+        return(currentFile);
+    }
+
+    @Override
+    public long getEventsTotal() {
+        return(eventsTotal.get());
+    }
+
+    @Override
+    public long getEventsCompleted() {
+        return(eventsCompleted.get());
+    }
+
+    @Override
+    public long getEventsWritten() {
+        return(eventsWritten.get());
+    }
+
+    @Override
+    public long getEventsFailed() {
+        return(eventsFailed.get());
+    }
+
+    @Override
+    public long getEventsInvalid() {
+        return(eventsInvalid.get());
+    }
+
+    /**
+     * @return AuditEvents written to the DM per second since the replay started
+     */
+    @Override
+    public double getThroughput() {
+        if(replayStarted == 0){
+            return(0.0);
+        }
+        long elapsed = Math.max(1L, System.currentTimeMillis() - replayStarted);
+        return(eventsWritten.get() * 1000.0 / elapsed);
+    }
+
+    /**
+     * @return the estimated time to finish at the current throughput, or -1 if it cannot be estimated yet
+     */
+    @Override
+    public long getEstimatedSecondsRemaining() {
+        double throughput = getThroughput();
+        if(replayState != AuditEventReplayStateEnum.RUNNING || throughput <= 0.0){
+            return(-1L);
+        }
+        long remaining = Math.max(0L, eventsTotal.get() - eventsCompleted.get());
+        return((long)Math.ceil(remaining / throughput));
+    }
+}
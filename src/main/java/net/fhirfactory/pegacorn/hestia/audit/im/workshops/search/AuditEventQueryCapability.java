@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.search;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.fhirfactory.pegacorn.core.interfaces.capabilities.CapabilityFulfillmentInterface;
+import net.fhirfactory.pegacorn.core.interfaces.topology.ProcessingPlantInterface;
+import net.fhirfactory.pegacorn.core.model.capabilities.base.CapabilityUtilisationRequest;
+import net.fhirfactory.pegacorn.core.model.capabilities.base.CapabilityUtilisationResponse;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMNames;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.cluster.HestiaAuditIMClusterService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.datagrid.index.RecentAuditEventIndex;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The AuditEvent query capability. The request content is an AuditEventSearchQuery (as JSON) and the
+ * response content is a FHIR searchset Bundle.
+ *
+ * Queries whose window lies entirely within the RecentAuditEventIndex coverage are answered locally.
+ * Everything else (including requests for a further page) goes to the DM via the AuditEventSearchProxy.
+ * When the IM is clustered, each replica only indexes the sources it owns, so queries always go to
+ * the DM.
+ */
+@ApplicationScoped
+public class AuditEventQueryCapability implements CapabilityFulfillmentInterface {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventQueryCapability.class);
+
+    private ObjectMapper jsonMapper;
+
+    @Inject
+    private ProcessingPlantInterface processingPlant;
+
+    @Inject
+    private HestiaIMNames hestiaIMNames;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private RecentAuditEventIndex recentAuditEventIndex;
+
+    @Inject
+    private HestiaAuditIMClusterService clusterService;
+
+    @Inject
+    private AuditEventSearchProxy searchProxy;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventQueryCapability(){
+        this.jsonMapper = new ObjectMapper();
+        this.jsonMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    //
+    // Capability Registration
+    //
+
+    public void registerCapability(){
+        processingPlant.registerCapabilityFulfillmentService(hestiaIMNames.getAuditEventQueryCapabilityName(), this);
+    }
+
+    //
+    // Capability Execution Service
+    //
+
+    @Override
+    public CapabilityUtilisationResponse executeTask(CapabilityUtilisationRequest request) {
+        getLogger().debug(".executeTask(): Entry, requestID->{}", request.getRequestID());
+        String responseContent = null;
+        try {
+            AuditEventSearchQuery query = jsonMapper.readValue(request.getRequestStringContent(), AuditEventSearchQuery.class);
+            responseContent = search(query);
+        } catch (Exception ex) {
+            getLogger().warn(".executeTask(): Query failed, message->{}", ExceptionUtils.getMessage(ex));
+        }
+        CapabilityUtilisationResponse response = new CapabilityUtilisationResponse();
+        response.setResponseStringContent(responseContent);
+        response.setInstantCompleted(Instant.now());
+        response.setAssociatedRequestID(request.getRequestID());
+        getLogger().debug(".executeTask(): Exit");
+        return(response);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return the encoded searchset Bundle for the query
+     */
+    public String search(AuditEventSearchQuery query) throws ExecutionException, InterruptedException {
+        boolean localQuery = StringUtils.isBlank(query.getCursor()) && !clusterService.isClusterEnabled();
+        if(localQuery && recentAuditEventIndex.covers(query)){
+            List<AuditEvent> localResults = recentAuditEventIndex.search(query);
+            getLogger().debug(".search(): Answered from recent index, query->{}, results->{}", query, localResults.size());
+            return(parserService.encodeResourceToString(toSearchSet(localResults)));
+        }
+        getLogger().debug(".search(): Not covered by recent index, querying DM, query->{}", query);
+        return(searchProxy.search(query));
+    }
+
+    protected Bundle toSearchSet(List<AuditEvent> auditEventList){
+        Bundle searchSet = new Bundle();
+        searchSet.setType(Bundle.BundleType.SEARCHSET);
+        searchSet.setTotal(auditEventList.size());
+        for(AuditEvent currentEvent: auditEventList){
+            Bundle.BundleEntryComponent entry = searchSet.addEntry();
+            entry.setResource(currentEvent);
+            entry.getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return(searchSet);
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.search;
+
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMConfigurationService;
+import net.fhirfactory.pegacorn.hestia.audit.im.common.HestiaIMFHIRParserService;
+import net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans.HestiaDMHTTPClient;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Read-through proxy for AuditEvent searches against the DM.
+ *
+ * Results are cached as encoded searchset Bundles, keyed by the normalised query, and expire after
+ * AUDIT_SEARCH_CACHE_TTL ms. The cache holds at most AUDIT_SEARCH_CACHE_SIZE entries and evicts the
+ * least recently used. Concurrent identical queries share one DM call. Results come back one page at
+ * a time. A page's "next" link is replaced with an opaque cursor, and the caller passes that cursor
+ * in a follow-up query to get the next page. A cursor carries the DM page URL together with an
+ * HMAC-SHA256 over it, so a caller cannot make the IM fetch a URL of its choosing. The HMAC key is
+ * AUDIT_SEARCH_CURSOR_KEY (shared by the replicas, so any of them can continue a search); without it
+ * each replica generates its own and its cursors are only good on that replica until it restarts.
+ */
+@ApplicationScoped
+public class AuditEventSearchProxy {
+    private static final Logger LOG = LoggerFactory.getLogger(AuditEventSearchProxy.class);
+
+    private static final String AUDIT_SEARCH_CACHE_TTL = "AUDIT_SEARCH_CACHE_TTL";
+    private static final String AUDIT_SEARCH_CACHE_SIZE = "AUDIT_SEARCH_CACHE_SIZE";
+    private static final String AUDIT_SEARCH_CURSOR_KEY = "AUDIT_SEARCH_CURSOR_KEY";
+    private static final String CURSOR_MAC_ALGORITHM = "HmacSHA256";
+    private static final String CURSOR_SEPARATOR = ".";
+    private static final int GENERATED_CURSOR_KEY_LENGTH = 32;
+    private static final long DEFAULT_CACHE_TTL = 30000L;
+    private static final int DEFAULT_CACHE_SIZE = 256;
+    private static final String KEY_SEPARATOR = "|";
+    private static final String CURSOR_KEY_PREFIX = "cursor:";
+
+    private volatile boolean initialised;
+    private long cacheTTL;
+    private int cacheSize;
+    private SecretKeySpec cursorKey;
+    private LinkedHashMap<String, CachedSearchResult> resultCache;
+    private ConcurrentHashMap<String, CompletableFuture<String>> inFlightSearches;
+
+    @Inject
+    private HestiaIMConfigurationService configurationService;
+
+    @Inject
+    private HestiaIMFHIRParserService parserService;
+
+    @Inject
+    private HestiaDMHTTPClient hestiaDMHTTPClient;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventSearchProxy(){
+        this.initialised = false;
+        this.cacheTTL = DEFAULT_CACHE_TTL;
+        this.cacheSize = DEFAULT_CACHE_SIZE;
+        this.inFlightSearches = new ConcurrentHashMap<>();
+    }
+
+    protected synchronized void initialise(){
+        if(initialised){
+            return;
+        }
+        cacheTTL = Math.max(0L, configurationService.getLongParameter(AUDIT_SEARCH_CACHE_TTL, DEFAULT_CACHE_TTL));
+        cacheSize = (int)Math.max(1L, configurationService.getLongParameter(AUDIT_SEARCH_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+        String configuredCursorKey = configurationService.getParameter(AUDIT_SEARCH_CURSOR_KEY);
+        byte[] cursorKeyBytes;
+        if(StringUtils.isNotBlank(configuredCursorKey)){
+            cursorKeyBytes = configuredCursorKey.getBytes(StandardCharsets.UTF_8);
+        } else {
+            cursorKeyBytes = new byte[GENERATED_CURSOR_KEY_LENGTH];
+            new SecureRandom().nextBytes(cursorKeyBytes);
+            getLogger().info(".initialise(): No {} configured, search cursors are only valid on this replica", AUDIT_SEARCH_CURSOR_KEY);
+        }
+        cursorKey = new SecretKeySpec(cursorKeyBytes, CURSOR_MAC_ALGORITHM);
+        int maximumEntries = cacheSize;
+        resultCache = new LinkedHashMap<String, CachedSearchResult>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSearchResult> eldest) {
+                return(size() > maximumEntries);
+            }
+        };
+        initialised = true;
+        getLogger().info(".initialise(): cacheTTL->{}, cacheSize->{}", cacheTTL, cacheSize);
+    }
+
+    //
+    // Business Methods
+    //
+
+    /**
+     * @return the encoded searchset Bundle (one page) for the query
+     */
+    public String search(AuditEventSearchQuery query) throws ExecutionException, InterruptedException {
+        if(!initialised){
+            initialise();
+        }
+        String queryKey = normaliseQuery(query);
+        String cachedResult = getCachedResult(queryKey);
+        if(cachedResult != null){
+            getLogger().debug(".search(): Cache hit, queryKey->{}", queryKey);
+            return(cachedResult);
+        }
+        CompletableFuture<String> pendingResult = new CompletableFuture<>();
+        CompletableFuture<String> inFlightResult = inFlightSearches.putIfAbsent(queryKey, pendingResult);
+        if(inFlightResult != null){
+            getLogger().debug(".search(): Joining in-flight search, queryKey->{}", queryKey);
+            return(inFlightResult.get());
+        }
+        try {
+            String result = executeSearch(query);
+            putCachedResult(queryKey, result);
+            pendingResult.complete(result);
+            return(result);
+        } catch (RuntimeException ex) {
+            pendingResult.completeExceptionally(ex);
+            throw(ex);
+        } finally {
+            inFlightSearches.remove(queryKey, pendingResult);
+        }
+    }
+
+    public void invalidateCache(){
+        if(!initialised){
+            return;
+        }
+        synchronized(resultCache){
+            resultCache.clear();
+        }
+    }
+
+    //
+    // Helper Functions
+    //
+
+    protected String executeSearch(AuditEventSearchQuery query){
+        Bundle searchPage;
+        if(StringUtils.isNotBlank(query.getCursor())){
+            searchPage = hestiaDMHTTPClient.loadAuditEventSearchPage(decodeCursor(query.getCursor()));
+        } else {
+            searchPage = hestiaDMHTTPClient.searchAuditEvents(query);
+        }
+        // only the next link is meaningful to the caller, and it becomes an opaque cursor
+        Bundle.BundleLinkComponent nextLink = searchPage.getLink(Bundle.LINK_NEXT);
+        String nextURL = nextLink != null ? nextLink.getUrl() : null;
+        searchPage.getLink().clear();
+        if(StringUtils.isNotBlank(nextURL)){
+            searchPage.addLink().setRelation(Bundle.LINK_NEXT).setUrl(encodeCursor(nextURL));
+        }
+        return(parserService.encodeResourceToString(searchPage));
+    }
+
+    protected String normaliseQuery(AuditEventSearchQuery query){
+        if(StringUtils.isNotBlank(query.getCursor())){
+            return(CURSOR_KEY_PREFIX + query.getCursor().trim());
+        }
+        StringBuilder keyBuilder = new StringBuilder();
+        keyBuilder.append(StringUtils.trimToEmpty(query.getEntity())).append(KEY_SEPARATOR);
+        keyBuilder.append(StringUtils.trimToEmpty(query.getAgent())).append(KEY_SEPARATOR);
+        keyBuilder.append(StringUtils.trimToEmpty(query.getType())).append(KEY_SEPARATOR);
+        keyBuilder.append(query.getSince() != null ? query.getSince().getTime() : "").append(KEY_SEPARATOR);
+        keyBuilder.append(query.getUntil() != null ? query.getUntil().getTime() : "").append(KEY_SEPARATOR);
+        keyBuilder.append(query.getEffectiveCount());
+        return(keyBuilder.toString());
+    }
+
+    protected String getCachedResult(String queryKey){
+        synchronized(resultCache){
+            CachedSearchResult cachedResult = resultCache.get(queryKey);
+            if(cachedResult == null){
+                return(null);
+            }
+            if(cachedResult.getExpiry() < System.currentTimeMillis()){
+                resultCache.remove(queryKey);
+                return(null);
+            }
+            return(cachedResult.getEncodedBundle());
+        }
+    }
+
+    protected void putCachedResult(String queryKey, String encodedBundle){
+        if(cacheTTL == 0){
+            return;
+        }
+        synchronized(resultCache){
+            resultCache.put(queryKey, new CachedSearchResult(encodedBundle, System.currentTimeMillis() + cacheTTL));
+        }
+    }
+
+    protected String encodeCursor(String pageURL){
+        byte[] pageURLBytes = pageURL.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return(encoder.encodeToString(pageURLBytes) + CURSOR_SEPARATOR + encoder.encodeToString(computeCursorMac(pageURLBytes)));
+    }
+
+    /**
+     * @return the DM page URL carried by the cursor
+     * @throws IllegalArgumentException if the cursor is malformed or was not issued by this IM
+     */
+    protected String decodeCursor(String cursor){
+        String[] cursorParts = StringUtils.split(cursor.trim(), CURSOR_SEPARATOR);
+        if(cursorParts.length != 2){
+            throw new IllegalArgumentException("Malformed search cursor");
+        }
+        byte[] pageURLBytes = Base64.getUrlDecoder().decode(cursorParts[0]);
+        byte[] presentedMac = Base64.getUrlDecoder().decode(cursorParts[1]);
+        if(!MessageDigest.isEqual(presentedMac, computeCursorMac(pageURLBytes))){
+            throw new IllegalArgumentException("Search cursor was not issued by this IM");
+        }
+        return(new String(pageURLBytes, StandardCharsets.UTF_8));
+    }
+
+    protected byte[] computeCursorMac(byte[] pageURLBytes){
+        try {
+            Mac mac = Mac.getInstance(CURSOR_MAC_ALGORITHM);
+            mac.init(cursorKey);
+            return(mac.doFinal(pageURLBytes));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not compute the search cursor MAC", ex);
+        }
+    }
+
+    protected Logger getLogger(){
+        return(LOG);
+    }
+
+    //
+    // Internal Classes
+    //
+
+    protected static class CachedSearchResult {
+        private final String encodedBundle;
+        private final long expiry;
+
+        public CachedSearchResult(String encodedBundle, long expiry){
+            this.encodedBundle = encodedBundle;
+            this.expiry = expiry;
+        }
+
+        public String getEncodedBundle() {
+            return encodedBundle;
+        }
+
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.search;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.Date;
+
+/**
+ * An AuditEvent search: any combination of entity reference, agent, type ("system|code" or "code")
+ * and a recorded-time window, limited to count results. A query carrying a cursor (taken from the
+ * "next" link of a previous result page) asks for that next page, and its other fields are ignored.
+ */
+public class AuditEventSearchQuery {
+    public static final int DEFAULT_COUNT = 100;
+    public static final int MAXIMUM_COUNT = 1000;
+
+    private String entity;
+    private String agent;
+    private String type;
+    private Date since;
+    private Date until;
+    private Integer count;
+    private String cursor;
+
+    //
+    // Constructor(s)
+    //
+
+    public AuditEventSearchQuery(){
+    }
+
+    //
+    // Getters and Setters
+    //
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public void setEntity(String entity) {
+        this.entity = entity;
+    }
+
+    public String getAgent() {
+        return agent;
+    }
+
+    public void setAgent(String agent) {
+        this.agent = agent;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public Date getSince() {
+        return since;
+    }
+
+    public void setSince(Date since) {
+        this.since = since;
+    }
+
+    public Date getUntil() {
+        return until;
+    }
+
+    public void setUntil(Date until) {
+        this.until = until;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public void setCount(Integer count) {
+        this.count = count;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    @JsonIgnore
+    public int getEffectiveCount(){
+        if(count == null || count <= 0){
+            return(DEFAULT_COUNT);
+        }
+        return(Math.min(count, MAXIMUM_COUNT));
+    }
+
+    //
+    // To String
+    //
+
+    @Override
+    public String toString() {
+        return "AuditEventSearchQuery{" +
+                "entity=" + entity +
+                ", agent=" + agent +
+                ", type=" + type +
+                ", since=" + since +
+                ", until=" + until +
+                ", count=" + count +
+                ", cursor=" + cursor +
+                '}';
+    }
+}
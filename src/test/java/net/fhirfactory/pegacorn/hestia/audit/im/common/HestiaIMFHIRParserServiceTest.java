@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.common;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the parser pool, and measures parse/encode throughput under contention for the pool against
+ * a new parser per call and a single (synchronised) shared parser.
+ */
+public class HestiaIMFHIRParserServiceTest {
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forR4();
+    private static final String AUDIT_EVENT = "{\"resourceType\":\"AuditEvent\",\"id\":\"1234\",\"type\":{\"system\":\"http://dicom.nema.org/resources/ontology/DCM\",\"code\":\"110100\"},\"recorded\":\"2021-01-01T00:00:00Z\",\"outcome\":\"0\",\"agent\":[{\"who\":{\"display\":\"benchmark\"},\"requestor\":true}],\"source\":{\"observer\":{\"display\":\"benchmark\"}},\"entity\":[{\"what\":{\"reference\":\"Patient/benchmark\"}}]}";
+    private static final int ITERATIONS_PER_THREAD = 2000;
+
+    @Test
+    public void borrowedParserIsNotHandedOutAgainUntilReleased(){
+        HestiaIMFHIRParserService parserService = newParserService();
+        IParser firstParser = parserService.borrowJsonParser();
+        IParser secondParser = parserService.borrowJsonParser();
+        assertNotSame(firstParser, secondParser);
+        parserService.releaseJsonParser(firstParser);
+        assertSame(firstParser, parserService.borrowJsonParser());
+    }
+
+    @Test
+    public void poolKeepsNoMoreThanItsBound(){
+        HestiaIMFHIRParserService parserService = newParserService();
+        List<IParser> borrowedParsers = new ArrayList<>();
+        for(int index = 0; index < 3 * parserService.getMaximumIdleParsers(); index++){
+            borrowedParsers.add(parserService.borrowJsonParser());
+        }
+        for(IParser currentParser: borrowedParsers){
+            parserService.releaseJsonParser(currentParser);
+        }
+        assertEquals(parserService.getMaximumIdleParsers(), parserService.getIdleParserCount());
+        parserService.shutdown();
+        assertEquals(0, parserService.getIdleParserCount());
+    }
+
+    @Test
+    public void parseEncodeThroughputUnderContention() throws Exception {
+        HestiaIMFHIRParserService parserService = newParserService();
+        parserService.initialise();
+        String expected = parserService.encodeAuditEvent(parserService.parseAuditEvent(AUDIT_EVENT));
+        int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        IParser sharedParser = parserService.newJsonParser();
+
+        RoundTrip pooled = () -> parserService.encodeAuditEvent(parserService.parseAuditEvent(AUDIT_EVENT));
+        RoundTrip parserPerCall = () -> {
+            IParser parser = parserService.newJsonParser();
+            return(parser.encodeResourceToString(parser.parseResource(AuditEvent.class, AUDIT_EVENT)));
+        };
+        RoundTrip sharedSynchronised = () -> {
+            synchronized(sharedParser){
+                return(sharedParser.encodeResourceToString(sharedParser.parseResource(AuditEvent.class, AUDIT_EVENT)));
+            }
+        };
+
+        // the first pass of each only warms the JIT
+        for(int pass = 0; pass < 2; pass++){
+            long pooledNanos = runContended(pooled, threads, expected);
+            long perCallNanos = runContended(parserPerCall, threads, expected);
+            long sharedNanos = runContended(sharedSynchronised, threads, expected);
+            if(pass == 1){
+                long roundTrips = (long)threads * ITERATIONS_PER_THREAD;
+                System.out.println("HestiaIMFHIRParserService round trips/s with " + threads + " threads: pooled " + (roundTrips * 1000000000L / pooledNanos)
+                        + ", parser per call " + (roundTrips * 1000000000L / perCallNanos) + ", shared synchronised parser " + (roundTrips * 1000000000L / sharedNanos));
+            }
+        }
+        assertTrue(parserService.getIdleParserCount() <= parserService.getMaximumIdleParsers());
+    }
+
+    //
+    // Helper Functions
+    //
+
+    private interface RoundTrip {
+        String run();
+    }
+
+    private long runContended(RoundTrip roundTrip, int threads, String expected) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch startSignal = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for(int thread = 0; thread < threads; thread++){
+                Callable<Integer> task = () -> {
+                    startSignal.await();
+                    int matching = 0;
+                    for(int iteration = 0; iteration < ITERATIONS_PER_THREAD; iteration++){
+                        if(expected.equals(roundTrip.run())){
+                            matching++;
+                        }
+                    }
+                    return(matching);
+                };
+                results.add(executor.submit(task));
+            }
+            long startTime = System.nanoTime();
+            startSignal.countDown();
+            for(Future<Integer> currentResult: results){
+                assertEquals(ITERATIONS_PER_THREAD, currentResult.get().intValue());
+            }
+            return(Math.max(1L, System.nanoTime() - startTime));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private HestiaIMFHIRParserService newParserService(){
+        return(new HestiaIMFHIRParserService(){
+            @Override
+            protected FhirContext getFhirContext(){
+                return(FHIR_CONTEXT);
+            }
+        });
+    }
+}
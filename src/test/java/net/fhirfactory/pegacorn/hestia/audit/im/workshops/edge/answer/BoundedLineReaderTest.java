@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.edge.answer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BoundedLineReaderTest {
+
+    @Test
+    public void readsLinesAndStripsCarriageReturns() throws Exception {
+        AuditEventBulkIngestService.BoundedLineReader lineReader = new AuditEventBulkIngestService.BoundedLineReader(new StringReader("first\r\nsecond\n\nlast"), 16);
+        assertEquals("first", lineReader.readLine());
+        assertEquals("second", lineReader.readLine());
+        assertEquals("", lineReader.readLine());
+        assertEquals("last", lineReader.readLine());
+        assertNull(lineReader.readLine());
+    }
+
+    @Test
+    public void flagsAndSkipsOverLongLine() throws Exception {
+        AuditEventBulkIngestService.BoundedLineReader lineReader = new AuditEventBulkIngestService.BoundedLineReader(new StringReader("0123456789ABCDEF\nok\n"), 8);
+        String truncatedLine = lineReader.readLine();
+        assertTrue(lineReader.isLastLineTruncated());
+        assertEquals("", truncatedLine);
+        assertEquals("ok", lineReader.readLine());
+        assertFalse(lineReader.isLastLineTruncated());
+        assertNull(lineReader.readLine());
+    }
+
+    @Test
+    public void lineOfExactlyMaximumLengthIsNotTruncated() throws Exception {
+        AuditEventBulkIngestService.BoundedLineReader lineReader = new AuditEventBulkIngestService.BoundedLineReader(new StringReader("12345678\n"), 8);
+        assertEquals("12345678", lineReader.readLine());
+        assertFalse(lineReader.isLastLineTruncated());
+    }
+
+    @Test
+    public void readsLinesSpanningTheReadBuffer() throws Exception {
+        StringBuilder longLine = new StringBuilder();
+        for(int index = 0; index < 20000; index++){
+            longLine.append((char)('a' + (index % 26)));
+        }
+        AuditEventBulkIngestService.BoundedLineReader lineReader = new AuditEventBulkIngestService.BoundedLineReader(new StringReader(longLine + "\nnext"), 32000);
+        assertEquals(longLine.toString(), lineReader.readLine());
+        assertEquals("next", lineReader.readLine());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.integrity;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class AuditEventMerkleTreeTest {
+
+    @Test
+    public void everyInclusionProofRebuildsTheRoot(){
+        for(int leafCount = 1; leafCount <= 33; leafCount++){
+            byte[][] leafHashes = newLeafHashes(leafCount);
+            AuditEventMerkleTree tree = new AuditEventMerkleTree(leafHashes);
+            assertEquals(leafCount, tree.getLeafCount());
+            for(int leafIndex = 0; leafIndex < leafCount; leafIndex++){
+                byte[] rebuiltRoot = rebuildRoot(leafHashes[leafIndex], leafIndex, leafCount, tree.getInclusionProof(leafIndex));
+                assertArrayEquals(tree.getRoot(), rebuiltRoot, "leafCount=" + leafCount + ", leafIndex=" + leafIndex);
+            }
+        }
+    }
+
+    @Test
+    public void singleLeafIsItsOwnRootWithAnEmptyProof(){
+        byte[][] leafHashes = newLeafHashes(1);
+        AuditEventMerkleTree tree = new AuditEventMerkleTree(leafHashes);
+        assertArrayEquals(leafHashes[0], tree.getRoot());
+        assertEquals(0, tree.getInclusionProof(0).length);
+    }
+
+    @Test
+    public void oddNodeIsPromotedUnchanged(){
+        byte[][] leafHashes = newLeafHashes(3);
+        AuditEventMerkleTree tree = new AuditEventMerkleTree(leafHashes);
+        MessageDigest digest = AuditEventMerkleTree.newDigest();
+        byte[] expectedRoot = AuditEventMerkleTree.hashNode(digest, AuditEventMerkleTree.hashNode(digest, leafHashes[0], leafHashes[1]), leafHashes[2]);
+        assertArrayEquals(expectedRoot, tree.getRoot());
+        // the promoted leaf has a sibling only on the level above
+        assertEquals(AuditEventMerkleTree.HASH_LENGTH, tree.getInclusionProof(2).length);
+    }
+
+    @Test
+    public void tamperedLeafDoesNotRebuildTheRoot(){
+        byte[][] leafHashes = newLeafHashes(7);
+        AuditEventMerkleTree tree = new AuditEventMerkleTree(leafHashes);
+        byte[] tamperedLeaf = AuditEventMerkleTree.hashLeaf(AuditEventMerkleTree.newDigest(), "tampered".getBytes(StandardCharsets.UTF_8));
+        byte[] rebuiltRoot = rebuildRoot(tamperedLeaf, 4, 7, tree.getInclusionProof(4));
+        assertFalse(Arrays.equals(tree.getRoot(), rebuiltRoot));
+    }
+
+    @Test
+    public void hashesAreDomainSeparated(){
+        MessageDigest digest = AuditEventMerkleTree.newDigest();
+        byte[] left = AuditEventMerkleTree.hashLeaf(digest, new byte[]{1});
+        byte[] right = AuditEventMerkleTree.hashLeaf(digest, new byte[]{2});
+        assertFalse(Arrays.equals(AuditEventMerkleTree.hashNode(digest, left, right), AuditEventMerkleTree.hashChain(digest, left, right)));
+        byte[] concatenated = new byte[left.length + right.length];
+        System.arraycopy(left, 0, concatenated, 0, left.length);
+        System.arraycopy(right, 0, concatenated, left.length, right.length);
+        assertFalse(Arrays.equals(AuditEventMerkleTree.hashNode(digest, left, right), AuditEventMerkleTree.hashLeaf(digest, concatenated)));
+    }
+
+    @Test
+    public void rejectsEmptyBatch(){
+        assertThrows(IllegalArgumentException.class, () -> new AuditEventMerkleTree(new byte[0][]));
+    }
+
+    //
+    // Helper Functions
+    //
+
+    private byte[][] newLeafHashes(int leafCount){
+        MessageDigest digest = AuditEventMerkleTree.newDigest();
+        byte[][] leafHashes = new byte[leafCount][];
+        for(int index = 0; index < leafCount; index++){
+            leafHashes[index] = AuditEventMerkleTree.hashLeaf(digest, ("AuditEvent-" + index).getBytes(StandardCharsets.UTF_8));
+        }
+        return(leafHashes);
+    }
+
+    /**
+     * Rebuilds the root the way a verifier does: from the leaf, its index, the leaf count and the
+     * sibling hashes, skipping the levels where the node was promoted without a sibling.
+     */
+    private byte[] rebuildRoot(byte[] leafHash, int leafIndex, int leafCount, byte[] proof){
+        MessageDigest digest = AuditEventMerkleTree.newDigest();
+        byte[] node = leafHash;
+        int index = leafIndex;
+        int levelSize = leafCount;
+        int proofOffset = 0;
+        while(levelSize > 1){
+            int siblingIndex = (index % 2 == 0) ? index + 1 : index - 1;
+            if(siblingIndex < levelSize){
+                byte[] sibling = Arrays.copyOfRange(proof, proofOffset, proofOffset + AuditEventMerkleTree.HASH_LENGTH);
+                proofOffset += AuditEventMerkleTree.HASH_LENGTH;
+                node = (index % 2 == 0) ? AuditEventMerkleTree.hashNode(digest, node, sibling) : AuditEventMerkleTree.hashNode(digest, sibling, node);
+            }
+            index = index / 2;
+            levelSize = (levelSize + 1) / 2;
+        }
+        assertEquals(proof.length, proofOffset);
+        return(node);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
+
+import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelManifest;
+import net.fhirfactory.pegacorn.core.model.dataparcel.DataParcelTypeDescriptor;
+import net.fhirfactory.pegacorn.core.model.dataparcel.valuesets.DataParcelDirectionEnum;
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the egress manifests are per-UoW copies, and measures the per-UoW cost of building
+ * them against the Java serialization round-trip (plus a freshly built MethodOutcome manifest)
+ * the response paths used before.
+ */
+public class DataParcelManifestFactoryTest {
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 100000;
+
+    @Test
+    public void egressManifestDoesNotChangeTheIngressManifest(){
+        DataParcelManifestFactory manifestFactory = new DataParcelManifestFactory();
+        DataParcelManifest ingresManifest = createIngresManifest();
+        DataParcelManifest egressManifest = manifestFactory.getEgressManifest(ingresManifest, "RESTfulAPI", "MethodOutcome");
+        assertNotSame(ingresManifest, egressManifest);
+        assertNotSame(ingresManifest.getContentDescriptor(), egressManifest.getContentDescriptor());
+        assertEquals("AuditEvent", egressManifest.getContentDescriptor().getDataParcelResource());
+        assertEquals("MethodOutcome", egressManifest.getContentDescriptor().getDataParcelDiscriminatorValue());
+        assertNull(ingresManifest.getContentDescriptor().getDataParcelDiscriminatorValue());
+    }
+
+    @Test
+    public void methodOutcomeManifestIsNotSharedBetweenUoWs(){
+        DataParcelManifestFactory manifestFactory = new DataParcelManifestFactory();
+        DataParcelManifest firstManifest = manifestFactory.getMethodOutcomeManifest();
+        DataParcelManifest secondManifest = manifestFactory.getMethodOutcomeManifest();
+        assertNotSame(firstManifest, secondManifest);
+        assertNotSame(firstManifest.getContentDescriptor(), secondManifest.getContentDescriptor());
+        firstManifest.getContentDescriptor().setDataParcelDiscriminatorValue("changed");
+        assertNull(secondManifest.getContentDescriptor().getDataParcelDiscriminatorValue());
+        assertEquals("MethodOutcome", secondManifest.getContentDescriptor().getDataParcelResource());
+    }
+
+    @Test
+    public void perUoWManifestCostAgainstSerializationClone(){
+        DataParcelManifestFactory manifestFactory = new DataParcelManifestFactory();
+        DataParcelManifest ingresManifest = createIngresManifest();
+        runSerializationClone(manifestFactory, ingresManifest, WARMUP_ITERATIONS);
+        runManifestFactory(manifestFactory, ingresManifest, WARMUP_ITERATIONS);
+
+        long cloneStart = System.nanoTime();
+        long cloneCheck = runSerializationClone(manifestFactory, ingresManifest, MEASURED_ITERATIONS);
+        long cloneNanos = System.nanoTime() - cloneStart;
+        long copyStart = System.nanoTime();
+        long copyCheck = runManifestFactory(manifestFactory, ingresManifest, MEASURED_ITERATIONS);
+        long copyNanos = System.nanoTime() - copyStart;
+
+        System.out.println("DataParcelManifestFactory per-UoW cost: serialization clone " + (cloneNanos / MEASURED_ITERATIONS)
+                + " ns/op, copy constructors " + (copyNanos / MEASURED_ITERATIONS) + " ns/op");
+        assertEquals(cloneCheck, copyCheck);
+        assertTrue(copyNanos < cloneNanos, "copying the manifests should be cheaper than a serialization round-trip");
+    }
+
+    //
+    // Helper Functions
+    //
+
+    private long runSerializationClone(DataParcelManifestFactory manifestFactory, DataParcelManifest ingresManifest, int iterations){
+        long check = 0;
+        for(int iteration = 0; iteration < iterations; iteration++){
+            DataParcelManifest egressManifest = SerializationUtils.clone(ingresManifest);
+            egressManifest.getContentDescriptor().setDataParcelDiscriminatorType("RESTfulAPI");
+            egressManifest.getContentDescriptor().setDataParcelDiscriminatorValue("MethodOutcome");
+            DataParcelManifest outcomeManifest = manifestFactory.createManifestForMethodOutcome();
+            check += egressManifest.getContentDescriptor().getDataParcelDiscriminatorValue().length();
+            check += outcomeManifest.getContentDescriptor().getDataParcelResource().length();
+        }
+        return(check);
+    }
+
+    private long runManifestFactory(DataParcelManifestFactory manifestFactory, DataParcelManifest ingresManifest, int iterations){
+        long check = 0;
+        for(int iteration = 0; iteration < iterations; iteration++){
+            DataParcelManifest egressManifest = manifestFactory.getEgressManifest(ingresManifest, "RESTfulAPI", "MethodOutcome");
+            DataParcelManifest outcomeManifest = manifestFactory.getMethodOutcomeManifest();
+            check += egressManifest.getContentDescriptor().getDataParcelDiscriminatorValue().length();
+            check += outcomeManifest.getContentDescriptor().getDataParcelResource().length();
+        }
+        return(check);
+    }
+
+    private DataParcelManifest createIngresManifest(){
+        DataParcelTypeDescriptor descriptor = new DataParcelTypeDescriptor();
+        descriptor.setDataParcelDefiner("FHIR");
+        descriptor.setDataParcelCategory("Resource");
+        descriptor.setDataParcelSubCategory("Security");
+        descriptor.setDataParcelResource("AuditEvent");
+        descriptor.setVersion("4.0.1");
+
+        DataParcelManifest manifest = new DataParcelManifest();
+        manifest.setContentDescriptor(descriptor);
+        manifest.setDataParcelFlowDirection(DataParcelDirectionEnum.INFORMATION_FLOW_INBOUND_DATA_PARCEL);
+        manifest.setInterSubsystemDistributable(true);
+        return(manifest);
+    }
+}
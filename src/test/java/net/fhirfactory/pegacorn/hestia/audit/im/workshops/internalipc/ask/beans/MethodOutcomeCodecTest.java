@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.ask.beans;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import net.fhirfactory.pegacorn.core.model.transaction.model.SimpleResourceID;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MethodOutcomeCodecTest {
+    private final MethodOutcomeCodec codec = new MethodOutcomeCodec();
+
+    @Test
+    public void roundTripsCreatedOutcome() throws Exception {
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setCreated(true);
+        outcome.setId(new IdType("http://hestia-audit-dm/fhir", "AuditEvent", "1234", "2"));
+
+        MethodOutcome decoded = codec.decodeMethodOutcome(codec.encodeMethodOutcome(outcome));
+
+        assertTrue(decoded.getCreated());
+        assertEquals("1234", decoded.getId().getIdPart());
+        assertEquals("AuditEvent", decoded.getId().getResourceType());
+        assertEquals("2", decoded.getId().getVersionIdPart());
+        assertEquals("http://hestia-audit-dm/fhir", decoded.getId().getBaseUrl());
+    }
+
+    @Test
+    public void roundTripsFailedOutcome() throws Exception {
+        MethodOutcome outcome = new MethodOutcome();
+        outcome.setCreated(false);
+
+        String encoded = codec.encodeMethodOutcome(outcome);
+        MethodOutcome decoded = codec.decodeMethodOutcome(encoded);
+
+        assertEquals("{\"id\":null,\"created\":false}", encoded);
+        assertFalse(decoded.getCreated());
+        assertNull(decoded.getId());
+    }
+
+    @Test
+    public void decodesTransactionOutcomeForm(){
+        String transactionOutcome = "{\"transactionSuccessful\":true,\"causalityID\":{\"ignored\":[1,2]},"
+                + "\"resourceID\":{\"value\":\"5678\",\"resourceType\":\"AuditEvent\",\"url\":\"http://hestia-audit-dm/fhir\"}}";
+
+        MethodOutcome decoded = codec.decodeMethodOutcome(transactionOutcome);
+
+        assertTrue(decoded.getCreated());
+        assertEquals("5678", decoded.getId().getIdPart());
+        assertEquals(SimpleResourceID.DEFAULT_VERSION, decoded.getId().getVersionIdPart());
+    }
+
+    @Test
+    public void createdWithoutIdIsStillCreated(){
+        MethodOutcome decoded = codec.decodeMethodOutcome("{\"created\":true}");
+
+        assertTrue(decoded.getCreated());
+        assertNull(decoded.getId());
+    }
+
+    @Test
+    public void idWithoutCreatedIsNotCreated(){
+        MethodOutcome decoded = codec.decodeMethodOutcome("{\"id\":{\"idPart\":\"1234\"},\"created\":false}");
+
+        assertFalse(decoded.getCreated());
+        assertEquals("1234", decoded.getId().getIdPart());
+    }
+
+    @Test
+    public void emptyOrMalformedInputIsNotCreated(){
+        assertFalse(codec.decodeMethodOutcome(null).getCreated());
+        assertFalse(codec.decodeMethodOutcome("").getCreated());
+        assertFalse(codec.decodeMethodOutcome("[true]").getCreated());
+        assertFalse(codec.decodeMethodOutcome("{\"created\":tr").getCreated());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.admission;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuditEventTokenBucketTest {
+
+    @Test
+    public void admitsUpToTheBurstThenAsksToWait(){
+        AuditEventTokenBucket tokenBucket = new AuditEventTokenBucket(1, 5);
+        for(int index = 0; index < 5; index++){
+            assertEquals(0L, tokenBucket.tryAcquire(1), "permit " + index);
+        }
+        assertTrue(tokenBucket.tryAcquire(1) > 0);
+    }
+
+    @Test
+    public void refundMakesPermitsAvailableAgain(){
+        AuditEventTokenBucket tokenBucket = new AuditEventTokenBucket(1, 2);
+        assertEquals(0L, tokenBucket.tryAcquire(2));
+        assertTrue(tokenBucket.tryAcquire(1) > 0);
+        tokenBucket.refund(1);
+        assertEquals(0L, tokenBucket.tryAcquire(1));
+    }
+
+    @Test
+    public void requestLargerThanBurstIsAdmittedOnlyWhenFull(){
+        AuditEventTokenBucket tokenBucket = new AuditEventTokenBucket(1, 2);
+        assertEquals(0L, tokenBucket.tryAcquire(10));
+        assertTrue(tokenBucket.tryAcquire(1) > 0);
+    }
+}
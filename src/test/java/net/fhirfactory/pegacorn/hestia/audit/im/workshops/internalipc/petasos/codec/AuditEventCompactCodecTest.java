@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuditEventCompactCodecTest {
+    private static final List<String> LINES = Arrays.asList(
+            "{\"resourceType\":\"AuditEvent\",\"id\":\"1\"}",
+            "{\"resourceType\":\"AuditEvent\",\"id\":\"2\"}",
+            "{\"resourceType\":\"AuditEvent\",\"id\":\"3\"}");
+
+    private final AuditEventCompactCodec codec = new AuditEventCompactCodec();
+
+    @Test
+    public void decodesPlainNDJSONLines() throws Exception {
+        List<String> decoded = new ArrayList<>();
+        int taken = codec.decodeLines(toNDJSON(LINES), AuditEventCompactCodec.ENCODING_NDJSON, 10, decoded::add);
+        assertEquals(3, taken);
+        assertEquals(LINES, decoded);
+    }
+
+    @Test
+    public void decodesDeflatedNDJSONLines() throws Exception {
+        List<String> decoded = new ArrayList<>();
+        byte[] payload = deflate(toNDJSON(LINES));
+        int taken = codec.decodeLines(payload, AuditEventCompactCodec.ENCODING_NDJSON_DEFLATE, 10, decoded::add);
+        assertEquals(3, taken);
+        assertEquals(LINES, decoded);
+        assertTrue(codec.getCompressionRatio() > 0.0);
+    }
+
+    @Test
+    public void takesLastLineWithoutNewlineAndSkipsBlankLines() throws Exception {
+        String payload = LINES.get(0) + "\n\n   \n" + LINES.get(1);
+        List<String> decoded = new ArrayList<>();
+        int taken = codec.decodeLines(payload.getBytes(StandardCharsets.UTF_8), AuditEventCompactCodec.ENCODING_NDJSON, 10, decoded::add);
+        assertEquals(2, taken);
+        assertEquals(LINES.subList(0, 2), decoded);
+    }
+
+    @Test
+    public void stopsAtMaximumEvents() throws Exception {
+        List<String> decoded = new ArrayList<>();
+        int taken = codec.decodeLines(toNDJSON(LINES), AuditEventCompactCodec.ENCODING_NDJSON, 2, decoded::add);
+        assertEquals(2, taken);
+        assertEquals(LINES.subList(0, 2), decoded);
+    }
+
+    @Test
+    public void linesRefusedBySinkAreNotCounted() throws Exception {
+        int taken = codec.decodeLines(toNDJSON(LINES), AuditEventCompactCodec.ENCODING_NDJSON, 10, line -> !line.contains("\"2\""));
+        assertEquals(2, taken);
+    }
+
+    @Test
+    public void emptyPayloadDecodesNothing() throws Exception {
+        assertEquals(0, codec.decodeLines(new byte[0], AuditEventCompactCodec.ENCODING_NDJSON_DEFLATE, 10, line -> true));
+        assertEquals(0, codec.decodeLines(null, AuditEventCompactCodec.ENCODING_NDJSON, 10, line -> true));
+    }
+
+    @Test
+    public void rejectsUnsupportedEncoding(){
+        assertThrows(IOException.class, () -> codec.decodeLines(toNDJSON(LINES), "java-serialization", 10, line -> true));
+        assertThrows(IOException.class, () -> codec.encode(Collections.emptyList(), "java-serialization"));
+    }
+
+    @Test
+    public void negotiatesMostPreferredSupportedEncoding(){
+        assertEquals(AuditEventCompactCodec.ENCODING_NDJSON_DEFLATE, codec.negotiateEncoding(Arrays.asList(AuditEventCompactCodec.ENCODING_NDJSON, AuditEventCompactCodec.ENCODING_NDJSON_DEFLATE)));
+        assertEquals(AuditEventCompactCodec.ENCODING_NDJSON, codec.negotiateEncoding(Arrays.asList("gzip", AuditEventCompactCodec.ENCODING_NDJSON)));
+        assertNull(codec.negotiateEncoding(Collections.singletonList("gzip")));
+        assertNull(codec.negotiateEncoding(null));
+    }
+
+    //
+    // Helper Functions
+    //
+
+    private byte[] toNDJSON(List<String> lines){
+        String payload = String.join("\n", lines) + "\n";
+        return(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] deflate(byte[] payload) throws IOException {
+        ByteArrayOutputStream deflatedStream = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflaterStream = new DeflaterOutputStream(deflatedStream)) {
+            deflaterStream.write(payload);
+        }
+        return(deflatedStream.toByteArray());
+    }
+}
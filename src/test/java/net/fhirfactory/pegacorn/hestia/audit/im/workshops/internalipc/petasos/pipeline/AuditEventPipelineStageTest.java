@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuditEventPipelineStageTest {
+    private static final long CLAIM_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void handsEveryPublishedEntryToTheHandler() throws Exception {
+        AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer = new AuditEventRingBuffer<>(16, AuditEventPipelineSlot::new);
+        CountDownLatch handledLatch = new CountDownLatch(10);
+        AuditEventPipelineStage stage = new AuditEventPipelineStage("TestStage", ringBuffer, (slot, endOfBatch) -> handledLatch.countDown(), 4);
+        stage.start();
+        for(int index = 0; index < 10; index++){
+            publish(ringBuffer);
+        }
+        assertTrue(handledLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(stage.stop(5000));
+    }
+
+    @Test
+    public void finishesEntryInHandThenHandsLeftoversToOnStopOnItsOwnThread() throws Exception {
+        AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer = new AuditEventRingBuffer<>(16, AuditEventPipelineSlot::new);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger(0);
+        AtomicLong leftovers = new AtomicLong(-1);
+        AtomicReference<String> stopThreadName = new AtomicReference<>();
+        AuditEventPipelineStage stage = new AuditEventPipelineStage("TestStage", ringBuffer, new AuditEventPipelineStage.StageHandler() {
+            @Override
+            public void onEntry(AuditEventPipelineSlot slot, boolean endOfBatch) throws Exception {
+                entered.countDown();
+                release.await();
+                handled.incrementAndGet();
+            }
+
+            @Override
+            public void onStop(AuditEventRingBuffer<AuditEventPipelineSlot> stoppedRing) {
+                stopThreadName.set(Thread.currentThread().getName());
+                leftovers.set(stoppedRing.getClaimCursor() - stoppedRing.getConsumerCursor());
+            }
+        }, 1);
+        stage.start();
+        for(int index = 0; index < 3; index++){
+            publish(ringBuffer);
+        }
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        stage.requestStop();
+        assertFalse(stage.awaitTermination(50), "the stage must not terminate while its entry is in hand");
+        assertEquals(-1L, leftovers.get());
+        release.countDown();
+        assertTrue(stage.awaitTermination(5000));
+        assertEquals(1, handled.get());
+        assertEquals(2L, leftovers.get());
+        assertEquals("TestStage", stopThreadName.get());
+    }
+
+    @Test
+    public void stopOfUnstartedStageReturnsImmediately(){
+        AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer = new AuditEventRingBuffer<>(16, AuditEventPipelineSlot::new);
+        AuditEventPipelineStage stage = new AuditEventPipelineStage("TestStage", ringBuffer, (slot, endOfBatch) -> {}, 1);
+        assertTrue(stage.stop(1));
+    }
+
+    private void publish(AuditEventRingBuffer<AuditEventPipelineSlot> ringBuffer){
+        long sequence = ringBuffer.claim(CLAIM_TIMEOUT);
+        assertTrue(sequence >= 0);
+        ringBuffer.get(sequence).clear();
+        ringBuffer.publish(sequence);
+    }
+}
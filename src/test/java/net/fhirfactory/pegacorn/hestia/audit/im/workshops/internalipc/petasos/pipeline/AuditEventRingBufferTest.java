@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2021 Mark A. Hunter
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.hestia.audit.im.workshops.internalipc.petasos.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuditEventRingBufferTest {
+    private static final long CLAIM_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void roundsSizeUpToPowerOfTwo(){
+        assertEquals(16, new AuditEventRingBuffer<>(10, AuditEventPipelineSlot::new).getBufferSize());
+        assertEquals(16, new AuditEventRingBuffer<>(16, AuditEventPipelineSlot::new).getBufferSize());
+        assertEquals(32, new AuditEventRingBuffer<>(17, AuditEventPipelineSlot::new).getBufferSize());
+    }
+
+    @Test
+    public void drainsPublishedEntriesInSequenceOrder() throws Exception {
+        AuditEventRingBuffer<long[]> ringBuffer = new AuditEventRingBuffer<>(8, () -> new long[1]);
+        for(long value = 0; value < 5; value++){
+            long sequence = ringBuffer.claim(CLAIM_TIMEOUT);
+            ringBuffer.get(sequence)[0] = value;
+            ringBuffer.publish(sequence);
+        }
+        List<Long> drained = new ArrayList<>();
+        List<Boolean> endOfBatch = new ArrayList<>();
+        int handled = ringBuffer.drain((entry, last) -> {
+            drained.add(entry[0]);
+            endOfBatch.add(last);
+        }, 3);
+        assertEquals(3, handled);
+        assertEquals(Arrays.asList(0L, 1L, 2L), drained);
+        assertEquals(Arrays.asList(false, false, true), endOfBatch);
+        assertEquals(2, ringBuffer.getOccupancy());
+        assertEquals(2, ringBuffer.drain((entry, last) -> drained.add(entry[0]), 10));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), drained);
+        assertEquals(0, ringBuffer.getOccupancy());
+    }
+
+    @Test
+    public void stopsAtFirstUnpublishedSequence() throws Exception {
+        AuditEventRingBuffer<long[]> ringBuffer = new AuditEventRingBuffer<>(8, () -> new long[1]);
+        long first = ringBuffer.claim(CLAIM_TIMEOUT);
+        long second = ringBuffer.claim(CLAIM_TIMEOUT);
+        ringBuffer.publish(second);
+        assertEquals(0, ringBuffer.drain((entry, last) -> {}, 10));
+        ringBuffer.publish(first);
+        assertEquals(2, ringBuffer.drain((entry, last) -> {}, 10));
+    }
+
+    @Test
+    public void claimTimesOutWhileFullAndSucceedsOnceDrained() throws Exception {
+        AuditEventRingBuffer<long[]> ringBuffer = new AuditEventRingBuffer<>(4, () -> new long[1]);
+        for(int index = 0; index < ringBuffer.getBufferSize(); index++){
+            long sequence = ringBuffer.claim(CLAIM_TIMEOUT);
+            assertTrue(sequence >= 0);
+            ringBuffer.publish(sequence);
+        }
+        assertEquals(-1L, ringBuffer.claim(CLAIM_TIMEOUT));
+        assertEquals(1, ringBuffer.drain((entry, last) -> {}, 1));
+        long sequence = ringBuffer.claim(CLAIM_TIMEOUT);
+        assertEquals(ringBuffer.getBufferSize(), sequence);
+        assertFalse(ringBuffer.isPublished(sequence));
+    }
+
+    @Test
+    public void releasesBatchEvenWhenHandlerFails(){
+        AuditEventRingBuffer<long[]> ringBuffer = new AuditEventRingBuffer<>(4, () -> new long[1]);
+        for(int index = 0; index < 2; index++){
+            ringBuffer.publish(ringBuffer.claim(CLAIM_TIMEOUT));
+        }
+        try {
+            ringBuffer.drain((entry, last) -> {
+                throw(new IllegalStateException("handler failure"));
+            }, 10);
+        } catch (Exception ex) {
+            // expected
+        }
+        assertEquals(0, ringBuffer.getOccupancy());
+    }
+
+    @Test
+    public void keepsEachProducersOrderUnderContention() throws Exception {
+        int producerCount = 4;
+        int eventsPerProducer = 20000;
+        AuditEventRingBuffer<long[]> ringBuffer = new AuditEventRingBuffer<>(256, () -> new long[2]);
+        List<Thread> producers = new ArrayList<>();
+        for(int producer = 0; producer < producerCount; producer++){
+            long producerId = producer;
+            Thread producerThread = new Thread(() -> {
+                for(long value = 0; value < eventsPerProducer; value++){
+                    long sequence;
+                    while((sequence = ringBuffer.claim(TimeUnit.MILLISECONDS.toNanos(100))) < 0){
+                        Thread.yield();
+                    }
+                    long[] entry = ringBuffer.get(sequence);
+                    entry[0] = producerId;
+                    entry[1] = value;
+                    ringBuffer.publish(sequence);
+                }
+            });
+            producers.add(producerThread);
+            producerThread.start();
+        }
+        long[] nextExpected = new long[producerCount];
+        boolean[] outOfOrder = new boolean[1];
+        int consumed = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while(consumed < producerCount * eventsPerProducer && System.currentTimeMillis() < deadline){
+            consumed += ringBuffer.drain((entry, last) -> {
+                int producerId = (int)entry[0];
+                if(entry[1] != nextExpected[producerId]){
+                    outOfOrder[0] = true;
+                }
+                nextExpected[producerId] = entry[1] + 1;
+            }, 64);
+        }
+        for(Thread producerThread: producers){
+            producerThread.join();
+        }
+        assertEquals(producerCount * eventsPerProducer, consumed);
+        assertFalse(outOfOrder[0]);
+        for(long expected: nextExpected){
+            assertEquals(eventsPerProducer, expected);
+        }
+    }
+}